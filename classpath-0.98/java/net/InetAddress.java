@@ -564,8 +564,9 @@ public class InetAddress implements Serializable
     if (sm != null)
       sm.checkConnect(hostname, -1);
 
-    // Resolve the hostname
-    byte[][] iplist = ResolverCache.getHostByName(hostname);
+    // Resolve the hostname.  The VM resolver caches by the TTL of the
+    // answer, ResolverCache in front of it would keep names forever.
+    byte[][] iplist = VMInetAddress.getHostByName(hostname);
     if (iplist.length == 0)
       throw new UnknownHostException(hostname);
 
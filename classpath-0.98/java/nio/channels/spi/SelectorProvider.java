@@ -37,7 +37,7 @@ exception statement from your version. */
 
 package java.nio.channels.spi;
 
-import gnu.java.nio.SelectorProviderImpl;
+import org.jam.java.nio.SelectorProviderImpl;
 
 import java.io.IOException;
 import java.nio.channels.Channel;
@@ -0,0 +1,140 @@
+package org.jam.harness;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.jam.net.NetworkInterface;
+import org.jam.net.Tcp;
+import org.jam.net.Udp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Host JVM benchmark of the whole stack over a perfect SimulatedLink. The
+ * numbers are for comparing changes to the protocol code, the vmmagic shim
+ * makes every load a map lookup so they say nothing about the VM.
+ *
+ * udpRoundTrip is one datagram each way, tcpBulk sends TRANSFER bytes to a
+ * thread that discards them.
+ *
+ * Built and run with the harness, see jam/harness/README.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackBenchmark
+{
+    private final static int ECHO_PORT = 7;
+    private final static int DISCARD_PORT = 9;
+    private final static int TRANSFER = 64 * 1024;
+
+    private NetHarness harness;
+    private Udp echo;
+    private Udp client;
+    private Tcp listener;
+    private Tcp sender;
+    private final byte message[] = new byte[64];
+    private final byte data[] = new byte[TRANSFER];
+    private DatagramPacket request;
+    private DatagramPacket response;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        harness = new NetHarness(1, NetworkInterface.OFFLOAD_CSUM);
+        java.net.InetAddress b = java.net.InetAddress.getByAddress(NetHarness.ADDRESS_B.asArray());
+        echo = new Udp();
+        echo.bind(new InetSocketAddress(b, ECHO_PORT));
+        Thread echoThread = new Thread()
+        {
+            public void run()
+            {
+                DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                try
+                {
+                    while(true)
+                    {
+                        packet.setLength(2048);
+                        packet.setSocketAddress(echo.receive(packet));
+                        echo.send(packet);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // closed in tearDown
+                }
+            }
+        };
+        echoThread.setDaemon(true);
+        echoThread.start();
+        client = new Udp();
+        client.bind(new InetSocketAddress(0));
+        request = new DatagramPacket(message, message.length, b, ECHO_PORT);
+        response = new DatagramPacket(new byte[2048], 2048);
+
+        listener = new Tcp();
+        listener.bind(new InetSocketAddress(DISCARD_PORT));
+        listener.listen(1);
+        Thread discardThread = new Thread()
+        {
+            public void run()
+            {
+                byte buffer[] = new byte[16384];
+                try
+                {
+                    Tcp connection = listener.accept();
+                    while(connection.read(buffer, 0, buffer.length) > 0)
+                    {
+                    }
+                    connection.close();
+                }
+                catch (IOException e)
+                {
+                    // closed in tearDown
+                }
+            }
+        };
+        discardThread.setDaemon(true);
+        discardThread.start();
+        sender = new Tcp();
+        sender.connect(new InetSocketAddress(b, DISCARD_PORT), 5000);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        sender.close();
+        listener.close();
+        client.close();
+        echo.close();
+    }
+
+    @Benchmark
+    public int udpRoundTrip() throws IOException
+    {
+        client.send(request);
+        response.setLength(2048);
+        client.receive(response);
+        return response.getLength();
+    }
+
+    @Benchmark
+    public void tcpBulk() throws IOException
+    {
+        sender.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,77 @@
+package org.jam.net;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jikesrvm.runtime.Magic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Host JVM benchmark of Checksum.sum() against the 16 bit loop the protocols
+ * used before it. Both read the data through the vmmagic shim, so every load
+ * costs the same HeapMemory lookup and the numbers compare the loops, not the
+ * VM. They say how many loads each loop does, not how fast it is compiled.
+ *
+ * Built and run with the harness, see jam/harness/README.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark
+{
+    @Param({ "20", "64", "576", "1472", "9000" })
+    public int length;
+
+    /*
+     * Held so HeapMemory keeps the range mapped
+     */
+    private byte buffer[];
+    private Address data;
+
+    @Setup
+    public void setup()
+    {
+        buffer = new byte[length];
+        new Random(length).nextBytes(buffer);
+        data = Magic.objectAsAddress(buffer);
+    }
+
+    @Benchmark
+    public int shortLoop()
+    {
+        int csum = 0;
+        Address address = data;
+        for(int words = length >> 1; words > 0; words--)
+        {
+            csum += address.loadShort() & 0xFFFF;
+            address = address.plus(2);
+        }
+        if((length & 1) != 0)
+        {
+            csum += address.loadByte() & 0xFF;
+        }
+        csum = (csum >>> 16) + (csum & 0xFFFF);
+        csum += csum >>> 16;
+        return ~csum & 0xFFFF;
+    }
+
+    @Benchmark
+    public int sum()
+    {
+        return ~Checksum.fold(Checksum.sum(data, length, 0)) & 0xFFFF;
+    }
+}
@@ -0,0 +1,116 @@
+package org.jam.net;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jam.net.inet4.InetAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Host JVM benchmark of Route.lookup() against a linear scan of the same
+ * routes. The table is built like the one RouteTest checks: mostly /16 to /24
+ * routes like a gateway table, some short and host routes, every seventh
+ * deleted. Half of the addresses fall inside a route.
+ *
+ * Built and run with the harness, see jam/harness/README.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteBenchmark
+{
+    private final static int ADDRESSES = 4096;
+
+    @Param({ "100", "1000", "5000" })
+    public int count;
+
+    private int networks[];
+    private int prefixes[];
+    private boolean deleted[];
+    private final int addresses[] = new int[ADDRESSES];
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(12);
+        networks = new int[count];
+        prefixes = new int[count];
+        deleted = new boolean[count];
+        Route.deleteAll();
+        for(int index = 0; index < count; index++)
+        {
+            int prefix = index % 10 == 0 ? random.nextInt(33) : 16 + random.nextInt(9);
+            int mask = prefix == 0 ? 0 : 0x80000000 >> (prefix - 1);
+            networks[index] = random.nextInt() & mask & 0x3FFFFFFF;
+            prefixes[index] = prefix;
+            for(int other = 0; other < index && !deleted[index]; other++)
+            {
+                // already in the table
+                deleted[index] = !deleted[other] && networks[other] == networks[index] && prefixes[other] == prefix;
+            }
+            if(!deleted[index])
+            {
+                Route.addRoute(prefix, new InetAddress(networks[index]), null, null);
+            }
+        }
+        for(int index = 0; index < count; index += 7)
+        {
+            if(!deleted[index])
+            {
+                Route.deleteRoute(new InetAddress(networks[index]), prefixes[index]);
+                deleted[index] = true;
+            }
+        }
+        for(int index = 0; index < ADDRESSES; index++)
+        {
+            int route = random.nextInt(count);
+            addresses[index] = index % 2 == 0 ? networks[route] | (random.nextInt() & 0xFF) : random.nextInt() & 0x3FFFFFFF;
+        }
+    }
+
+    private int nextAddress()
+    {
+        next = (next + 1) & (ADDRESSES - 1);
+        return addresses[next];
+    }
+
+    @Benchmark
+    public Route lookup()
+    {
+        return Route.lookup(nextAddress());
+    }
+
+    /*
+     * Longest prefix match by scanning every route
+     */
+    @Benchmark
+    public int linearScan()
+    {
+        int address = nextAddress();
+        int best = -1;
+        for(int index = 0; index < count; index++)
+        {
+            int mask = prefixes[index] == 0 ? 0 : 0x80000000 >> (prefixes[index] - 1);
+            if(!deleted[index] && (address & mask) == networks[index]
+               && (best < 0 || prefixes[index] > prefixes[best]))
+            {
+                best = index;
+            }
+        }
+        return best;
+    }
+}
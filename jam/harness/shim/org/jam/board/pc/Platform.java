@@ -0,0 +1,12 @@
+package org.jam.board.pc;
+
+import org.jam.interfaces.Timer;
+
+/**
+ * Host JVM stand in for the platform devices the net stack uses, set up by
+ * NetHarness
+ */
+public class Platform
+{
+    public static Timer timer;
+}
@@ -0,0 +1,76 @@
+package org.jam.system;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Host JVM stand in for DeferredWork. Items run on one work queue thread in
+ * the order they were scheduled, the statistics are left out.
+ */
+public abstract class DeferredWork
+{
+    private final static LinkedBlockingQueue<DeferredWork> queue = new LinkedBlockingQueue<DeferredWork>();
+
+    static
+    {
+        Thread workThread = new Thread()
+        {
+            public void run()
+            {
+                while(true)
+                {
+                    DeferredWork work;
+                    try
+                    {
+                        work = queue.take();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    work.pending = false;
+                    try
+                    {
+                        work.run();
+                    }
+                    catch (Throwable e)
+                    {
+                        System.out.println("work queue: " + work.getName() + " " + e);
+                    }
+                }
+            }
+        };
+        workThread.setName("Work Queue");
+        workThread.setDaemon(true);
+        workThread.start();
+    }
+
+    private final String name;
+    private volatile boolean pending;
+
+    public DeferredWork(String name)
+    {
+        this.name = name;
+    }
+
+    public final void schedule()
+    {
+        if(pending)
+        {
+            return;
+        }
+        pending = true;
+        queue.add(this);
+    }
+
+    public final boolean isPending()
+    {
+        return pending;
+    }
+
+    public abstract void run();
+
+    public final String getName()
+    {
+        return name;
+    }
+}
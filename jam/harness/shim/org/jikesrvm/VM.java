@@ -0,0 +1,38 @@
+package org.jikesrvm;
+
+/**
+ * Host JVM stand in for the console output of the VM
+ */
+public class VM
+{
+    public static final boolean VerifyAssertions = true;
+
+    public static void sysWrite(Object... values)
+    {
+        StringBuilder line = new StringBuilder();
+        for(Object value : values)
+        {
+            line.append(value);
+        }
+        System.out.print(line);
+    }
+
+    public static void sysWriteln(Object... values)
+    {
+        sysWrite(values);
+        System.out.println();
+    }
+
+    public static void _assert(boolean condition)
+    {
+        if(!condition)
+        {
+            throw new AssertionError();
+        }
+    }
+
+    public static void sysFail(String message)
+    {
+        throw new Error(message);
+    }
+}
@@ -0,0 +1,12 @@
+package org.jikesrvm.classloader;
+
+/**
+ * Host JVM stand in for the array copy
+ */
+public class RVMArray
+{
+    public static void arraycopy(byte source[], int sourceIndex, byte destination[], int destinationIndex, int length)
+    {
+        System.arraycopy(source, sourceIndex, destination, destinationIndex, length);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jikesrvm.runtime;
+
+import java.lang.invoke.VarHandle;
+
+import org.jam.harness.HeapMemory;
+import org.jam.harness.InterruptLock;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Host JVM stand in for the magic the net stack uses
+ */
+public class Magic
+{
+    /**
+     * @return the address of the first element of a byte array, other
+     * objects get an address that can only be printed
+     */
+    public static Address objectAsAddress(Object object)
+    {
+        if(object instanceof byte[])
+        {
+            return Address.fromLong(HeapMemory.addressOf((byte[])object));
+        }
+        return Address.fromIntZeroExtend(System.identityHashCode(object));
+    }
+
+    public static short byteSwap(short value)
+    {
+        return Short.reverseBytes(value);
+    }
+
+    public static int byteSwap(int value)
+    {
+        return Integer.reverseBytes(value);
+    }
+
+    public static long getTimeBase()
+    {
+        return System.nanoTime();
+    }
+
+    public static void fence()
+    {
+        // volatile accesses order the host JVM
+    }
+
+    public static void combinedLoadBarrier()
+    {
+        VarHandle.acquireFence();
+    }
+
+    public static void storeStoreBarrier()
+    {
+        VarHandle.storeStoreFence();
+    }
+
+    public static void disableInterrupts()
+    {
+        InterruptLock.disable();
+    }
+
+    public static void enableInterrupts()
+    {
+        InterruptLock.enable();
+    }
+}
@@ -0,0 +1,15 @@
+package org.jikesrvm.runtime;
+
+import org.jam.harness.HeapMemory;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Host JVM stand in for the memory copy
+ */
+public class Memory
+{
+    public static void memcopy(Address destination, Address source, int length)
+    {
+        HeapMemory.copy(destination.toLong(), source.toLong(), length);
+    }
+}
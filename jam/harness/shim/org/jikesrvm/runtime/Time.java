@@ -0,0 +1,17 @@
+package org.jikesrvm.runtime;
+
+/**
+ * Host JVM stand in for the VM clock
+ */
+public class Time
+{
+    public static long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    public static long nanoTime()
+    {
+        return System.nanoTime();
+    }
+}
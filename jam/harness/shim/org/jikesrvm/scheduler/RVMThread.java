@@ -0,0 +1,18 @@
+package org.jikesrvm.scheduler;
+
+/**
+ * Host JVM stand in for the thread operations the net stack uses
+ */
+public class RVMThread
+{
+    /**
+     * Notify without holding the monitor, which a host JVM does not allow
+     */
+    public static void nosyncNotify(Object object)
+    {
+        synchronized (object)
+        {
+            object.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.vmmagic.unboxed;
+
+import org.jam.harness.HeapMemory;
+
+/**
+ * Host JVM stand in for the vmmagic Address. It is a boxed value and every
+ * load and store goes through HeapMemory.
+ */
+public final class Address
+{
+    private final static Address ZERO = new Address(0);
+
+    private final long value;
+
+    private Address(long value)
+    {
+        this.value = value;
+    }
+
+    public static Address zero()
+    {
+        return ZERO;
+    }
+
+    public static Address fromLong(long address)
+    {
+        return new Address(address);
+    }
+
+    public static Address fromIntSignExtend(int address)
+    {
+        return new Address(address);
+    }
+
+    public static Address fromIntZeroExtend(int address)
+    {
+        return new Address(address & 0xFFFFFFFFL);
+    }
+
+    public boolean isZero()
+    {
+        return value == 0;
+    }
+
+    public int toInt()
+    {
+        return (int)value;
+    }
+
+    public long toLong()
+    {
+        return value;
+    }
+
+    public Address plus(int offset)
+    {
+        return new Address(value + offset);
+    }
+
+    public Address plus(Offset offset)
+    {
+        return new Address(value + offset.toLong());
+    }
+
+    public Address minus(int offset)
+    {
+        return new Address(value - offset);
+    }
+
+    public Address minus(Offset offset)
+    {
+        return new Address(value - offset.toLong());
+    }
+
+    public Offset diff(Address address)
+    {
+        return Offset.fromLong(value - address.value);
+    }
+
+    public boolean EQ(Address address)
+    {
+        return value == address.value;
+    }
+
+    public boolean NE(Address address)
+    {
+        return value != address.value;
+    }
+
+    public boolean LT(Address address)
+    {
+        return value < address.value;
+    }
+
+    public boolean LE(Address address)
+    {
+        return value <= address.value;
+    }
+
+    public boolean GT(Address address)
+    {
+        return value > address.value;
+    }
+
+    public boolean GE(Address address)
+    {
+        return value >= address.value;
+    }
+
+    public byte loadByte()
+    {
+        return HeapMemory.loadByte(value);
+    }
+
+    public byte loadByte(Offset offset)
+    {
+        return HeapMemory.loadByte(value + offset.toLong());
+    }
+
+    public char loadChar()
+    {
+        return (char)HeapMemory.loadShort(value);
+    }
+
+    public char loadChar(Offset offset)
+    {
+        return (char)HeapMemory.loadShort(value + offset.toLong());
+    }
+
+    public short loadShort()
+    {
+        return HeapMemory.loadShort(value);
+    }
+
+    public short loadShort(Offset offset)
+    {
+        return HeapMemory.loadShort(value + offset.toLong());
+    }
+
+    public int loadInt()
+    {
+        return HeapMemory.loadInt(value);
+    }
+
+    public int loadInt(Offset offset)
+    {
+        return HeapMemory.loadInt(value + offset.toLong());
+    }
+
+    public long loadLong()
+    {
+        return HeapMemory.loadLong(value);
+    }
+
+    public long loadLong(Offset offset)
+    {
+        return HeapMemory.loadLong(value + offset.toLong());
+    }
+
+    public void store(byte data)
+    {
+        HeapMemory.store(value, data);
+    }
+
+    public void store(byte data, Offset offset)
+    {
+        HeapMemory.store(value + offset.toLong(), data);
+    }
+
+    public void store(char data)
+    {
+        HeapMemory.store(value, (short)data);
+    }
+
+    public void store(char data, Offset offset)
+    {
+        HeapMemory.store(value + offset.toLong(), (short)data);
+    }
+
+    public void store(short data)
+    {
+        HeapMemory.store(value, data);
+    }
+
+    public void store(short data, Offset offset)
+    {
+        HeapMemory.store(value + offset.toLong(), data);
+    }
+
+    public void store(int data)
+    {
+        HeapMemory.store(value, data);
+    }
+
+    public void store(int data, Offset offset)
+    {
+        HeapMemory.store(value + offset.toLong(), data);
+    }
+
+    public void store(long data)
+    {
+        HeapMemory.store(value, data);
+    }
+
+    public void store(long data, Offset offset)
+    {
+        HeapMemory.store(value + offset.toLong(), data);
+    }
+
+    public boolean equals(Object object)
+    {
+        return object instanceof Address && ((Address)object).value == value;
+    }
+
+    public int hashCode()
+    {
+        return (int)(value ^ (value >>> 32));
+    }
+
+    public String toString()
+    {
+        return "0x" + Long.toHexString(value);
+    }
+}
@@ -0,0 +1,111 @@
+package org.vmmagic.unboxed;
+
+/**
+ * Host JVM stand in for the vmmagic Offset
+ */
+public final class Offset
+{
+    private final static Offset ZERO = new Offset(0);
+
+    private final long value;
+
+    private Offset(long value)
+    {
+        this.value = value;
+    }
+
+    public static Offset zero()
+    {
+        return ZERO;
+    }
+
+    public static Offset fromLong(long offset)
+    {
+        return new Offset(offset);
+    }
+
+    public static Offset fromIntSignExtend(int offset)
+    {
+        return new Offset(offset);
+    }
+
+    public static Offset fromIntZeroExtend(int offset)
+    {
+        return new Offset(offset & 0xFFFFFFFFL);
+    }
+
+    public int toInt()
+    {
+        return (int)value;
+    }
+
+    public long toLong()
+    {
+        return value;
+    }
+
+    public Offset plus(int bytes)
+    {
+        return new Offset(value + bytes);
+    }
+
+    public Offset minus(int bytes)
+    {
+        return new Offset(value - bytes);
+    }
+
+    public Offset minus(Offset offset)
+    {
+        return new Offset(value - offset.value);
+    }
+
+    public boolean EQ(Offset offset)
+    {
+        return value == offset.value;
+    }
+
+    public boolean NE(Offset offset)
+    {
+        return value != offset.value;
+    }
+
+    public boolean sLT(Offset offset)
+    {
+        return value < offset.value;
+    }
+
+    public boolean sLE(Offset offset)
+    {
+        return value <= offset.value;
+    }
+
+    public boolean sGT(Offset offset)
+    {
+        return value > offset.value;
+    }
+
+    public boolean sGE(Offset offset)
+    {
+        return value >= offset.value;
+    }
+
+    public boolean isZero()
+    {
+        return value == 0;
+    }
+
+    public boolean equals(Object object)
+    {
+        return object instanceof Offset && ((Offset)object).value == value;
+    }
+
+    public int hashCode()
+    {
+        return (int)(value ^ (value >>> 32));
+    }
+
+    public String toString()
+    {
+        return Long.toString(value);
+    }
+}
@@ -0,0 +1,200 @@
+package org.jam.harness;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Simulated address space for the vmmagic shim.
+ *
+ * Inside the VM Magic.objectAsAddress() of a byte array is the address of
+ * its first element. On a host JVM arrays move, so every array that is asked
+ * for its address is given a range in a simulated address space instead and
+ * loads and stores through an Address go to the array that owns the range.
+ * Values are little endian like on the x86 the stack runs on.
+ *
+ * Arrays are held weakly, a range goes away with its array.
+ */
+public final class HeapMemory
+{
+    /*
+     * Nothing is placed below this so a null address is never valid
+     */
+    private final static long BASE = 0x10000;
+    private final static int ALIGNMENT = 16;
+
+    private final static VarHandle SHORTS = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private final static VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /*
+     * An array and where it starts in the address space
+     */
+    private static final class Region
+    extends WeakReference<byte[]>
+    {
+        final long start;
+        final long end;
+
+        Region(byte array[], long start, ReferenceQueue<byte[]> queue)
+        {
+            super(array, queue);
+            this.start = start;
+            end = start + array.length;
+        }
+    }
+
+    /*
+     * Arrays do not override equals() so the weak map compares identities
+     */
+    private static final WeakHashMap<byte[], Region> regions = new WeakHashMap<byte[], Region>();
+    private static final TreeMap<Long, Region> addresses = new TreeMap<Long, Region>();
+    private static final ReferenceQueue<byte[]> collected = new ReferenceQueue<byte[]>();
+    private static long next = BASE;
+    /*
+     * Last region found, most accesses hit the same packet in a row
+     */
+    private static volatile Region last;
+
+    private HeapMemory()
+    {
+    }
+
+    /**
+     * @return the simulated address of the first element of the array
+     */
+    public static synchronized long addressOf(byte array[])
+    {
+        Region region = regions.get(array);
+        if(region == null)
+        {
+            purge();
+            region = new Region(array, next, collected);
+            next += (array.length + ALIGNMENT) & ~(ALIGNMENT - 1);
+            regions.put(array, region);
+            addresses.put(Long.valueOf(region.start), region);
+        }
+        return region.start;
+    }
+
+    /*
+     * Forget the ranges of collected arrays
+     */
+    private static void purge()
+    {
+        Region region;
+        while((region = (Region)collected.poll()) != null)
+        {
+            addresses.remove(Long.valueOf(region.start));
+        }
+    }
+
+    /*
+     * Find the region that holds size bytes at address
+     */
+    private static Region region(long address, int size)
+    {
+        Region region = last;
+        if(region == null || address < region.start || address + size > region.end)
+        {
+            synchronized (HeapMemory.class)
+            {
+                Map.Entry<Long, Region> entry = addresses.floorEntry(Long.valueOf(address));
+                region = entry == null ? null : entry.getValue();
+            }
+            if(region == null || address + size > region.end)
+            {
+                throw new IllegalArgumentException("Unmapped address 0x" + Long.toHexString(address));
+            }
+            last = region;
+        }
+        return region;
+    }
+
+    private static byte[] array(Region region)
+    {
+        byte array[] = region.get();
+        if(array == null)
+        {
+            throw new IllegalStateException("Address of a collected array 0x" + Long.toHexString(region.start));
+        }
+        return array;
+    }
+
+    public static byte loadByte(long address)
+    {
+        Region region = region(address, 1);
+        return array(region)[(int)(address - region.start)];
+    }
+
+    public static short loadShort(long address)
+    {
+        Region region = region(address, 2);
+        return (short)SHORTS.get(array(region), (int)(address - region.start));
+    }
+
+    public static int loadInt(long address)
+    {
+        Region region = region(address, 4);
+        return (int)INTS.get(array(region), (int)(address - region.start));
+    }
+
+    public static long loadLong(long address)
+    {
+        Region region = region(address, 8);
+        return (long)LONGS.get(array(region), (int)(address - region.start));
+    }
+
+    public static void store(long address, byte value)
+    {
+        Region region = region(address, 1);
+        array(region)[(int)(address - region.start)] = value;
+    }
+
+    public static void store(long address, short value)
+    {
+        Region region = region(address, 2);
+        SHORTS.set(array(region), (int)(address - region.start), value);
+    }
+
+    public static void store(long address, int value)
+    {
+        Region region = region(address, 4);
+        INTS.set(array(region), (int)(address - region.start), value);
+    }
+
+    public static void store(long address, long value)
+    {
+        Region region = region(address, 8);
+        LONGS.set(array(region), (int)(address - region.start), value);
+    }
+
+    /**
+     * Copy between two ranges, they may overlap
+     */
+    public static void copy(long destination, long source, int length)
+    {
+        if(length <= 0)
+        {
+            return;
+        }
+        Region from = region(source, length);
+        byte sourceArray[] = array(from);
+        Region to = region(destination, length);
+        System.arraycopy(sourceArray, (int)(source - from.start), array(to), (int)(destination - to.start), length);
+    }
+
+    /**
+     * @return number of arrays with an address
+     */
+    public static synchronized int mapped()
+    {
+        purge();
+        return addresses.size();
+    }
+}
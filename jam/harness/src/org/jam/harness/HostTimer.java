@@ -0,0 +1,118 @@
+package org.jam.harness;
+
+import org.jam.interfaces.Timer;
+import org.jam.system.TimerEntry;
+import org.jam.system.TimerWheel;
+import org.jikesrvm.scheduler.RVMThread;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Host JVM stand in for the timer device, only the timer entries are
+ * supported.
+ *
+ * Entries are kept on a TimerWheel like in the VM. The timer thread ticks
+ * every TICK_NS like the PIT and expires the entries that are due holding the
+ * InterruptLock, so expired() runs as it would in the timer interrupt.
+ */
+public class HostTimer
+implements Timer, Runnable
+{
+    private final static long TICK_NS = 1000000;
+
+    private final TimerWheel wheel = new TimerWheel();
+
+    public HostTimer()
+    {
+        Thread timerThread = new Thread(this);
+        timerThread.setName("Timer Interrupt");
+        timerThread.setDaemon(true);
+        timerThread.start();
+    }
+
+    public long getTime()
+    {
+        return System.nanoTime();
+    }
+
+    public void addTimer(TimerEntry entry, long timeNs)
+    {
+        InterruptLock.disable();
+        try
+        {
+            if(wheel.isEmpty())
+            {
+                // the wheel stands still while nothing is armed
+                wheel.advance(System.nanoTime() / TICK_NS);
+            }
+            wheel.add(entry, (timeNs + TICK_NS - 1) / TICK_NS);
+        }
+        finally
+        {
+            InterruptLock.enable();
+        }
+    }
+
+    public boolean cancelTimer(TimerEntry entry)
+    {
+        InterruptLock.disable();
+        try
+        {
+            return wheel.remove(entry);
+        }
+        finally
+        {
+            InterruptLock.enable();
+        }
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            try
+            {
+                Thread.sleep(TICK_NS / 1000000);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            InterruptLock.disable();
+            try
+            {
+                if(!wheel.isEmpty())
+                {
+                    wheel.advance(System.nanoTime() / TICK_NS);
+                }
+            }
+            finally
+            {
+                InterruptLock.enable();
+            }
+        }
+    }
+
+    public void handler()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public void startTimer(long timeNs)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public Address getHandlerStack()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean removeTimer(RVMThread thread)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public void threadReady()
+    {
+    }
+}
@@ -0,0 +1,30 @@
+package org.jam.harness;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Host JVM stand in for disabling interrupts.
+ *
+ * Code that disables interrupts around data it shares with an interrupt
+ * handler takes the lock instead, and the simulated interrupts of HostTimer
+ * run holding it. Like the processor flag it does not count, one enable
+ * undoes one disable.
+ */
+public final class InterruptLock
+{
+    private final static ReentrantLock lock = new ReentrantLock();
+
+    private InterruptLock()
+    {
+    }
+
+    public static void disable()
+    {
+        lock.lock();
+    }
+
+    public static void enable()
+    {
+        lock.unlock();
+    }
+}
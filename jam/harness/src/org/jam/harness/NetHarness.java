@@ -0,0 +1,81 @@
+package org.jam.harness;
+
+import java.net.UnknownHostException;
+
+import org.jam.board.pc.Platform;
+import org.jam.net.Route;
+import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.inet4.InetAddress;
+
+/**
+ * Two SimulatedNics on a SimulatedLink, running the org.jam.net stack on a
+ * host JVM with the vmmagic shim.
+ *
+ * The stack keeps its tables in statics, so both interfaces belong to the
+ * same host. To make traffic cross the link, each address is routed out of
+ * the interface at the other end: a socket sending to ADDRESS_B goes out
+ * through nic A, ARP on nic A finds nic B, and the stack receives the
+ * segment again on nic B. The stack threads run until the JVM exits, so
+ * one harness per JVM is the rule.
+ */
+public class NetHarness
+{
+    public final static InetAddress ADDRESS_A = address("10.9.0.1");
+    public final static InetAddress ADDRESS_B = address("10.9.0.2");
+    public final static int NETMASK = 0xFFFFFF00;
+    private final static int HOST_MASK = 0xFFFFFFFF;
+
+    private static boolean booted;
+
+    public final SimulatedNic a;
+    public final SimulatedNic b;
+    public final SimulatedLink link;
+
+    /**
+     * @param seed seed of the link losses
+     * @param offloads NetworkInterface.OFFLOAD flags of both interfaces
+     */
+    public NetHarness(long seed, int offloads)
+    {
+        boot();
+        a = new SimulatedNic(ADDRESS_A, NETMASK, new EthernetAddr((byte)2, (byte)0, (byte)0, (byte)0, (byte)0, (byte)1), offloads);
+        b = new SimulatedNic(ADDRESS_B, NETMASK, new EthernetAddr((byte)2, (byte)0, (byte)0, (byte)0, (byte)0, (byte)2), offloads);
+        link = new SimulatedLink(a, b, seed);
+        Route.deleteAll();
+        Route.addRoute(ADDRESS_B, InetAddress.HOST, HOST_MASK, a);
+        Route.addRoute(ADDRESS_A, InetAddress.HOST, HOST_MASK, b);
+        a.boot();
+        b.boot();
+        link.start();
+    }
+
+    /*
+     * The timer the VM sets up at boot
+     */
+    private static synchronized void boot()
+    {
+        if(booted)
+        {
+            return;
+        }
+        Platform.timer = new HostTimer();
+        booted = true;
+    }
+
+    private static InetAddress address(String address)
+    {
+        try
+        {
+            return new InetAddress(address);
+        }
+        catch (UnknownHostException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String toString()
+    {
+        return a + "\n" + b + "\n" + link;
+    }
+}
@@ -0,0 +1,149 @@
+package org.jam.harness;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the records of a libpcap capture file. Microsecond and nanosecond
+ * files in either byte order are read, only Ethernet captures are accepted.
+ */
+public class PcapReader
+{
+    public final static int LINKTYPE_ETHERNET = 1;
+    private final static int MAGIC_MICROSECONDS = 0xA1B2C3D4;
+    private final static int MAGIC_NANOSECONDS = 0xA1B23C4D;
+    private final static int MAX_SNAPLEN = 0x40000;
+
+    private final DataInputStream in;
+    private final boolean swapped;
+    private final boolean nanoseconds;
+    private final int snapLength;
+
+    /*
+     * The record read last
+     */
+    private long timestamp;
+    private int length;
+    private int originalLength;
+    private byte data[];
+
+    public PcapReader(String fileName) throws IOException
+    {
+        this(new FileInputStream(fileName));
+    }
+
+    public PcapReader(InputStream in) throws IOException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        int magic = this.in.readInt();
+        if(magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS)
+        {
+            swapped = false;
+        }
+        else if(Integer.reverseBytes(magic) == MAGIC_MICROSECONDS || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS)
+        {
+            swapped = true;
+            magic = Integer.reverseBytes(magic);
+        }
+        else
+        {
+            throw new IOException("Not a pcap file, magic " + Integer.toHexString(magic));
+        }
+        nanoseconds = magic == MAGIC_NANOSECONDS;
+        // version, time zone and accuracy are not used
+        this.in.readInt();
+        this.in.readInt();
+        this.in.readInt();
+        snapLength = readInt();
+        int linkType = readInt();
+        if(linkType != LINKTYPE_ETHERNET)
+        {
+            throw new IOException("Link type " + linkType + " is not Ethernet");
+        }
+        data = new byte[Math.min(Math.max(snapLength, 0x10000), MAX_SNAPLEN)];
+    }
+
+    /**
+     * Read the next record
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException
+    {
+        long seconds;
+        try
+        {
+            seconds = readInt() & 0xFFFFFFFFL;
+        }
+        catch (EOFException e)
+        {
+            return false;
+        }
+        long fraction = readInt() & 0xFFFFFFFFL;
+        length = readInt();
+        originalLength = readInt();
+        if(length < 0 || length > MAX_SNAPLEN)
+        {
+            throw new IOException("Bad record length " + length);
+        }
+        if(length > data.length)
+        {
+            data = new byte[length];
+        }
+        in.readFully(data, 0, length);
+        timestamp = seconds * 1000000000L + (nanoseconds ? fraction : fraction * 1000);
+        return true;
+    }
+
+    /**
+     * @return time of the record in nanoseconds
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the captured bytes, valid until the next record is read
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * @return bytes captured
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return length of the frame on the wire
+     */
+    public int getOriginalLength()
+    {
+        return originalLength;
+    }
+
+    public int getSnapLength()
+    {
+        return snapLength;
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private int readInt() throws IOException
+    {
+        int value = in.readInt();
+        return swapped ? Integer.reverseBytes(value) : value;
+    }
+}
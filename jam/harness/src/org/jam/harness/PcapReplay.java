@@ -0,0 +1,120 @@
+package org.jam.harness;
+
+import java.io.IOException;
+
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketPool;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
+
+/**
+ * Feeds the frames of a capture file to an interface as if they had been
+ * received. Frames are replayed with their recorded spacing divided by speed,
+ * or back to back when speed is 0.
+ *
+ * The interface must not be on a running link at the same time, its receive
+ * queue takes one producer.
+ */
+public class PcapReplay
+implements Runnable
+{
+    private final PcapReader reader;
+    private final SimulatedNic nic;
+    private final double speed;
+    private long frames;
+    private long bytes;
+    private long truncated;
+    private IOException error;
+
+    /**
+     * @param speed 1 replays in recorded time, 0 as fast as possible
+     */
+    public PcapReplay(PcapReader reader, SimulatedNic nic, double speed)
+    {
+        this.reader = reader;
+        this.nic = nic;
+        this.speed = speed;
+    }
+
+    public void run()
+    {
+        try
+        {
+            replay();
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+    }
+
+    /**
+     * Replay the whole file on the calling thread
+     *
+     * @return number of frames replayed
+     */
+    public long replay() throws IOException
+    {
+        long start = System.nanoTime();
+        long first = -1;
+        while(reader.next())
+        {
+            if(first < 0)
+            {
+                first = reader.getTimestamp();
+            }
+            if(speed > 0)
+            {
+                pace(start + (long)((reader.getTimestamp() - first) / speed));
+            }
+            int length = reader.getLength();
+            if(length < reader.getOriginalLength())
+            {
+                // the stack would see a damaged frame
+                truncated++;
+                continue;
+            }
+            Packet packet = PacketPool.allocate(length);
+            Memory.memcopy(packet.getPacketAddress(), Magic.objectAsAddress(reader.getData()), length);
+            while(nic.isReceiveQueueFull())
+            {
+                // a device would hold the frame in its ring
+                Thread.yield();
+            }
+            frames++;
+            bytes += length;
+            nic.receive(packet);
+        }
+        reader.close();
+        return frames;
+    }
+
+    private static void pace(long when)
+    {
+        long delay;
+        while((delay = when - System.nanoTime()) > 0)
+        {
+            try
+            {
+                Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the error that ended a replay run on its own thread or null
+     */
+    public IOException getError()
+    {
+        return error;
+    }
+
+    public String toString()
+    {
+        return "replay frames " + frames + " bytes " + bytes + " truncated " + truncated;
+    }
+}
@@ -0,0 +1,243 @@
+package org.jam.harness;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketPool;
+import org.jam.net.Checksum;
+import org.jikesrvm.runtime.Memory;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Full duplex wire between two SimulatedNics.
+ *
+ * A transmitted frame is copied into a new receive buffer, the way a device
+ * would DMA it, and the sender's packet is freed at once. The copy reaches the
+ * other end after its serialization time at the link bandwidth plus the
+ * latency. Each direction holds at most queueLimit frames in flight and
+ * drops the rest, and every frame is lost with the configured probability. Losses come from a seeded generator so a run can be repeated.
+ *
+ * Frames are delivered by the link thread, one producer for the receive
+ * queue of each interface like an interrupt handler.
+ */
+public class SimulatedLink
+implements Runnable
+{
+    /*
+     * A frame on its way
+     */
+    private static final class Frame
+    implements Comparable<Frame>
+    {
+        final long deliver;
+        final long sequence;
+        final Packet packet;
+        final SimulatedNic destination;
+
+        Frame(long deliver, long sequence, Packet packet, SimulatedNic destination)
+        {
+            this.deliver = deliver;
+            this.sequence = sequence;
+            this.packet = packet;
+            this.destination = destination;
+        }
+
+        public int compareTo(Frame frame)
+        {
+            if(deliver != frame.deliver)
+            {
+                return deliver < frame.deliver ? -1 : 1;
+            }
+            return sequence < frame.sequence ? -1 : sequence == frame.sequence ? 0 : 1;
+        }
+    }
+
+    /*
+     * State of one direction
+     */
+    private static final class Direction
+    {
+        final SimulatedNic destination;
+        long busyUntil;
+        int queued;
+        long frames;
+        long bytes;
+        long lost;
+        long dropped;
+
+        Direction(SimulatedNic destination)
+        {
+            this.destination = destination;
+        }
+    }
+
+    private final SimulatedNic a;
+    private final SimulatedNic b;
+    private final Direction toA;
+    private final Direction toB;
+    private final PriorityQueue<Frame> frames = new PriorityQueue<Frame>();
+    private final Random random;
+    private long sequence;
+
+    private volatile double loss;
+    private volatile long latency;
+    private volatile long bandwidth;
+    private volatile int queueLimit = 1000;
+
+    /**
+     * Connect two interfaces with a perfect wire
+     *
+     * @param seed seed of the loss generator
+     */
+    public SimulatedLink(SimulatedNic a, SimulatedNic b, long seed)
+    {
+        this.a = a;
+        this.b = b;
+        toA = new Direction(a);
+        toB = new Direction(b);
+        random = new Random(seed);
+        a.attach(this);
+        b.attach(this);
+    }
+
+    /**
+     * Start delivering frames
+     */
+    public void start()
+    {
+        Thread linkThread = new Thread(this);
+        linkThread.setName("Link " + a.getInetAddress() + " " + b.getInetAddress());
+        linkThread.setDaemon(true);
+        linkThread.start();
+    }
+
+    /**
+     * @param loss probability that a frame is lost, 0 to 1
+     */
+    public void setLoss(double loss)
+    {
+        this.loss = loss;
+    }
+
+    /**
+     * @param latency one way delay in microseconds
+     */
+    public void setLatency(long latency)
+    {
+        this.latency = latency * 1000;
+    }
+
+    /**
+     * @param bandwidth bits per second in each direction, 0 is unlimited
+     */
+    public void setBandwidth(long bandwidth)
+    {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param frames frames in flight in each direction before it drops
+     */
+    public void setQueueLimit(int frames)
+    {
+        queueLimit = frames;
+    }
+
+    /**
+     * Called by an interface for every frame it sends
+     */
+    void transmit(SimulatedNic source, Packet packet)
+    {
+        Direction direction = source == a ? toB : toA;
+        int size = packet.getSize();
+        synchronized (this)
+        {
+            if(loss > 0 && random.nextDouble() < loss)
+            {
+                direction.lost++;
+                packet.free();
+                return;
+            }
+            if(direction.queued >= queueLimit)
+            {
+                direction.dropped++;
+                packet.free();
+                return;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, direction.busyUntil);
+            long serialization = bandwidth == 0 ? 0 : size * 8L * 1000000000L / bandwidth;
+            direction.busyUntil = start + serialization;
+            direction.queued++;
+            direction.frames++;
+            direction.bytes += size;
+            frames.add(new Frame(direction.busyUntil + latency, sequence++, copy(packet), direction.destination));
+            notifyAll();
+        }
+        packet.free();
+    }
+
+    /*
+     * Gather the frame into a receive buffer and finish an offloaded checksum
+     */
+    private static Packet copy(Packet packet)
+    {
+        int size = packet.getSize();
+        Packet copy = PacketPool.allocate(size);
+        Address destination = copy.getPacketAddress();
+        for(int fragment = 0; fragment < packet.getFragmentCount(); fragment++)
+        {
+            int length = packet.getFragmentSize(fragment);
+            Memory.memcopy(destination, packet.getFragmentAddress(fragment), length);
+            destination = destination.plus(length);
+        }
+        int start = packet.getChecksumStart();
+        if(start >= 0)
+        {
+            Address data = copy.getPacketAddress().plus(start);
+            Offset field = Offset.fromIntSignExtend(packet.getChecksumOffset());
+            data.store((short)Checksum.checksum(data, size - start), field);
+        }
+        return copy;
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            Frame frame;
+            synchronized (this)
+            {
+                try
+                {
+                    while(frames.isEmpty())
+                    {
+                        wait();
+                    }
+                    long delay = frames.peek().deliver - System.nanoTime();
+                    if(delay > 0)
+                    {
+                        wait(delay / 1000000, (int)(delay % 1000000));
+                        continue;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                frame = frames.poll();
+                (frame.destination == a ? toA : toB).queued--;
+            }
+            frame.destination.receive(frame.packet);
+        }
+    }
+
+    public synchronized String toString()
+    {
+        return "link to " + a.getInetAddress() + " frames " + toA.frames + " bytes " + toA.bytes + " lost " + toA.lost
+               + " dropped " + toA.dropped + ", to " + b.getInetAddress() + " frames " + toB.frames + " bytes "
+               + toB.bytes + " lost " + toB.lost + " dropped " + toB.dropped;
+    }
+}
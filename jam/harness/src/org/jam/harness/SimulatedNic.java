@@ -0,0 +1,131 @@
+package org.jam.harness;
+
+import org.jam.driver.net.InetNetworkInterface;
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketBuffer;
+import org.jam.net.NetworkInterface;
+import org.jam.net.capture.Capture;
+import org.jam.net.ethernet.Ethernet;
+import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.inet4.ArpTable;
+import org.jam.net.inet4.InetAddress;
+import org.jam.net.inet4.SendPacket;
+
+/**
+ * Ethernet device on a SimulatedLink. It frames packets like a driver does
+ * and runs the real ARP and protocol processing threads, only the wire is
+ * simulated.
+ */
+public class SimulatedNic
+extends InetNetworkInterface
+implements NetworkInterface
+{
+    private final static int MTU = 1500;
+
+    private EthernetAddr macAddress;
+    private SimulatedLink link;
+
+    /**
+     * @param inet address of the interface
+     * @param netmask netmask of the attached network
+     * @param macAddress hardware address
+     * @param offloads OFFLOAD_CSUM lets the link compute the transport
+     * checksums, 0 makes the stack compute every checksum
+     */
+    public SimulatedNic(InetAddress inet, int netmask, EthernetAddr macAddress, int offloads)
+    {
+        ipAddress = inet;
+        this.netmask = netmask;
+        this.macAddress = macAddress;
+        this.offloads = offloads & OFFLOAD_CSUM;
+        setMtu(MTU);
+        // the link gathers the fragments like a device
+        transmitFragments = PacketBuffer.MAX_FRAGMENTS;
+        arpTable = new ArpTable();
+        setNetworkInterface(this);
+    }
+
+    void attach(SimulatedLink link)
+    {
+        this.link = link;
+    }
+
+    public SimulatedLink getLink()
+    {
+        return link;
+    }
+
+    /**
+     * Start the ARP and protocol threads
+     */
+    public void boot()
+    {
+        inetBoot();
+    }
+
+    public EthernetAddr getEthernetAddress()
+    {
+        return macAddress;
+    }
+
+    public void setEthernetAddress(EthernetAddr macAddress)
+    {
+        this.macAddress = macAddress;
+    }
+
+    public void send(EthernetAddr destination, Packet packet, short protocol)
+    {
+        Ethernet frame = new Ethernet(destination, packet, protocol);
+        frame.setSource(macAddress);
+        transmit(frame.getPacket());
+    }
+
+    public void send(SendPacket packet)
+    {
+        Ethernet frame = new Ethernet(EthernetAddr.BROADCAST_ADDRESS, packet.getPacket(), packet.getProto());
+        frame.setSource(macAddress);
+        transmit(frame.getPacket());
+    }
+
+    /*
+     * Put a frame on the wire, the link owns it from now on
+     */
+    private void transmit(Packet frame)
+    {
+        if(Capture.enabled)
+        {
+            Capture.frame(frame, Capture.OUT);
+        }
+        stats.txPackets.inc();
+        stats.txBytes.add(frame.getSize());
+        if(link == null)
+        {
+            frame.free();
+            return;
+        }
+        link.transmit(this, frame);
+    }
+
+    /**
+     * A frame arrived, called by the link or a replay. The frame must start
+     * at the Ethernet header and is owned by the stack from now on.
+     */
+    public void receive(Packet frame)
+    {
+        inet4.put(frame);
+    }
+
+    /**
+     * @return true when the protocol thread has not taken the frames it was
+     * given yet and the next one would be dropped
+     */
+    public boolean isReceiveQueueFull()
+    {
+        return inet4.isFull();
+    }
+
+    public String toString()
+    {
+        return "nic " + ipAddress + " " + macAddress + " " + stats;
+    }
+}
@@ -0,0 +1,52 @@
+package org.jam.harness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
+import org.junit.Test;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+public class HeapMemoryTest
+{
+    @Test
+    public void sameArraySameAddress()
+    {
+        byte array[] = new byte[100];
+        assertEquals(Magic.objectAsAddress(array), Magic.objectAsAddress(array));
+        assertNotEquals(Magic.objectAsAddress(array), Magic.objectAsAddress(new byte[100]));
+    }
+
+    @Test
+    public void littleEndian()
+    {
+        byte array[] = new byte[8];
+        Address address = Magic.objectAsAddress(array);
+        address.store(0x11223344, Offset.fromIntSignExtend(4));
+        assertEquals(0x44, array[4]);
+        assertEquals(0x11, array[7]);
+        assertEquals((short)0x3344, address.plus(4).loadShort());
+        assertEquals(0x22, address.loadByte(Offset.fromIntSignExtend(6)));
+    }
+
+    @Test
+    public void copyBetweenArrays()
+    {
+        byte source[] = { 1, 2, 3, 4, 5 };
+        byte destination[] = new byte[8];
+        Memory.memcopy(Magic.objectAsAddress(destination).plus(2), Magic.objectAsAddress(source).plus(1), 3);
+        assertEquals(0, destination[1]);
+        assertEquals(2, destination[2]);
+        assertEquals(4, destination[4]);
+        assertEquals(0, destination[5]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pastTheEnd()
+    {
+        byte array[] = new byte[4];
+        Magic.objectAsAddress(array).plus(2).loadInt();
+    }
+}
@@ -0,0 +1,67 @@
+package org.jam.harness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class PcapReaderTest
+{
+    private static byte[] capture(boolean swapped, int magic, byte frames[][]) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int header[] = { magic, 0x00040002, 0, 0, 65535, PcapReader.LINKTYPE_ETHERNET };
+        for(int value : header)
+        {
+            out.writeInt(swapped ? Integer.reverseBytes(value) : value);
+        }
+        for(int index = 0; index < frames.length; index++)
+        {
+            int record[] = { 100 + index, 500, frames[index].length, frames[index].length };
+            for(int value : record)
+            {
+                out.writeInt(swapped ? Integer.reverseBytes(value) : value);
+            }
+            out.write(frames[index]);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void readsBothByteOrders() throws IOException
+    {
+        byte frames[][] = { { 1, 2, 3 }, new byte[60] };
+        for(boolean swapped : new boolean[] { false, true })
+        {
+            PcapReader reader = new PcapReader(new ByteArrayInputStream(capture(swapped, 0xA1B2C3D4, frames)));
+            assertTrue(reader.next());
+            assertEquals(3, reader.getLength());
+            assertEquals(3, reader.getData()[2]);
+            assertEquals(100000000000L + 500000, reader.getTimestamp());
+            assertTrue(reader.next());
+            assertEquals(60, reader.getLength());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void nanosecondTimestamps() throws IOException
+    {
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(capture(false, 0xA1B23C4D, new byte[][] { { 0 } })));
+        assertTrue(reader.next());
+        assertEquals(100000000500L, reader.getTimestamp());
+    }
+
+    @Test(expected = IOException.class)
+    public void notACapture() throws IOException
+    {
+        new PcapReader(new ByteArrayInputStream(new byte[24]));
+    }
+}
@@ -0,0 +1,288 @@
+package org.jam.harness;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketOptions;
+import java.util.Random;
+
+import org.jam.net.NetworkInterface;
+import org.jam.net.Tcp;
+import org.jam.net.Udp;
+import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.inet4.InetAddress;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class StackTest
+{
+    private static NetHarness harness;
+
+    @BeforeClass
+    public static void setUp()
+    {
+        harness = new NetHarness(1, NetworkInterface.OFFLOAD_CSUM);
+    }
+
+    @After
+    public void perfectLink()
+    {
+        harness.link.setLoss(0);
+        harness.link.setLatency(0);
+        harness.link.setBandwidth(0);
+    }
+
+    private static java.net.InetAddress inet(InetAddress address) throws IOException
+    {
+        return java.net.InetAddress.getByAddress(address.asArray());
+    }
+
+    @Test
+    public void udpAcrossLink() throws IOException
+    {
+        Udp server = new Udp();
+        server.bind(new InetSocketAddress(inet(NetHarness.ADDRESS_B), 7000));
+        server.setOption(SocketOptions.SO_TIMEOUT, Integer.valueOf(5000));
+        Udp client = new Udp();
+        client.bind(new InetSocketAddress(0));
+        byte message[] = "ping".getBytes();
+        client.send(new DatagramPacket(message, message.length, inet(NetHarness.ADDRESS_B), 7000));
+        DatagramPacket received = new DatagramPacket(new byte[100], 100);
+        server.receive(received);
+        assertEquals("ping", new String(received.getData(), 0, received.getLength()));
+        assertNotNull(harness.a.arp(NetHarness.ADDRESS_B));
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void udpPortNotShared() throws IOException
+    {
+        Udp first = new Udp();
+        first.bind(new InetSocketAddress(7002));
+        Udp second = new Udp();
+        second.setOption(SocketOptions.SO_REUSEADDR, Boolean.TRUE);
+        try
+        {
+            second.bind(new InetSocketAddress(7002));
+            fail("Port bound twice");
+        }
+        catch (BindException e)
+        {
+        }
+        first.close();
+        second.bind(new InetSocketAddress(7002));
+        second.close();
+    }
+
+    @Test(timeout = 60000)
+    public void tcpTransferOverLossyLink() throws Exception
+    {
+        harness.link.setLoss(0.02);
+        harness.link.setLatency(500);
+        harness.link.setBandwidth(100000000);
+        final byte data[] = new byte[256 * 1024];
+        new Random(7).nextBytes(data);
+        final Tcp listener = new Tcp();
+        listener.bind(new InetSocketAddress(8000));
+        listener.listen(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread server = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Tcp connection = listener.accept();
+                    byte buffer[] = new byte[8192];
+                    int count;
+                    while((count = connection.read(buffer, 0, buffer.length)) > 0)
+                    {
+                        received.write(buffer, 0, count);
+                    }
+                    connection.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        server.start();
+        Tcp client = new Tcp();
+        client.connect(new InetSocketAddress(inet(NetHarness.ADDRESS_B), 8000), 5000);
+        client.write(data, 0, data.length);
+        client.close();
+        server.join();
+        listener.close();
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    /*
+     * The receiver stops reading until its window is closed, both ends
+     * keep sending so data segments carry the ACKs while the window is zero
+     */
+    @Test(timeout = 60000)
+    public void tcpZeroWindowBothWays() throws Exception
+    {
+        final byte data[] = new byte[512 * 1024];
+        new Random(11).nextBytes(data);
+        final Tcp listener = new Tcp();
+        listener.bind(new InetSocketAddress(8001));
+        listener.listen(1);
+        final ByteArrayOutputStream serverReceived = new ByteArrayOutputStream();
+        Thread server = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    final Tcp connection = listener.accept();
+                    Thread writer = new Thread()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                connection.write(data, 0, data.length);
+                                connection.shutdownOutput();
+                            }
+                            catch (IOException e)
+                            {
+                                e.printStackTrace();
+                            }
+                        }
+                    };
+                    writer.start();
+                    Thread.sleep(1000);
+                    read(connection, serverReceived);
+                    writer.join();
+                    connection.close();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        server.start();
+        final Tcp client = new Tcp();
+        client.connect(new InetSocketAddress(inet(NetHarness.ADDRESS_B), 8001), 5000);
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    client.write(data, 0, data.length);
+                    client.shutdownOutput();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(1000);
+        ByteArrayOutputStream clientReceived = new ByteArrayOutputStream();
+        read(client, clientReceived);
+        writer.join();
+        server.join();
+        // the link is perfect, dropped data segments must not look like duplicate ACKs
+        assertTrue(client.statistics(), client.statistics().contains(" retransmits 0 fast 0 timeouts 0 "));
+        client.close();
+        listener.close();
+        assertArrayEquals(data, serverReceived.toByteArray());
+        assertArrayEquals(data, clientReceived.toByteArray());
+    }
+
+    private static void read(Tcp connection, ByteArrayOutputStream received) throws IOException
+    {
+        byte buffer[] = new byte[8192];
+        int count;
+        while((count = connection.read(buffer, 0, buffer.length)) > 0)
+        {
+            received.write(buffer, 0, count);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void replayedDatagram() throws IOException
+    {
+        InetAddress address = new InetAddress("10.9.1.1");
+        SimulatedNic nic = new SimulatedNic(address, NetHarness.NETMASK,
+                                            new EthernetAddr((byte)2, (byte)0, (byte)0, (byte)0, (byte)1, (byte)1), 0);
+        nic.boot();
+        Udp server = new Udp();
+        server.bind(new InetSocketAddress(7001));
+        server.setOption(SocketOptions.SO_TIMEOUT, Integer.valueOf(5000));
+        PcapReader reader = new PcapReader(new ByteArrayInputStream(capture(udpFrame(address, 7001, "replayed"))));
+        assertEquals(1, new PcapReplay(reader, nic, 0).replay());
+        DatagramPacket received = new DatagramPacket(new byte[100], 100);
+        server.receive(received);
+        assertEquals("replayed", new String(received.getData(), 0, received.getLength()));
+        server.close();
+    }
+
+    /*
+     * Ethernet, IPv4 and UDP without a checksum
+     */
+    private static byte[] udpFrame(InetAddress destination, int port, String payload)
+    {
+        byte data[] = payload.getBytes();
+        byte frame[] = new byte[14 + 20 + 8 + data.length];
+        frame[0] = 2;
+        frame[4] = 1;
+        frame[5] = 1;
+        frame[6] = 2;
+        frame[11] = 9;
+        frame[12] = 0x08;
+        int ipLength = 20 + 8 + data.length;
+        byte ip[] = { 0x45, 0, (byte)(ipLength >> 8), (byte)ipLength, 0, 1, 0, 0, 64, 17, 0, 0, 10, 9, 1, 2 };
+        System.arraycopy(ip, 0, frame, 14, ip.length);
+        System.arraycopy(destination.asArray(), 0, frame, 30, 4);
+        int sum = 0;
+        for(int index = 14; index < 34; index += 2)
+        {
+            sum += ((frame[index] & 0xFF) << 8) | (frame[index + 1] & 0xFF);
+        }
+        sum = (sum >> 16) + (sum & 0xFFFF);
+        sum = ~(sum + (sum >> 16));
+        frame[24] = (byte)(sum >> 8);
+        frame[25] = (byte)sum;
+        frame[34] = (byte)(9999 >> 8);
+        frame[35] = (byte)9999;
+        frame[36] = (byte)(port >> 8);
+        frame[37] = (byte)port;
+        frame[38] = (byte)((8 + data.length) >> 8);
+        frame[39] = (byte)(8 + data.length);
+        System.arraycopy(data, 0, frame, 42, data.length);
+        return frame;
+    }
+
+    private static byte[] capture(byte frame[]) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int header[] = { 0xA1B2C3D4, 0x00040002, 0, 0, 65535, PcapReader.LINKTYPE_ETHERNET, 0, 0, frame.length,
+                         frame.length };
+        for(int value : header)
+        {
+            out.writeInt(value);
+        }
+        out.write(frame);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,189 @@
+package org.jam.java.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+
+import org.jam.harness.NetHarness;
+import org.jam.net.NetworkInterface;
+import org.jam.net.Tcp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Readiness of TCP sockets across the harness link as seen by SelectorImpl.
+ * The channels only carry the socket, the selector does the work.
+ */
+public class SelectorTest
+{
+    private final static int TIMEOUT = 5000;
+    private static NetHarness harness;
+    private static int nextPort = 8100;
+
+    private SelectorImpl selector;
+
+    /*
+     * Non-blocking channel that registers a socket
+     */
+    private static final class TestChannel
+    extends AbstractSelectableChannel
+    implements TcpChannel
+    {
+        private final TcpReadiness readiness;
+
+        TestChannel(Tcp tcp) throws IOException
+        {
+            super(null);
+            readiness = new TcpReadiness(tcp);
+            configureBlocking(false);
+        }
+
+        public TcpReadiness readiness()
+        {
+            return readiness;
+        }
+
+        public int validOps()
+        {
+            return SelectionKey.OP_ACCEPT | SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        }
+
+        protected void implCloseSelectableChannel()
+        {
+        }
+
+        protected void implConfigureBlocking(boolean block)
+        {
+        }
+    }
+
+    @BeforeClass
+    public static void setUpHarness()
+    {
+        harness = new NetHarness(1, NetworkInterface.OFFLOAD_CSUM);
+    }
+
+    @Before
+    public void openSelector()
+    {
+        selector = new SelectorImpl(null, false);
+    }
+
+    @After
+    public void closeSelector() throws IOException
+    {
+        selector.close();
+    }
+
+    private static Tcp listen(int port) throws IOException
+    {
+        Tcp listener = new Tcp();
+        listener.bind(new InetSocketAddress(port));
+        listener.listen(1);
+        return listener;
+    }
+
+    private static Tcp connect(int port) throws IOException
+    {
+        Tcp client = new Tcp();
+        client.connect(new InetSocketAddress(java.net.InetAddress.getByAddress(NetHarness.ADDRESS_B.asArray()), port),
+                       TIMEOUT);
+        return client;
+    }
+
+    @Test(timeout = 10000)
+    public void acceptable() throws IOException
+    {
+        int port = nextPort++;
+        Tcp listener = listen(port);
+        SelectionKey key = new TestChannel(listener).register(selector, SelectionKey.OP_ACCEPT);
+        assertEquals(0, selector.selectNow());
+        Tcp client = connect(port);
+        assertEquals(1, selector.select(TIMEOUT));
+        assertTrue(selector.selectedKeys().contains(key));
+        assertTrue(key.isAcceptable());
+        Tcp accepted = listener.accept();
+        accepted.close();
+        client.close();
+        listener.close();
+    }
+
+    @Test(timeout = 10000)
+    public void writableOnceConnected() throws IOException
+    {
+        int port = nextPort++;
+        Tcp listener = listen(port);
+        Tcp client = connect(port);
+        SelectionKey key = new TestChannel(client).register(selector, SelectionKey.OP_WRITE);
+        assertEquals(1, selector.select(TIMEOUT));
+        assertTrue(key.isWritable());
+        assertFalse(key.isReadable());
+        listener.accept().close();
+        client.close();
+        listener.close();
+    }
+
+    @Test(timeout = 10000)
+    public void readableWhenDataArrives() throws IOException
+    {
+        int port = nextPort++;
+        Tcp listener = listen(port);
+        Tcp client = connect(port);
+        Tcp accepted = listener.accept();
+        SelectionKey key = new TestChannel(accepted).register(selector, SelectionKey.OP_READ);
+        assertEquals(0, selector.selectNow());
+        byte data[] = "ready".getBytes();
+        client.write(data, 0, data.length);
+        assertEquals(1, selector.select(TIMEOUT));
+        assertTrue(key.isReadable());
+        byte buffer[] = new byte[16];
+        assertEquals(data.length, accepted.read(buffer, 0, buffer.length));
+        /*
+         * Level triggered, nothing is left to read so the key is not
+         * selected again
+         */
+        selector.selectedKeys().clear();
+        assertEquals(0, selector.selectNow());
+        accepted.close();
+        client.close();
+        listener.close();
+    }
+
+    @Test(timeout = 10000)
+    public void wakeupEndsBlockedSelect() throws Exception
+    {
+        Thread waker = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                selector.wakeup();
+            }
+        };
+        waker.start();
+        assertEquals(0, selector.select());
+        waker.join();
+    }
+
+    @Test(timeout = 10000)
+    public void wakeupBeforeSelect() throws IOException
+    {
+        assertSame(selector, selector.wakeup());
+        assertEquals(0, selector.select());
+    }
+}
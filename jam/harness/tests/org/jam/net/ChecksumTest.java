@@ -0,0 +1,165 @@
+package org.jam.net;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jikesrvm.runtime.Magic;
+import org.junit.Test;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+public class ChecksumTest {
+
+    /*
+     * Checksum of 16 bit words summed one at a time
+     */
+    private int reference(int words[])
+    {
+        int sum = 0;
+        for(int word : words)
+        {
+            sum += word & 0xFFFF;
+        }
+        while((sum >>> 16) != 0)
+        {
+            sum = (sum >>> 16) + (sum & 0xFFFF);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    /*
+     * Checksum of bytes summed as 16 bit words in host order, an odd byte
+     * padded with zero
+     */
+    private int reference(byte data[], int offset, int length)
+    {
+        int words[] = new int[(length + 1) / 2];
+        for(int index = 0; index < length; index++)
+        {
+            words[index / 2] |= (data[offset + index] & 0xFF) << ((index & 1) * 8);
+        }
+        return reference(words);
+    }
+
+    private byte[] random(int length)
+    {
+        byte data[] = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testChecksumMatches16BitSum()
+    {
+        for(int length = 0; length <= 40; length++)
+        {
+            byte data[] = random(length + 3);
+            for(int offset = 0; offset < 4; offset++)
+            {
+                Address address = Magic.objectAsAddress(data).plus(offset);
+                assertEquals("length " + length + " offset " + offset, reference(data, offset, length),
+                             Checksum.checksum(address, length));
+            }
+        }
+    }
+
+    @Test
+    public void testOddLengths()
+    {
+        int lengths[] = { 1, 3, 15, 17, 575, 1471, 1473, 8999 };
+        for(int length : lengths)
+        {
+            byte data[] = random(length);
+            assertEquals("length " + length, reference(data, 0, length),
+                         Checksum.checksum(Magic.objectAsAddress(data), length));
+        }
+    }
+
+    @Test
+    public void testAllOnes()
+    {
+        byte data[] = new byte[1500];
+        Arrays.fill(data, (byte)0xFF);
+        assertEquals(0, Checksum.checksum(Magic.objectAsAddress(data), data.length));
+        assertEquals(0xFF00, Checksum.checksum(Magic.objectAsAddress(data), 1));
+    }
+
+    @Test
+    public void testSumInPieces()
+    {
+        byte data[] = random(101);
+        Address address = Magic.objectAsAddress(data);
+        long sum = Checksum.sum(address, 36, 0);
+        sum = Checksum.sum(address.plus(36), 2, sum);
+        sum = Checksum.sum(address.plus(38), 63, sum);
+        assertEquals(Checksum.checksum(address, data.length), ~Checksum.fold(sum) & 0xFFFF);
+    }
+
+    /*
+     * UDP datagram from 192.168.0.31 port 20 to 192.168.0.30 port 10
+     * carrying "Hi", checksum 0x35C5
+     */
+    @Test
+    public void testUdpPseudoHeader()
+    {
+        byte datagram[] = { 0x00, 0x14, 0x00, 0x0A, 0x00, 0x0A, 0x00, 0x00, 'H', 'i' };
+        Address address = Magic.objectAsAddress(datagram);
+        int source = 0xC0A8001F;
+        int destination = 0xC0A8001E;
+        int checksum = Checksum.checksum(address, datagram.length, source, destination, 17);
+        address.store((short)checksum, Offset.fromIntZeroExtend(6));
+        assertEquals(0x35, datagram[6] & 0xFF);
+        assertEquals(0xC5, datagram[7] & 0xFF);
+        assertEquals(0, Checksum.checksum(address, datagram.length, source, destination, 17));
+    }
+
+    @Test
+    public void testFold()
+    {
+        assertEquals(0, Checksum.fold(0));
+        assertEquals(0xFFFF, Checksum.fold(0xFFFF));
+        assertEquals(1, Checksum.fold(0x10000));
+        assertEquals(0xFFFF, Checksum.fold(0x1FFFE));
+        assertEquals(0xFFFF, Checksum.fold(0xFFFFFFFFL));
+        assertEquals(0xFFFF, Checksum.fold(0xFFFFFFFFFFFFFFFFL));
+        assertEquals(0x0003, Checksum.fold(0x0000000100010001L));
+    }
+
+    @Test
+    public void testFoldOf32BitWordsMatches16BitSum()
+    {
+        int words[] = { 0x4500, 0x0073, 0x0000, 0x4000, 0x4011, 0x0000, 0xC0A8, 0x0001, 0xC0A8, 0x00C7 };
+        long sum = 0;
+        for(int index = 0; index < words.length; index += 2)
+        {
+            sum += ((long)words[index + 1] << 16) | words[index];
+        }
+        assertEquals(reference(words), ~Checksum.fold(sum) & 0xFFFF);
+        assertEquals(0xB861, ~Checksum.fold(sum) & 0xFFFF);
+    }
+
+    /*
+     * Example from RFC 1624 section 4
+     */
+    @Test
+    public void testUpdateRfc1624()
+    {
+        assertEquals(0x0000, Checksum.update(0xDD2F, 0x5555, 0x3285));
+    }
+
+    @Test
+    public void testUpdateMatchesRecompute()
+    {
+        int words[] = { 0x4500, 0x0054, 0x1C46, 0x4000, 0x4001, 0x0000, 0xAC10, 0x0A63, 0xAC10, 0x0A0C };
+        int checksum = reference(words);
+        for(int value = 0; value < 0x10000; value += 0x0101)
+        {
+            int old = words[4];
+            words[4] = value;
+            checksum = Checksum.update(checksum, old, value);
+            assertEquals(reference(words), checksum);
+        }
+    }
+}
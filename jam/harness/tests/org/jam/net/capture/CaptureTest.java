@@ -0,0 +1,168 @@
+package org.jam.net.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketPool;
+import org.jam.harness.PcapReader;
+import org.jam.net.IpProto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureTest
+{
+    private final static int SLOTS = 8;
+    private final static int SNAP_LENGTH = 64;
+
+    @Before
+    public void setUp()
+    {
+        Capture.stop();
+        Capture.configure(SLOTS, SNAP_LENGTH);
+        Capture.setFilter(null);
+        Capture.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        Capture.stop();
+    }
+
+    private static Packet packet(byte data[])
+    {
+        Packet packet = PacketPool.allocate(data.length);
+        System.arraycopy(data, 0, packet.getArray(), packet.getOffset(), data.length);
+        return packet;
+    }
+
+    /*
+     * Ethernet, IPv4 and UDP headers followed by filler
+     */
+    private static byte[] udpFrame(int port, int size, int fill)
+    {
+        byte frame[] = new byte[size];
+        Arrays.fill(frame, (byte)fill);
+        frame[12] = 0x08;
+        frame[13] = 0;
+        frame[14] = 0x45;
+        frame[20] = 0;
+        frame[21] = 0;
+        frame[23] = (byte)IpProto.UDP.protocol();
+        frame[34] = 0x30;
+        frame[35] = 0x39;
+        frame[36] = (byte)(port >> 8);
+        frame[37] = (byte)port;
+        return frame;
+    }
+
+    private static PcapReader export() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Capture.export(out);
+        return new PcapReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void truncatedFrame() throws IOException
+    {
+        byte frame[] = udpFrame(53, 100, 0x5A);
+        Capture.frame(packet(frame), Capture.IN);
+        PcapReader reader = export();
+        assertEquals(SNAP_LENGTH, reader.getSnapLength());
+        assertTrue(reader.next());
+        assertEquals(SNAP_LENGTH, reader.getLength());
+        assertEquals(100, reader.getOriginalLength());
+        assertArrayEquals(Arrays.copyOf(frame, SNAP_LENGTH), Arrays.copyOf(reader.getData(), reader.getLength()));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void ringKeepsNewest() throws IOException
+    {
+        for(int index = 0; index < 3 * SLOTS; index++)
+        {
+            Capture.frame(packet(udpFrame(53, 60, index)), Capture.OUT);
+        }
+        PcapReader reader = export();
+        for(int index = 2 * SLOTS; index < 3 * SLOTS; index++)
+        {
+            assertTrue(reader.next());
+            assertEquals(index, reader.getData()[50]);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void headerFilter() throws IOException
+    {
+        HeaderFilter filter = new HeaderFilter();
+        filter.setProtocol(IpProto.UDP);
+        filter.setPort(53);
+        filter.setDirection(Capture.IN);
+        Capture.setFilter(filter);
+        Capture.frame(packet(udpFrame(80, 60, 1)), Capture.IN);
+        Capture.frame(packet(udpFrame(53, 60, 2)), Capture.OUT);
+        Capture.frame(packet(udpFrame(53, 60, 3)), Capture.IN);
+        PcapReader reader = export();
+        assertTrue(reader.next());
+        assertEquals(3, reader.getData()[50]);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void loopbackHeader() throws IOException
+    {
+        byte ip[] = Arrays.copyOfRange(udpFrame(7, 80, 9), 14, 80);
+        Capture.loopback(packet(ip));
+        PcapReader reader = export();
+        assertTrue(reader.next());
+        assertEquals(80, reader.getOriginalLength());
+        byte data[] = reader.getData();
+        for(int index = 0; index < 12; index++)
+        {
+            assertEquals(0, data[index]);
+        }
+        assertEquals(0x08, data[12]);
+        assertEquals(0x45, data[14]);
+    }
+
+    @Test
+    public void hexExport() throws IOException
+    {
+        Capture.frame(packet(udpFrame(53, 60, 4)), Capture.IN);
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        Capture.export(binary);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        assertEquals(1, Capture.exportHex(new PrintStream(text)));
+        String lines[] = text.toString().split("\n");
+        assertEquals("-----BEGIN PCAP-----", lines[0]);
+        assertEquals("-----END PCAP-----", lines[lines.length - 1]);
+        StringBuilder hex = new StringBuilder();
+        for(int index = 1; index < lines.length - 1; index++)
+        {
+            hex.append(lines[index]);
+        }
+        byte expected[] = binary.toByteArray();
+        assertEquals(expected.length * 2, hex.length());
+        for(int index = 0; index < expected.length; index++)
+        {
+            if(index >= 24 && index < 32)
+            {
+                // the time stamp scale is measured again by every export
+                continue;
+            }
+            assertEquals(expected[index], (byte)Integer.parseInt(hex.substring(index * 2, index * 2 + 2), 16));
+        }
+    }
+}
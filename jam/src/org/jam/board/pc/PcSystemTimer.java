@@ -7,17 +7,16 @@
  */
 package org.jam.board.pc;
 
-import java.util.TreeMap;
-
 import org.jikesrvm.VM;
 import org.jikesrvm.mm.mminterface.MemoryManager;
 import org.jikesrvm.runtime.Magic;
 import org.jikesrvm.runtime.Time;
 import org.jikesrvm.scheduler.RVMThread;
-import org.jikesrvm.scheduler.ThreadQueue;
 import org.vmmagic.pragma.NonMoving;
 import org.vmmagic.unboxed.Address;
 import org.jam.interfaces.Timer;
+import org.jam.system.TimerEntry;
+import org.jam.system.TimerQueue;
 
 /**
  * @author joe
@@ -29,24 +28,20 @@ implements Timer
 {
 
     public I82c54 timer;
-    public long tick;                                        // in milliseconds
+    public long tick;                                        // interrupts taken
     private static final int  sourceFreq     = 1193180;                    // i82c54 source frequency is 1.193180 Mhz
     private static final int  ticksPerSecond = 1000;
     public int  counterDivisor = sourceFreq / ticksPerSecond;
-    public int  overflow;                                    // in nanoseconds
-    public int BOLT = 10;   // schedule new process
     private int stack[];
     Address stackTop;
     private final static int STACK_SIZE = 512;
-    private static final int TIMERTICKSPERNSECS = 1000000;
     private static final boolean trace = false;
-    private TreeMap<Long, RVMThread> timerQueue;
-    private ThreadQueue threadQueue;
+    private final TimerQueue timerQueue = new TimerQueue();
     
     /*
-     * how many ticks to wait to reschedule
+     * tick the running thread's time slice ends on
      */
-    public int  scheduleTick = 20;
+    private long sliceEnd;
 
     public PcSystemTimer()
     {
@@ -72,13 +67,14 @@ implements Timer
          * stack pointer.
          */
         stackTop = Magic.objectAsAddress(stack).plus((STACK_SIZE-4)<<2);
-        timerQueue = new TreeMap<Long, RVMThread>();
-        threadQueue = new ThreadQueue();
     }
 
+    /**
+     * Milliseconds from the TSC, the tick count is only good for time slices
+     */
     public final long getTime()
     {
-        return tick;
+        return Time.nanoTime() / 1000000;
     }
 
     public Address getHandlerStack()
@@ -94,14 +90,7 @@ implements Timer
     public void handler()
     {
         tick++;
-        overflow += 193180;
-        if (overflow >= 1000000)
-        {
-            tick++;
-            overflow -= 1000000;
-        }
-
-        checkTimers();
+        timerQueue.expire();
         schedule();
 //        Platform.masterPic.eoi();
     }
@@ -122,83 +111,63 @@ implements Timer
         RVMThread currentThread = Magic.getThreadRegister();
         
         /*
-         * Current thread has had its time allotment so put it on queue 
-         * and schedule a new thread
+         * Current thread has had its time allotment, or a more important
+         * thread is waiting, so put it on queue and schedule a new thread
          */
-        if(((int)tick % BOLT) == 0)
+        if(tick >= sliceEnd || Platform.scheduler.shouldPreempt())
         {
             Platform.scheduler.addThread(currentThread);
             Platform.scheduler.nextThread();
+            sliceEnd = tick + Platform.scheduler.timeSlice(Magic.getThreadRegister()) / 1000000;
         }
     }
     
-    private void checkTimers()
-    {
-        if(timerQueue.isEmpty())
-        {
-            return;
-        }
-        Long timerExpiration = timerQueue.firstKey();
-        
-        if(Time.nanoTime() < timerExpiration)
-        {
-            return;
-        }
-        
-        /*
-         * Remove the thread from the timer and schedule it
-         */
-        if(trace) VM.sysWriteln("Timer expired! ", timerExpiration);
-        RVMThread thread = timerQueue.remove(timerExpiration);
-        threadQueue.remove(thread);
-        Platform.scheduler.addThread(thread);
-    }
-    
     /**
      * Set timer for a thread
-     * @param time_ns time to sleep in nanoseconds.
+     * @param time_ns time to wake up, absolute in nanoseconds.
      */
     public void startTimer(long time_ns)
     {
-        long timerTicks;
-        
-        /*
-         * convert to ticks (milliseconds)
-         */
-//        timerTicks = time_ns / TIMERTICKSPERNSECS;
         if(trace)
         {
-//          VM.sysWriteln("timer ticks: ", timerTicks);
           VM.sysWriteln("time_ns: ", time_ns);
-//          VM.sysWriteln("expire: ", timerTicks+tick);
         }
         /*
-         * set expiration time and put on the queue
+         * arm the thread's timer, give it up and schedule a new thread
          */
-//        timerQueue.put(timerTicks+tick, RVMThread.getCurrentThread());
-        timerQueue.put(time_ns, RVMThread.getCurrentThread());
-        threadQueue.enqueue(RVMThread.getCurrentThread());
-        /*
-         * give it up and schedule a new thread
-         */
-        Magic.yield();
+        timerQueue.sleep(time_ns);
     }
-    
+
     /**
-     * Remove timer from queue and return thread
-     * @param timeKey
-     * @return
+     * Remove timer associated with thread and make it runnable
      */
-    public RVMThread removeTimer(long timeKey)
+    public boolean removeTimer(RVMThread thr)
     {
-      return timerQueue.remove(timeKey);
+      return timerQueue.wakeup(thr);
     }
-    
+
+    public void addTimer(TimerEntry entry, long timeNs)
+    {
+      timerQueue.add(entry, timeNs);
+    }
+
+    /**
+     * The next tick looks at the run queue anyway
+     */
+    public void threadReady()
+    {
+    }
+
+    public boolean cancelTimer(TimerEntry entry)
+    {
+      return timerQueue.cancel(entry);
+    }
+
     /**
-     * Remove timer associated with thread
+     * Timers shared with a timer that takes over from this one
      */
-    public void removeTimer(RVMThread thr)
+    public TimerQueue getTimerQueue()
     {
-      
+      return timerQueue;
     }
 }
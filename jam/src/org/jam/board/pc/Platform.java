@@ -13,13 +13,16 @@ import org.jam.cpu.intel.CpuId;
 import org.jam.cpu.intel.Idt;
 import org.jam.cpu.intel.Tsc;
 import org.jam.driver.net.I82559c;
+import org.jam.driver.net.InetNetworkInterface;
 import org.jam.driver.net.VirtioNet;
 import org.jam.driver.serial.PcSerialPort;
 import org.jam.interfaces.Timer;
 import org.jam.net.InetProtocolProcessor;
+import org.jam.net.Loopback;
 import org.jam.net.inet4.InetAddress;
 import org.jam.system.NoDeviceFoundException;
 import org.jikesrvm.VM;
+import org.jikesrvm.scheduler.PriorityScheduler;
 import org.jikesrvm.scheduler.RoundRobin;
 import org.jikesrvm.scheduler.Scheduler;
 import org.vmmagic.pragma.NonMoving;
@@ -37,11 +40,21 @@ public class Platform {
     public static Scheduler scheduler;
     public static I8259A masterPic;
     public static I8259A slavePic;
-    public static I82559c net;
+    public static InetNetworkInterface net;
+    public static VirtioNet virtioNet;
+    public static Loopback loopback;
     public static QemuIoApic ioApic;
     public static ApicTimer apicTimer;
     public static Apic apic;
     public static Timer timer;
+    /*
+     * Let the APIC timer take over from the PIT once the APIC is up
+     */
+    public static boolean tickless = true;
+    /*
+     * Run queues per priority instead of one round robin queue
+     */
+    public static boolean priorityScheduling = true;
     // Interrupt ports
     final private static int MASTERPICPORT = 0x20;
     final private static int SLAVEPICPORT = 0xA0;
@@ -67,22 +80,47 @@ public class Platform {
         // Tsc.rtcCalibrate();
         serialPort = new PcSerialPort(COM1);
         // VM.sysWriteln("Timer: ", ObjectReference.fromObject(timer));
-        scheduler = new RoundRobin();
+        if(priorityScheduling)
+        {
+            scheduler = new PriorityScheduler();
+        }
+        else
+        {
+            scheduler = new RoundRobin();
+        }
         Idt.init();
         apic = new Apic();
         apic.boot();
+        Smp.boot(apic);
         ioApic = new QemuIoApic();
         ioApic.boot();
         VM.sysWrite(ioApic.toString());
+        if(tickless)
+        {
+            ioApic.maskInterrupt(2);
+            apicTimer.startTickless();
+            timer = apicTimer;
+        }
+        loopback = new Loopback();
+        loopback.boot();
         try
         {
             InetAddress inet = new InetAddress("10.0.2.1");
-            net = new I82559c(inet, 0xffffff00);
+            try
+            {
+                virtioNet = new VirtioNet(inet, 0xffffff00);
+                net = virtioNet;
+            }
+            catch (NoDeviceFoundException e)
+            {
+                VM.sysWriteln("No VirtioNet device found!");
+                net = new I82559c(inet, 0xffffff00);
+            }
         }
         catch (NoDeviceFoundException e)
         {
             // TODO Auto-generated catch block
-            VM.sysWriteln("No VirtioNet device found!");
+            VM.sysWriteln("No I82559c device found!");
         }
         catch (UnknownHostException e)
         {
@@ -60,14 +60,14 @@ public class QemuIoApic extends IOApic {
   protected void boot()
   {
     // PIT interrupt
-    setLogicalDestination(2, 0xFF);
+    setPhysicalDestination(2, Smp.getBootProcessor().getApicId());
     setInterruptVector(2, 0x5F);
     unmaskInterrupt(2);
     // COM2
 //    setLogicalDestination(3, 0xFF);
 //    setInterruptVector(3, 0x58);
     // COM1
-    setLogicalDestination(4, 0xFF);
+    setPhysicalDestination(4, Smp.getBootProcessor().getApicId());
     setInterruptVector(4, 0x57);
     unmaskInterrupt(4);
   }
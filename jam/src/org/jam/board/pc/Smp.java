@@ -0,0 +1,95 @@
+package org.jam.board.pc;
+
+import org.jam.cpu.intel.Apic;
+import org.jam.cpu.intel.Cpu;
+import org.vmmagic.pragma.NonMoving;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * The processors of the machine.
+ *
+ * The number of processors comes from the QEMU firmware configuration device,
+ * QEMU numbers their APIC IDs from 0 without gaps. Without the device only the
+ * boot processor is known.
+ *
+ * Only the boot processor runs. The application processors are known but
+ * never started, all interrupts are routed to the boot processor. Java
+ * threads, interrupt handlers on their one stack, and the run queues and
+ * timers guarded by disabling interrupts are not safe on a second processor.
+ */
+@NonMoving
+public final class Smp
+{
+    public final static int MAX_CPUS = 64;
+    /*
+     * QEMU firmware configuration ports and keys
+     */
+    private final static Address FW_CFG_SELECTOR = Address.fromIntZeroExtend(0x510);
+    private final static Address FW_CFG_DATA = Address.fromIntZeroExtend(0x511);
+    private final static short FW_CFG_SIGNATURE = 0x00;
+    private final static short FW_CFG_NB_CPUS = 0x05;
+
+    private static Cpu cpus[];
+    private static Cpu bsp;
+
+    private Smp()
+    {
+    }
+
+    /**
+     * Find the processors, the local APIC must be up
+     */
+    public static void boot(Apic apic)
+    {
+        int count = processorCount();
+        int bspId = apic.getId();
+        cpus = new Cpu[count];
+        bsp = new Cpu(0, bspId, true);
+        cpus[0] = bsp;
+        int index = 1;
+        for(int apicId = 0; index < count; apicId++)
+        {
+            if(apicId != bspId)
+            {
+                cpus[index] = new Cpu(index, apicId, false);
+                index++;
+            }
+        }
+    }
+
+    public static int getCpuCount()
+    {
+        return cpus.length;
+    }
+
+    public static Cpu getCpu(int index)
+    {
+        return cpus[index];
+    }
+
+    public static Cpu getBootProcessor()
+    {
+        return bsp;
+    }
+
+    /*
+     * Read the processor count from the firmware configuration device
+     */
+    private static int processorCount()
+    {
+        FW_CFG_SELECTOR.ioStore(FW_CFG_SIGNATURE);
+        if(FW_CFG_DATA.ioLoadByte() != 'Q' || FW_CFG_DATA.ioLoadByte() != 'E'
+           || FW_CFG_DATA.ioLoadByte() != 'M' || FW_CFG_DATA.ioLoadByte() != 'U')
+        {
+            return 1;
+        }
+        FW_CFG_SELECTOR.ioStore(FW_CFG_NB_CPUS);
+        int count = FW_CFG_DATA.ioLoadByte() & 0xFF;
+        count |= (FW_CFG_DATA.ioLoadByte() & 0xFF) << 8;
+        if(count < 1)
+        {
+            return 1;
+        }
+        return Math.min(count, MAX_CPUS);
+    }
+}
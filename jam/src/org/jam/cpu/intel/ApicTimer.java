@@ -9,21 +9,38 @@ package org.jam.cpu.intel;
 import org.jam.board.pc.I82c54;
 import org.jam.board.pc.Platform;
 import org.jam.interfaces.Timer;
+import org.jam.system.TimerEntry;
+import org.jam.system.TimerQueue;
 import org.jikesrvm.VM;
 import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Time;
 import org.jikesrvm.scheduler.RVMThread;
 import org.vmmagic.unboxed.Address;
 
 /**
  * @author Joe Kulig
  *
+ * Tickless system timer. The timer is programmed one shot, or with a TSC
+ * deadline when the processor has it, for the earlier of the next timer and
+ * the end of the running time slice. A time slice only runs while other
+ * threads are waiting for the processor, so an idle system takes timer
+ * interrupts only for the timers that are armed: protocol timeouts, sleeping
+ * threads, and the NAPI manager while a polled driver such as the i82559c
+ * is registered.
  */
 public class ApicTimer extends Apic
-implements Timer
+implements Timer, TimerQueue.Device
 {
   int frequency;
 
+  /*
+   * Timer interrupts taken
+   */
   private long tick;
+  /*
+   * Timers are shared with the PIT so they survive switching between the two
+   */
+  private final TimerQueue timerQueue;
   
   final protected static int LVT_PERIODIC = 1<<17;
   final protected static int LVT_DEADLINE = 2<<17;
@@ -40,10 +57,33 @@ implements Timer
   final protected static int TDR_DIV_128 = 0x0A;
   
   final protected static int MAX_ICR = 0xFFFFFFFF;
+
+  /*
+   * Same vector as the PIT so int95 serves both
+   */
+  final private static int TIMER_VECTOR = 0x5F;
+  final private static int IA32_TSC_DEADLINE = 0x6E0;
+  /*
+   * Longest one shot count, well inside 32 bits at any APIC frequency
+   */
+  final private static long MAX_ONE_SHOT_NS = 60000000000L;
+
+  private boolean tickless;
+  private boolean deadlineMode;
+  /*
+   * When the timer interrupts next in nanoseconds, Long.MAX_VALUE when it is
+   * stopped
+   */
+  private long programmed = Long.MAX_VALUE;
+  /*
+   * End of the running time slice, 0 when there is none
+   */
+  private long sliceEnd;
   
   public ApicTimer()
   {
     super();
+    timerQueue = Platform.pit.getTimerQueue();
     setTimerVector(LVT_MASK);
     divideBy64();
   }
@@ -121,14 +161,116 @@ implements Timer
     VM.sysWriteln("APIC frequency = ", frequency);
   }
 
+  /**
+   * Take over from the PIT. Called with interrupts disabled after
+   * calibrate(), the caller stops the PIT interrupt.
+   */
+  public final void startTickless()
+  {
+    deadlineMode = CpuId.hasTSCDEADLINE;
+    if(deadlineMode)
+    {
+      setTimerVector(LVT_DEADLINE | TIMER_VECTOR);
+    }
+    else
+    {
+      divideBy64();
+      setTimerVector(TIMER_VECTOR);
+    }
+    VM.sysWriteln(deadlineMode ? "Tickless timer: TSC deadline" : "Tickless timer: APIC one shot");
+    tickless = true;
+    timerQueue.setDevice(this);
+    long now = Time.nanoTime();
+    if(!Platform.scheduler.noRunnableThreads())
+    {
+      sliceEnd = now + Platform.scheduler.timeSlice(Magic.getThreadRegister());
+    }
+    reprogram(now);
+  }
+
+  public final boolean isTickless()
+  {
+    return tickless;
+  }
+
+  /*
+   * Program the next interrupt for the first timer or the end of the slice
+   */
+  private void reprogram(long now)
+  {
+    long deadline = timerQueue.nextExpiry();
+    if(sliceEnd != 0 && sliceEnd < deadline)
+    {
+      deadline = sliceEnd;
+    }
+    program(deadline, now);
+  }
+
+  private void program(long deadline, long now)
+  {
+    programmed = deadline;
+    if(deadlineMode)
+    {
+      // writing 0 disarms the deadline
+      MSR.writeMsr(IA32_TSC_DEADLINE, deadline == Long.MAX_VALUE ? 0 : deadline / 1000 * Tsc.cyclesPer1000Ns);
+      return;
+    }
+    if(deadline == Long.MAX_VALUE)
+    {
+      disableTimer();
+      return;
+    }
+    long delta = Math.min(deadline - now, MAX_ONE_SHOT_NS);
+    long count = delta * frequency / Tsc.NSPERSEC;
+    // a deadline that has passed interrupts right away
+    setTimerIcr(count < 1 ? 1 : (int)count);
+  }
+
+  /* (non-Javadoc)
+   * @see org.jam.system.TimerQueue.Device#armed(long)
+   */
+  @Override
+  public void armed(long timeNs)
+  {
+    if(timeNs < programmed)
+    {
+      program(timeNs, Time.nanoTime());
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see org.jam.interfaces.Timer#threadReady()
+   */
+  @Override
+  public void threadReady()
+  {
+    if(!tickless)
+    {
+      return;
+    }
+    long now = Time.nanoTime();
+    if(Platform.scheduler.shouldPreempt())
+    {
+      // interrupt right away and switch in the handler
+      program(now, now);
+    }
+    else if(sliceEnd == 0)
+    {
+      sliceEnd = now + Platform.scheduler.timeSlice(Magic.getThreadRegister());
+      if(sliceEnd < programmed)
+      {
+        program(sliceEnd, now);
+      }
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.jam.interfaces.Timer#getTime()
    */
   @Override
   public long getTime()
   {
-    // TODO Auto-generated method stub
-    return tick;
+    return Time.nanoTime() / 1000000;
   }
 
   /* (non-Javadoc)
@@ -137,8 +279,28 @@ implements Timer
   @Override
   public void handler()
   {
-    // TODO Auto-generated method stub
-    
+    tick++;
+    programmed = Long.MAX_VALUE;
+    timerQueue.expire();
+    long now = Time.nanoTime();
+    if((sliceEnd != 0 && now >= sliceEnd) || Platform.scheduler.shouldPreempt())
+    {
+      /*
+       * The running thread has had its slice or a more important one is
+       * waiting, the next slice starts with the thread that comes in
+       */
+      if(!Platform.scheduler.noRunnableThreads())
+      {
+        Platform.scheduler.addThread(Magic.getThreadRegister());
+        Platform.scheduler.nextThread();
+      }
+      sliceEnd = 0;
+    }
+    if(sliceEnd == 0 && !Platform.scheduler.noRunnableThreads())
+    {
+      sliceEnd = now + Platform.scheduler.timeSlice(Magic.getThreadRegister());
+    }
+    reprogram(now);
   }
 
   /* (non-Javadoc)
@@ -147,18 +309,28 @@ implements Timer
   @Override
   public void startTimer(long timeNs)
   {
-    // TODO Auto-generated method stub
-    
+    timerQueue.sleep(timeNs);
   }
 
   /* (non-Javadoc)
-   * @see org.jam.interfaces.Timer#removeTimer(long)
+   * @see org.jam.interfaces.Timer#removeTimer(org.jikesrvm.scheduler.RVMThread)
    */
   @Override
-  public RVMThread removeTimer(long timeKey)
+  public boolean removeTimer(RVMThread thread)
   {
-    // TODO Auto-generated method stub
-    return null;
+    return timerQueue.wakeup(thread);
+  }
+
+  @Override
+  public void addTimer(TimerEntry entry, long timeNs)
+  {
+    timerQueue.add(entry, timeNs);
+  }
+
+  @Override
+  public boolean cancelTimer(TimerEntry entry)
+  {
+    return timerQueue.cancel(entry);
   }
 
   /* (non-Javadoc)
@@ -167,8 +339,13 @@ implements Timer
   @Override
   public Address getHandlerStack()
   {
-    // TODO Auto-generated method stub
-    return null;
+    // only one of the two timers interrupts
+    return Platform.pit.getHandlerStack();
+  }
+
+  public String toString()
+  {
+    return super.toString() + " timer interrupts: " + tick + " timers: " + timerQueue.size();
   }
   
 }
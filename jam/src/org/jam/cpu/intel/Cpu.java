@@ -0,0 +1,49 @@
+package org.jam.cpu.intel;
+
+/**
+ * A logical processor of the machine.
+ *
+ * Processors are numbered from 0 with the boot processor first, the index is
+ * not the APIC ID. Only the boot processor is online, the others are not
+ * started.
+ */
+public final class Cpu
+{
+    private final int index;
+    private final int apicId;
+    private final boolean bootProcessor;
+    private final boolean online;
+
+    public Cpu(int index, int apicId, boolean bootProcessor)
+    {
+        this.index = index;
+        this.apicId = apicId;
+        this.bootProcessor = bootProcessor;
+        online = bootProcessor;
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public int getApicId()
+    {
+        return apicId;
+    }
+
+    public boolean isBootProcessor()
+    {
+        return bootProcessor;
+    }
+
+    public boolean isOnline()
+    {
+        return online;
+    }
+
+    public String toString()
+    {
+        return "cpu" + index + " apic " + apicId + (bootProcessor ? " bsp" : "") + (online ? " online" : " offline");
+    }
+}
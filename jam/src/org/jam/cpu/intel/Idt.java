@@ -39,6 +39,13 @@ public final class Idt implements SegmentDescriptorTypes {
     final private static int DEFAULT_IDT_VECTOR_TABLE       = 0x1000;
     final private static IrqVector dispatchTable[]          = new IrqVector[MAX_VECTORS];
     private static RVMClass interruptVectorClass            = null;
+    /**
+     * Vectors with a virtio-net handler stub, int88 to int94. Each stub
+     * is a compiled @InterruptHandler method so there is no handing out
+     * vectors at run time, a device gets the stubs written for it.
+     */
+    final public static int  VIRTIO_NET_FIRST_VECTOR        = 88;
+    final public static int  VIRTIO_NET_LAST_VECTOR         = 94;
     /**
      * Memory location of the IDT vector table
      */
@@ -635,38 +642,86 @@ public final class Idt implements SegmentDescriptorTypes {
        @InterruptHandler
        public static void int88()
        {
-         VM.sysFailTrap("int88");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(88);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int89()
        {
-         VM.sysFailTrap("int89");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(89);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int90()
        {
-         VM.sysFailTrap("int90");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(90);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int91()
        {
-         VM.sysFailTrap("int91");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(91);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int92()
        {
-//         VM.sysFailTrap("int92");
-         VM.sysWriteln("virtio net interrupt");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(92);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int93()
        {
-         VM.sysFailTrap("int93");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(93);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int94()
        {
-         VM.sysFailTrap("int94");
+         // Save registers on the interrupted stack
+         Magic.saveContext();
+         // Switch to the interrupt stack
+         Magic.switchStack(Platform.timer.getHandlerStack());
+         Platform.virtioNet.interrupt(94);
+         Platform.apic.eoi();
+         // Restore back to the interrupt stack and context
+         Magic.restoreThreadContext();
        }
        @InterruptHandler
        public static void int95()
@@ -18,12 +18,22 @@ import org.vmmagic.unboxed.Offset;
  *
  */
 public class CommandBlockDescriptor {
-  private final static int SIZE = 64;
+  /*
+   * Transmit buffer descriptors that follow the command block
+   */
+  public final static int MAX_TBDS = PacketBuffer.MAX_FRAGMENTS;
+  private final static int TBD_OFFSET = 16;
+  private final static int TBD_SIZE = 8;
+  private final static int SIZE = TBD_OFFSET + MAX_TBDS * TBD_SIZE;
   private static final boolean DEBUG_CONFIG = true;
   private static final boolean DEBUG_IASETUP = true;
   private byte[] buffer;
   private Address bufferAddr;
   private CommandBlockDescriptor next,previous;
+  /*
+   * Packet being transmitted, freed when the command completes
+   */
+  private Packet packet;
   
   private static final byte NOP = 0;
   private static final byte INTERNET_ADDR_SETUP = 1;
@@ -45,13 +55,13 @@ public class CommandBlockDescriptor {
   
   public CommandBlockDescriptor()
   {
-    buffer = new byte[SIZE];
+    buffer = PacketPool.newBuffer(SIZE);
     bufferAddr = Magic.objectAsAddress(buffer);
   }
   
   public CommandBlockDescriptor(int size)
   {
-    buffer = new byte[size];
+    buffer = PacketPool.newBuffer(size);
     bufferAddr = Magic.objectAsAddress(buffer);
   }
   /**
@@ -183,23 +193,33 @@ public class CommandBlockDescriptor {
   }
 
   /**
+   * Setup a flexible mode transmit. Every fragment of the packet gets
+   * a transmit buffer descriptor so the device gathers the frame.
+   * 
    * @param packet
    */
   public void configureTransmitPacket(Packet packet)
   {
+    int tbds = packet.getFragmentCount();
+    if(tbds > MAX_TBDS)
+    {
+      throw new RuntimeException("Too many fragments for transmit");
+    }
     bufferAddr.store(0, Offset.zero().plus(12));
     buffer[0] = 0;
     buffer[1] = 0;
     buffer[2] = TRANSMIT | SF;
-    buffer[15] = 1;  // tbd count
+    buffer[15] = (byte) tbds;  // tbd count
     buffer[14] = (byte) 0xe0;  // transmit threshold
     // setup the transmit buffer descriptor address
-    bufferAddr.store(bufferAddr.plus(16), Offset.zero().plus(8));
-    // transmit buffer 0 address
-//    VM.sysWrite("packet: ", packet.getAddress()); VM.sysWriteln(" ",packet.getSize());
-    bufferAddr.store(packet.getPacketAddress(), Offset.zero().plus(16));
-    bufferAddr.store(packet.getSize(), Offset.zero().plus(20));
-    VM.sysWrite("xmit packet: ", bufferAddr); VM.sysWriteln(" ", packet.getAddress());
+    bufferAddr.store(bufferAddr.plus(TBD_OFFSET), Offset.zero().plus(8));
+    for(int tbd=0; tbd < tbds; tbd++)
+    {
+      Offset tbdOffset = Offset.fromIntZeroExtend(TBD_OFFSET + tbd * TBD_SIZE);
+      bufferAddr.store(packet.getFragmentAddress(tbd), tbdOffset);
+      bufferAddr.store(packet.getFragmentSize(tbd), tbdOffset.plus(4));
+    }
+    this.packet = packet;
   }
 
     public boolean isComplete()
@@ -210,6 +230,11 @@ public class CommandBlockDescriptor {
     public void cleanCbd()
     {
         bufferAddr.store(0, Offset.zero().plus(16));
+        if(packet != null)
+        {
+            packet.free();
+            packet = null;
+        }
     }
 
     public boolean hasBuffer()
@@ -219,7 +244,12 @@ public class CommandBlockDescriptor {
 
     public int transmitBytes()
     {
-        return bufferAddr.loadInt(Offset.zero().plus(20)) & 0x7FFF;
+        int bytes = 0;
+        for(int tbd=0; tbd < (buffer[15] & 0xFF); tbd++)
+        {
+            bytes += bufferAddr.loadInt(Offset.fromIntZeroExtend(TBD_OFFSET + tbd * TBD_SIZE + 4)) & 0x7FFF;
+        }
+        return bytes;
     }
   
 }
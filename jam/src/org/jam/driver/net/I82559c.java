@@ -9,8 +9,6 @@ package org.jam.driver.net;
 import static org.jam.driver.net.CucCommand.*;
 import static org.jam.driver.net.RuState.*;
 
-import java.util.LinkedList;
-
 import org.jam.board.pc.Pci;
 import org.jam.board.pc.PciDevice;
 import org.jam.board.pc.Platform;
@@ -19,12 +17,14 @@ import org.jam.net.EtherType;
 import org.jam.net.InetProtocolProcessor;
 import org.jam.net.NetworkInterface;
 import org.jam.net.Route;
+import org.jam.net.capture.Capture;
 import org.jam.net.ethernet.Ethernet;
 import org.jam.net.ethernet.EthernetAddr;
 import org.jam.net.inet4.ArpTable;
 import org.jam.net.inet4.ArpThread;
 import org.jam.net.inet4.InetAddress;
 import org.jam.net.inet4.SendPacket;
+import org.jam.net.stats.Counter;
 import org.jam.system.NoDeviceFoundException;
 import org.jikesrvm.VM;
 import org.jikesrvm.runtime.Magic;
@@ -36,7 +36,7 @@ import org.vmmagic.unboxed.Offset;
  *
  */
 public class I82559c extends InetNetworkInterface 
-implements NetworkInterface, NapiInterface, BufferFree 
+implements NetworkInterface, NapiInterface 
 {
   final PciDevice pci;
   final Address csr;
@@ -95,7 +95,7 @@ implements NetworkInterface, NapiInterface, BufferFree
   private static final int       WAIT_SCB_FAST     = 20;           // Try 20 iterations first before delay
   
   private static final boolean DEBUG_CONFIG = false;
-  private static final boolean DEBUG_RX = true;
+  private static final boolean DEBUG_RX = false;
   private static final int CBD_COUNT = 256;
   private static final boolean DEBUG_ACKS = false;
   private static final int NAPI_WORK = 16;
@@ -108,7 +108,10 @@ implements NetworkInterface, NapiInterface, BufferFree
   private RuState running;
   private int rfdToClean;  // next buffer that needs to be processed
   private int rfdToUse;    // next buffer to allocate
-  private LinkedList<ReceiveFrameDescriptor> rfdFreeList;
+  /*
+   * Receive frame descriptors that are not in the ring
+   */
+  private PacketPool rxPool;
   private CommandBlockDescriptor cbdToUse;
   private CommandBlockDescriptor cbdToSend;
   private int cbdAvailable;
@@ -117,8 +120,7 @@ implements NetworkInterface, NapiInterface, BufferFree
   private boolean txCleaned=false;
   
   private NetworkQueue txQueue;
-  
-  private static final RuntimeException freePacketException = new RuntimeException("i82559c:free()");
+
 private static final boolean DEBUG_TX = true;
   
 /*
@@ -218,10 +220,10 @@ private static final boolean DEBUG_TX = true;
   private int napiSchedule=NAPI_SCHEDULE;
   
   // Statistics
-  private int statsBuffersCleaned=0;
-  private int statsFreeListEmpty=0;
-  private int statsBufferFilled=0;
-  private int statsStopPointMoved=0;
+  private final Counter statsBuffersCleaned = stats.counter("buffers cleaned");
+  private final Counter statsFreeListEmpty = stats.counter("free list empty");
+  private final Counter statsBufferFilled = stats.counter("buffers filled");
+  private final Counter statsStopPointMoved = stats.counter("stop point moved");
   
   private long txPackets=0;
   private long txBytes=0;
@@ -243,9 +245,10 @@ private static final boolean DEBUG_TX = true;
     eepromSize = 0;
     phyAddress = 1;
     rfds = new ReceiveFrameDescriptor[RFD_COUNT];
-    rfdFreeList = new LinkedList<ReceiveFrameDescriptor>();
+    rxPool = new PacketPool(Ethernet.FRAME_LENGTH + Ethernet.FCS_LENGTH, RFD_COUNT*2);
     transmitting = false;
     txQueue = new NetworkQueue();
+    transmitFragments = CommandBlockDescriptor.MAX_TBDS;
     arpTable = new ArpTable();
     setNetworkInterface(this);
   }
@@ -377,10 +380,15 @@ private static final boolean DEBUG_TX = true;
 
   private void xmitFrame(Packet packet)
   {
+    if(packet.getFragmentCount() > CommandBlockDescriptor.MAX_TBDS)
+    {
+      VM.sysWriteln("i82559c: too many fragments ", packet.getFragmentCount());
+      packet.free();
+      return;
+    }
     CommandBlockDescriptor cbd = getCommandBlock();
     cbd.configureTransmitPacket(packet);
     execute(cbd);
-    VM.sysWriteln("xmit packet done!");
   }
   /**
    * 
@@ -713,14 +721,22 @@ private static final boolean DEBUG_TX = true;
     int bufferNumber;
     
     running = RuState.UNINITIALIZED;
+    /*
+     * The RFDs are allocated once and recycled through the pool. Received
+     * frames are passed up in their RFD and come back when they are freed.
+     */
+    for(bufferNumber=0; bufferNumber < RFD_COUNT*2; bufferNumber++)
+    {
+      rxPool.add(new ReceiveFrameDescriptor());
+    }
     /*
      * Create a circular list of RFDS
      */
-    rfds[0] = new ReceiveFrameDescriptor();
+    rfds[0] = (ReceiveFrameDescriptor) rxPool.poll();
     for(bufferNumber=1; bufferNumber < RFD_COUNT; bufferNumber++)
     {
       // Create a linked list of RFDS
-      rfds[bufferNumber] = new ReceiveFrameDescriptor();
+      rfds[bufferNumber] = (ReceiveFrameDescriptor) rxPool.poll();
       rfds[bufferNumber-1].link(rfds[bufferNumber]);
     }
     rfds[RFD_COUNT-1].link(rfds[0]);
@@ -737,13 +753,6 @@ private static final boolean DEBUG_TX = true;
    rfds[RFD_COUNT-2].size(0);
    running = RuState.SUSPENDED;
    rfdToUse = rfdToClean = 0;
-   /*
-    * Setup the free list
-    */
-   for(bufferNumber=0; bufferNumber<RFD_COUNT; bufferNumber++)
-   {
-     rfdFreeList.add(new ReceiveFrameDescriptor());
-   }
    VM.sysWriteln("rfd 0: ", rfds[0].toString());
   }
 
@@ -762,10 +771,11 @@ private static final boolean DEBUG_TX = true;
       rfd.dump();
     }
     
-//    rxQueue.put(rfd.packet());
+    /*
+     * The protocol layers own the frame until they free it
+     */
+    rfds[rfdToClean] = null;
     inet4.put(rfd.packet());
-//    rfds[rfdToClean] = null;
-//    free(rfd);
   }
   
   public void receive()
@@ -799,19 +809,25 @@ private static final boolean DEBUG_TX = true;
     {
       if(rfds[rfdToUse] == null)
       {
-        if(rfdFreeList.isEmpty())
+        ReceiveFrameDescriptor nuBuffer = (ReceiveFrameDescriptor) rxPool.poll();
+        if(nuBuffer == null)
         {
-          VM.sysWriteln("RFD free list empty!");
-          statsFreeListEmpty++;
+          statsFreeListEmpty.inc();
           return;
         }
-        ReceiveFrameDescriptor nuBuffer = rfdFreeList.remove();
+        nuBuffer.reset();
         rfds[advanceRfdIndex(rfdToUse, -1)].link(nuBuffer);
-        nuBuffer.link(rfds[advanceRfdIndex(rfdToUse)]);
+        /*
+         * The next RFD is linked in when it is filled
+         */
+        ReceiveFrameDescriptor next = rfds[advanceRfdIndex(rfdToUse)];
+        if(next != null)
+        {
+          nuBuffer.link(next);
+        }
         rfds[rfdToUse] = nuBuffer;
-        nuBuffer.reset();
         if(DEBUG_RX) { VM.sysWrite("rxFill: "); VM.sysWriteln(nuBuffer.toString()); }
-        statsBufferFilled++;
+        statsBufferFilled.inc();
       }
       rfdToUse = advanceRfdIndex(rfdToUse);
     }
@@ -828,12 +844,12 @@ private static final boolean DEBUG_TX = true;
      */
     for(; ; )
     {
-      if(rfds[rfdToClean].notComplete())
+      if(rfds[rfdToClean] == null || rfds[rfdToClean].notComplete())
       {
         break;
       }
       rxProcessBuffer();
-      statsBuffersCleaned++;
+      statsBuffersCleaned.inc();
       rfdToClean = advanceRfdIndex(rfdToClean);
       printstats = true;
     }
@@ -865,7 +881,7 @@ private static final boolean DEBUG_TX = true;
        * Clear the old stopping point
        */
       rfds[oldStoppingPoint].resetStopPoint();
-      statsStopPointMoved++;
+      statsStopPointMoved.inc();
       
     }
     if(running == SUSPENDED)
@@ -883,6 +899,12 @@ private static final boolean DEBUG_TX = true;
   
   public void transmitFrame(Packet packet)
   {
+    if(Capture.enabled)
+    {
+      Capture.frame(packet, Capture.OUT);
+    }
+    stats.txPackets.inc();
+    stats.txBytes.add(packet.getSize());
     if(transmitting)
     {
       txQueue.put(packet);
@@ -1103,31 +1125,14 @@ private static final boolean DEBUG_TX = true;
   {
       this.macAddress = macAddress;
   }
-  /* (non-Javadoc)
-   * @see org.jam.driver.net.BufferFree#free(org.jam.net.inet4.Packet)
-   * 
-   * The parameter class must be a ReceiveFrameDescriptor
-   */
-  public void free(Packet packet)
-  {
-    if(!(packet instanceof ReceiveFrameDescriptor))
-    {
-      throw freePacketException;
-    }
-    rfdFreeList.add((ReceiveFrameDescriptor) packet);
-  }
-  
   final public void printStats()
   {
-    VM.sysWrite("cleaned  ", statsBuffersCleaned);
-    VM.sysWrite(" filled ", statsBufferFilled);
-    VM.sysWrite(" moved ", statsStopPointMoved);
-    VM.sysWriteln(" empty ", statsFreeListEmpty);
+    VM.sysWriteln(stats.toString());
+    VM.sysWriteln(rxPool.toString());
   }
 
     public void send(EthernetAddr destinationMac, Packet packet, short proto)
     {
-        System.out.println("eepro100 send 1");
         Ethernet frame = new Ethernet(destinationMac, packet, proto);
         // Set the src address
         frame.setSource(macAddress);
@@ -1136,7 +1141,6 @@ private static final boolean DEBUG_TX = true;
 
     public void send(SendPacket packet)
     {
-        System.out.println("eepro100 send");
         Ethernet frame = new Ethernet(EthernetAddr.BROADCAST_ADDRESS, packet.getPacket(), packet.getProto());
         // Set the src address
         frame.setSource(macAddress);
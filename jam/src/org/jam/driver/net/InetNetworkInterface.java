@@ -3,22 +3,31 @@ package org.jam.driver.net;
 import org.jam.net.InetProtocolProcessor;
 import org.jam.net.NetworkInterface;
 import org.jam.net.ethernet.EthernetAddr;
-import org.jam.net.inet4.Arp;
 import org.jam.net.inet4.ArpTable;
 import org.jam.net.inet4.ArpThread;
 import org.jam.net.inet4.InetAddress;
+import org.jam.net.stats.InterfaceStats;
+import org.jam.net.stats.Statistics;
 
-public class InetNetworkInterface
+public abstract class InetNetworkInterface
 {
 
     protected InetAddress ipAddress;
     protected int netmask;
     int mtu;
+    /*
+     * Buffers the device can gather into one frame
+     */
+    protected int transmitFragments = 1;
+    /*
+     * NetworkInterface.OFFLOAD flags
+     */
+    protected int offloads;
     protected ArpTable arpTable;
     private NetworkInterface networkInterface;
     protected ArpThread arp;
     protected InetProtocolProcessor inet4;
-    private Thread arpThread;
+    protected final InterfaceStats stats = new InterfaceStats(Statistics.uniqueName("eth"));
     private Thread inetThread;
     
     public InetAddress getInetAddress()
@@ -41,6 +50,16 @@ public class InetNetworkInterface
         this.mtu = mtu;
     }
 
+    public int getTransmitFragments()
+    {
+        return transmitFragments;
+    }
+
+    public int getOffloads()
+    {
+        return offloads;
+    }
+
     public void setNetMask(int mask)
     {
         netmask = mask;
@@ -51,24 +70,44 @@ public class InetNetworkInterface
         ipAddress = inetAddress;
     }
 
+    /**
+     * Look up the hardware address of a neighbour without waiting. When it
+     * is not known a request is sent and null is returned.
+     */
     public EthernetAddr arp(InetAddress inet)
     {
-        /*
-         * The easy case. arp table has the mac address
-         * then just return
-         */
-        if(!arpTable.hasInet(inet.inet4()))
+        EthernetAddr mac = arp.findDevice(inet.inet4());
+        if(mac == null && arpTable.getState(inet.inet4()) == ArpTable.FREE)
         {
-            System.out.println("Create arp request: "+inet);
             arp.request(ipAddress, inet);
         }
-        /*
-         * If this point is reached then the 
-         * arp entry should be present
-         */
-        System.out.println("arp.findDevice");
-        return arp.findDevice(inet.inet4());        
+        return mac;
     }
+
+    public InterfaceStats getStatistics()
+    {
+        return stats;
+    }
+
+    public int getArpGeneration()
+    {
+        return arpTable.getGeneration();
+    }
+
+    /**
+     * Send an IPv4 packet to a neighbour, it is queued until the neighbour
+     * is resolved
+     */
+    public void send(int nextHop, Packet packet)
+    {
+        arp.send(nextHop, packet);
+    }
+
+    /**
+     * Bring up the device
+     */
+    public abstract void boot();
+
     protected void setNetworkInterface(NetworkInterface networkInterface)
     {
         this.networkInterface = networkInterface;
@@ -79,11 +118,13 @@ public class InetNetworkInterface
         /*
          * Start the arp processing
          */
-        arp = new ArpThread(networkInterface);
-        arpThread = new Thread(arp);
-        inet4 = new InetProtocolProcessor(arp);
+        arp = new ArpThread(networkInterface, arpTable);
+        inet4 = new InetProtocolProcessor(arp, stats);
         inetThread = new Thread(inet4);
-        arpThread.start();
+        /*
+         * Packet processing pre-empts the applications
+         */
+        inetThread.setPriority(Thread.MAX_PRIORITY);
         inetThread.start();
     }
 }
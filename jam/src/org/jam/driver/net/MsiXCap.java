@@ -47,14 +47,22 @@ public class MsiXCap extends PciCapability {
     tableSize = (value & 0x7FF) + 1;
     value = device.readConfig32(capPointer+4);
     tableBar = value & 0x7;
-    tableOffset = Offset.fromIntZeroExtend((value >> 3) & 0x1FFFFFFF);
+    tableOffset = Offset.fromIntZeroExtend(value & ~0x7);
     value = device.readConfig32(capPointer+8);
     pbaBar = value & 0x7;
-    pbaOffset = Offset.fromIntZeroExtend((value >> 3) & 0x1FFFFFFF);
+    pbaOffset = Offset.fromIntZeroExtend(value & ~0x7);
     msixTable = device.getBar(tableBar).plus(tableOffset);
     pbaTable = device.getBar(pbaBar).plus(pbaOffset);
   }
 
+  /**
+   * @return number of entries in the MSI-X table
+   */
+  public int getTableSize()
+  {
+    return tableSize;
+  }
+  
   public void enableInterrupts()
   {
     short control = device.readConfig16(offset+2);
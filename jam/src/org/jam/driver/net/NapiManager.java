@@ -32,12 +32,14 @@ public class NapiManager implements Runnable {
   private static final boolean DEBUG = false;
 
   private static LinkedList<NapiEntry> networkInterfaces = new LinkedList<NapiEntry>();
+  private static Thread napiThread;
 
   /**
    * @param i82559c
    */
   public static void addInterface(NapiInterface networkCard)
   {
+    boot();
     if (networkInterfaces.isEmpty())
     {
       /*
@@ -99,11 +101,18 @@ public class NapiManager implements Runnable {
   }
 
   /**
-   * Startup the NAPI timer thread
+   * Startup the NAPI timer thread. Called by the first interface that
+   * registers, so there is no polling without a polled interface.
    */
   public static void boot()
   {
-
+    if (napiThread != null)
+    {
+      return;
+    }
+    napiThread = new Thread(new NapiManager());
+    napiThread.setName("NAPI Manager");
+    napiThread.start();
   }
 
   private int interfaceSlot;
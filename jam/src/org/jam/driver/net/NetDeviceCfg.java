@@ -45,6 +45,24 @@ public class NetDeviceCfg extends DeviceCfg {
     return (getShort(6) & 0x1) == 0x1;
   }
   
+  /**
+   * Only valid when MQ is negotiated
+   * @return number of receive/transmit virtq pairs the device supports
+   */
+  public int getMaxVirtqueuePairs()
+  {
+    return getShort(8) & 0xFFFF;
+  }
+  
+  /**
+   * Only valid when MTU is negotiated
+   * @return MTU the device advises
+   */
+  public int getMtu()
+  {
+    return getShort(10) & 0xFFFF;
+  }
+  
   public byte[] getMacAddress()
   {
     return macAddress;
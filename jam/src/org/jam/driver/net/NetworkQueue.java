@@ -6,9 +6,6 @@
  */
 package org.jam.driver.net;
 
-import org.jikesrvm.VM;
-import org.jikesrvm.runtime.Magic;
-
 /**
  * @author Joe Kulig
  *
@@ -32,17 +29,20 @@ public class NetworkQueue {
     head = 0;
     tail = 0;
   }
-  final public void put(Packet packet)
+  /**
+   * @return false when the queue is full and the packet was freed
+   */
+  final public boolean put(Packet packet)
   {
     // check for overflow
     if(full())
     {
-      VM.sysWrite("Network Queue full ", Magic.objectAsAddress(this)); VM.sysWrite(" head ", head);
-      VM.sysWrite(" tail ", tail);
-      return;
+      packet.free();
+      return false;
     }
     queue[head] = packet;
     head = nextHead();
+    return true;
   }
   final public Packet get()
   {
@@ -62,6 +62,14 @@ public class NetworkQueue {
   {
     return (head+1) & (SIZE-1);
   }
+  final public boolean isEmpty()
+  {
+    return empty();
+  }
+  final public boolean isFull()
+  {
+    return full();
+  }
   final private boolean empty()
   {
     return head==tail;
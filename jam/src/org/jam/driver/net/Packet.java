@@ -14,6 +14,13 @@ import org.vmmagic.unboxed.Address;
  */
 public interface Packet
 {
+    /*
+     * Segmentation types, the values match the virtio net header
+     */
+    int GSO_NONE  = 0;
+    int GSO_TCPV4 = 1;
+    int GSO_UDP   = 3;
+
     /*
      * The buffer array
      */
@@ -30,7 +37,7 @@ public interface Packet
     int getOffset();
 
     /*
-     * Size of the packet
+     * Size of the packet, chained fragments included
      */
     int getSize();
 
@@ -56,4 +63,84 @@ public interface Packet
      * @param size
      */
     void pull(int size);
+
+    /**
+     * Cut the data down to size bytes, drops padding behind a datagram
+     * @param size
+     */
+    void trim(int size);
+
+    /**
+     * Number of buffers the packet data is spread over
+     */
+    int getFragmentCount();
+
+    /**
+     * Address where the data of a fragment starts
+     */
+    Address getFragmentAddress(int fragment);
+
+    /**
+     * Size of the data in a fragment
+     */
+    int getFragmentSize(int fragment);
+
+    /**
+     * Let the device compute the checksum. The checksum covers the data from
+     * the current start of the packet to the end, the sum of the pseudo header
+     * must already be stored in the checksum field.
+     *
+     * @param checksumOffset offset of the checksum field from the current start
+     */
+    void setChecksumOffload(int checksumOffset);
+
+    /**
+     * @return offset from the start of the packet where the device starts
+     *         summing, -1 when the checksum is not offloaded
+     */
+    int getChecksumStart();
+
+    /**
+     * @return offset of the checksum field from the checksum start
+     */
+    int getChecksumOffset();
+
+    /**
+     * Let the device split the packet. The headers up to headerLength from the
+     * current start are copied in front of every segment.
+     *
+     * @param type GSO_TCPV4 or GSO_UDP
+     * @param segmentSize data bytes in every segment but the last
+     * @param headerLength length of the transport header
+     */
+    void setSegmentation(int type, int segmentSize, int headerLength);
+
+    int getSegmentationType();
+
+    int getSegmentationSize();
+
+    /**
+     * @return length of the headers from the start of the packet that are
+     *         copied to every segment
+     */
+    int getHeaderLength();
+
+    /**
+     * Set by a driver when the device verified the transport checksum of a
+     * received packet
+     */
+    void setChecksumValid(boolean valid);
+
+    boolean isChecksumValid();
+
+    /**
+     * Add a reference to the packet
+     * @return the packet
+     */
+    Packet retain();
+
+    /**
+     * Release a reference to the packet
+     */
+    void free();
 }
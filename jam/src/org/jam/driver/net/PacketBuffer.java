@@ -6,8 +6,7 @@
  */
 package org.jam.driver.net;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jam.net.inet4.CleanPacket;
 import org.jikesrvm.runtime.Magic;
@@ -16,21 +15,55 @@ import org.vmmagic.unboxed.Address;
 /**
  * @author Joe Kulig
  *
+ * A packet buffer is reference counted. It is created with one reference and
+ * free() releases one. When the last reference is released the buffer goes
+ * back to the pool it came from.
+ *
+ * Other packets can be chained in front of or behind the buffer's own data.
+ * The device transmits the fragments in order without copying them. The chain
+ * owns the reference of every packet added to it.
  */
 public class PacketBuffer implements Packet
 {
+    public final static int MAX_FRAGMENTS = 8;
 
     private byte        buffer[];
+    /*
+     * Length of the data starting at offset
+     */
     private int         length;
     private Address     bufferAddr;
     private int         offset;
     private int         headroom;
     private CleanPacket cleaner;
+    private final AtomicInteger references = new AtomicInteger(1);
+    /*
+     * Pool the buffer returns to and its slot in the pool
+     */
+    private BufferFree  pool;
+    private int         slot = -1;
 
     /*
-     * Used to prepend and append other packets
+     * Used to prepend and append other packets. When packets are chained
+     * the array holds every fragment in transmit order, this one included.
      */
-    private LinkedList<Packet> packetList;
+    private Packet      chain[];
+    private int         chainCount;
+    /*
+     * Data length of the chained packets
+     */
+    private int         chainLength;
+
+    /*
+     * Offloads. The checksum start and the end of the headers are indexes
+     * into the buffer so they stay put when headers are prepended.
+     */
+    private int         checksumStart = -1;
+    private int         checksumOffset;
+    private int         segmentationType;
+    private int         segmentationSize;
+    private int         headerEnd;
+    private boolean     checksumValid;
 
     /*
      * Create packet from an array
@@ -38,7 +71,7 @@ public class PacketBuffer implements Packet
     public PacketBuffer(byte[] buffer, int offset)
     {
         this.buffer = buffer;
-        length = buffer.length;
+        length = buffer.length - offset;
         this.offset = offset;
         headroom = offset;
         bufferAddr = Magic.objectAsAddress(buffer);
@@ -67,11 +100,7 @@ public class PacketBuffer implements Packet
      */
     public PacketBuffer(int size, int offset)
     {
-        this.offset = offset;
-        headroom = offset;
-        buffer = new byte[size];
-        length = size;
-        bufferAddr = Magic.objectAsAddress(buffer);
+        this(PacketPool.newBuffer(size), offset);
     }
 
     public byte[] getArray()
@@ -94,15 +123,20 @@ public class PacketBuffer implements Packet
         return offset;
     }
 
+    /**
+     * @return size of the data including chained packets
+     */
     public int getSize()
     {
-        return length;
+        return length + chainLength;
     }
 
+    /**
+     * Chain a packet behind the data. The packet must not be chained itself.
+     */
     public void append(Packet packet)
     {
-        packetList.add(packet);
-        length += packet.getSize();
+        insert(chainCount == 0 ? 1 : chainCount, packet);
     }
 
     /**
@@ -114,50 +148,162 @@ public class PacketBuffer implements Packet
      */
     public Address prepend(int size)
     {
-        return null;
+        setHeadroom(size);
+        return getPacketAddress();
     }
 
+    /**
+     * Chain a packet in front of the data. The packet must not be chained itself.
+     */
     public void prepend(Packet packet)
     {
-        packetList.addFirst(packet);
-        length += packet.getSize();
+        insert(0, packet);
+    }
+
+    private void insert(int index, Packet packet)
+    {
+        if (chain == null)
+        {
+            chain = new Packet[MAX_FRAGMENTS];
+        }
+        if (chainCount == 0)
+        {
+            chain[0] = this;
+            chainCount = 1;
+        }
+        if (chainCount == MAX_FRAGMENTS)
+        {
+            throw new RuntimeException("Too many fragments");
+        }
+        System.arraycopy(chain, index, chain, index + 1, chainCount - index);
+        chain[index] = packet;
+        chainCount++;
+        chainLength += packet.getSize();
+    }
+
+    /*
+     * Length of the fragments in front of this buffer's data
+     */
+    private int prependedLength()
+    {
+        int length = 0;
+        for (int fragment = 0; fragment < chainCount && chain[fragment] != this; fragment++)
+        {
+            length += chain[fragment].getSize();
+        }
+        return length;
     }
 
     /**
-     * Creates a new contiguous buffer that contains all packet data. This is
-     * suitable for a network device to transmit.
-     * 
-     * @return a contiguous array of packet data
-     */
-    public byte[] transmit()
-    {
-        /*
-         * Only one packet to transmit
-         */
-        if (packetList.size() == 1)
-            return buffer;
-
-        /*
-         * The below will iterate through all packets and copy their data into one big
-         * buffer. The ordering of the packets in packetList is the order that the data
-         * should be sent/transmitted.
-         */
-        byte data[] = new byte[length];
-        int srcIndex, dstIndex = 0;
-        Iterator<Packet> packetIter = packetList.iterator();
-        while (packetIter.hasNext())
-        {
-            /*
-             * Get packet
-             */
-            Packet packet = packetIter.next();
-            byte packetData[] = packet.getArray();
-            for (srcIndex = 0; srcIndex < packetData.length; srcIndex++, dstIndex++)
+     * Make a packet for part of this buffer's data without copying it. The
+     * slice holds a reference to this buffer until it is freed.
+     *
+     * @param from offset from the start of the data
+     * @param size length of the slice
+     */
+    public PacketBuffer slice(int from, int size)
+    {
+        if (from < 0 || from + size > length)
+        {
+            throw new RuntimeException("Slice outside of packet");
+        }
+        PacketBuffer slice = new PacketBuffer(buffer, 0);
+        slice.reset(offset + from, size);
+        retain();
+        slice.setCleaner(new CleanPacket()
+        {
+            public void free()
             {
-                data[dstIndex] = packetData[srcIndex];
+                PacketBuffer.this.free();
             }
+        });
+        return slice;
+    }
+
+    public void setChecksumOffload(int checksumOffset)
+    {
+        checksumStart = offset;
+        this.checksumOffset = checksumOffset;
+    }
+
+    public int getChecksumStart()
+    {
+        if (checksumStart < 0)
+        {
+            return -1;
         }
-        return data;
+        return prependedLength() + checksumStart - offset;
+    }
+
+    public int getChecksumOffset()
+    {
+        return checksumOffset;
+    }
+
+    public void setSegmentation(int type, int segmentSize, int headerLength)
+    {
+        segmentationType = type;
+        segmentationSize = segmentSize;
+        headerEnd = offset + headerLength;
+    }
+
+    public int getSegmentationType()
+    {
+        return segmentationType;
+    }
+
+    public int getSegmentationSize()
+    {
+        return segmentationSize;
+    }
+
+    public int getHeaderLength()
+    {
+        return prependedLength() + headerEnd - offset;
+    }
+
+    public void setChecksumValid(boolean valid)
+    {
+        checksumValid = valid;
+    }
+
+    public boolean isChecksumValid()
+    {
+        return checksumValid;
+    }
+
+    /*
+     * Forget the offloads of the last use of the buffer
+     */
+    private void clearOffloads()
+    {
+        checksumStart = -1;
+        segmentationType = GSO_NONE;
+        segmentationSize = 0;
+        checksumValid = false;
+    }
+
+    public int getFragmentCount()
+    {
+        return chainCount == 0 ? 1 : chainCount;
+    }
+
+    public Address getFragmentAddress(int fragment)
+    {
+        if (chainCount == 0 || chain[fragment] == this)
+        {
+            return getPacketAddress();
+        }
+        return chain[fragment].getPacketAddress();
+    }
+
+    public int getFragmentSize(int fragment)
+    {
+        if (chainCount == 0 || chain[fragment] == this)
+        {
+            return length;
+        }
+        return chain[fragment].getSize();
     }
 
     /**
@@ -172,6 +318,7 @@ public class PacketBuffer implements Packet
             throw new RuntimeException("Not enought headroom");
         }
         offset -= size;
+        length += size;
     }
 
     public void setCleaner(CleanPacket cleaner)
@@ -179,9 +326,75 @@ public class PacketBuffer implements Packet
         this.cleaner = cleaner;
     }
 
+    /**
+     * Add a reference to the packet
+     */
+    public Packet retain()
+    {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Release a reference, the last one returns the buffer to its pool
+     */
     public void free()
     {
+        int count = references.decrementAndGet();
+        if (count > 0)
+        {
+            return;
+        }
+        if (count < 0)
+        {
+            throw new RuntimeException("Packet freed twice");
+        }
+        if (cleaner != null)
+        {
+            cleaner.free();
+            cleaner = null;
+        }
+        for (int fragment = 0; fragment < chainCount; fragment++)
+        {
+            if (chain[fragment] != this)
+            {
+                chain[fragment].free();
+            }
+            chain[fragment] = null;
+        }
+        chainCount = 0;
+        chainLength = 0;
+        clearOffloads();
+        references.set(1);
+        if (pool != null)
+        {
+            pool.free(this);
+        }
+    }
+
+    /**
+     * Start the data at headroom with a length of size
+     */
+    public void reset(int headroom, int size)
+    {
+        if (headroom + size > buffer.length)
+        {
+            throw new RuntimeException("Packet buffer too small");
+        }
+        this.headroom = offset = headroom;
+        length = size;
+        clearOffloads();
+    }
+
+    final void setPool(BufferFree pool, int slot)
+    {
+        this.pool = pool;
+        this.slot = slot;
+    }
 
+    final int getSlot()
+    {
+        return slot;
     }
 
     public int getBufferSize()
@@ -202,5 +415,18 @@ public class PacketBuffer implements Packet
     public void pull(int size)
     {
         offset += size;
+        length -= size;
+    }
+
+    public void trim(int size)
+    {
+        if (chainCount != 0)
+        {
+            throw new RuntimeException("Can not trim a chained packet");
+        }
+        if (size < length)
+        {
+            length = size;
+        }
     }
 }
@@ -0,0 +1,254 @@
+package org.jam.driver.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jam.net.ethernet.Ethernet;
+import org.jikesrvm.mm.mminterface.MemoryManager;
+
+/**
+ * Pool of packet buffers of one size. Buffers are allocated from the non
+ * moving space so their address can be handed to a device. A pool starts
+ * empty and creates buffers on demand until it reaches its capacity, freed
+ * buffers go back on a lock free stack.
+ *
+ * The static allocate() methods pick the smallest size class that fits
+ * and reserve HEADROOM bytes in front of the data for the protocol headers.
+ */
+public class PacketPool
+implements BufferFree
+{
+    /*
+     * Ethernet, virtio net header, IP and TCP headers with options
+     */
+    public final static int HEADROOM = 128;
+    public final static int SMALL    = 64;
+    public final static int MEDIUM   = 256;
+    public final static int MTU      = Ethernet.FRAME_LENGTH + Ethernet.FCS_LENGTH;
+    public final static int JUMBO    = 9018 + Ethernet.FCS_LENGTH;
+    /*
+     * Largest IP packet, handed to devices that segment it
+     */
+    public final static int GSO      = 0x10000;
+
+    private final static int MAX_CAPACITY = 0xFFFF;
+    /*
+     * The stack head holds a tag in the upper half so a pop that was
+     * preempted can not succeed after the same buffer was popped and pushed.
+     */
+    private final static int INDEX_MASK    = 0xFFFF;
+    private final static int TAG_MASK      = 0xFFFF0000;
+    private final static int TAG_INCREMENT = 0x10000;
+
+    private final static PacketPool classes[] = {
+        new PacketPool(SMALL + HEADROOM, 512),
+        new PacketPool(MEDIUM + HEADROOM, 256),
+        new PacketPool(MTU + HEADROOM, 512),
+        new PacketPool(JUMBO + HEADROOM, 16),
+        new PacketPool(GSO + HEADROOM, 16)
+    };
+
+    private final int bufferSize;
+    private final int capacity;
+    private final PacketBuffer slots[];
+    /*
+     * next[slot] is the free stack entry below slot, 0 is the bottom
+     */
+    private final int next[];
+    private final AtomicInteger head = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    /*
+     * Statistics
+     */
+    private int allocated;
+    private int misses;
+    private int dropped;
+    private static int oversize;
+
+    /**
+     * @param bufferSize size of every buffer in the pool
+     * @param capacity maximum number of buffers kept by the pool
+     */
+    public PacketPool(int bufferSize, int capacity)
+    {
+        if(capacity > MAX_CAPACITY)
+        {
+            throw new RuntimeException("Packet pool too large");
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        slots = new PacketBuffer[capacity];
+        next = new int[capacity];
+    }
+
+    /**
+     * Allocate a non moving array for a packet buffer
+     */
+    public static byte[] newBuffer(int size)
+    {
+        return MemoryManager.newNonMovingByteArray(size);
+    }
+
+    /**
+     * Allocate a packet with room for size bytes of data after HEADROOM
+     */
+    public static PacketBuffer allocate(int size)
+    {
+        return allocate(size, HEADROOM);
+    }
+
+    /**
+     * Allocate a packet with room for size bytes of data after headroom bytes
+     *
+     * @return a packet of size bytes with one reference
+     */
+    public static PacketBuffer allocate(int size, int headroom)
+    {
+        int total = size + headroom;
+        for(int index = 0; index < classes.length; index++)
+        {
+            if(total <= classes[index].bufferSize)
+            {
+                PacketBuffer packet = classes[index].allocate();
+                packet.reset(headroom, size);
+                return packet;
+            }
+        }
+        /*
+         * Too big for any class, it is left to the collector when freed
+         */
+        oversize++;
+        PacketBuffer packet = new PacketBuffer(newBuffer(total), headroom);
+        packet.reset(headroom, size);
+        return packet;
+    }
+
+    /**
+     * Take a buffer from the pool, a new one is created when the pool is empty
+     */
+    public PacketBuffer allocate()
+    {
+        PacketBuffer packet = pop();
+        if(packet == null)
+        {
+            misses++;
+            packet = create();
+        }
+        allocated++;
+        return packet;
+    }
+
+    /**
+     * Take a buffer from the pool
+     *
+     * @return a buffer or null when the pool is empty
+     */
+    public PacketBuffer poll()
+    {
+        PacketBuffer packet = pop();
+        if(packet != null)
+        {
+            allocated++;
+        }
+        return packet;
+    }
+
+    /**
+     * Add a buffer to the pool, used by drivers that wrap their own
+     * descriptors around pool buffers.
+     *
+     * @return false if the pool is full
+     */
+    public boolean add(PacketBuffer packet)
+    {
+        int slot = created.getAndIncrement();
+        if(slot >= capacity)
+        {
+            created.decrementAndGet();
+            return false;
+        }
+        slots[slot] = packet;
+        packet.setPool(this, slot);
+        push(slot);
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jam.driver.net.BufferFree#free(org.jam.driver.net.Packet)
+     *
+     * Called by PacketBuffer when the last reference is released
+     */
+    public void free(Packet packet)
+    {
+        int slot = ((PacketBuffer) packet).getSlot();
+        if(slot < 0)
+        {
+            dropped++;
+            return;
+        }
+        push(slot);
+    }
+
+    private PacketBuffer create()
+    {
+        PacketBuffer packet = new PacketBuffer(newBuffer(bufferSize), 0);
+        int slot = created.getAndIncrement();
+        if(slot < capacity)
+        {
+            slots[slot] = packet;
+            packet.setPool(this, slot);
+        }
+        else
+        {
+            created.decrementAndGet();
+            packet.setPool(this, -1);
+        }
+        return packet;
+    }
+
+    private void push(int slot)
+    {
+        int old;
+        do
+        {
+            old = head.get();
+            next[slot] = old & INDEX_MASK;
+        } while(!head.compareAndSet(old, ((old + TAG_INCREMENT) & TAG_MASK) | (slot + 1)));
+    }
+
+    private PacketBuffer pop()
+    {
+        int old, top;
+        do
+        {
+            old = head.get();
+            top = old & INDEX_MASK;
+            if(top == 0)
+            {
+                return null;
+            }
+        } while(!head.compareAndSet(old, ((old + TAG_INCREMENT) & TAG_MASK) | next[top - 1]));
+        return slots[top - 1];
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public String toString()
+    {
+        return "pool " + bufferSize + " created " + created.get() + "/" + capacity + " allocated " + allocated
+               + " misses " + misses + " dropped " + dropped;
+    }
+
+    public static void printStatistics()
+    {
+        for(int index = 0; index < classes.length; index++)
+        {
+            System.out.println(classes[index]);
+        }
+        System.out.println("pool oversize " + oversize);
+    }
+}
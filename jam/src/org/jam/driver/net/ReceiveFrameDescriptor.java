@@ -8,7 +8,6 @@ package org.jam.driver.net;
 
 import org.jam.net.ethernet.Ethernet;
 import org.jikesrvm.VM;
-import org.jikesrvm.runtime.Magic;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.Offset;
 
@@ -16,7 +15,7 @@ import org.vmmagic.unboxed.Offset;
  * @author Joe Kulig
  *
  */
-public class ReceiveFrameDescriptor implements Packet
+public class ReceiveFrameDescriptor extends PacketBuffer
 {
     private static final int EL              = (1 << 31);
     private static final int SUSPEND         = (1 << 30);
@@ -36,18 +35,13 @@ public class ReceiveFrameDescriptor implements Packet
     private static final int ACTUAL_SIZE_MASK = 0x3FF;
     private static final int STATUS_MASK      = 0x1FF;
 
-    private byte       buffer[];
     private Address    rfdAddr;
-    private BufferFree bufferFree;
-    private int        headroom;
-    private int        offset;
 
     public ReceiveFrameDescriptor(int bufferSize)
     {
-        buffer = new byte[bufferSize];
-        rfdAddr = Magic.objectAsAddress(buffer);
+        super(PacketPool.newBuffer(bufferSize), RFD_SIZE);
+        rfdAddr = getAddress();
         size(bufferSize - RFD_SIZE);
-        offset = headroom = RFD_SIZE;
     }
 
     public ReceiveFrameDescriptor()
@@ -115,95 +109,20 @@ public class ReceiveFrameDescriptor implements Packet
      */
     public void dump()
     {
-        VM.hexDump(buffer, 16, actualSize());
+        VM.hexDump(getArray(), RFD_SIZE, actualSize());
     }
 
     /**
-     * @return
+     * Set the packet to the received frame
+     *
+     * @return the received frame
      */
     public Packet packet()
     {
-        // TODO Auto-generated method stub
+        reset(RFD_SIZE, actualSize());
         return this;
     }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#getArray()
-     */
-    public byte[] getArray()
-    {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#getOffset()
-     */
-    public int getOffset()
-    {
-        // TODO Auto-generated method stub
-        return 0;
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#getSize()
-     */
-    public int getSize()
-    {
-        // TODO Auto-generated method stub
-        return 0;
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#append(org.jam.driver.net.Packet)
-     */
-    public void append(Packet packet)
-    {
-        // TODO Auto-generated method stub
-
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#prepend(int)
-     */
-    public Address prepend(int size)
-    {
-        // TODO Auto-generated method stub
-        return null;
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#prepend(org.jam.driver.net.Packet)
-     */
-    public void prepend(Packet packet)
-    {
-        // TODO Auto-generated method stub
-
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.jam.driver.net.Packet#setHeadroom(int)
-     */
-    public void setHeadroom(int size)
-    {
-        // TODO Auto-generated method stub
-
-    }
-
     /**
      * Set so that a RNR is generated
      */
@@ -235,6 +154,7 @@ public class ReceiveFrameDescriptor implements Packet
     {
         rfdAddr.store(0);
         rfdAddr.store((short) 0, INFO);
+        size(getBufferSize() - RFD_SIZE);
     }
 
     public String toString()
@@ -244,19 +164,4 @@ public class ReceiveFrameDescriptor implements Packet
                 + " " + Integer.toHexString(rfdAddr.loadInt(INFO));
 
     }
-
-    public Address getPacketAddress()
-    {
-        return rfdAddr.plus(offset);
-    }
-
-    public int getBufferSize()
-    {
-        return buffer.length;
-    }
-
-    public void pull(int size)
-    {
-        offset += size;
-    }
 }
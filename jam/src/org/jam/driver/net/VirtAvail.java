@@ -17,6 +17,9 @@ import org.vmmagic.unboxed.Offset;
 public class VirtAvail {
   final Address ring;
   final int size;
+  /*
+   * The ring index is free running, it wraps at 2^16 and not at the ring size
+   */
   private int shadowIdx;
   
   public static final short FLAG_NO_INTERRUPT = 0x01;
@@ -37,9 +40,29 @@ public class VirtAvail {
 
   public void setAvailable(short descTableBuffer)
   {
-    ring.store(descTableBuffer, Offset.fromIntZeroExtend(shadowIdx * 2 + RING_OFFSET));
+    add(descTableBuffer);
+    publish();
+  }
+  
+  /**
+   * Put a descriptor on the ring without letting the device see it
+   */
+  public void add(short descTableBuffer)
+  {
+    ring.store(descTableBuffer, Offset.fromIntZeroExtend((shadowIdx & (size-1)) * 2 + RING_OFFSET));
     shadowIdx++;
-    shadowIdx &= (size-1);
+    shadowIdx &= 0xFFFF;
+  }
+  
+  /**
+   * Let the device see the descriptors added to the ring
+   */
+  public void publish()
+  {
+    /*
+     * The descriptors must be visible before the index
+     */
+    Magic.fence();
     setIdx((short)shadowIdx);
   }
   
@@ -57,12 +80,9 @@ public class VirtAvail {
   {
     for(int buffer=bufferStart; buffer <= bufferEnd; buffer++)
     {
-      ring.store(buffer, Offset.fromIntZeroExtend(shadowIdx * 2 + RING_OFFSET));
-      shadowIdx++;
-      shadowIdx &= (size-1);
+      add((short)buffer);
     }
-    setIdx((short)shadowIdx);
-    Magic.fence();
+    publish();
   }
   
   public int getAvail(int index)
@@ -97,14 +117,17 @@ public class VirtAvail {
     ring.store(idx, Offset.fromIntZeroExtend(IDX_OFFSET));
   }
   
+  /**
+   * With RING_EVENT_IDX the device interrupts once the used index
+   * passes the used event
+   */
   public int getUsedEvent()
   {
-    int usedEvent = 0;
-    return usedEvent;
+    return ring.loadShort(Offset.fromIntZeroExtend(RING_OFFSET + (size * 2))) & 0xFFFF;
   }
   
   public void setUsedEvent(int event)
   {
-//    usedEvent = event;
+    ring.store((short)event, Offset.fromIntZeroExtend(RING_OFFSET + (size * 2)));
   }
 }
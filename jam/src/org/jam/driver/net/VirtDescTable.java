@@ -6,7 +6,6 @@
  */
 package org.jam.driver.net;
 
-import org.jikesrvm.runtime.Magic;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.Offset;
 
@@ -20,6 +19,10 @@ public class VirtDescTable {
   final private Address table;
   final private int size;
   final private int numFree;
+  /*
+   * Buffers allocated to the entries
+   */
+  final private PacketBuffer packets[];
   
   static final private Offset ADDR  = Offset.fromIntZeroExtend(0);
   static final private Offset LEN   = Offset.fromIntZeroExtend(8);
@@ -30,7 +33,7 @@ public class VirtDescTable {
   static final public short    FLAG_WRITE    = 0x02;
   static final public short    FLAG_INDIRECT = 0x04;
 
-  static final private int ENTRY_SIZE = 16;
+  static final int ENTRY_SIZE = 16;
 
   /**
    * @param virtDescTable
@@ -41,6 +44,7 @@ public class VirtDescTable {
     this.size = size;
     this.table = table;
     numFree = size;
+    packets = new PacketBuffer[size];
   }
 
   public int getSize()
@@ -74,7 +78,17 @@ public class VirtDescTable {
   
   public byte[] getBuffer(int index)
   {
-    return Magic.addressAsByteArray(getAddress(index));
+    return packets[index].getArray();
+  }
+  
+  /**
+   * Get the packet buffer of a virt desc table entry
+   * @param index
+   * @return
+   */
+  public PacketBuffer getPacket(int index)
+  {
+    return packets[index];
   }
   
   /**
@@ -125,11 +139,15 @@ public class VirtDescTable {
     return next & 0xFFFF;
   }
   
+  /**
+   * Give an entry a non moving buffer from the packet pool
+   */
   public void allocate(int index, int size, boolean write)
   {
-    byte buffer[] = new byte[size];
-    setAddress(index, Magic.objectAsAddress(buffer));
-    setLen(index, buffer.length);
+    PacketBuffer packet = PacketPool.allocate(size, 0);
+    packets[index] = packet;
+    setAddress(index, packet.getAddress());
+    setLen(index, size);
     if(write)
     {
       setFlags(index, FLAG_WRITE);
@@ -33,19 +33,19 @@ public class VirtUsed {
 
   public int getNextBufferDescriptor()
   {
-    return getId(lastUsedIndex);
+    return getId(lastUsedIndex & (size-1));
   }
   
   public int getNextBufferLen()
   {
-    return getLen(lastUsedIndex);
+    return getLen(lastUsedIndex & (size-1));
   }
   
   public final void next()
   {
-    // Advance the lastUsedIndex to the next entry
+    // Advance the lastUsedIndex to the next entry, it is free running like idx
     lastUsedIndex++;
-    lastUsedIndex &= (size-1);
+    lastUsedIndex &= 0xFFFF;
   }
   
   public int getId(int index)
@@ -94,6 +94,31 @@ public class VirtUsed {
     ring.store(idx, Offset.fromIntZeroExtend(IDX_OFFSET));
   }
 
+  /**
+   * @return the next used index the driver will look at
+   */
+  public int getLastUsedIndex()
+  {
+    return lastUsedIndex;
+  }
+  
+  /**
+   * @return number of used buffers the driver has not looked at
+   */
+  public int getUsedCount()
+  {
+    return (getIdx() - lastUsedIndex) & 0xFFFF;
+  }
+  
+  /**
+   * With RING_EVENT_IDX the device wants a notification once the
+   * available index passes the avail event
+   */
+  public int getAvailEvent()
+  {
+    return ring.loadShort(Offset.fromIntZeroExtend(ID_OFFSET + (size * 8))) & 0xFFFF;
+  }
+  
   /**
    * @return
    */
@@ -14,16 +14,32 @@ import org.jam.board.pc.MessageDataRegister;
 import org.jam.board.pc.Pci;
 import org.jam.board.pc.PciCapability;
 import org.jam.board.pc.PciDevice;
+import org.jam.board.pc.Smp;
+import org.jam.cpu.intel.Idt;
+import org.jam.net.IpProto;
+import org.jam.net.NetworkInterface;
+import org.jam.net.Route;
+import org.jam.net.capture.Capture;
+import org.jam.net.ethernet.Ethernet;
 import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.inet4.ArpTable;
+import org.jam.net.inet4.InetAddress;
+import org.jam.net.inet4.SendPacket;
+import org.jam.net.stats.Counter;
+import org.jam.system.DeferredWork;
 import org.jam.system.NoDeviceFoundException;
 import org.jikesrvm.VM;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
 
 /**
  * @author Joe Kulig
  *
  *
  */
-public class VirtioNet {
+public class VirtioNet extends InetNetworkInterface
+implements NetworkInterface
+{
   final PciDevice pci;
   CommonCfg cfg;
   ArrayList<VirtioPciCap> caps;
@@ -35,6 +51,7 @@ public class VirtioNet {
   final private static int CSUM                = 0x00000001;
   final private static int GUEST_CSUM          = 0x00000002;
   final private static int CTRL_GUEST_OFFLOADS = 0x00000004;
+  final private static int MTU                 = 0x00000008;
   final private static int MAC                 = 0x00000020;
   final private static int GUEST_TSO4          = 0x00000080;
   final private static int GUEST_TSO6          = 0x00000100;
@@ -57,18 +74,90 @@ public class VirtioNet {
   final private static int ANY_LAYOUT          = 0x08000000;
   final private static int RING_INDIRECT_DESC  = 0x10000000;
   final private static int RING_EVENT_IDX      = 0x20000000;
-  private static final short RECEIVE_VIRTQ_INDEX = 0;
-  private static final short TRANSMIT_VIRTQ_INDEX = 1;
-  private static final short CONTROL_VIRTQ_INDEX = 2;
+  /*
+   * Offloads used when the device offers them
+   */
+  final private static int OFFLOADS = CSUM | GUEST_CSUM | HOST_TSO4 | GUEST_TSO4 | HOST_UFO | MRG_RXBUF;
+  /*
+   * Every virtq has its own MSI-X entry and vector. The virtqs in use take
+   * the entries from 0 in order, the control virtq takes the last one. The
+   * vectors end at the control vector, on the last of the handler stubs
+   * Idt has for the device.
+   */
+  private static final int CONTROL_VECTOR = Idt.VIRTIO_NET_LAST_VECTOR;
+  /*
+   * Queue pairs used at most, as many as the remaining stubs take. The
+   * receive and transmit virtqs of pair n are 2n and 2n+1, the control
+   * virtq comes after all the pairs the device supports. More pairs need
+   * more stubs in Idt.
+   */
+  private static final int MAX_QUEUE_PAIRS = (CONTROL_VECTOR - Idt.VIRTIO_NET_FIRST_VECTOR) / 2;
+  /*
+   * Control commands
+   */
+  private static final byte CTRL_MQ = 4;
+  private static final byte CTRL_MQ_VQ_PAIRS_SET = 0;
+  private static final byte CTRL_OK = 0;
+  /*
+   * Frames received per queue in one poll
+   */
+  private static final int NAPI_WORK = 64;
+  private static final int ETHERNET_MTU = 1500;
   
-  private Virtq receiveVirtq;
-  private short rxNotifyOffset;
-  private Virtq transmitVirtq;
-  private short txNotifyOffset;
+  private int queuePairs;
+  private Virtq receiveVirtqs[];
+  private short rxNotifyOffsets[];
+  private Virtq transmitVirtqs[];
+  private short txNotifyOffsets[];
   private Virtq controlVirtq;
+  private short controlIndex;
   private short ctlNotifyOffset;
+  /*
+   * IP header fields used to hash flows
+   */
+  private static final Offset IP_PROTOCOL = Offset.fromIntZeroExtend(9);
+  private static final Offset IP_FRAGMENT = Offset.fromIntZeroExtend(6);
+  private static final Offset IP_SOURCE = Offset.fromIntZeroExtend(12);
+  private static final Offset IP_DESTINATION = Offset.fromIntZeroExtend(16);
+  /*
+   * More fragments and fragment offset as loaded in host order
+   */
+  private static final short IP_FRAGMENT_MASK = (short)0xFF3F;
   private NetDeviceCfg deviceCfg;
   private NotifyCfg notifyCfg;
+  private final Counter rxInterrupts = stats.counter("interrupts");
+  private final Counter rxPolls = stats.counter("polls");
+  /*
+   * Set by the receive interrupt of a pair, cleared by the poll that
+   * re-enables the interrupt
+   */
+  private boolean rxScheduled[];
+  /*
+   * Receives outside of the interrupt as soon as a receive interrupt came
+   * and returns the finished transmits on the way. A virtq left over the
+   * budget schedules it again, so other deferred work runs in between.
+   */
+  private final DeferredWork rxWork = new DeferredWork("virtio-net rx")
+  {
+    public void run()
+    {
+      for(int pair=0; pair < queuePairs; pair++)
+      {
+        if(rxScheduled[pair])
+        {
+          rxPoll(pair);
+        }
+        Virtq virtq = transmitVirtqs[pair];
+        synchronized(virtq)
+        {
+          virtq.reclaim();
+        }
+      }
+    }
+  };
+  private int firstVector;
+  private EthernetAddr macAddress;
+  private int features;
   
   public VirtioNet() throws NoDeviceFoundException
   {
@@ -77,6 +166,7 @@ public class VirtioNet {
     {
       throw new NoDeviceFoundException("VirtioNet");
     }
+    pci.busMaster();
     //pci.disableInterrupt();
     VM.sysWriteln(pci.toString());
     VM.sysWrite("status ", Integer.toHexString(pci.getStatus()));
@@ -85,6 +175,18 @@ public class VirtioNet {
     {
       findCapabilities();
     }
+    transmitFragments = PacketBuffer.MAX_FRAGMENTS;
+    arpTable = new ArpTable();
+    setNetworkInterface(this);
+  }
+  
+  public VirtioNet(InetAddress inet, int netmask) throws NoDeviceFoundException
+  {
+    this();
+    ipAddress = inet;
+    this.netmask = netmask;
+    Route.addRoute(ipAddress, InetAddress.HOST, 0xffffffff, this);
+    Route.addRoute(new InetAddress(ipAddress.inet4()&netmask), InetAddress.HOST, netmask, this);
   }
   
   private void findCapabilities()
@@ -142,7 +244,19 @@ public class VirtioNet {
 //    cfg.configMsixNoVector();
     queueSetup();
     cfg.driverOK();
+    if(queuePairs > 1 && !control(CTRL_MQ, CTRL_MQ_VQ_PAIRS_SET, (short)queuePairs))
+    {
+      VM.sysWriteln("Queue pairs not accepted! ", queuePairs);
+      queuePairs = 1;
+    }
     VM.sysWriteln("Device Status: ", deviceCfg.getStatus());
+    /*
+     * Receive is interrupt driven from here on
+     */
+    for(int pair=0; pair < queuePairs; pair++)
+    {
+      receiveVirtqs[pair].enableInterrupts();
+    }
   }
   
   void negotiate()
@@ -150,8 +264,31 @@ public class VirtioNet {
     cfg.resetDevice();
     cfg.acknowledge();
     cfg.driver();
+    cfg.setDeviceFeatureSelect(0);
+    int deviceFeatures = cfg.getDeviceFeature();
+    features = MAC | STATUS | CTRL_VQ
+               | (deviceFeatures & (OFFLOADS | MQ | RING_EVENT_IDX | RING_INDIRECT_DESC | MTU));
+    /*
+     * Segmentation needs the checksum offload in the same direction
+     */
+    if((features & CSUM) == 0)
+    {
+      features &= ~(HOST_TSO4 | HOST_UFO);
+    }
+    if((features & GUEST_CSUM) == 0)
+    {
+      features &= ~GUEST_TSO4;
+    }
+    /*
+     * Receive buffers are not big enough for 64KB frames, they have
+     * to be merged
+     */
+    if((features & MRG_RXBUF) == 0)
+    {
+      features &= ~GUEST_TSO4;
+    }
     cfg.setDriverFeatureSelect(0);
-    cfg.setDriverFeature(MAC | STATUS | CTRL_VQ);
+    cfg.setDriverFeature(features);
     cfg.featuresOK();
     if(!cfg.areFeaturesOk())
     {
@@ -163,7 +300,24 @@ public class VirtioNet {
       VM.sysWriteln("Device needs to be reset! ", cfg.getDeviceStatus() & 0xFF);
       System.exit(0);
     }
-    VM.sysWriteln("Features have been accepted!");
+    VM.sysWriteln("Features have been accepted! ", VM.intAsHexString(features));
+    offloads = 0;
+    if((features & CSUM) != 0)
+    {
+      offloads |= NetworkInterface.OFFLOAD_CSUM;
+    }
+    if((features & HOST_TSO4) != 0)
+    {
+      offloads |= NetworkInterface.OFFLOAD_TSO4;
+    }
+    if((features & HOST_UFO) != 0)
+    {
+      offloads |= NetworkInterface.OFFLOAD_UFO;
+    }
+    if((features & MTU) != 0)
+    {
+      mtu = deviceCfg.getMtu();
+    }
   }
   
   private void queueSetup()
@@ -181,111 +335,299 @@ public class VirtioNet {
       VM.sysWrite("VQueue ", i); VM.sysWriteln(" size ", queueSize);
     }
     /*
-     * Setup the rx virtq
-     */
-    cfg.setQueueSelect(RECEIVE_VIRTQ_INDEX);
-    int queueSize = cfg.getQueueSize();
-    receiveVirtq = new Virtq(queueSize);
-    /*
-     * Allocates the rx virtq descriptor table
+     * One pair unless the device does multiqueue. Every virtq needs
+     * its own MSI-X entry and vector.
      */
-    receiveVirtq.allocate(true);
-    receiveVirtq.initializeAvailableBuffers();
-    receiveVirtq.availTable.noInterrupts();
-    VM.sysWrite("RX virtq: "); VM.sysWriteln(receiveVirtq.toString());
-    /*
-     * Configure device with rx virtq
-     */
-    VM.sysWriteln("RX virtq size:", queueSize);
-//    cfg.setQueueSize((short)queueSize);
-    cfg.setDescQueue(receiveVirtq.virtDescTable);
-    cfg.setAvailQueue(receiveVirtq.virtAvail);
-    cfg.setUsedQueue(receiveVirtq.virtUsed);
-    cfg.setQueueMsix(RECEIVE_VIRTQ_INDEX);
-    MessageDataRegister mdr=MessageDataRegister.lowPriorityEdgeVector(94);
-    MessageAddressRegister mar=MessageAddressRegister.logicalDestination(0xFF);
-    msixCap.setMessageData(RECEIVE_VIRTQ_INDEX, mdr);
-    msixCap.setMessageAddress(RECEIVE_VIRTQ_INDEX, mar);
-    msixCap.enableInterrupt(RECEIVE_VIRTQ_INDEX);
-    rxNotifyOffset = cfg.getQueueNotifyOffset();
-    cfg.displayQueues();
-//    notifyCfg.notify(rxNotifyOffset, RECEIVE_VIRTQ_INDEX);
-    
+    int maxPairs = 1;
+    if((features & MQ) != 0)
+    {
+      maxPairs = deviceCfg.getMaxVirtqueuePairs();
+    }
+    queuePairs = Math.min(maxPairs, MAX_QUEUE_PAIRS);
+    queuePairs = Math.max(1, Math.min(queuePairs, (msixCap.getTableSize() - 1) >> 1));
+    controlIndex = (short)(maxPairs * 2);
+    VM.sysWrite("Queue pairs ", queuePairs); VM.sysWriteln(" of ", maxPairs);
+    receiveVirtqs = new Virtq[queuePairs];
+    rxNotifyOffsets = new short[queuePairs];
+    rxScheduled = new boolean[queuePairs];
+    firstVector = CONTROL_VECTOR - queuePairs * 2;
+    transmitVirtqs = new Virtq[queuePairs];
+    txNotifyOffsets = new short[queuePairs];
     /*
-     * Setup the tx virtq
+     * Without mergeable buffers every buffer has to hold a whole frame
      */
-    cfg.setQueueSelect(TRANSMIT_VIRTQ_INDEX);
-    queueSize = cfg.getQueueSize();
-    VM.sysWriteln("TX virtq size:", queueSize);
-    transmitVirtq = new Virtq(queueSize);
-    transmitVirtq.allocate(false);
-    cfg.setDescQueue(transmitVirtq.virtDescTable);
-    cfg.setAvailQueue(transmitVirtq.virtAvail);
-    cfg.setUsedQueue(transmitVirtq.virtUsed);
-    cfg.setQueueMsix(TRANSMIT_VIRTQ_INDEX);
-    mdr=MessageDataRegister.lowPriorityEdgeVector(93);
-    msixCap.setMessageData(TRANSMIT_VIRTQ_INDEX, mdr);
-    msixCap.setMessageAddress(TRANSMIT_VIRTQ_INDEX, mar);
-    msixCap.enableInterrupt(TRANSMIT_VIRTQ_INDEX);
-    rxNotifyOffset = cfg.getQueueNotifyOffset();
-    cfg.displayQueues();
+    int rxBufferSize = Virtq.MAX_BUFFER;
+    if((features & MRG_RXBUF) == 0 && mtu > ETHERNET_MTU)
+    {
+      rxBufferSize = Virtq.NET_HDR_SIZE + Ethernet.HEADER_SIZE + mtu;
+    }
+    for(int pair=0; pair < queuePairs; pair++)
+    {
+      /*
+       * Setup the rx virtq and allocate its buffers
+       */
+      short index = (short)(pair * 2);
+      cfg.setQueueSelect(index);
+      int queueSize = cfg.getQueueSize();
+      VM.sysWriteln("RX virtq size:", queueSize);
+      Virtq virtq = new Virtq(queueSize);
+      virtq.setEventIndex((features & RING_EVENT_IDX) != 0);
+      virtq.setMergeable((features & MRG_RXBUF) != 0);
+      virtq.allocate(true, rxBufferSize);
+      virtq.initializeAvailableBuffers();
+      virtq.disableInterrupts();
+      VM.sysWrite("RX virtq: "); VM.sysWriteln(virtq.toString());
+      receiveVirtqs[pair] = virtq;
+      rxNotifyOffsets[pair] = attachQueue(index, index, virtq);
+      /*
+       * Setup the tx virtq for scatter gather
+       */
+      index++;
+      cfg.setQueueSelect(index);
+      queueSize = cfg.getQueueSize();
+      VM.sysWriteln("TX virtq size:", queueSize);
+      virtq = new Virtq(queueSize);
+      virtq.setEventIndex((features & RING_EVENT_IDX) != 0);
+      virtq.setIndirect((features & RING_INDIRECT_DESC) != 0);
+      virtq.allocateTransmit();
+      virtq.disableInterrupts();
+      transmitVirtqs[pair] = virtq;
+      txNotifyOffsets[pair] = attachQueue(index, index, virtq);
+    }
 
     /*
      * Setup the control virtq
      */
-    cfg.setQueueSelect(CONTROL_VIRTQ_INDEX);
-    queueSize = cfg.getQueueSize();
+    cfg.setQueueSelect(controlIndex);
+    int queueSize = cfg.getQueueSize();
     VM.sysWriteln("CTL virtq size:", queueSize);
     controlVirtq = new Virtq(queueSize);
     controlVirtq.allocate(false);
-    cfg.setDescQueue(controlVirtq.virtDescTable);
-    cfg.setAvailQueue(controlVirtq.virtAvail);
-    cfg.setUsedQueue(controlVirtq.virtUsed);
-    cfg.setQueueMsix(CONTROL_VIRTQ_INDEX);
-    mdr=MessageDataRegister.lowPriorityEdgeVector(92);
-    msixCap.setMessageData(CONTROL_VIRTQ_INDEX, mdr);
-    msixCap.setMessageAddress(CONTROL_VIRTQ_INDEX, mar);
-    msixCap.enableInterrupt(CONTROL_VIRTQ_INDEX);
-    cfg.displayQueues();
-
-    cfg.enableQueue(RECEIVE_VIRTQ_INDEX);
-    cfg.enableQueue(TRANSMIT_VIRTQ_INDEX);
-    cfg.enableQueue(CONTROL_VIRTQ_INDEX);
+    ctlNotifyOffset = attachQueue(controlIndex, queuePairs * 2, controlVirtq);
 
+    for(short index=0; index < queuePairs * 2; index++)
+    {
+      cfg.enableQueue(index);
+    }
+    cfg.enableQueue(controlIndex);
+  }
+  
+  /**
+   * Give a virtq to the device and route its MSI-X entry
+   * 
+   * @param index virtq index
+   * @param entry MSI-X entry of the virtq
+   * @return notify offset of the virtq
+   */
+  private short attachQueue(short index, int entry, Virtq virtq)
+  {
+    cfg.setQueueSelect(index);
+    cfg.setDescQueue(virtq.virtDescTable);
+    cfg.setAvailQueue(virtq.virtAvail);
+    cfg.setUsedQueue(virtq.virtUsed);
+    cfg.setQueueMsix((short)entry);
+    int vector = firstVector + entry;
+    msixCap.setMessageData(entry, MessageDataRegister.lowPriorityEdgeVector(vector));
+    MessageAddressRegister mar = MessageAddressRegister.physicalDestination(Smp.getBootProcessor().getApicId());
+    msixCap.setMessageAddress(entry, mar);
+    msixCap.enableInterrupt(entry);
+    short notifyOffset = cfg.getQueueNotifyOffset();
+    cfg.displayQueues();
+    return notifyOffset;
+  }
+  
+  /**
+   * Send a command on the control virtq and wait for the device to
+   * acknowledge it. Commands are only sent at boot so the used ring
+   * is polled.
+   * 
+   * @return true if the device accepted the command
+   */
+  private boolean control(byte commandClass, byte command, short data)
+  {
+    VirtDescTable descTable = controlVirtq.descTable;
+    Address header = descTable.getAddress(0);
+    header.store(commandClass);
+    header.store(command, Offset.fromIntZeroExtend(1));
+    descTable.setLen(0, 2);
+    descTable.setFlags(0, VirtDescTable.FLAG_NEXT);
+    descTable.setNext(0, (short)1);
+    descTable.getAddress(1).store(data);
+    descTable.setLen(1, 2);
+    descTable.setFlags(1, VirtDescTable.FLAG_NEXT);
+    descTable.setNext(1, (short)2);
+    Address ack = descTable.getAddress(2);
+    ack.store((byte)~CTRL_OK);
+    descTable.setLen(2, 1);
+    descTable.setFlags(2, VirtDescTable.FLAG_WRITE);
+    controlVirtq.availTable.setAvailable((short)0);
+    notifyCfg.notify(ctlNotifyOffset, controlIndex);
+    while(controlVirtq.usedTable.hasNoBuffers())
+    {
+      // wait for the device
+    }
+    controlVirtq.usedTable.next();
+    return ack.loadByte() == CTRL_OK;
+  }
+  
+  /**
+   * MSI-X interrupt of a virtq. A receive interrupt turns off further
+   * interrupts of its virtq and leaves the frames to the next poll.
+   * 
+   * @param vector interrupt vector
+   */
+  public void interrupt(int vector)
+  {
+    int entry = vector - firstVector;
+    if(entry >= queuePairs * 2 || (entry & 1) != 0)
+    {
+      // transmits are reclaimed by rxWork or when the virtq runs short
+      return;
+    }
+    int pair = entry >> 1;
+    rxInterrupts.inc();
+    receiveVirtqs[pair].disableInterrupts();
+    rxScheduled[pair] = true;
+    rxWork.schedule();
   }
   
   /*
-   * Simple receive. Allocates a buffer and waits for it
-   * to receive data
+   * Pass the received frames of a virtq to the stack, then refill the
+   * virtq in one go. Interrupts are enabled again once the virtq is
+   * drained within the budget. Only the work queue polls, so the receive
+   * virtqs need no lock.
    */
-  public void receive()
+  private void rxPoll(int pair)
   {
-    while(true)
+    Virtq virtq = receiveVirtqs[pair];
+    int received = 0;
+    PacketBuffer packet;
+    rxPolls.inc();
+    while(received < NAPI_WORK && (packet = virtq.receive()) != null)
     {
-      byte[] buffer = receiveVirtq.waitForBuffer();
-      for(int i=0; i<4; i++)
-      {
-        for(int j=0; j<16; j++)
-        {
-          VM.sysWrite(" ", Integer.toHexString(buffer[i*16 + j]));
-        }
-        VM.sysWriteln();
-      }
+      inet4.put(packet);
+      received++;
+    }
+    if(virtq.refill())
+    {
+      notifyCfg.notify(rxNotifyOffsets[pair], (short)(pair * 2));
+    }
+    if(received == NAPI_WORK)
+    {
+      // more work, stay scheduled with interrupts off
+      rxWork.schedule();
+      return;
+    }
+    rxScheduled[pair] = false;
+    if(!virtq.enableInterrupts())
+    {
+      // frames arrived while interrupts were off
+      virtq.disableInterrupts();
+      rxScheduled[pair] = true;
+      rxWork.schedule();
     }
   }
   
-  public void transmit(PacketBuffer packet)
+  /**
+   * Pick the transmit virtq of a packet. The addresses and ports of a
+   * flow always hash to the same virtq, so the segments of a flow stay
+   * in order and the host delivers the flow's packets on the matching
+   * receive virtq.
+   * 
+   * @param packet packet that starts at the network header
+   */
+  private int transmitQueue(Packet packet, short proto)
   {
-    transmit(packet.getArray());
+    if(queuePairs == 1 || proto != Ethernet.PROTO_IP)
+    {
+      return 0;
+    }
+    Address ipHeader = packet.getPacketAddress();
+    int hash = ipHeader.loadInt(IP_SOURCE) ^ ipHeader.loadInt(IP_DESTINATION);
+    int protocol = ipHeader.loadByte(IP_PROTOCOL) & 0xFF;
+    /*
+     * Fragments only carry the addresses, so the ports of a fragmented
+     * datagram are left out to keep all its fragments together
+     */
+    boolean fragment = (ipHeader.loadShort(IP_FRAGMENT) & IP_FRAGMENT_MASK) != 0;
+    if(!fragment && (protocol == IpProto.TCP.protocol() || protocol == IpProto.UDP.protocol()))
+    {
+      int headerLength = (ipHeader.loadByte() & 0xF) << 2;
+      hash ^= ipHeader.loadInt(Offset.fromIntZeroExtend(headerLength));
+    }
+    hash *= 0x9E3779B1;
+    hash ^= hash >>> 16;
+    return (hash & 0x7FFFFFFF) % queuePairs;
+  }
+  
+  /**
+   * Transmit a frame. The device gathers the fragments of the packet
+   * and the packet is freed once the device is done with it.
+   * 
+   * @param queue queue pair to transmit on
+   */
+  public void transmit(Packet packet, int queue)
+  {
+    if(Capture.enabled)
+    {
+      Capture.frame(packet, Capture.OUT);
+    }
+    Virtq virtq = transmitVirtqs[queue];
+    synchronized(virtq)
+    {
+      int oldIdx = virtq.availTable.getFreeBuffer();
+      int size = packet.getSize();
+      if(!virtq.send(packet))
+      {
+        stats.txDropped.inc();
+        packet.free();
+        return;
+      }
+      stats.txPackets.inc();
+      stats.txBytes.add(size);
+      if(virtq.needsNotify(oldIdx))
+      {
+        notifyCfg.notify(txNotifyOffsets[queue], (short)(queue * 2 + 1));
+      }
+    }
   }
-  public void transmit(byte data[])
+  
+  public void printStats()
   {
-    VM.hexDump(data);
-    transmitVirtq.send(data);
+    VM.sysWriteln(stats.toString());
+    for(int pair=0; pair < queuePairs; pair++)
+    {
+      VM.sysWrite("merged ", receiveVirtqs[pair].getMerged());
+      VM.sysWriteln(" errors ", receiveVirtqs[pair].getMergeErrors());
+    }
   }
   
   public EthernetAddr getEthernetAddress()
   {
-    return deviceCfg.getEthernetAddress();
+    if(macAddress == null)
+    {
+      macAddress = deviceCfg.getEthernetAddress();
+    }
+    return macAddress;
+  }
+
+  public void setEthernetAddress(EthernetAddr macAddress)
+  {
+    this.macAddress = macAddress;
+  }
+
+  public void send(EthernetAddr destinationMac, Packet packet, short proto)
+  {
+    int queue = transmitQueue(packet, proto);
+    Ethernet frame = new Ethernet(destinationMac, packet, proto);
+    frame.setSource(getEthernetAddress());
+    transmit(frame.getPacket(), queue);
+  }
+
+  public void send(SendPacket packet)
+  {
+    Ethernet frame = new Ethernet(EthernetAddr.BROADCAST_ADDRESS, packet.getPacket(), packet.getProto());
+    frame.setSource(getEthernetAddress());
+    transmit(frame.getPacket(), 0);
   }
 }
@@ -7,7 +7,9 @@
 package org.jam.driver.net;
 
 import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
 import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
 
 /**
  * @author Joe Kulig
@@ -23,15 +25,68 @@ public class Virtq {
   final VirtUsed usedTable;
   final int size;
   
-  private final static int MAX_BUFFER = 1528;
-  private static final byte GSO_NONE = 0;
+  /*
+   * Net header and an ethernet frame of 1500 bytes
+   */
+  final static int MAX_BUFFER = 1528;
+  /*
+   * Size of struct virtio_net_hdr with num_buffers
+   */
+  final static int NET_HDR_SIZE = 12;
+  /*
+   * virtio_net_hdr fields, little endian like the host
+   */
+  final static Offset HDR_FLAGS       = Offset.fromIntZeroExtend(0);
+  final static Offset HDR_GSO_TYPE    = Offset.fromIntZeroExtend(1);
+  final static Offset HDR_HDR_LEN     = Offset.fromIntZeroExtend(2);
+  final static Offset HDR_GSO_SIZE    = Offset.fromIntZeroExtend(4);
+  final static Offset HDR_CSUM_START  = Offset.fromIntZeroExtend(6);
+  final static Offset HDR_CSUM_OFFSET = Offset.fromIntZeroExtend(8);
+  final static byte NEEDS_CSUM = 1;
+  final static byte DATA_VALID = 2;
+  final static Offset HDR_NUM_BUFFERS = Offset.fromIntZeroExtend(10);
+  
+  /*
+   * Transmit state. Free descriptors are linked through their next field.
+   * Every chain starts with a descriptor for the net header, the packet
+   * is freed when the device returns the chain.
+   */
+  private int freeHead;
+  private int numFree;
+  private Packet packets[];
+  private byte netHeaders[];
+  private Address netHeadersAddr;
+  /*
+   * With indirect descriptors every ring descriptor owns a table of
+   * INDIRECT_SIZE entries for the net header and the fragments, so one
+   * descriptor carries a whole packet.
+   */
+  private final static int INDIRECT_SIZE = PacketBuffer.MAX_FRAGMENTS + 1;
+  private boolean indirect;
+  private byte indirectTables[];
+  private VirtDescTable indirectTable;
+  
+  /*
+   * Receive state. Descriptors taken off the used ring wait here
+   * until they are put back on the available ring in one go.
+   */
+  private int refill[];
+  private int refillCount;
+  private int bufferSize = MAX_BUFFER;
+  /*
+   * With mergeable buffers a frame can span several buffers
+   */
+  private boolean mergeable;
+  private int merged;
+  private int mergeErrors;
+  private boolean eventIndex;
   
   public Virtq(int size)
   {
     int ALIGNMENT = (16+4+2);
     int space = (26 * size) + 12 + ALIGNMENT;
     this.size = size;
-    buffer = new byte[space];
+    buffer = PacketPool.newBuffer(space);
     /*
      * Align on a 16 byte boundary
      */
@@ -52,20 +107,54 @@ public class Virtq {
     align = (align + 9 + (size * 2)) & ~0x3; 
     virtUsed = Address.fromIntZeroExtend(align);
     usedTable = new VirtUsed(virtUsed, size);
-    usedTable.noInterrupts();
+  }
+  
+  /**
+   * Use used_event and avail_event instead of the ring flags
+   */
+  public void setEventIndex(boolean eventIndex)
+  {
+    this.eventIndex = eventIndex;
+  }
+  
+  /**
+   * Let the device return frames in several buffers
+   */
+  public void setMergeable(boolean mergeable)
+  {
+    this.mergeable = mergeable;
+  }
+  
+  /**
+   * Use indirect descriptor tables for transmit
+   */
+  public void setIndirect(boolean indirect)
+  {
+    this.indirect = indirect;
   }
   
   /**
    * Allocates buffers to the descriptor table.
    */
   public void allocate(boolean writeable)
+  {
+    allocate(writeable, MAX_BUFFER);
+  }
+  
+  /**
+   * Allocates buffers of bufferSize bytes from the packet pool to
+   * the descriptor table
+   */
+  public void allocate(boolean writeable, int bufferSize)
   {
     int buffer;
     
+    this.bufferSize = bufferSize;
     for(buffer=0; buffer < size; buffer++)
     {
-      descTable.allocate(buffer, MAX_BUFFER, writeable);
+      descTable.allocate(buffer, bufferSize, writeable);
     }
+    refill = new int[size];
     Magic.fence();
   }
   
@@ -77,65 +166,340 @@ public class Virtq {
     availTable.setAvailable((short)0, (short)(size-1));
   }
   
+  /**
+   * Ask the device not to interrupt. With event index the used event is
+   * left behind, the device interrupts at most once more.
+   */
+  public void disableInterrupts()
+  {
+    if(!eventIndex)
+    {
+      availTable.noInterrupts();
+    }
+  }
+  
+  /**
+   * Ask the device to interrupt for the next used buffer
+   * 
+   * @return false if buffers were used before interrupts were enabled,
+   *         the caller has to poll again
+   */
+  public boolean enableInterrupts()
+  {
+    if(eventIndex)
+    {
+      availTable.setUsedEvent(usedTable.getLastUsedIndex());
+    }
+    else
+    {
+      availTable.setFlags((short)0);
+    }
+    Magic.fence();
+    return usedTable.hasNoBuffers();
+  }
+  
+  /**
+   * Take the next received frame off the used ring. The descriptor gets
+   * a new buffer from the packet pool and waits for refill(). A frame
+   * merged over several buffers is copied into one packet and the
+   * buffers are reused.
+   * 
+   * @return the frame starting at the ethernet header or null
+   */
+  public PacketBuffer receive()
+  {
+    while(usedTable.hasBuffer())
+    {
+      int descriptor = usedTable.getNextBufferDescriptor();
+      int length = usedTable.getNextBufferLen();
+      PacketBuffer packet = descTable.getPacket(descriptor);
+      Address netHeader = packet.getAddress();
+      int buffers = mergeable ? netHeader.loadShort(HDR_NUM_BUFFERS) & 0xFFFF : 1;
+      if(buffers > 1)
+      {
+        if(usedTable.getUsedCount() < buffers)
+        {
+          // the device has not returned all the buffers of the frame
+          return null;
+        }
+        packet = merge(buffers);
+        if(packet == null)
+        {
+          continue;
+        }
+        receiveNetHeader(netHeader, packet);
+        return packet;
+      }
+      usedTable.next();
+      packet.reset(NET_HDR_SIZE, length - NET_HDR_SIZE);
+      receiveNetHeader(netHeader, packet);
+      descTable.allocate(descriptor, bufferSize, true);
+      refill[refillCount++] = descriptor;
+      return packet;
+    }
+    return null;
+  }
+  
   /*
-   * Waits for a buffer to become available
+   * Copy a frame spread over several used buffers into one packet
+   * 
+   * @return the frame or null if it was dropped
    */
-  public byte[] waitForBuffer()
+  private PacketBuffer merge(int buffers)
   {
-    byte[] buffer=null;
-    
-    while(usedTable.hasNoBuffers())
+    int frameLength = 0;
+    for(int buffer=0; buffer < buffers; buffer++)
+    {
+      frameLength += usedTable.getLen((usedTable.getLastUsedIndex() + buffer) & (size-1));
+    }
+    frameLength -= NET_HDR_SIZE;
+    PacketBuffer frame = null;
+    if(frameLength > 0 && frameLength <= PacketPool.GSO)
+    {
+      frame = PacketPool.allocate(frameLength);
+    }
+    else
+    {
+      mergeErrors++;
+    }
+    int offset = 0;
+    for(int buffer=0; buffer < buffers; buffer++)
+    {
+      int descriptor = usedTable.getNextBufferDescriptor();
+      int length = usedTable.getNextBufferLen();
+      usedTable.next();
+      Address data = descTable.getAddress(descriptor);
+      if(buffer == 0)
+      {
+        data = data.plus(NET_HDR_SIZE);
+        length -= NET_HDR_SIZE;
+      }
+      if(frame != null)
+      {
+        Memory.memcopy(frame.getPacketAddress().plus(offset), data, length);
+      }
+      offset += length;
+      refill[refillCount++] = descriptor;
+    }
+    if(frame != null)
     {
-      // Just spin until a buffer is received
+      merged++;
     }
-    int bufferDescriptor = usedTable.getNextBufferDescriptor();
-    usedTable.next();
-    return descTable.getBuffer(bufferDescriptor);
+    return frame;
   }
   
-  public int getFreeBuffer()
+  /**
+   * Put the descriptors taken by receive() back on the available ring
+   * 
+   * @return true if the device has to be notified
+   */
+  public boolean refill()
   {
-    return availTable.getFreeBuffer();
+    if(refillCount == 0)
+    {
+      return false;
+    }
+    int oldIdx = availTable.getFreeBuffer();
+    for(int index=0; index < refillCount; index++)
+    {
+      availTable.add((short)refill[index]);
+    }
+    refillCount = 0;
+    availTable.publish();
+    return needsNotify(oldIdx);
   }
   
-  public void send(byte packet[])
+  /**
+   * Check if the device wants a notification for the buffers made
+   * available since oldIdx
+   */
+  public boolean needsNotify(int oldIdx)
   {
-    int next=availTable.getFreeBuffer();
-    byte transmitBuffer[] = descTable.getBuffer(next);
-    int i=1;
-    
-    /*
-     * Create and fill in virtio net header
-     */
-    // flags
-    transmitBuffer[i++] = 0;    
-    // gso_type
-    transmitBuffer[i++] = GSO_NONE;
-    // hdr_len
-    transmitBuffer[i++] = 0;
-    transmitBuffer[i++] = 0;
-    // gso_size
-    transmitBuffer[i++] = 0;
-    transmitBuffer[i++] = 0;
-    // csum_start
-    transmitBuffer[i++] = 0;
-    transmitBuffer[i++] = 0;
-    // csum_offset
-    transmitBuffer[i++] = 0;
-    transmitBuffer[i++] = 0;
-    // num_buffers
-    transmitBuffer[i++] = 0;
-    transmitBuffer[i++] = 0;
-
-    /*
-     * Copy the packet
-     */
-    for(int packetIndex=0; i < packet.length; i++, packetIndex++)
+    Magic.fence();
+    int newIdx = availTable.getFreeBuffer();
+    if(eventIndex)
     {
-      transmitBuffer[i] = packet[packetIndex];
+      int event = usedTable.getAvailEvent();
+      return ((newIdx - event - 1) & 0xFFFF) < ((newIdx - oldIdx) & 0xFFFF);
     }
-    
-    availTable.setAvailable((short)next);
+    return (usedTable.getFlags() & VirtUsed.FLAG_NO_INTERRUPT) == 0;
+  }
+  
+  /**
+   * Setup the queue for scatter gather transmits. The descriptors
+   * point at the packet fragments so no buffers are allocated.
+   */
+  public void allocateTransmit()
+  {
+    packets = new Packet[size];
+    netHeaders = PacketPool.newBuffer(size * NET_HDR_SIZE);
+    netHeadersAddr = Magic.objectAsAddress(netHeaders);
+    if(indirect)
+    {
+      /*
+       * Descriptor tables must be 16 byte aligned
+       */
+      indirectTables = PacketPool.newBuffer(size * INDIRECT_SIZE * VirtDescTable.ENTRY_SIZE + 15);
+      int align = (Magic.objectAsAddress(indirectTables).toInt() + 15) & ~0xF;
+      indirectTable = new VirtDescTable(Address.fromIntZeroExtend(align), size * INDIRECT_SIZE);
+    }
+    for(int descriptor=0; descriptor < size-1; descriptor++)
+    {
+      descTable.setNext(descriptor, (short)(descriptor+1));
+    }
+    freeHead = 0;
+    numFree = size;
+  }
+  
+  /**
+   * Queue a packet for transmit as a descriptor chain of the net
+   * header followed by every fragment of the packet.
+   * 
+   * @return false if there are not enough free descriptors
+   */
+  public boolean send(Packet packet)
+  {
+    int fragments = packet.getFragmentCount();
+    int needed = indirect ? 1 : fragments + 1;
+    if(numFree < needed)
+    {
+      reclaim();
+      if(numFree < needed)
+      {
+        return false;
+      }
+    }
+    int head = freeHead;
+    Address netHeader = netHeadersAddr.plus(head * NET_HDR_SIZE);
+    fillNetHeader(netHeader, packet);
+    if(indirect)
+    {
+      /*
+       * The chain goes in the indirect table of the head descriptor
+       */
+      int first = head * INDIRECT_SIZE;
+      fillChain(indirectTable, first, first, netHeader, packet);
+      descTable.setAddress(head, indirectTable.getTableAddress().plus(first * VirtDescTable.ENTRY_SIZE));
+      descTable.setLen(head, (fragments + 1) * VirtDescTable.ENTRY_SIZE);
+      descTable.setFlags(head, VirtDescTable.FLAG_INDIRECT);
+      freeHead = descTable.getNext(head);
+      numFree--;
+      packets[head] = packet;
+      availTable.setAvailable((short)head);
+      return true;
+    }
+    int descriptor = fillChain(descTable, head, -1, netHeader, packet);
+    freeHead = descTable.getNext(descriptor);
+    numFree -= fragments + 1;
+    packets[head] = packet;
+    availTable.setAvailable((short)head);
+    return true;
+  }
+  
+  /*
+   * Fill in a descriptor chain for the net header and the fragments.
+   * Chains in an indirect table are consecutive from first, chains in
+   * the ring follow the free list when first is -1.
+   * 
+   * @return the last descriptor of the chain
+   */
+  private static int fillChain(VirtDescTable table, int head, int first, Address netHeader, Packet packet)
+  {
+    int fragments = packet.getFragmentCount();
+    table.setAddress(head, netHeader);
+    table.setLen(head, NET_HDR_SIZE);
+    table.setFlags(head, VirtDescTable.FLAG_NEXT);
+    int descriptor = head;
+    for(int fragment=0; fragment < fragments; fragment++)
+    {
+      if(first >= 0)
+      {
+        table.setNext(descriptor, (short)(fragment + 1));
+        descriptor = first + fragment + 1;
+      }
+      else
+      {
+        descriptor = table.getNext(descriptor);
+      }
+      table.setAddress(descriptor, packet.getFragmentAddress(fragment));
+      table.setLen(descriptor, packet.getFragmentSize(fragment));
+      table.setFlags(descriptor, fragment == fragments-1 ? 0 : VirtDescTable.FLAG_NEXT);
+    }
+    return descriptor;
+  }
+  
+  /*
+   * Fill in the virtio net header with the offloads of the packet
+   */
+  private static void fillNetHeader(Address netHeader, Packet packet)
+  {
+    netHeader.store(0);
+    netHeader.store(0, Offset.fromIntZeroExtend(4));
+    netHeader.store(0, Offset.fromIntZeroExtend(8));
+    int checksumStart = packet.getChecksumStart();
+    if(checksumStart >= 0)
+    {
+      netHeader.store(NEEDS_CSUM, HDR_FLAGS);
+      netHeader.store((short)checksumStart, HDR_CSUM_START);
+      netHeader.store((short)packet.getChecksumOffset(), HDR_CSUM_OFFSET);
+    }
+    int type = packet.getSegmentationType();
+    if(type != Packet.GSO_NONE)
+    {
+      netHeader.store((byte)type, HDR_GSO_TYPE);
+      netHeader.store((short)packet.getHeaderLength(), HDR_HDR_LEN);
+      netHeader.store((short)packet.getSegmentationSize(), HDR_GSO_SIZE);
+    }
+  }
+  
+  /**
+   * Apply the net header of a received packet. A packet the device
+   * checked, or one from the host with a partial checksum, is not
+   * verified again by the stack.
+   */
+  static void receiveNetHeader(Address netHeader, Packet packet)
+  {
+    byte flags = netHeader.loadByte(HDR_FLAGS);
+    packet.setChecksumValid((flags & (NEEDS_CSUM | DATA_VALID)) != 0);
+  }
+  
+  /**
+   * Return the descriptor chains the device has finished with
+   * to the free list and free their packets
+   * 
+   * @return number of packets reclaimed
+   */
+  public int reclaim()
+  {
+    int reclaimed = 0;
+    while(usedTable.hasBuffer())
+    {
+      int head = usedTable.getNextBufferDescriptor();
+      usedTable.next();
+      int descriptor = head;
+      numFree++;
+      while((descTable.getFlags(descriptor) & (VirtDescTable.FLAG_NEXT | VirtDescTable.FLAG_INDIRECT)) == VirtDescTable.FLAG_NEXT)
+      {
+        descriptor = descTable.getNext(descriptor);
+        numFree++;
+      }
+      descTable.setNext(descriptor, (short)freeHead);
+      freeHead = head;
+      packets[head].free();
+      packets[head] = null;
+      reclaimed++;
+    }
+    return reclaimed;
+  }
+
+  public int getMerged()
+  {
+    return merged;
+  }
+
+  public int getMergeErrors()
+  {
+    return mergeErrors;
   }
 
   public String toString()
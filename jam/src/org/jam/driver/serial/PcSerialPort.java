@@ -5,6 +5,9 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayDeque;
 import org.jam.board.pc.Platform;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.Statistics;
+import org.jam.net.stats.StatsGroup;
 import org.jikesrvm.VM;
 import org.jikesrvm.mm.mminterface.MemoryManager;
 import org.jikesrvm.runtime.Magic;
@@ -87,10 +90,14 @@ public class PcSerialPort {
 	final private static int LSR_OE       = 0x02;     // overrun error
 	final private static int LSR_DR       = 0x01;     // data ready
 	
-	public int breakCount = 0;
-	public int framingError = 0;
-	public int parityError = 0;
-	public int overrunError = 0;
+	/*
+	 * Line status errors, counted by the interrupt handler
+	 */
+	private final StatsGroup stats = new StatsGroup(Statistics.uniqueName("serial"));
+	public final Counter breakCount = stats.counter("breaks");
+	public final Counter framingError = stats.counter("framing errors");
+	public final Counter parityError = stats.counter("parity errors");
+	public final Counter overrunError = stats.counter("overrun errors");
 
 	private SerialOutputStream outputStream;
 	private PrintStream printStream;
@@ -177,19 +184,19 @@ public class PcSerialPort {
 	        int lsrRegister = comPort.ioLoadByte(LSR);
 	        if((lsrRegister & LSR_BI) != 0)
 	        {
-	            breakCount++;
+	            breakCount.inc();
 	        }
 	        if((lsrRegister & LSR_FE) != 0)
 	        {
-	            framingError++;
+	            framingError.inc();
 	        }
 	        if((lsrRegister & LSR_PE) != 0)
 	        {
-	            parityError++;
+	            parityError.inc();
 	        }
 	        if((lsrRegister & LSR_OE) != 0)
 	        {
-	            overrunError++;
+	            overrunError.inc();
 	        }
 	    }
 	    if(interruptId == IIR_THREI)
@@ -6,6 +6,7 @@
  */
 package org.jam.interfaces;
 
+import org.jam.system.TimerEntry;
 import org.jikesrvm.scheduler.RVMThread;
 import org.vmmagic.unboxed.Address;
 
@@ -16,7 +17,28 @@ import org.vmmagic.unboxed.Address;
 public interface Timer {
   long getTime();
   void handler();
+  /**
+   * Put the current thread to sleep until timeNs, an absolute Time.nanoTime()
+   */
   void startTimer(long timeNs);
   Address getHandlerStack();
-  RVMThread removeTimer(long timeKey);
+  /**
+   * Cancel the sleep of a thread and make it runnable
+   * @return false when the thread was not sleeping on a timer
+   */
+  boolean removeTimer(RVMThread thread);
+  /**
+   * Arm a timer, or move it when it is armed already
+   * @param timeNs absolute expiry time, Time.nanoTime()
+   */
+  void addTimer(TimerEntry entry, long timeNs);
+  /**
+   * @return false when the timer was not armed
+   */
+  boolean cancelTimer(TimerEntry entry);
+  /**
+   * A thread was put on the run queue, a tickless timer starts a time slice
+   * for it
+   */
+  void threadReady();
 }
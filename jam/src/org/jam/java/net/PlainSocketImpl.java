@@ -52,9 +52,8 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketImpl;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
 
-import org.jam.net.Udp;
+import org.jam.net.Tcp;
 
 /**
  * Written using on-line Java Platform 1.2 API Specification, as well
@@ -76,9 +75,9 @@ public class PlainSocketImpl extends SocketImpl
 {
 
   /**
-   * The underlying plain socket VM implementation.
+   * The underlying TCP engine.
    */
-  protected Udp impl;
+  protected Tcp impl;
 
   /**
    * A cached copy of the in stream for reading from the socket.
@@ -128,7 +127,32 @@ public class PlainSocketImpl extends SocketImpl
    */
   public PlainSocketImpl()
   {
-    this.impl = new Udp();
+    this.impl = new Tcp();
+  }
+
+  /**
+   * Wraps the TCP engine of a channel.
+   *
+   * @param impl a new or an accepted connection
+   */
+  public PlainSocketImpl(Tcp impl)
+  {
+    this.impl = impl;
+    InetSocketAddress remote = impl.getRemoteAddress();
+    if (remote != null)
+      {
+        this.address = remote.getAddress();
+        this.port = remote.getPort();
+        this.localport = impl.getLocalPort();
+      }
+  }
+
+  /**
+   * @return the TCP engine of the socket
+   */
+  public Tcp getTcp()
+  {
+    return impl;
   }
 
   /**
@@ -178,18 +202,7 @@ public class PlainSocketImpl extends SocketImpl
   public Object getOption(int optionId) throws SocketException
   {
     if (optionId == SO_BINDADDR)
-      {
-        try
-          {
-            return channel.getVMChannel().getLocalAddress().getAddress();
-          }
-        catch (IOException ioe)
-          {
-            SocketException se = new SocketException();
-            se.initCause(ioe);
-            throw se;
-          }
-      }
+      return impl.getLocalAddress().getAddress();
     
     // This filters options which are invalid for TCP.
     switch (optionId)
@@ -273,17 +286,14 @@ public class PlainSocketImpl extends SocketImpl
   protected synchronized void connect(SocketAddress address, int timeout)
     throws IOException
   {
-    if (channel == null)
-      create(true);
-    boolean connected = channel.connect(address, timeout);
-    if (!connected)
-      throw new SocketTimeoutException("connect timed out");
+    impl.connect((InetSocketAddress) address, timeout);
     
     // Using the given SocketAddress is important to preserve
     // hostnames given by the caller.
     InetSocketAddress addr = (InetSocketAddress) address; 
     this.address = addr.getAddress();
     this.port = addr.getPort();
+    this.localport = impl.getLocalPort();
   }
 
   /**
@@ -298,10 +308,8 @@ public class PlainSocketImpl extends SocketImpl
   protected synchronized void bind(InetAddress addr, int port)
     throws IOException
   {
-    if (channel == null)
-      create(true);
     impl.bind(new InetSocketAddress(addr, port));
-    localport = channel.getVMChannel().getLocalAddress().getPort();
+    localport = impl.getLocalPort();
   }
 
   /**
@@ -329,15 +337,18 @@ public class PlainSocketImpl extends SocketImpl
   protected synchronized void accept(SocketImpl impl)
     throws IOException
   {
-    if (channel == null)
-        create(true);
     if (!(impl instanceof PlainSocketImpl))
       throw new IOException("incompatible SocketImpl: "
                             + impl.getClass().getName());
     PlainSocketImpl that = (PlainSocketImpl) impl;
+    that.impl = this.impl.accept();
     that.setOption(SO_REUSEADDR, Boolean.TRUE);
     // Reset the inherited timeout.
     that.setOption(SO_TIMEOUT, Integer.valueOf(0));
+    InetSocketAddress remote = that.impl.getRemoteAddress();
+    that.address = remote.getAddress();
+    that.port = remote.getPort();
+    that.localport = that.impl.getLocalPort();
 
   }
 
@@ -351,9 +362,7 @@ public class PlainSocketImpl extends SocketImpl
    */
   protected int available() throws IOException
   {
-    if (channel == null)
-      throw new SocketException("not connected");
-    return channel.getVMChannel().available();
+    return impl.available();
   }
 
   /**
@@ -424,26 +433,16 @@ public class PlainSocketImpl extends SocketImpl
    */
   protected InetAddress getInetAddress()
   {
-    if (channel == null)
+    InetSocketAddress remote = impl.getRemoteAddress();
+    if (remote == null)
       return null;
-    
-    try
-      {
-        InetSocketAddress remote = channel.getVMChannel().getPeerAddress();
-        if (remote == null)
-          return null;
-        // To mimic behavior of the RI the InetAddress instance which was
-        // used to establish the connection is returned instead of one that
-        // was created by the native layer (this preserves exact hostnames).
-        if (address != null)
-          return address;
-        
-        return remote.getAddress();
-      }
-    catch (IOException ioe)
-      {
-        return null;
-      }
+    // To mimic behavior of the RI the InetAddress instance which was
+    // used to establish the connection is returned instead of one that
+    // was created by the native layer (this preserves exact hostnames).
+    if (address != null)
+      return address;
+
+    return remote.getAddress();
   }
 
   /* (non-Javadoc)
@@ -451,33 +450,15 @@ public class PlainSocketImpl extends SocketImpl
    */
   protected int getLocalPort()
   {
-    if (channel == null)
+    int local = impl.getLocalPort();
+    if (local == 0)
       return -1;
-    try
-      {
-        InetSocketAddress local = channel.getVMChannel().getLocalAddress();
-        if (local == null)
-          return -1;
-        return local.getPort();
-      }
-    catch (IOException ioe)
-      {
-        return -1;
-      }
+    return local;
   }
   
   public InetSocketAddress getLocalAddress()
   {
-    if (channel == null)
-      return null;
-    try
-      {
-        return channel.getVMChannel().getLocalAddress();
-      }
-    catch (IOException ioe)
-      {
-        return null;
-      }
+    return impl.getLocalAddress();
   }
 
   /* (non-Javadoc)
@@ -485,20 +466,10 @@ public class PlainSocketImpl extends SocketImpl
    */
   protected int getPort()
   {
-    if (channel == null)
+    InetSocketAddress remote = impl.getRemoteAddress();
+    if (remote == null)
       return -1;
-    
-    try
-      {
-        InetSocketAddress remote = channel.getVMChannel().getPeerAddress();
-        if (remote == null)
-          return -1;
-        return remote.getPort();
-      }
-    catch (IOException ioe)
-      {
-        return -1;
-      }
+    return remote.getPort();
   }
 
   /**
@@ -537,13 +508,11 @@ public class PlainSocketImpl extends SocketImpl
      */
     public int read() throws IOException
     {
-      if (channel == null)
-        throw new SocketException("not connected");
       while (true)
         {
           try
             {
-              return channel.getVMChannel().read();
+              return impl.read();
             }
           catch (SocketTimeoutException ste)
             {
@@ -570,14 +539,11 @@ public class PlainSocketImpl extends SocketImpl
      */
     public int read (byte[] buf, int offset, int len) throws IOException
     {
-      if (channel == null)
-        throw new SocketException("not connected");
-      ByteBuffer b = ByteBuffer.wrap(buf, offset, len);
       while (true)
         {
           try
             {
-              return channel.read(b);
+              return impl.read(buf, offset, len);
             }
           catch (SocketTimeoutException ste)
             {
@@ -623,13 +589,11 @@ public class PlainSocketImpl extends SocketImpl
      */
     public void write(int b) throws IOException
     {
-      if (channel == null)
-        throw new SocketException("not connected");
       while (true)
         {
           try
             {
-              channel.getVMChannel().write(b);
+              impl.write(b);
               return;
             }
           catch (InterruptedIOException iioe)
@@ -651,21 +615,7 @@ public class PlainSocketImpl extends SocketImpl
      */
     public void write (byte[] buf, int offset, int len) throws IOException
     {
-      if (channel == null)
-        throw new SocketException("not connected");
-      ByteBuffer b = ByteBuffer.wrap(buf, offset, len);
-      while (b.hasRemaining())
-        {
-          try
-            {
-              if (channel.write(b) == -1)
-                throw new IOException("channel has been closed");
-            }
-          catch (InterruptedIOException iioe)
-            {
-              // Ignored.
-            }
-        }
+      impl.write(buf, offset, len);
     }
   }
 }
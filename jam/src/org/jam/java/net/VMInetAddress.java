@@ -41,6 +41,7 @@ import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import org.jam.net.inet4.Dns;
 import org.xbill.DNS.Address;
 
 public class VMInetAddress implements Serializable
@@ -54,7 +55,7 @@ public class VMInetAddress implements Serializable
      */
     public static String getLocalHostname()
     {
-        return null;
+        return "localhost";
     }
 
     /**
@@ -62,7 +63,7 @@ public class VMInetAddress implements Serializable
      */
     public static byte[] lookupInaddrAny() throws UnknownHostException
     {
-        return null;
+        return new byte[4];
     }
 
     /**
@@ -89,12 +90,12 @@ public class VMInetAddress implements Serializable
      */
     public static byte[][] getHostByName(String hostname) throws UnknownHostException
     {
-        InetAddress ipAddrs[] = Address.getAllByName(hostname);
-        byte[][] byteAddrs = new byte[ipAddrs.length][];
-        int index = 0;
-        for(; index < ipAddrs.length; index++)
+        byte[][] cached = Dns.getByName(hostname);
+        // callers own the arrays, the cache keeps its own
+        byte[][] byteAddrs = new byte[cached.length][];
+        for(int index = 0; index < cached.length; index++)
         {
-            byteAddrs[index] = ipAddrs[index].getAddress();
+            byteAddrs[index] = (byte[])cached[index].clone();
         }
         return byteAddrs;
     }
@@ -0,0 +1,103 @@
+package org.jam.java.nio;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+import org.jam.net.Tcp;
+
+/**
+ * Registration of a TCP channel with a SelectorImpl.
+ *
+ * The ReadyListener events have the values of the operation bits, an event
+ * the key is interested in puts the key on the ready queue of its selector.
+ * The selector asks the socket what is really ready when it takes the key
+ * off the queue.
+ */
+final class SelectionKeyImpl
+extends AbstractSelectionKey
+{
+    private final SelectableChannel channel;
+    private final SelectorImpl selector;
+    final Tcp tcp;
+    private volatile int interestOps;
+    private int readyOps;
+
+    /*
+     * Ready queue and level triggered recheck list, guarded by the selector
+     */
+    SelectionKeyImpl next;
+    boolean queued;
+    SelectionKeyImpl nextRecheck;
+    boolean recheck;
+
+    SelectionKeyImpl(SelectableChannel channel, SelectorImpl selector, Tcp tcp)
+    {
+        this.channel = channel;
+        this.selector = selector;
+        this.tcp = tcp;
+    }
+
+    public SelectableChannel channel()
+    {
+        return channel;
+    }
+
+    public Selector selector()
+    {
+        return selector;
+    }
+
+    public int interestOps()
+    {
+        checkValid();
+        return interestOps;
+    }
+
+    public SelectionKeyImpl interestOps(int ops)
+    {
+        checkValid();
+        if((ops & ~channel.validOps()) != 0)
+        {
+            throw new IllegalArgumentException("Invalid operations " + ops);
+        }
+        interestOps = ops;
+        // the socket may already be ready for the new operations
+        if(ops != 0)
+        {
+            selector.enqueue(this);
+        }
+        return this;
+    }
+
+    public int readyOps()
+    {
+        checkValid();
+        return readyOps;
+    }
+
+    void readyOps(int ops)
+    {
+        readyOps = ops;
+    }
+
+    /*
+     * Called by the socket with the socket locked
+     */
+    void ready(int events)
+    {
+        if((events & interestOps) != 0)
+        {
+            selector.enqueue(this);
+        }
+    }
+
+    private void checkValid()
+    {
+        if(!isValid())
+        {
+            throw new CancelledKeyException();
+        }
+    }
+}
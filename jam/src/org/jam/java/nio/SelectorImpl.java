@@ -0,0 +1,353 @@
+package org.jam.java.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.jikesrvm.runtime.Time;
+
+/**
+ * Selector driven by the readiness events of the TCP sockets.
+ *
+ * Nothing is polled. A socket tells the keys of its channel when its state
+ * changes, a key the event matters to goes on the ready queue and the
+ * selecting thread is woken. select() only looks at the keys on the queue,
+ * so idle connections cost nothing however many there are.
+ *
+ * In level triggered mode, the default, a key that was ready is checked again
+ * by the next select() and stays selected while the operation would not
+ * block. In edge triggered mode a key is only selected again after a new
+ * event, the owner has to read or write until the operation would block.
+ */
+public final class SelectorImpl
+extends AbstractSelector
+{
+    private final boolean edgeTriggered;
+    private final HashSet<SelectionKey> keys = new HashSet<SelectionKey>();
+    private final Set<SelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+    private final HashSet<SelectionKey> selected = new HashSet<SelectionKey>();
+
+    /*
+     * One select at a time. Not the selector monitor, close() holds that
+     * while it wakes up the selecting thread.
+     */
+    private final Object selectLock = new Object();
+
+    /*
+     * Ready queue, guarded by itself
+     */
+    private final Object readyLock = new Object();
+    private SelectionKeyImpl head;
+    private SelectionKeyImpl tail;
+    private boolean woken;
+
+    /*
+     * Level triggered keys to check again on the next select, only used by
+     * the selecting thread
+     */
+    private SelectionKeyImpl recheck;
+
+    SelectorImpl(SelectorProvider provider, boolean edgeTriggered)
+    {
+        super(provider);
+        this.edgeTriggered = edgeTriggered;
+    }
+
+    public Set<SelectionKey> keys()
+    {
+        checkOpen();
+        return publicKeys;
+    }
+
+    public Set<SelectionKey> selectedKeys()
+    {
+        checkOpen();
+        return selected;
+    }
+
+    public int selectNow() throws IOException
+    {
+        return select(-1L, false);
+    }
+
+    public int select() throws IOException
+    {
+        return select(0L, true);
+    }
+
+    public int select(long timeout) throws IOException
+    {
+        if(timeout < 0)
+        {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        return select(timeout, true);
+    }
+
+    public Selector wakeup()
+    {
+        synchronized (readyLock)
+        {
+            woken = true;
+            readyLock.notifyAll();
+        }
+        return this;
+    }
+
+    /*
+     * @param timeout milliseconds to wait, 0 waits forever
+     */
+    private int select(long timeout, boolean block) throws IOException
+    {
+        synchronized (selectLock)
+        {
+            checkOpen();
+            return doSelect(timeout, block);
+        }
+    }
+
+    private int doSelect(long timeout, boolean block)
+    {
+        long deadline = block && timeout > 0 ? Time.currentTimeMillis() + timeout : 0;
+        int updated = 0;
+        begin();
+        try
+        {
+            removeCancelled();
+            requeueRecheck();
+            while(true)
+            {
+                SelectionKeyImpl ready;
+                synchronized (readyLock)
+                {
+                    if(block && head == null && !woken)
+                    {
+                        waitReady(deadline);
+                    }
+                    ready = head;
+                    head = tail = null;
+                    for(SelectionKeyImpl key = ready; key != null; key = key.next)
+                    {
+                        key.queued = false;
+                    }
+                }
+                updated += update(ready);
+                synchronized (readyLock)
+                {
+                    if(updated > 0 || !block || woken || Thread.currentThread().isInterrupted()
+                       || (deadline != 0 && Time.currentTimeMillis() >= deadline))
+                    {
+                        woken = false;
+                        break;
+                    }
+                }
+            }
+            removeCancelled();
+        }
+        finally
+        {
+            end();
+        }
+        return updated;
+    }
+
+    private void waitReady(long deadline)
+    {
+        try
+        {
+            if(deadline == 0)
+            {
+                readyLock.wait();
+            }
+            else
+            {
+                long remaining = deadline - Time.currentTimeMillis();
+                if(remaining > 0)
+                {
+                    readyLock.wait(remaining);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // select returns with the interrupt status set
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Ask the sockets of the queued keys what is ready
+     *
+     * @return number of keys whose ready set was updated
+     */
+    private int update(SelectionKeyImpl ready)
+    {
+        int updated = 0;
+        SelectionKeyImpl key = ready;
+        while(key != null)
+        {
+            SelectionKeyImpl next = key.next;
+            key.next = null;
+            if(key.isValid())
+            {
+                int ops = key.tcp.readyOps() & key.interestOps();
+                if(ops != 0)
+                {
+                    synchronized (selected)
+                    {
+                        if(selected.add(key))
+                        {
+                            key.readyOps(ops);
+                            updated++;
+                        }
+                        else if((key.readyOps() | ops) != key.readyOps())
+                        {
+                            key.readyOps(key.readyOps() | ops);
+                            updated++;
+                        }
+                    }
+                    if(!edgeTriggered && !key.recheck)
+                    {
+                        key.recheck = true;
+                        key.nextRecheck = recheck;
+                        recheck = key;
+                    }
+                }
+            }
+            key = next;
+        }
+        return updated;
+    }
+
+    /*
+     * Put the level triggered keys that were ready last time back on the queue
+     */
+    private void requeueRecheck()
+    {
+        SelectionKeyImpl key = recheck;
+        recheck = null;
+        while(key != null)
+        {
+            SelectionKeyImpl next = key.nextRecheck;
+            key.nextRecheck = null;
+            key.recheck = false;
+            if(key.isValid())
+            {
+                enqueue(key);
+            }
+            key = next;
+        }
+    }
+
+    /*
+     * Queue a key for the next select, called by the socket with the socket
+     * locked
+     */
+    void enqueue(SelectionKeyImpl key)
+    {
+        synchronized (readyLock)
+        {
+            if(key.queued)
+            {
+                return;
+            }
+            key.queued = true;
+            if(tail == null)
+            {
+                head = key;
+                readyLock.notifyAll();
+            }
+            else
+            {
+                tail.next = key;
+            }
+            tail = key;
+        }
+    }
+
+    private void removeCancelled()
+    {
+        Set<SelectionKey> cancelled = cancelledKeys();
+        synchronized (cancelled)
+        {
+            Iterator<SelectionKey> iterator = cancelled.iterator();
+            while(iterator.hasNext())
+            {
+                remove((SelectionKeyImpl)iterator.next());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(SelectionKeyImpl key)
+    {
+        ((TcpChannel)key.channel()).readiness().remove(key);
+        synchronized (keys)
+        {
+            keys.remove(key);
+        }
+        synchronized (selected)
+        {
+            selected.remove(key);
+        }
+        deregister(key);
+    }
+
+    protected SelectionKey register(AbstractSelectableChannel channel, int ops, Object attachment)
+    {
+        if(!(channel instanceof TcpChannel))
+        {
+            throw new IllegalSelectorException();
+        }
+        TcpReadiness readiness = ((TcpChannel)channel).readiness();
+        SelectionKeyImpl key = new SelectionKeyImpl(channel, this, readiness.tcp());
+        key.attach(attachment);
+        synchronized (keys)
+        {
+            keys.add(key);
+        }
+        readiness.add(key);
+        key.interestOps(ops);
+        return key;
+    }
+
+    protected void implCloseSelector() throws IOException
+    {
+        wakeup();
+        synchronized (selectLock)
+        {
+            SelectionKeyImpl all[];
+            synchronized (keys)
+            {
+                all = keys.toArray(new SelectionKeyImpl[keys.size()]);
+            }
+            for(int index = 0; index < all.length; index++)
+            {
+                all[index].cancel();
+            }
+            removeCancelled();
+            synchronized (readyLock)
+            {
+                head = tail = null;
+            }
+            recheck = null;
+        }
+    }
+
+    private void checkOpen()
+    {
+        if(!isOpen())
+        {
+            throw new ClosedSelectorException();
+        }
+    }
+}
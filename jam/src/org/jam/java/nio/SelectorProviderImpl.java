@@ -0,0 +1,45 @@
+package org.jam.java.nio;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Channels and selectors on the TCP sockets of org.jam.net.
+ *
+ * Selectors are level triggered unless the jam.nio.edge property is true.
+ */
+public class SelectorProviderImpl
+extends SelectorProvider
+{
+    public final static String EDGE_TRIGGERED = "jam.nio.edge";
+
+    public AbstractSelector openSelector() throws IOException
+    {
+        return new SelectorImpl(this, Boolean.getBoolean(EDGE_TRIGGERED));
+    }
+
+    public SocketChannel openSocketChannel() throws IOException
+    {
+        return new SocketChannelImpl(this);
+    }
+
+    public ServerSocketChannel openServerSocketChannel() throws IOException
+    {
+        return new ServerSocketChannelImpl(this);
+    }
+
+    public DatagramChannel openDatagramChannel() throws IOException
+    {
+        throw new IOException("Datagram channels are not supported");
+    }
+
+    public Pipe openPipe() throws IOException
+    {
+        throw new IOException("Pipes are not supported");
+    }
+}
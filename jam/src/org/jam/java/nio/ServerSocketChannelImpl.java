@@ -0,0 +1,140 @@
+package org.jam.java.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.SocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetBoundException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+
+import org.jam.java.net.PlainSocketImpl;
+import org.jam.net.Tcp;
+import org.jam.net.TcpState;
+
+/**
+ * Listening TCP channel. It is bound and put in the listen state through
+ * its socket.
+ */
+final class ServerSocketChannelImpl
+extends ServerSocketChannel
+implements TcpChannel
+{
+    private final ServerSocket socket;
+    private final Tcp tcp;
+    private final TcpReadiness readiness;
+
+    /*
+     * The socket of the channel, the channel uses its TCP engine
+     */
+    private final class ChannelServerSocket
+    extends ServerSocket
+    {
+        ChannelServerSocket() throws IOException
+        {
+            setReuseAddress(true);
+        }
+
+        public ServerSocketChannel getChannel()
+        {
+            return ServerSocketChannelImpl.this;
+        }
+    }
+
+    ServerSocketChannelImpl(SelectorProvider provider) throws IOException
+    {
+        super(provider);
+        socket = new ChannelServerSocket();
+        tcp = engine(socket);
+        readiness = new TcpReadiness(tcp);
+    }
+
+    /*
+     * ServerSocket only hands out its implementation inside java.net, ask
+     * for it the way the Classpath NIO server socket does
+     */
+    private static Tcp engine(final ServerSocket socket) throws IOException
+    {
+        try
+        {
+            final Method method = ServerSocket.class.getDeclaredMethod("getImpl", new Class[0]);
+            Object impl = AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
+            {
+                public Object run() throws Exception
+                {
+                    method.setAccessible(true);
+                    return method.invoke(socket, new Object[0]);
+                }
+            });
+            return ((PlainSocketImpl)impl).getTcp();
+        }
+        catch (Exception e)
+        {
+            IOException error = new IOException("server socket implementation");
+            error.initCause(e);
+            throw error;
+        }
+    }
+
+    public TcpReadiness readiness()
+    {
+        return readiness;
+    }
+
+    public ServerSocket socket()
+    {
+        return socket;
+    }
+
+    public SocketChannel accept() throws IOException
+    {
+        if(!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+        if(tcp.getState() != TcpState.LISTEN)
+        {
+            throw new NotYetBoundException();
+        }
+        Tcp accepted;
+        if(isBlocking())
+        {
+            begin();
+            boolean completed = false;
+            try
+            {
+                accepted = tcp.accept();
+                completed = true;
+            }
+            finally
+            {
+                end(completed);
+            }
+        }
+        else
+        {
+            accepted = tcp.acceptNow();
+            if(accepted == null)
+            {
+                return null;
+            }
+        }
+        // the accepted connection inherits the timeout of the listener
+        accepted.setOption(SocketOptions.SO_TIMEOUT, Integer.valueOf(0));
+        return new SocketChannelImpl(provider(), accepted);
+    }
+
+    protected void implCloseSelectableChannel() throws IOException
+    {
+        tcp.close();
+    }
+
+    protected void implConfigureBlocking(boolean block) throws IOException
+    {
+        // every call passes the mode to the socket
+    }
+}
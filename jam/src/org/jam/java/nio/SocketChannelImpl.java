@@ -0,0 +1,322 @@
+package org.jam.java.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+
+import org.jam.java.net.PlainSocketImpl;
+import org.jam.net.Tcp;
+
+/**
+ * TCP connection channel. Reads and writes go straight to the socket
+ * buffers, in non-blocking mode they move what the buffers allow and return.
+ */
+final class SocketChannelImpl
+extends SocketChannel
+implements TcpChannel
+{
+    /*
+     * Copy size for buffers without an array
+     */
+    private final static int COPY_SIZE = 8192;
+
+    private final Tcp tcp;
+    private final TcpReadiness readiness;
+    private Socket socket;
+    private volatile boolean connected;
+    private volatile boolean connectionPending;
+
+    /*
+     * The socket of the channel
+     */
+    private final class ChannelSocket
+    extends Socket
+    {
+        ChannelSocket() throws SocketException
+        {
+            super(new PlainSocketImpl(tcp));
+        }
+
+        public SocketChannel getChannel()
+        {
+            return SocketChannelImpl.this;
+        }
+    }
+
+    SocketChannelImpl(SelectorProvider provider)
+    {
+        this(provider, new Tcp());
+    }
+
+    /*
+     * Channel of an accepted connection
+     */
+    SocketChannelImpl(SelectorProvider provider, Tcp tcp)
+    {
+        super(provider);
+        this.tcp = tcp;
+        readiness = new TcpReadiness(tcp);
+        connected = tcp.getRemoteAddress() != null;
+    }
+
+    public TcpReadiness readiness()
+    {
+        return readiness;
+    }
+
+    public synchronized Socket socket()
+    {
+        if(socket == null)
+        {
+            try
+            {
+                socket = new ChannelSocket();
+            }
+            catch (SocketException e)
+            {
+                throw new RuntimeException("socket: " + e);
+            }
+        }
+        return socket;
+    }
+
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    public boolean isConnectionPending()
+    {
+        return connectionPending;
+    }
+
+    public boolean connect(SocketAddress remote) throws IOException
+    {
+        checkOpen();
+        if(connected)
+        {
+            throw new AlreadyConnectedException();
+        }
+        if(connectionPending)
+        {
+            throw new ConnectionPendingException();
+        }
+        if(!(remote instanceof InetSocketAddress))
+        {
+            throw new UnsupportedAddressTypeException();
+        }
+        InetSocketAddress address = (InetSocketAddress)remote;
+        if(address.isUnresolved())
+        {
+            throw new UnresolvedAddressException();
+        }
+        tcp.startConnect(address);
+        connectionPending = true;
+        return finishConnect();
+    }
+
+    public boolean finishConnect() throws IOException
+    {
+        checkOpen();
+        if(!connectionPending)
+        {
+            if(connected)
+            {
+                return true;
+            }
+            throw new NoConnectionPendingException();
+        }
+        boolean done = false;
+        begin();
+        try
+        {
+            done = tcp.finishConnect(isBlocking());
+        }
+        catch (IOException e)
+        {
+            connectionPending = false;
+            close();
+            throw e;
+        }
+        finally
+        {
+            end(done);
+        }
+        if(done)
+        {
+            connectionPending = false;
+            connected = true;
+        }
+        return done;
+    }
+
+    public int read(ByteBuffer destination) throws IOException
+    {
+        checkConnected();
+        if(!destination.hasRemaining())
+        {
+            return 0;
+        }
+        int count = 0;
+        begin();
+        try
+        {
+            if(destination.hasArray())
+            {
+                count = tcp.read(destination.array(), destination.arrayOffset() + destination.position(),
+                                 destination.remaining(), isBlocking());
+                if(count > 0)
+                {
+                    destination.position(destination.position() + count);
+                }
+            }
+            else
+            {
+                byte buffer[] = new byte[Math.min(destination.remaining(), COPY_SIZE)];
+                count = tcp.read(buffer, 0, buffer.length, isBlocking());
+                if(count > 0)
+                {
+                    destination.put(buffer, 0, count);
+                }
+            }
+        }
+        finally
+        {
+            end(count > 0);
+        }
+        return count;
+    }
+
+    public long read(ByteBuffer destinations[], int offset, int length) throws IOException
+    {
+        if(offset < 0 || length < 0 || offset + length > destinations.length)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        long total = 0;
+        for(int index = offset; index < offset + length; index++)
+        {
+            int wanted = destinations[index].remaining();
+            if(wanted == 0)
+            {
+                continue;
+            }
+            int count = read(destinations[index]);
+            if(count < 0)
+            {
+                return total == 0 ? -1 : total;
+            }
+            total += count;
+            if(count < wanted)
+            {
+                break;
+            }
+        }
+        return total;
+    }
+
+    public int write(ByteBuffer source) throws IOException
+    {
+        checkConnected();
+        if(!source.hasRemaining())
+        {
+            return 0;
+        }
+        int count = 0;
+        begin();
+        try
+        {
+            if(source.hasArray())
+            {
+                count = tcp.write(source.array(), source.arrayOffset() + source.position(), source.remaining(),
+                                  isBlocking());
+                source.position(source.position() + count);
+            }
+            else
+            {
+                byte buffer[] = new byte[Math.min(source.remaining(), COPY_SIZE)];
+                while(source.hasRemaining())
+                {
+                    int position = source.position();
+                    int size = Math.min(source.remaining(), buffer.length);
+                    source.get(buffer, 0, size);
+                    int written = tcp.write(buffer, 0, size, isBlocking());
+                    source.position(position + written);
+                    count += written;
+                    if(written < size)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            end(count > 0);
+        }
+        return count;
+    }
+
+    public long write(ByteBuffer sources[], int offset, int length) throws IOException
+    {
+        if(offset < 0 || length < 0 || offset + length > sources.length)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        long total = 0;
+        for(int index = offset; index < offset + length; index++)
+        {
+            int wanted = sources[index].remaining();
+            if(wanted == 0)
+            {
+                continue;
+            }
+            int count = write(sources[index]);
+            total += count;
+            if(count < wanted)
+            {
+                break;
+            }
+        }
+        return total;
+    }
+
+    protected void implCloseSelectableChannel() throws IOException
+    {
+        tcp.close();
+    }
+
+    protected void implConfigureBlocking(boolean block) throws IOException
+    {
+        // every call passes the mode to the socket
+    }
+
+    private void checkOpen() throws ClosedChannelException
+    {
+        if(!isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void checkConnected() throws ClosedChannelException
+    {
+        checkOpen();
+        if(!connected)
+        {
+            throw new NotYetConnectedException();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.jam.java.nio;
+
+/**
+ * A channel that can be registered with a SelectorImpl
+ */
+interface TcpChannel
+{
+    TcpReadiness readiness();
+}
@@ -0,0 +1,65 @@
+package org.jam.java.nio;
+
+import org.jam.net.ReadyListener;
+import org.jam.net.Tcp;
+
+/**
+ * Passes the readiness events of a socket to the keys of its channel, one
+ * for every selector the channel is registered with.
+ *
+ * The key array is replaced on every change so the protocol thread reads it
+ * without a lock.
+ */
+final class TcpReadiness
+implements ReadyListener
+{
+    private final static SelectionKeyImpl NO_KEYS[] = new SelectionKeyImpl[0];
+
+    private final Tcp tcp;
+    private volatile SelectionKeyImpl keys[] = NO_KEYS;
+
+    TcpReadiness(Tcp tcp)
+    {
+        this.tcp = tcp;
+        tcp.setReadyListener(this);
+    }
+
+    Tcp tcp()
+    {
+        return tcp;
+    }
+
+    public void ready(int events)
+    {
+        SelectionKeyImpl current[] = keys;
+        for(int index = 0; index < current.length; index++)
+        {
+            current[index].ready(events);
+        }
+    }
+
+    synchronized void add(SelectionKeyImpl key)
+    {
+        SelectionKeyImpl current[] = keys;
+        SelectionKeyImpl added[] = new SelectionKeyImpl[current.length + 1];
+        System.arraycopy(current, 0, added, 0, current.length);
+        added[current.length] = key;
+        keys = added;
+    }
+
+    synchronized void remove(SelectionKeyImpl key)
+    {
+        SelectionKeyImpl current[] = keys;
+        for(int index = 0; index < current.length; index++)
+        {
+            if(current[index] == key)
+            {
+                SelectionKeyImpl removed[] = new SelectionKeyImpl[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, index);
+                System.arraycopy(current, index + 1, removed, index, removed.length - index);
+                keys = removed;
+                return;
+            }
+        }
+    }
+}
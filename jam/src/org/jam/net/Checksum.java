@@ -0,0 +1,122 @@
+package org.jam.net;
+
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Internet checksum (RFC 1071) shared by the IP, ICMP, UDP and TCP layers.
+ *
+ * Data is summed in host order 32 bits at a time into a 64 bit accumulator,
+ * the ones complement sum does not depend on byte order or word size as long
+ * as the carries are folded back in. The result is in host order so it can be
+ * stored with a plain store.
+ */
+public final class Checksum
+{
+    private Checksum()
+    {
+    }
+
+    /**
+     * Add the data to a running sum. An odd length range must be the last one
+     * summed.
+     *
+     * @param data start of the data
+     * @param length number of bytes
+     * @param sum running sum
+     * @return the new running sum, not folded
+     */
+    public static long sum(Address data, int length, long sum)
+    {
+        int index = 0;
+        /*
+         * 16 bytes per iteration
+         */
+        for(int end = length & ~15; index < end; index += 16)
+        {
+            sum += (data.loadInt(Offset.fromIntZeroExtend(index)) & 0xFFFFFFFFL)
+                   + (data.loadInt(Offset.fromIntZeroExtend(index + 4)) & 0xFFFFFFFFL)
+                   + (data.loadInt(Offset.fromIntZeroExtend(index + 8)) & 0xFFFFFFFFL)
+                   + (data.loadInt(Offset.fromIntZeroExtend(index + 12)) & 0xFFFFFFFFL);
+        }
+        for(int end = length & ~3; index < end; index += 4)
+        {
+            sum += data.loadInt(Offset.fromIntZeroExtend(index)) & 0xFFFFFFFFL;
+        }
+        if((length & 2) != 0)
+        {
+            sum += data.loadShort(Offset.fromIntZeroExtend(index)) & 0xFFFF;
+            index += 2;
+        }
+        if((length & 1) != 0)
+        {
+            sum += data.loadByte(Offset.fromIntZeroExtend(index)) & 0xFF;
+        }
+        return sum;
+    }
+
+    /**
+     * Fold a running sum to 16 bits
+     */
+    public static int fold(long sum)
+    {
+        sum = (sum >>> 32) + (sum & 0xFFFFFFFFL);
+        sum = (sum >>> 32) + (sum & 0xFFFFFFFFL);
+        int folded = (int)(sum >>> 16) + (int)(sum & 0xFFFF);
+        folded = (folded >>> 16) + (folded & 0xFFFF);
+        return (folded >>> 16) + (folded & 0xFFFF);
+    }
+
+    /**
+     * Sum of the pseudo header used by UDP and TCP. The addresses are in host
+     * order, the sum is returned in host order ready to add to a data sum.
+     *
+     * @param source source address
+     * @param destination destination address
+     * @param protocol IP protocol number
+     * @param length length of the transport header and data
+     */
+    public static int pseudoHeader(int source, int destination, int protocol, int length)
+    {
+        int sum = (source >>> 16) + (source & 0xFFFF)
+                  + (destination >>> 16) + (destination & 0xFFFF)
+                  + protocol + length;
+        sum = (sum >>> 16) + (sum & 0xFFFF);
+        sum += sum >>> 16;
+        return ByteOrder.hostToNetwork((short)sum) & 0xFFFF;
+    }
+
+    /**
+     * @return the checksum of the data, 0 when verifying correct data
+     */
+    public static int checksum(Address data, int length)
+    {
+        return ~fold(sum(data, length, 0)) & 0xFFFF;
+    }
+
+    /**
+     * Checksum of a transport header and its data including the pseudo header
+     *
+     * @return the checksum, 0 when verifying correct data
+     */
+    public static int checksum(Address data, int length, int source, int destination, int protocol)
+    {
+        long sum = pseudoHeader(source, destination, protocol, length);
+        return ~fold(sum(data, length, sum)) & 0xFFFF;
+    }
+
+    /**
+     * Update a checksum when a 16 bit field changes (RFC 1624 eqn. 3).
+     * The checksum and the field values must be in the same byte order, for
+     * example all three as loaded from the packet.
+     *
+     * @return the new checksum
+     */
+    public static int update(int checksum, int oldValue, int newValue)
+    {
+        int sum = (~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+        sum = (sum >>> 16) + (sum & 0xFFFF);
+        sum += sum >>> 16;
+        return ~sum & 0xFFFF;
+    }
+}
@@ -3,18 +3,38 @@ package org.jam.net;
 import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 
+import org.jam.driver.net.Packet;
+import org.jam.net.ethernet.EthernetAddr;
 import org.jam.net.inet4.InetAddress;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
 
+/**
+ * The endpoints of a conversation. The route and the hardware address of the
+ * next hop are cached and only looked up again when the route table or the
+ * ARP table of the interface changed. How often the caches are used is
+ * counted in the route statistics.
+ */
 public class Connection {
+	private static final StatsGroup stats = new StatsGroup("route");
+	private static final Counter lookups = stats.counter("lookups");
+	private static final Counter routeHits = stats.counter("cache hits");
+	private static final Counter neighbourHits = stats.counter("neighbour hits");
+	private static final Counter neighbourMisses = stats.counter("neighbour misses");
+
 	private InetAddress local;
 	private InetAddress remote;
 	private IpProto protocol;
 	private Route route;
+	private int routeGeneration;
+	private InetAddress nextHop;
+	private EthernetAddr nextHopMac;
+	private int arpGeneration;
 	
 	public Connection(InetSocketAddress localAddress, InetSocketAddress remoteAddress, IpProto proto) throws NoRouteToHostException {
 		// look up the route
 	    remote = new InetAddress(remoteAddress.getAddress());
-		route = Route.find(remote);
+		setRoute();
 		System.out.println("getting local address ");
 		byte[] addr = localAddress.getAddress().getAddress();
 		System.out.println("connection " + ((int)addr[0]&0xff) + "." + ((int)addr[1]&0xff) + "." + ((int)addr[2]&0xff)+ "." + ((int)addr[3]&0xff));
@@ -23,8 +43,20 @@ public class Connection {
 		protocol = proto;
 	}
 
+	/**
+	 * Create a connection between two known inet addresses. Used by
+	 * protocols that learn the endpoints from a received packet.
+	 */
+	public Connection(InetAddress localAddress, InetAddress remoteAddress, IpProto proto)
+	{
+	    remote = remoteAddress;
+	    setRoute();
+	    local = localAddress;
+	    protocol = proto;
+	}
+
 	public byte getProtocol() {
-		return (byte)protocol.ordinal();
+		return (byte)protocol.protocol();
 	}
 
     public InetAddress getLocal()
@@ -47,13 +79,63 @@ public class Connection {
         return remote.inet4();
     }
 
+    private void setRoute()
+    {
+        lookups.inc();
+        routeGeneration = Route.getGeneration();
+        route = Route.find(remote);
+        nextHop = route.nextHop(remote);
+        nextHopMac = null;
+    }
+
+    /**
+     * @return the route, looked up again if the route table changed
+     */
     public Route getRoute()
     {
+        if(routeGeneration != Route.getGeneration())
+        {
+            setRoute();
+        }
+        else
+        {
+            routeHits.inc();
+        }
         return route;
     }
 
     public NetworkInterface getNetworkInterface()
     {
-        return route.getNetworkIf();
+        return getRoute().getNetworkIf();
+    }
+
+    public InetAddress getNextHop()
+    {
+        getRoute();
+        return nextHop;
+    }
+
+    /**
+     * Send an IPv4 packet to the next hop. The cached hardware address is
+     * used while it is good, otherwise the interface resolves it.
+     */
+    public void send(Packet packet)
+    {
+        NetworkInterface netIf = getNetworkInterface();
+        int generation = netIf.getArpGeneration();
+        EthernetAddr mac = nextHopMac;
+        if(mac != null && generation == arpGeneration)
+        {
+            neighbourHits.inc();
+            netIf.send(mac, packet, EtherType.IPV4.type());
+            return;
+        }
+        neighbourMisses.inc();
+        netIf.send(nextHop.inet4(), packet);
+        /*
+         * The neighbour has an entry now, cache it once it is resolved
+         */
+        arpGeneration = generation;
+        nextHopMac = netIf.arp(nextHop);
     }
 }
@@ -0,0 +1,13 @@
+package org.jam.net;
+
+import org.jam.driver.net.Packet;
+
+/**
+ * Receives frames of one EtherType from the protocol processor. The packet
+ * starts at the ethernet payload. It is freed when receive() returns, a
+ * handler that keeps it must retain it.
+ */
+public interface EtherTypeHandler
+{
+    void receive(Packet packet);
+}
@@ -0,0 +1,216 @@
+package org.jam.net;
+
+import java.util.HashMap;
+
+/**
+ * Forwarding table for IPv4 routes, a multibit trie with 8 bit strides.
+ *
+ * Each node covers 8 bits of the address. A route is stored in the node of the
+ * stride its prefix ends in, expanded over every slot the prefix covers, so a
+ * lookup reads one slot per level and never more than 4. A slot only takes a
+ * route with a longer prefix than the one it holds, which makes the deepest
+ * route seen on the way down the longest match.
+ *
+ * Routes are also kept by prefix in a hash map. That is only used when
+ * routes change, to find the route a deleted prefix uncovers.
+ *
+ * Lookups are not synchronized. Slots are updated one reference at a time so a
+ * lookup racing an update sees either route. The generation is bumped after
+ * every change so users that cache a route can tell it may be stale.
+ */
+final class Fib
+{
+    private static final int STRIDE = 8;
+    private static final int SLOTS  = 1 << STRIDE;
+    private static final int LEVELS = 32 / STRIDE;
+
+    private static final class Node
+    {
+        final Route routes[] = new Route[SLOTS];
+        final Node children[] = new Node[SLOTS];
+    }
+
+    private final Node root = new Node();
+    private final HashMap<Long, Route> prefixes = new HashMap<Long, Route>();
+    private volatile int generation;
+    private int nodes = 1;
+
+    /*
+     * The level a prefix is stored in, /0 to /8 are in the root
+     */
+    private static int level(int prefix)
+    {
+        return prefix == 0 ? 0 : (prefix - 1) / STRIDE;
+    }
+
+    private static int slot(int address, int level)
+    {
+        return (address >>> (32 - STRIDE * (level + 1))) & (SLOTS - 1);
+    }
+
+    private static int mask(int prefix)
+    {
+        return prefix == 0 ? 0 : 0x80000000 >> (prefix - 1);
+    }
+
+    private static Long key(int network, int prefix)
+    {
+        return Long.valueOf(((long)prefix << 32) | (network & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Longest prefix match
+     *
+     * @return the route or null when there is none
+     */
+    Route lookup(int address)
+    {
+        Route best = null;
+        Node node = root;
+        for(int level = 0; level < LEVELS; level++)
+        {
+            int slot = slot(address, level);
+            Route route = node.routes[slot];
+            if(route != null)
+            {
+                best = route;
+            }
+            node = node.children[slot];
+            if(node == null)
+            {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Add a route, it replaces a route with the same prefix
+     */
+    synchronized void add(int network, int prefix, Route route)
+    {
+        network &= mask(prefix);
+        Route old = prefixes.put(key(network, prefix), route);
+        Node node = find(network, prefix, true);
+        int first = firstSlot(network, prefix);
+        int last = first + slotCount(prefix);
+        for(int slot = first; slot < last; slot++)
+        {
+            Route current = node.routes[slot];
+            if(current == null || current == old || current.getPrefix() < prefix)
+            {
+                node.routes[slot] = route;
+            }
+        }
+        generation++;
+    }
+
+    /**
+     * Remove the route of a prefix
+     *
+     * @return the route removed or null
+     */
+    synchronized Route delete(int network, int prefix)
+    {
+        network &= mask(prefix);
+        Route old = prefixes.remove(key(network, prefix));
+        if(old == null)
+        {
+            return null;
+        }
+        /*
+         * Slots the route held go to the next shorter prefix stored in the
+         * same node, any shorter one is in a node above and found on the way
+         * down
+         */
+        Route cover = null;
+        int top = level(prefix) * STRIDE;
+        int shortest = top == 0 ? 0 : top + 1;
+        for(int shorter = prefix - 1; cover == null && shorter >= shortest; shorter--)
+        {
+            cover = prefixes.get(key(network & mask(shorter), shorter));
+        }
+        Node node = find(network, prefix, false);
+        int first = firstSlot(network, prefix);
+        int last = first + slotCount(prefix);
+        for(int slot = first; slot < last; slot++)
+        {
+            if(node.routes[slot] == old)
+            {
+                node.routes[slot] = cover;
+            }
+        }
+        generation++;
+        return old;
+    }
+
+    synchronized void clear()
+    {
+        prefixes.clear();
+        for(int slot = 0; slot < SLOTS; slot++)
+        {
+            root.routes[slot] = null;
+            root.children[slot] = null;
+        }
+        nodes = 1;
+        generation++;
+    }
+
+    /*
+     * Node a prefix is stored in
+     */
+    private Node find(int network, int prefix, boolean create)
+    {
+        Node node = root;
+        for(int level = 0, end = level(prefix); level < end; level++)
+        {
+            int slot = slot(network, level);
+            Node child = node.children[slot];
+            if(child == null)
+            {
+                if(!create)
+                {
+                    throw new RuntimeException("FIB node missing for /" + prefix);
+                }
+                child = new Node();
+                node.children[slot] = child;
+                nodes++;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static int firstSlot(int network, int prefix)
+    {
+        return slot(network, level(prefix)) & ~(slotCount(prefix) - 1);
+    }
+
+    /*
+     * Slots a prefix covers in its node
+     */
+    private static int slotCount(int prefix)
+    {
+        return 1 << ((level(prefix) + 1) * STRIDE - prefix);
+    }
+
+    int getGeneration()
+    {
+        return generation;
+    }
+
+    synchronized Route[] routes()
+    {
+        return prefixes.values().toArray(new Route[prefixes.size()]);
+    }
+
+    synchronized int size()
+    {
+        return prefixes.size();
+    }
+
+    public String toString()
+    {
+        return "fib routes " + size() + " nodes " + nodes + " generation " + generation;
+    }
+}
@@ -0,0 +1,298 @@
+package org.jam.net;
+
+import org.jam.driver.net.Packet;
+import org.jam.net.inet4.InetAddress;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
+import org.jikesrvm.runtime.Memory;
+import org.jikesrvm.runtime.Time;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * ICMP processing (RFC 792).
+ *
+ * Echo requests are answered in the received buffer. The type and checksum
+ * are patched, the IP header is written again with the addresses swapped and
+ * the buffer goes straight back to the interface, so a ping costs no
+ * allocation and no copy. Only replies larger than the path MTU are copied so
+ * IP can fragment them.
+ *
+ * Destination unreachable messages are sent for datagrams no protocol or port
+ * takes, limited to ERROR_RATE per second. Received ones are passed to the
+ * transport protocol of the datagram they quote, fragmentation needed feeds
+ * the path MTU cache (RFC 1191).
+ */
+public class Icmp
+{
+    public final static int ECHO_REPLY              = 0;
+    public final static int DESTINATION_UNREACHABLE = 3;
+    public final static int ECHO_REQUEST            = 8;
+    public final static int TIME_EXCEEDED           = 11;
+    /*
+     * Destination unreachable codes
+     */
+    public final static int PROTOCOL_UNREACHABLE = 2;
+    public final static int PORT_UNREACHABLE     = 3;
+    public final static int FRAGMENTATION_NEEDED = 4;
+    final static int HEADER_SIZE = 8;
+    private final static int TYPES = 256;
+    private final static Offset CODE = Offset.fromIntSignExtend(1);
+    private final static Offset CHECKSUM = Offset.fromIntSignExtend(2);
+    private final static Offset UNUSED = Offset.fromIntSignExtend(4);
+    private final static Offset NEXT_HOP_MTU = Offset.fromIntSignExtend(6);
+    /*
+     * Fields of the quoted IP header
+     */
+    private final static Offset IP_LENGTH = Offset.fromIntSignExtend(2);
+    private final static Offset IP_PROTOCOL = Offset.fromIntSignExtend(9);
+    private final static Offset IP_SOURCE = Offset.fromIntSignExtend(12);
+    private final static Offset IP_DESTINATION = Offset.fromIntSignExtend(16);
+    /*
+     * An error quotes the IP header and this much of the data
+     */
+    private final static int QUOTE_SIZE = 8;
+    /*
+     * Errors sent per second
+     */
+    private final static int ERROR_RATE = 100;
+    /*
+     * MTU plateaus for routers that do not send the next hop MTU (RFC 1191)
+     */
+    private final static int PLATEAUS[] = { 32000, 17914, 8166, 4352, 2002, 1492, 1006, 508, 296, 68 };
+
+    private final static Ip ip = new Ip();
+
+    private static final StatsGroup stats = new StatsGroup("icmp");
+    private static final Counter checksumErrors = stats.counter("checksum errors");
+    private static final Counter lengthErrors = stats.counter("length errors");
+    private static final Counter echoReplies = stats.counter("echo replies");
+    private static final Counter unreachableSent = stats.counter("unreachable sent");
+    private static final Counter rateLimited = stats.counter("rate limited");
+    private static final Counter pathMtuUpdates = stats.counter("pmtu updates");
+    private static int received[] = new int[TYPES];
+
+    private static long errorWindow;
+    private static int errorCount;
+
+    /**
+     * Called by the IP layer for every ICMP message
+     */
+    static void receive(Packet packet, int source, int destination, int length)
+    {
+        if(length < HEADER_SIZE)
+        {
+            lengthErrors.inc();
+            return;
+        }
+        Address header = packet.getPacketAddress();
+        if(Checksum.checksum(header, length) != 0)
+        {
+            checksumErrors.inc();
+            return;
+        }
+        int type = header.loadByte() & 0xFF;
+        received[type]++;
+        switch(type)
+        {
+        case ECHO_REQUEST:
+            echo(packet, source, destination, length);
+            break;
+        case DESTINATION_UNREACHABLE:
+            unreachable(header, length);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * Turn the request into the reply in place
+     */
+    private static void echo(Packet packet, int source, int destination, int length)
+    {
+        Route route = Route.lookup(source);
+        if(route == null)
+        {
+            return;
+        }
+        NetworkInterface netIf = route.getNetworkIf();
+        /*
+         * Requests to a broadcast or multicast address are not answered
+         */
+        if(destination != netIf.getInetAddress().inet4())
+        {
+            return;
+        }
+        Address header = packet.getPacketAddress();
+        int oldWord = header.loadShort() & 0xFFFF;
+        header.store((byte)ECHO_REPLY);
+        int newWord = header.loadShort() & 0xFFFF;
+        header.store((short)Checksum.update(header.loadShort(CHECKSUM) & 0xFFFF, oldWord, newWord), CHECKSUM);
+        if(Ip.HEADER_SIZE + length > Ip.pathMtu(netIf, source))
+        {
+            /*
+             * A reassembled request, the reply goes out as fragments
+             */
+            Connection connection = new Connection(new InetAddress(destination), new InetAddress(source), IpProto.ICMP);
+            InetPacket reply = new InetPacket(length, connection);
+            Memory.memcopy(reply.getPacketAddress(), header, length);
+            echoReplies.inc();
+            ip.send(reply);
+            return;
+        }
+        packet.setHeadroom(Ip.HEADER_SIZE);
+        Ip.header(packet.getPacketAddress(), Ip.HEADER_SIZE + length, IpProto.ICMP.protocol(), destination, source);
+        echoReplies.inc();
+        // the IP layer frees its reference when this returns
+        netIf.send(route.nextHop(source), packet.retain());
+    }
+
+    /*
+     * Pass a received destination unreachable to the protocol of the
+     * quoted datagram
+     */
+    private static void unreachable(Address header, int length)
+    {
+        Address quote = header.plus(HEADER_SIZE);
+        int headerLength = (quote.loadByte() & 0xF) << 2;
+        if(length < HEADER_SIZE + Ip.HEADER_SIZE || headerLength < Ip.HEADER_SIZE
+           || length < HEADER_SIZE + headerLength + QUOTE_SIZE)
+        {
+            lengthErrors.inc();
+            return;
+        }
+        int protocol = quote.loadByte(IP_PROTOCOL) & 0xFF;
+        int remote = ByteOrder.networkToHost(quote.loadInt(IP_DESTINATION));
+        Address transport = quote.plus(headerLength);
+        int localPort = ByteOrder.networkToHost(transport.loadShort()) & 0xFFFF;
+        int remotePort = ByteOrder.networkToHost(transport.loadShort(Offset.fromIntSignExtend(2))) & 0xFFFF;
+        switch(header.loadByte(CODE) & 0xFF)
+        {
+        case FRAGMENTATION_NEEDED:
+            int mtu = ByteOrder.networkToHost(header.loadShort(NEXT_HOP_MTU)) & 0xFFFF;
+            if(mtu == 0)
+            {
+                mtu = plateau(ByteOrder.networkToHost(quote.loadShort(IP_LENGTH)) & 0xFFFF);
+            }
+            if(Ip.updatePathMtu(remote, mtu))
+            {
+                pathMtuUpdates.inc();
+                if(protocol == IpProto.TCP.protocol())
+                {
+                    Tcp.pathMtuChanged(localPort, remote, remotePort, Math.max(mtu, PathMtu.MIN_MTU));
+                }
+            }
+            break;
+        case PROTOCOL_UNREACHABLE:
+        case PORT_UNREACHABLE:
+            if(protocol == IpProto.UDP.protocol())
+            {
+                Udp.unreachable(localPort, remote, remotePort);
+            }
+            else if(protocol == IpProto.TCP.protocol())
+            {
+                Tcp.unreachable(localPort, remote, remotePort);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * Largest plateau below the length of the datagram that was too big
+     */
+    private static int plateau(int length)
+    {
+        for(int index = 0; index < PLATEAUS.length; index++)
+        {
+            if(PLATEAUS[index] < length)
+            {
+                return PLATEAUS[index];
+            }
+        }
+        return PathMtu.MIN_MTU;
+    }
+
+    /**
+     * Send a destination unreachable for a received datagram. The packet
+     * starts at its IP header. No error is sent about a broadcast or
+     * multicast datagram or one without a source (RFC 1122 3.2.2).
+     *
+     * @param code PROTOCOL_UNREACHABLE or PORT_UNREACHABLE
+     */
+    static void unreachable(Packet packet, int code)
+    {
+        Address datagram = packet.getPacketAddress();
+        int source = ByteOrder.networkToHost(datagram.loadInt(IP_SOURCE));
+        int destination = ByteOrder.networkToHost(datagram.loadInt(IP_DESTINATION));
+        if(source == 0 || Ip.isBroadcastOrMulticast(source) || Ip.isBroadcastOrMulticast(destination))
+        {
+            return;
+        }
+        Route route = Route.lookup(source);
+        if(route == null)
+        {
+            return;
+        }
+        NetworkInterface netIf = route.getNetworkIf();
+        int hostMask = ~netIf.getNetMask();
+        if(hostMask != 0 && (destination & hostMask) == hostMask)
+        {
+            // subnet broadcast
+            return;
+        }
+        if(!allowError())
+        {
+            return;
+        }
+        int headerLength = (datagram.loadByte() & 0xF) << 2;
+        int quote = Math.min(packet.getSize(), headerLength + QUOTE_SIZE);
+        Connection connection = new Connection(new InetAddress(destination), new InetAddress(source), IpProto.ICMP);
+        InetPacket error = new InetPacket(HEADER_SIZE + quote, connection);
+        Address header = error.getPacketAddress();
+        header.store((byte)DESTINATION_UNREACHABLE);
+        header.store((byte)code, CODE);
+        header.store((short)0, CHECKSUM);
+        header.store(0, UNUSED);
+        Memory.memcopy(header.plus(HEADER_SIZE), datagram, quote);
+        header.store((short)Checksum.checksum(header, HEADER_SIZE + quote), CHECKSUM);
+        unreachableSent.inc();
+        ip.send(error);
+    }
+
+    /*
+     * Rate limit for errors so a scan or a flood does not turn into a
+     * flood of errors
+     */
+    private static synchronized boolean allowError()
+    {
+        long now = Time.currentTimeMillis();
+        if(now - errorWindow >= 1000)
+        {
+            errorWindow = now;
+            errorCount = 0;
+        }
+        if(errorCount == ERROR_RATE)
+        {
+            rateLimited.inc();
+            return false;
+        }
+        errorCount++;
+        return true;
+    }
+
+    public static void printStatistics()
+    {
+        System.out.print(stats);
+        for(int type = 0; type < TYPES; type++)
+        {
+            if(received[type] != 0)
+            {
+                System.out.print(" type" + type + " " + received[type]);
+            }
+        }
+        System.out.println();
+    }
+}
@@ -4,83 +4,112 @@ import java.net.DatagramPacket;
 
 import org.jam.driver.net.Packet;
 import org.jam.driver.net.PacketBuffer;
-import org.jam.net.ethernet.EthernetAddr;
-import org.jam.net.inet4.Arp;
-import org.jikesrvm.classloader.RVMArray;
+import org.jam.driver.net.PacketPool;
 import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
 import org.vmmagic.unboxed.Address;
-import org.vmmagic.unboxed.ObjectReference;
 
+/**
+ * An outgoing IP packet. The data lives in a buffer from the packet pool with
+ * headroom reserved for the headers, so every layer pushes its header in place.
+ * The buffer goes back to the pool when the device is done with it.
+ */
 public class InetPacket implements Packet {
-	private int offset;
-	private byte buffer[];
-	private static int HEADER_SIZE = 44;		// size of the udp, ip, and ethernet headers
-	private int packetSize;
+	private PacketBuffer buffer;
 	private Connection connection;
-	private NetworkInterface netInterface;
-	
+
+	/**
+	 * Copy a datagram into a new packet
+	 */
 	public InetPacket(DatagramPacket packet, Connection connection) {
-		int bufferSize = packet.getLength()+HEADER_SIZE;
-		byte[] srcBuffer = packet.getData();
-		buffer = new byte[bufferSize];
-		RVMArray.arraycopy(srcBuffer, packet.getOffset(), buffer, HEADER_SIZE, packet.getLength());
-		offset = HEADER_SIZE;
-		packetSize = packet.getLength();
+		this(packet.getLength(), connection);
+		Memory.memcopy(getPacketAddress(), Magic.objectAsAddress(packet.getData()).plus(packet.getOffset()),
+				packet.getLength());
+	}
+
+	/**
+	 * Create an empty packet with the default headroom
+	 *
+	 * @param payloadLength size of the payload
+	 * @param connection connection the packet is sent on
+	 */
+	public InetPacket(int payloadLength, Connection connection) {
+		this(PacketPool.HEADROOM, payloadLength, connection);
+	}
+
+	/**
+	 * Create an empty packet with room for the protocol headers. The caller
+	 * fills in payloadLength bytes starting at getPacketAddress().
+	 *
+	 * @param headroom space reserved in front of the payload
+	 * @param payloadLength size of the payload
+	 * @param connection connection the packet is sent on
+	 */
+	public InetPacket(int headroom, int payloadLength, Connection connection) {
+		buffer = PacketPool.allocate(payloadLength, headroom);
 		this.connection = connection;
-		netInterface = connection.getNetworkInterface();
 	}
 
 	public byte[] getArray() {
-		return buffer;
+		return buffer.getArray();
 	}
 
 	/**
 	 * Returns the address of a packet's header beginning
 	 */
 	public Address getAddress() {
-		return Magic.objectAsAddress(buffer);
+		return buffer.getAddress();
 	}
 
 	public int getOffset() {
-		return offset;
+		return buffer.getOffset();
 	}
 
 	/**
 	 * returns data size of packet
 	 */
 	public int getSize() {
-		return packetSize;
+		return buffer.getSize();
 	}
 
 	public void append(Packet packet) {
-		// TODO Auto-generated method stub
-
+		buffer.append(packet);
 	}
 
 	public Address prepend(int size) {
-		// TODO Auto-generated method stub
-		return null;
+		return buffer.prepend(size);
 	}
 
 	public void prepend(Packet packet) {
-		// TODO Auto-generated method stub
-
+		buffer.prepend(packet);
 	}
 
 	public void setHeadroom(int size) {
-		if(size > offset)
-		{
-			throw new RuntimeException("No Headroom");
-		}
-		offset -= size;
+		buffer.setHeadroom(size);
 	}
 
 	public byte getProtocol() {
 		return connection.getProtocol();
 	}
 
+	/**
+	 * @return true when the packet is larger than the path MTU and the device does
+	 * not segment it
+	 */
 	public boolean needToFragment() {
-		return false;
+		return buffer.getSegmentationType() == GSO_NONE
+				&& getSize() > Ip.pathMtu(connection.getNetworkInterface(), getRemoteAddress());
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @see PacketBuffer#slice(int, int)
+	 */
+	public Packet slice(int offset, int length) {
+		return buffer.slice(offset, length);
 	}
 
 	public int getLocalAddress() {
@@ -93,28 +122,100 @@ public class InetPacket implements Packet {
 
 	public void send() {
 		/*
-		 * At this point the packet has a route. We just need
-		 * to get the mac  address of the destination
+		 * At this point the packet has a route. The connection
+		 * knows the mac address of the next hop
 		 */
-	    System.out.println("Inet send");
-		EthernetAddr destinationMac = netInterface.arp(connection.getRemote());
-		System.out.println("Arp done");
-		netInterface.send(destinationMac, this, EtherType.IPV4.type());
+		connection.send(this);
 	}
 
     public Address getPacketAddress()
     {
-        return Magic.objectAsAddress(buffer).plus(offset);
+        return buffer.getPacketAddress();
     }
 
     public int getBufferSize()
     {
-        return buffer.length;
+        return buffer.getBufferSize();
     }
 
     public void pull(int size)
     {
-       offset += size;
+        buffer.pull(size);
+    }
+
+    public void trim(int size)
+    {
+        buffer.trim(size);
+    }
+
+    public int getFragmentCount()
+    {
+        return buffer.getFragmentCount();
+    }
+
+    public Address getFragmentAddress(int fragment)
+    {
+        return buffer.getFragmentAddress(fragment);
+    }
+
+    public int getFragmentSize(int fragment)
+    {
+        return buffer.getFragmentSize(fragment);
     }
 
+    public void setChecksumOffload(int checksumOffset)
+    {
+        buffer.setChecksumOffload(checksumOffset);
+    }
+
+    public int getChecksumStart()
+    {
+        return buffer.getChecksumStart();
+    }
+
+    public int getChecksumOffset()
+    {
+        return buffer.getChecksumOffset();
+    }
+
+    public void setSegmentation(int type, int segmentSize, int headerLength)
+    {
+        buffer.setSegmentation(type, segmentSize, headerLength);
+    }
+
+    public int getSegmentationType()
+    {
+        return buffer.getSegmentationType();
+    }
+
+    public int getSegmentationSize()
+    {
+        return buffer.getSegmentationSize();
+    }
+
+    public int getHeaderLength()
+    {
+        return buffer.getHeaderLength();
+    }
+
+    public void setChecksumValid(boolean valid)
+    {
+        buffer.setChecksumValid(valid);
+    }
+
+    public boolean isChecksumValid()
+    {
+        return buffer.isChecksumValid();
+    }
+
+    public Packet retain()
+    {
+        buffer.retain();
+        return this;
+    }
+
+    public void free()
+    {
+        buffer.free();
+    }
 }
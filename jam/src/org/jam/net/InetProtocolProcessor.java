@@ -2,25 +2,119 @@ package org.jam.net;
 
 import org.jam.driver.net.NetworkQueue;
 import org.jam.driver.net.Packet;
+import org.jam.net.capture.Capture;
 import org.jam.net.ethernet.Ethernet;
 import org.jam.net.inet4.Arp;
-import org.jam.net.inet4.ArpPacket;
 import org.jam.net.inet4.ArpThread;
-import org.jikesrvm.VM;
-import org.jikesrvm.scheduler.RVMThread;
+import org.jam.net.stats.InterfaceStats;
+import org.jikesrvm.runtime.Magic;
 
+/**
+ * Protocol processing thread for received frames. The network driver queues
+ * frames with put() from its receive poll, which runs in a thread, never in
+ * an interrupt handler. The thread is only notified when it is idle, and each
+ * wakeup drains the queue in batches of up to budget frames. Frames are dispatched on their EtherType through a handler
+ * table. Received frames and the frames dropped on a full queue are counted
+ * in the statistics of the interface.
+ */
 public class InetProtocolProcessor
 implements Runnable
 {
+    private static final boolean DEBUG = false;
+    private static final int DEFAULT_BUDGET = 64;
+    private static final int MAX_HANDLERS = 8;
+
     private NetworkQueue rxQueue;
     private ArpThread arp;
-    private static int QUEUE_SIZE = 256;
-    
-    public InetProtocolProcessor(ArpThread arp)
+    private final InterfaceStats stats;
+    private int budget;
+    /*
+     * Guarded by this
+     */
+    private boolean idle;
+    /*
+     * EtherType dispatch table
+     */
+    private short etherTypes[] = new short[MAX_HANDLERS];
+    private EtherTypeHandler handlers[] = new EtherTypeHandler[MAX_HANDLERS];
+    private int handlerCount;
+
+    /*
+     * Batch statistics
+     */
+    private long batches;
+    private long packets;
+    private long wakeups;
+    private long budgetExhausted;
+    private long unknownType;
+    private int lastBatch;
+    private int maxBatch;
+    private long batchCycles;
+
+    public InetProtocolProcessor(ArpThread arp, InterfaceStats stats)
+    {
+        this(arp, stats, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param arp arp request handler
+     * @param stats statistics of the interface
+     * @param budget maximum frames processed in one batch
+     */
+    public InetProtocolProcessor(ArpThread arp, InterfaceStats stats, int budget)
     {
         this.arp = arp;
+        this.stats = stats;
+        this.budget = budget;
         rxQueue = new NetworkQueue();
+        register(EtherType.ARP, new EtherTypeHandler()
+        {
+            public void receive(Packet packet)
+            {
+                InetProtocolProcessor.this.arp.receive(new Arp(packet));
+            }
+        });
+        register(EtherType.IPV4, new EtherTypeHandler()
+        {
+            public void receive(Packet packet)
+            {
+                Ip.receive(packet);
+            }
+        });
     }
+
+    /**
+     * Register the receive handler for an EtherType
+     */
+    public synchronized void register(EtherType type, EtherTypeHandler handler)
+    {
+        for(int index = 0; index < handlerCount; index++)
+        {
+            if(etherTypes[index] == type.type())
+            {
+                handlers[index] = handler;
+                return;
+            }
+        }
+        if(handlerCount == MAX_HANDLERS)
+        {
+            throw new RuntimeException("Too many EtherType handlers");
+        }
+        etherTypes[handlerCount] = type.type();
+        handlers[handlerCount] = handler;
+        handlerCount++;
+    }
+
+    public void setBudget(int budget)
+    {
+        this.budget = budget;
+    }
+
+    public int getBudget()
+    {
+        return budget;
+    }
+
     public void run()
     {
         processPackets();
@@ -33,22 +127,30 @@ implements Runnable
         {
             try
             {
+                int processed = processBatch();
+                if(processed == budget)
+                {
+                    /*
+                     * More work is probably queued. Let other threads run
+                     * and come back without waiting for a notify.
+                     */
+                    budgetExhausted++;
+                    Thread.yield();
+                    continue;
+                }
                 /*
                  * Wait for packets to be added to queue.
                  */
                 synchronized (this)
                 {
-                    wait();
-                }
-                System.out.println("inetpp got rx");
-                Packet packet = rxQueue.get();
-                if(Ethernet.isArp(packet))
-                {
-                    System.out.println("inetpp arp packet");
-                    packet.pull(Ethernet.HEADER_SIZE);
-                    Arp arp = new Arp(packet);
-                    this.arp.reply(arp);
+                    idle = true;
+                    if(rxQueue.isEmpty())
+                    {
+                        wait();
+                    }
+                    idle = false;
                 }
+                wakeups++;
             } catch (InterruptedException e)
             {
                 e.printStackTrace();
@@ -56,15 +158,92 @@ implements Runnable
         }
     }
 
+    /*
+     * Dispatch up to budget packets from the queue
+     */
+    private int processBatch()
+    {
+        long start = Magic.getTimeBase();
+        int processed = 0;
+        Packet packet;
+        while(processed < budget && (packet = rxQueue.get()) != null)
+        {
+            dispatch(packet);
+            processed++;
+        }
+        if(processed > 0)
+        {
+            batches++;
+            packets += processed;
+            lastBatch = processed;
+            if(processed > maxBatch)
+            {
+                maxBatch = processed;
+            }
+            batchCycles += Magic.getTimeBase() - start;
+        }
+        return processed;
+    }
+
+    /*
+     * Handlers that keep the packet after they return must retain it
+     */
+    private void dispatch(Packet packet)
+    {
+        short type = Ethernet.type(packet);
+        for(int index = 0; index < handlerCount; index++)
+        {
+            if(etherTypes[index] == type)
+            {
+                packet.pull(Ethernet.HEADER_SIZE);
+                handlers[index].receive(packet);
+                packet.free();
+                return;
+            }
+        }
+        unknownType++;
+        if(DEBUG) System.out.println("inetpp unknown type " + Integer.toHexString(type & 0xFFFF));
+        packet.free();
+    }
+
     public void put(Packet packet)
     {
         /*
-         * Add packet to queue and notify processPackets(). 
-         * This is called from an interrupt so there is no synchronization
-         * on 'this'
+         * Add packet to queue and notify processPackets() if it is idle
          */
-        rxQueue.put(packet);
-        VM.sysWriteln("inetpp notify");
-        RVMThread.nosyncNotify(this);
+        if(Capture.enabled)
+        {
+            Capture.frame(packet, Capture.IN);
+        }
+        stats.rxPackets.inc();
+        stats.rxBytes.add(packet.getSize());
+        if(!rxQueue.put(packet))
+        {
+            stats.ringFull.inc();
+            return;
+        }
+        synchronized (this)
+        {
+            if(idle)
+            {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * @return true when the next put() would drop the packet
+     */
+    public boolean isFull()
+    {
+        return rxQueue.isFull();
+    }
+
+    public void printStatistics()
+    {
+        System.out.println("inetpp batches " + batches + " packets " + packets + " wakeups " + wakeups
+                           + " budget exhausted " + budgetExhausted + " last " + lastBatch + " max " + maxBatch
+                           + " avg " + (batches == 0 ? 0 : packets / batches) + " cycles/packet "
+                           + (packets == 0 ? 0 : batchCycles / packets) + " unknown " + unknownType);
     }
 }
@@ -1,13 +1,24 @@
 package org.jam.net;
 
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketBuffer;
+import org.jam.driver.net.PacketPool;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
+import org.jikesrvm.runtime.Memory;
+import org.jikesrvm.runtime.Time;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.Offset;
 
 public class Ip {
 	private final static int VERSION = 4;
 	private final static int HEADER_LEN = 5;
+	public final static int HEADER_SIZE = HEADER_LEN << 2;
+	public final static int MAX_PACKET = 0xFFFF;
+	private final static int DEFAULT_MTU = 1500;
 	private final static short DONT_FRAGMENT = 0x4000;
 	private final static short MORE_FRAGMENTS = 0x2000;
+	private final static short FRAGMENT_OFFSET_MASK = 0x1FFF;
 	private final static Offset TOS_FIELD = Offset.fromIntSignExtend(1);
 	private final static Offset LENGTH_FIELD = Offset.fromIntSignExtend(2);
 	private final static Offset ID_FIELD = Offset.fromIntSignExtend(4);
@@ -17,59 +28,297 @@ public class Ip {
 	private final static Offset CHECKSUM_FIELD = Offset.fromIntSignExtend(10);
 	private final static Offset SRCADDR_FIELD = Offset.fromIntSignExtend(12);
 	private final static Offset DSTADDR_FIELD = Offset.fromIntSignExtend(16);
-	
+
 	private byte tos = 0; // best effort
-	private byte ttl = (byte)255; 
-	
+	private byte ttl = (byte)255;
+	private static short identification = 0;
+	/*
+	 * Statistics
+	 */
+	private static final StatsGroup stats = new StatsGroup("ip");
+	private static final Counter received = stats.counter("received");
+	private static final Counter sent = stats.counter("sent");
+	private static final Counter headerErrors = stats.counter("header errors");
+	private static final Counter checksumErrors = stats.counter("checksum errors");
+	private static final Counter unknownProtocol = stats.counter("unknown protocol");
+	private static final Counter fragmentsSent = stats.counter("fragments sent");
+
+	private static final IpReassembly reassembly = new IpReassembly();
+	private static final PathMtu pathMtu = new PathMtu(256);
+
+	/*
+	 * Transport protocol handlers indexed by the protocol field
+	 */
+	private static IpProtoHandler protocolHandlers[] = new IpProtoHandler[256];
+
+	static
+	{
+		register(IpProto.ICMP, new IpProtoHandler()
+		{
+			public boolean receive(Packet packet, int source, int destination, int length)
+			{
+				Icmp.receive(packet, source, destination, length);
+				return true;
+			}
+		});
+		register(IpProto.TCP, new IpProtoHandler()
+		{
+			public boolean receive(Packet packet, int source, int destination, int length)
+			{
+				// TCP answers with a reset itself
+				Tcp.receive(packet, source, destination, length);
+				return true;
+			}
+		});
+		register(IpProto.UDP, new IpProtoHandler()
+		{
+			public boolean receive(Packet packet, int source, int destination, int length)
+			{
+				return Udp.receive(packet, source, destination, length);
+			}
+		});
+	}
+
+	/**
+	 * Prepend the IP header to the packet and hand it to the network interface.
+	 * The packet size must cover the transport header and payload.
+	 */
 	public void send(InetPacket packet) {
-	    System.out.println("IP send");
+		sent.inc();
+		packet.setHeadroom(HEADER_SIZE);
 		Address ipHeader = packet.getPacketAddress();
 		ipHeader.store((byte)((VERSION<<4) | HEADER_LEN));
 		ipHeader.store(tos, TOS_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork((short)packet.getSize()), LENGTH_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(nextIdentification()), ID_FIELD);
 		ipHeader.store(ttl, TTL_FIELD);
 		ipHeader.store(packet.getProtocol(), PROTOCOL_FIELD);
-		ipHeader.store(0, CHECKSUM_FIELD);
-		ipHeader.store(packet.getLocalAddress(), SRCADDR_FIELD);
-		ipHeader.store(packet.getRemoteAddress(), DSTADDR_FIELD);
-		ipHeader.store(ByteOrder.hostToNetwork((short)packet.getSize()));
+		ipHeader.store((short)0, CHECKSUM_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(packet.getLocalAddress()), SRCADDR_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(packet.getRemoteAddress()), DSTADDR_FIELD);
 		if(packet.needToFragment())
 		{
-			fragmentPacket(packet);
+			fragmentPacket(packet, ipHeader);
+			return;
+		}
+		if(packet.getSegmentationType() == Packet.GSO_UDP)
+		{
+			// the device fragments the datagram
+			ipHeader.store((short)0, FRAGMENT_FIELD);
 		}
 		else
 		{
-			ipHeader.store(DONT_FRAGMENT, FRAGMENT_FIELD);
+			ipHeader.store(ByteOrder.hostToNetwork(DONT_FRAGMENT), FRAGMENT_FIELD);
 		}
-		short csum = checksum(packet);
-		ipHeader.store(csum, CHECKSUM_FIELD);
+		ipHeader.store((short)Checksum.checksum(ipHeader, HEADER_SIZE), CHECKSUM_FIELD);
 		packet.send();
 	}
 
-	private short checksum(InetPacket packet) {
-		int csum=0;
-		
-		/*
-		 * Assumes a 20 byte IP header with no options
-		 */
-		Address headerAddress = packet.getPacketAddress();
-		csum += headerAddress.loadShort();
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(2)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(4)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(6)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(8)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(10)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(12)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(14)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(16)) & 0xffff);
-		csum += (headerAddress.loadShort(Offset.fromIntZeroExtend(18)) & 0xffff);
-		// Add the carry overs
-		csum = (csum >> 16) + (csum & 0xFFFF);
-
-		return (short)~csum;
+	/**
+	 * @return the MTU of the interface, the Ethernet MTU when it is not set
+	 */
+	static int mtu(NetworkInterface networkInterface) {
+		int mtu = networkInterface.getMtu();
+		return mtu > 0 ? mtu : DEFAULT_MTU;
+	}
+
+	/**
+	 * @return the MTU to use for a destination, lower than the interface MTU
+	 * when a router on the path asked for it
+	 */
+	static int pathMtu(NetworkInterface networkInterface, int destination) {
+		return pathMtu.get(destination, mtu(networkInterface), Time.currentTimeMillis());
+	}
+
+	/**
+	 * Record the next hop MTU from an ICMP fragmentation needed message.
+	 * An MTU that is not below the interface MTU is ignored (RFC 1191).
+	 *
+	 * @return true when the path MTU to the destination went down
+	 */
+	static boolean updatePathMtu(int destination, int mtu) {
+		Route route = Route.lookup(destination);
+		if(route == null || mtu >= mtu(route.getNetworkIf())) {
+			return false;
+		}
+		return pathMtu.update(destination, mtu, Time.currentTimeMillis());
+	}
+
+	/*
+	 * Datagrams are sent from many threads
+	 */
+	private static synchronized short nextIdentification() {
+		return identification++;
 	}
 
-	private void fragmentPacket(InetPacket packet) {
-		throw new Error("IP fragmentation not implemented");
+	/**
+	 * Write a header without options in front of a datagram that is sent
+	 * without a connection, such as an ICMP reply built in the received buffer
+	 */
+	static void header(Address ipHeader, int totalLength, int protocol, int source, int destination) {
+		ipHeader.store((byte)((VERSION<<4) | HEADER_LEN));
+		ipHeader.store((byte)0, TOS_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork((short)totalLength), LENGTH_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(nextIdentification()), ID_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(DONT_FRAGMENT), FRAGMENT_FIELD);
+		ipHeader.store((byte)255, TTL_FIELD);
+		ipHeader.store((byte)protocol, PROTOCOL_FIELD);
+		ipHeader.store((short)0, CHECKSUM_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(source), SRCADDR_FIELD);
+		ipHeader.store(ByteOrder.hostToNetwork(destination), DSTADDR_FIELD);
+		ipHeader.store((short)Checksum.checksum(ipHeader, HEADER_SIZE), CHECKSUM_FIELD);
+	}
+
+	/**
+	 * @return true for the limited broadcast and multicast addresses
+	 */
+	static boolean isBroadcastOrMulticast(int address) {
+		return address == 0xFFFFFFFF || (address >>> 28) == 0xE;
 	}
 
+	/**
+	 * Send a packet that is larger than the MTU as fragments. Each fragment
+	 * is a new IP header followed by a slice of the packet, so the data is
+	 * not copied unless the device can not gather the two.
+	 */
+	private void fragmentPacket(InetPacket packet, Address ipHeader) {
+		NetworkInterface networkInterface = packet.getConnection().getNetworkInterface();
+		int dataLength = packet.getSize() - HEADER_SIZE;
+		// fragment data must be a multiple of 8 bytes
+		int fragmentSize = (pathMtu(networkInterface, packet.getRemoteAddress()) - HEADER_SIZE) & ~7;
+		boolean gather = networkInterface.getTransmitFragments() > 1 && packet.getFragmentCount() == 1;
+		for(int offset = 0; offset < dataLength; offset += fragmentSize)
+		{
+			int length = Math.min(fragmentSize, dataLength - offset);
+			PacketBuffer fragment;
+			if(gather)
+			{
+				fragment = PacketPool.allocate(HEADER_SIZE);
+				fragment.append(packet.slice(HEADER_SIZE + offset, length));
+			}
+			else
+			{
+				fragment = PacketPool.allocate(HEADER_SIZE + length);
+				copy(packet, HEADER_SIZE + offset, fragment.getPacketAddress().plus(HEADER_SIZE), length);
+			}
+			Address header = fragment.getPacketAddress();
+			Memory.memcopy(header, ipHeader, HEADER_SIZE);
+			header.store(ByteOrder.hostToNetwork((short)(HEADER_SIZE + length)), LENGTH_FIELD);
+			short fragmentField = (short)(offset >> 3);
+			if(offset + length < dataLength)
+			{
+				fragmentField |= MORE_FRAGMENTS;
+			}
+			header.store(ByteOrder.hostToNetwork(fragmentField), FRAGMENT_FIELD);
+			header.store((short)0, CHECKSUM_FIELD);
+			header.store((short)Checksum.checksum(header, HEADER_SIZE), CHECKSUM_FIELD);
+			fragmentsSent.inc();
+			packet.getConnection().send(fragment);
+		}
+		// the slices hold the data until the device is done with it
+		packet.free();
+	}
+
+	/*
+	 * Copy length bytes starting at offset from a packet that may be chained
+	 */
+	private static void copy(Packet packet, int offset, Address destination, int length)
+	{
+		for(int index = 0; index < packet.getFragmentCount() && length > 0; index++)
+		{
+			int size = packet.getFragmentSize(index);
+			if(offset >= size)
+			{
+				offset -= size;
+				continue;
+			}
+			int count = Math.min(size - offset, length);
+			Memory.memcopy(destination, packet.getFragmentAddress(index).plus(offset), count);
+			destination = destination.plus(count);
+			length -= count;
+			offset = 0;
+		}
+	}
+
+	/**
+	 * Process a received IPv4 packet. The packet must start at the IP header.
+	 * The IP header is pulled off and the payload is passed to the transport
+	 * protocol.
+	 *
+	 * @param packet received packet
+	 */
+	public static void receive(Packet packet)
+	{
+		received.inc();
+		Address ipHeader = packet.getPacketAddress();
+		int versionLength = ipHeader.loadByte() & 0xFF;
+		if((versionLength >> 4) != VERSION)
+		{
+			headerErrors.inc();
+			return;
+		}
+		int headerLength = (versionLength & 0xF) << 2;
+		int totalLength = ByteOrder.networkToHost(ipHeader.loadShort(LENGTH_FIELD)) & 0xFFFF;
+		if(headerLength < HEADER_SIZE || totalLength < headerLength || totalLength > packet.getSize())
+		{
+			headerErrors.inc();
+			return;
+		}
+		if(Checksum.checksum(ipHeader, headerLength) != 0)
+		{
+			checksumErrors.inc();
+			return;
+		}
+		int protocol = ipHeader.loadByte(PROTOCOL_FIELD) & 0xFF;
+		int source = ByteOrder.networkToHost(ipHeader.loadInt(SRCADDR_FIELD));
+		int destination = ByteOrder.networkToHost(ipHeader.loadInt(DSTADDR_FIELD));
+		// drop link layer padding
+		packet.trim(totalLength);
+		int fragment = ByteOrder.networkToHost(ipHeader.loadShort(FRAGMENT_FIELD));
+		IpProtoHandler handler = protocolHandlers[protocol];
+		if(handler == null)
+		{
+			unknownProtocol.inc();
+			if((fragment & FRAGMENT_OFFSET_MASK) == 0)
+			{
+				Icmp.unreachable(packet, Icmp.PROTOCOL_UNREACHABLE);
+			}
+			return;
+		}
+		packet.pull(headerLength);
+		if((fragment & (MORE_FRAGMENTS | FRAGMENT_OFFSET_MASK)) != 0)
+		{
+			int id = ByteOrder.networkToHost(ipHeader.loadShort(ID_FIELD)) & 0xFFFF;
+			Packet datagram = reassembly.add(packet, source, destination, protocol, id,
+					(fragment & FRAGMENT_OFFSET_MASK) << 3, totalLength - headerLength,
+					(fragment & MORE_FRAGMENTS) != 0, Time.currentTimeMillis());
+			if(datagram != null)
+			{
+				handler.receive(datagram, source, destination, datagram.getSize());
+				datagram.free();
+			}
+			return;
+		}
+		if(!handler.receive(packet, source, destination, totalLength - headerLength))
+		{
+			// the error quotes the IP header
+			packet.setHeadroom(headerLength);
+			Icmp.unreachable(packet, Icmp.PORT_UNREACHABLE);
+		}
+	}
+
+	/**
+	 * Register the receive handler for an IP protocol
+	 */
+	public static void register(IpProto protocol, IpProtoHandler handler)
+	{
+		protocolHandlers[protocol.protocol()] = handler;
+	}
+
+	public static void printStatistics()
+	{
+		System.out.println(stats);
+		System.out.println(reassembly);
+		System.out.println(pathMtu);
+	}
 }
@@ -15,4 +15,12 @@ public enum IpProto {
 	{
 		this.protocol = protocol;
 	}
+
+	/**
+	 * @return the protocol number carried in the IP header
+	 */
+	public int protocol()
+	{
+		return protocol;
+	}
 }
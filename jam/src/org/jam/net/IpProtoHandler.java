@@ -0,0 +1,21 @@
+package org.jam.net;
+
+import org.jam.driver.net.Packet;
+
+/**
+ * Receives datagrams of one IP protocol from the IP layer. The packet starts
+ * at the transport header. It is freed when receive() returns, a handler that
+ * keeps it must retain it.
+ */
+public interface IpProtoHandler
+{
+    /**
+     * @param packet packet that starts at the transport header
+     * @param source remote address
+     * @param destination local address
+     * @param length length of the transport header and data
+     * @return false when no endpoint took the datagram, the IP layer then
+     * reports the port unreachable
+     */
+    boolean receive(Packet packet, int source, int destination, int length);
+}
@@ -0,0 +1,356 @@
+package org.jam.net;
+
+import org.jam.board.pc.Platform;
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketBuffer;
+import org.jam.driver.net.PacketPool;
+import org.jam.system.DeferredWork;
+import org.jam.system.TimerEntry;
+import org.jikesrvm.runtime.Memory;
+import org.jikesrvm.runtime.Time;
+
+/**
+ * Reassembles received IPv4 fragments.
+ *
+ * Datagrams being reassembled are kept in a fixed number of flows keyed by
+ * source, destination, protocol and identification (RFC 791). A flow holds
+ * the fragments sorted by offset until they cover the whole datagram, which
+ * is then copied into one buffer for the transport protocol.
+ *
+ * Memory is bounded. The buffers held by all flows are counted and when they
+ * pass HIGH_THRESHOLD the oldest flows are dropped until LOW_THRESHOLD is
+ * reached. Each flow arms its own timer entry for TIMEOUT, when it expires
+ * the flows that timed out are dropped from the work queue. Overlapping
+ * fragments drop the whole datagram (RFC 5722), exact duplicates are ignored.
+ */
+final class IpReassembly
+{
+    /*
+     * Timeout of a datagram in milliseconds
+     */
+    final static long TIMEOUT = 30000;
+    final static int HIGH_THRESHOLD = 512 * 1024;
+    final static int LOW_THRESHOLD  = 384 * 1024;
+    private final static int MAX_FLOWS = 64;
+    /*
+     * Largest payload of an IP datagram
+     */
+    private final static int MAX_PAYLOAD = Ip.MAX_PACKET - Ip.HEADER_SIZE;
+    /*
+     * Every path carries 576 byte datagrams (RFC 791), so a datagram of any
+     * size arrives in at most this many fragments. Paths with a smaller MTU
+     * are limited to MAX_FRAGMENTS of their size.
+     */
+    private final static int MIN_FRAGMENT = (576 - Ip.HEADER_SIZE) & ~7;
+    final static int MAX_FRAGMENTS = (MAX_PAYLOAD + MIN_FRAGMENT - 1) / MIN_FRAGMENT;
+
+    private final class Flow
+    extends TimerEntry
+    {
+        int source;
+        int destination;
+        int protocol;
+        int id;
+        long deadline;
+        boolean active;
+        /*
+         * Payload length, known when the last fragment arrived
+         */
+        int totalLength;
+        int received;
+        int memory;
+        int count;
+        final Packet fragments[] = new Packet[MAX_FRAGMENTS];
+        final int offsets[] = new int[MAX_FRAGMENTS];
+        final int lengths[] = new int[MAX_FRAGMENTS];
+        Flow next;
+
+        /*
+         * Called from the timer interrupt
+         */
+        public void expired()
+        {
+            timeoutWork.schedule();
+        }
+    }
+
+    private final DeferredWork timeoutWork = new DeferredWork("ip reassembly")
+    {
+        public void run()
+        {
+            timer(Time.currentTimeMillis());
+        }
+    };
+
+    private final Flow flows[] = new Flow[MAX_FLOWS];
+    private final Flow buckets[] = new Flow[MAX_FLOWS];
+    private Flow free;
+    private int memory;
+    private int active;
+
+    /*
+     * Statistics
+     */
+    private int fragments;
+    private int reassembled;
+    private int timeouts;
+    private int evicted;
+    private int overlaps;
+    private int duplicates;
+    private int invalid;
+
+    IpReassembly()
+    {
+        for(int index = 0; index < MAX_FLOWS; index++)
+        {
+            flows[index] = new Flow();
+            flows[index].next = free;
+            free = flows[index];
+        }
+    }
+
+    private static int hash(int source, int destination, int protocol, int id)
+    {
+        return ((source ^ destination ^ (id << 16) ^ protocol) * 0x9E3779B9) >>> 26;
+    }
+
+    /**
+     * Add a received fragment. The packet starts at the fragment data and is
+     * retained while it is needed.
+     *
+     * @param offset offset of the data in the datagram
+     * @param length data length
+     * @param more the more fragments flag
+     * @return the reassembled payload when this fragment completed it,
+     * otherwise null. The caller frees it.
+     */
+    synchronized Packet add(Packet packet, int source, int destination, int protocol, int id,
+                            int offset, int length, boolean more, long now)
+    {
+        fragments++;
+        int end = offset + length;
+        if(length == 0 || end > MAX_PAYLOAD || (more && (length & 7) != 0))
+        {
+            invalid++;
+            return null;
+        }
+        Flow flow = find(source, destination, protocol, id);
+        if(flow == null)
+        {
+            flow = create(source, destination, protocol, id, now);
+        }
+        if(!more)
+        {
+            if((flow.totalLength >= 0 && flow.totalLength != end)
+               || (flow.count > 0 && flow.offsets[flow.count - 1] + flow.lengths[flow.count - 1] > end))
+            {
+                invalid++;
+                release(flow);
+                return null;
+            }
+            flow.totalLength = end;
+        }
+        else if(flow.totalLength >= 0 && end >= flow.totalLength)
+        {
+            invalid++;
+            release(flow);
+            return null;
+        }
+        /*
+         * Find the position by offset and check the neighbours for overlaps
+         */
+        int position = flow.count;
+        while(position > 0 && flow.offsets[position - 1] >= offset)
+        {
+            position--;
+        }
+        if(position < flow.count && flow.offsets[position] == offset && flow.lengths[position] == length)
+        {
+            duplicates++;
+            return null;
+        }
+        if((position > 0 && flow.offsets[position - 1] + flow.lengths[position - 1] > offset)
+           || (position < flow.count && end > flow.offsets[position]))
+        {
+            overlaps++;
+            release(flow);
+            return null;
+        }
+        if(flow.count == MAX_FRAGMENTS)
+        {
+            invalid++;
+            release(flow);
+            return null;
+        }
+        System.arraycopy(flow.fragments, position, flow.fragments, position + 1, flow.count - position);
+        System.arraycopy(flow.offsets, position, flow.offsets, position + 1, flow.count - position);
+        System.arraycopy(flow.lengths, position, flow.lengths, position + 1, flow.count - position);
+        flow.fragments[position] = packet.retain();
+        flow.offsets[position] = offset;
+        flow.lengths[position] = length;
+        flow.count++;
+        flow.received += length;
+        flow.memory += packet.getBufferSize();
+        memory += packet.getBufferSize();
+        if(flow.received == flow.totalLength)
+        {
+            return complete(flow);
+        }
+        if(memory > HIGH_THRESHOLD)
+        {
+            evict();
+        }
+        return null;
+    }
+
+    /*
+     * The fragments do not overlap and their lengths add up to the total,
+     * so they cover the datagram
+     */
+    private Packet complete(Flow flow)
+    {
+        PacketBuffer datagram = PacketPool.allocate(flow.totalLength);
+        for(int index = 0; index < flow.count; index++)
+        {
+            Memory.memcopy(datagram.getPacketAddress().plus(flow.offsets[index]),
+                           flow.fragments[index].getPacketAddress(), flow.lengths[index]);
+        }
+        reassembled++;
+        release(flow);
+        return datagram;
+    }
+
+    private Flow find(int source, int destination, int protocol, int id)
+    {
+        for(Flow flow = buckets[hash(source, destination, protocol, id)]; flow != null; flow = flow.next)
+        {
+            if(flow.id == id && flow.source == source && flow.destination == destination
+               && flow.protocol == protocol)
+            {
+                return flow;
+            }
+        }
+        return null;
+    }
+
+    private Flow create(int source, int destination, int protocol, int id, long now)
+    {
+        if(free == null)
+        {
+            evicted++;
+            release(oldest());
+        }
+        Flow flow = free;
+        free = flow.next;
+        flow.source = source;
+        flow.destination = destination;
+        flow.protocol = protocol;
+        flow.id = id;
+        flow.deadline = now + TIMEOUT;
+        Platform.timer.addTimer(flow, Time.nanoTime() + TIMEOUT * 1000000L);
+        flow.totalLength = -1;
+        flow.received = 0;
+        flow.memory = 0;
+        flow.count = 0;
+        flow.active = true;
+        int bucket = hash(source, destination, protocol, id);
+        flow.next = buckets[bucket];
+        buckets[bucket] = flow;
+        active++;
+        return flow;
+    }
+
+    /*
+     * Free the fragments and put the flow back on the free list
+     */
+    private void release(Flow flow)
+    {
+        Platform.timer.cancelTimer(flow);
+        int bucket = hash(flow.source, flow.destination, flow.protocol, flow.id);
+        if(buckets[bucket] == flow)
+        {
+            buckets[bucket] = flow.next;
+        }
+        else
+        {
+            Flow previous = buckets[bucket];
+            while(previous.next != flow)
+            {
+                previous = previous.next;
+            }
+            previous.next = flow.next;
+        }
+        for(int index = 0; index < flow.count; index++)
+        {
+            flow.fragments[index].free();
+            flow.fragments[index] = null;
+        }
+        memory -= flow.memory;
+        flow.count = 0;
+        flow.active = false;
+        flow.next = free;
+        free = flow;
+        active--;
+    }
+
+    private Flow oldest()
+    {
+        Flow oldest = null;
+        for(int index = 0; index < MAX_FLOWS; index++)
+        {
+            Flow flow = flows[index];
+            if(flow.active && (oldest == null || flow.deadline < oldest.deadline))
+            {
+                oldest = flow;
+            }
+        }
+        return oldest;
+    }
+
+    private void evict()
+    {
+        while(memory > LOW_THRESHOLD && active > 0)
+        {
+            evicted++;
+            release(oldest());
+        }
+    }
+
+    /**
+     * Drop the datagrams that timed out, called when the timer of a flow
+     * expired
+     */
+    synchronized void timer(long now)
+    {
+        for(int index = 0; index < MAX_FLOWS && active > 0; index++)
+        {
+            Flow flow = flows[index];
+            if(!flow.active)
+            {
+                continue;
+            }
+            if(flow.deadline <= now)
+            {
+                timeouts++;
+                release(flow);
+            }
+            else if(!flow.isArmed())
+            {
+                // the timer and the caller read different clocks
+                Platform.timer.addTimer(flow, Time.nanoTime() + (flow.deadline - now) * 1000000L);
+            }
+        }
+    }
+
+    synchronized int getMemory()
+    {
+        return memory;
+    }
+
+    public String toString()
+    {
+        return "ip fragments " + fragments + " reassembled " + reassembled + " timeouts " + timeouts
+               + " evicted " + evicted + " overlaps " + overlaps + " duplicates " + duplicates
+               + " invalid " + invalid + " memory " + memory;
+    }
+}
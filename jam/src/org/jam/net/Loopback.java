@@ -0,0 +1,209 @@
+package org.jam.net;
+
+import org.jam.driver.net.Packet;
+import org.jam.net.capture.Capture;
+import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.inet4.InetAddress;
+import org.jam.net.inet4.SendPacket;
+import org.jam.net.stats.InterfaceStats;
+
+/**
+ * Loopback interface for 127.0.0.0/8.
+ *
+ * A sent packet is queued as it is and handed to IP on the receive side, it
+ * is never copied and has no Ethernet header. The interface claims checksum
+ * offload so senders only store the pseudo header sum, and received packets
+ * are marked as having a valid checksum. The MTU is the largest IP packet so
+ * nothing is segmented or fragmented.
+ *
+ * Packets are delivered by the loopback thread and not by the sender, which
+ * may hold the lock of the socket the packet is for.
+ */
+public class Loopback
+implements NetworkInterface, Runnable
+{
+    public final static int NETWORK = 0x7F000000;
+    public final static int NETMASK = 0xFF000000;
+    private final static int QUEUE_SIZE = 1024;
+    private final static EthernetAddr NO_ADDRESS = new EthernetAddr((byte)0, (byte)0, (byte)0, (byte)0, (byte)0, (byte)0);
+
+    private InetAddress inetAddress = new InetAddress(NETWORK | 1);
+    private int netmask = NETMASK;
+    private int mtu = Ip.MAX_PACKET;
+
+    /*
+     * Packets waiting for the loopback thread, guarded by this
+     */
+    private final Packet queue[] = new Packet[QUEUE_SIZE];
+    private int head;
+    private int tail;
+    private int count;
+
+    private final InterfaceStats stats = new InterfaceStats("lo");
+
+    /**
+     * Install the route and start the loopback thread
+     */
+    public void boot()
+    {
+        Route.addRoute(new InetAddress(NETWORK), InetAddress.HOST, NETMASK, this);
+        Thread loopbackThread = new Thread(this);
+        loopbackThread.setName("Loopback");
+        loopbackThread.setDaemon(true);
+        loopbackThread.setPriority(Thread.MAX_PRIORITY);
+        loopbackThread.start();
+    }
+
+    public InetAddress getInetAddress()
+    {
+        return inetAddress;
+    }
+
+    public void setInetAddress(InetAddress inetAddress)
+    {
+        this.inetAddress = inetAddress;
+    }
+
+    public int getNetMask()
+    {
+        return netmask;
+    }
+
+    public void setNetMask(int mask)
+    {
+        netmask = mask;
+    }
+
+    public int getMtu()
+    {
+        return mtu;
+    }
+
+    public void setMtu(int mtu)
+    {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Received packets must be in one buffer
+     */
+    public int getTransmitFragments()
+    {
+        return 1;
+    }
+
+    public int getOffloads()
+    {
+        return OFFLOAD_CSUM;
+    }
+
+    /**
+     * There are no neighbours, everything goes through send(int, Packet)
+     */
+    public EthernetAddr arp(InetAddress inet)
+    {
+        return null;
+    }
+
+    public int getArpGeneration()
+    {
+        return 0;
+    }
+
+    public EthernetAddr getEthernetAddress()
+    {
+        return NO_ADDRESS;
+    }
+
+    public void setEthernetAddress(EthernetAddr macAddress)
+    {
+    }
+
+    public void send(int nextHop, Packet packet)
+    {
+        enqueue(packet);
+    }
+
+    public void send(EthernetAddr destination, Packet packet, short protocol)
+    {
+        if(protocol != EtherType.IPV4.type())
+        {
+            packet.free();
+            return;
+        }
+        enqueue(packet);
+    }
+
+    /**
+     * ARP has nothing to do on this interface
+     */
+    public void send(SendPacket packet)
+    {
+        packet.getPacket().free();
+    }
+
+    private synchronized void enqueue(Packet packet)
+    {
+        if(Capture.enabled)
+        {
+            Capture.loopback(packet);
+        }
+        if(count == QUEUE_SIZE)
+        {
+            stats.txDropped.inc();
+            packet.free();
+            return;
+        }
+        stats.txPackets.inc();
+        stats.txBytes.add(packet.getSize());
+        queue[head] = packet;
+        head = (head + 1) & (QUEUE_SIZE - 1);
+        if(count++ == 0)
+        {
+            notify();
+        }
+    }
+
+    private synchronized Packet dequeue() throws InterruptedException
+    {
+        while(count == 0)
+        {
+            wait();
+        }
+        Packet packet = queue[tail];
+        queue[tail] = null;
+        tail = (tail + 1) & (QUEUE_SIZE - 1);
+        count--;
+        return packet;
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            try
+            {
+                Packet packet = dequeue();
+                stats.rxPackets.inc();
+                stats.rxBytes.add(packet.getSize());
+                packet.setChecksumValid(true);
+                Ip.receive(packet);
+                packet.free();
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public InterfaceStats getStatistics()
+    {
+        return stats;
+    }
+
+    public void printStatistics()
+    {
+        System.out.println(stats);
+    }
+}
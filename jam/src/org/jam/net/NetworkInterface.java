@@ -6,15 +6,47 @@ import org.jam.net.inet4.InetAddress;
 import org.jam.net.inet4.SendPacket;
 
 public interface NetworkInterface {
+    /*
+     * Offloads a device can do for the stack
+     */
+    int OFFLOAD_CSUM = 0x01;   // transport checksum of transmitted packets
+    int OFFLOAD_TSO4 = 0x02;   // segmentation of TCP over IPv4
+    int OFFLOAD_UFO  = 0x04;   // fragmentation of UDP
+
     InetAddress getInetAddress();
     int getNetMask();
     void send(SendPacket packet);
+    /**
+     * Send a packet, its fragments are gathered by the device
+     */
     void send(EthernetAddr destination, Packet packet, short protocol);
+    /**
+     * @return maximum number of fragments in a packet passed to send()
+     */
+    int getTransmitFragments();
+    /**
+     * @return the OFFLOAD flags the device accepted
+     */
+    int getOffloads();
     int getMtu();
     void setMtu(int mtu);
     void setNetMask(int mask);
     void setInetAddress(InetAddress inetAddress);
+    /**
+     * @return the hardware address of a neighbour or null, a request is sent
+     * when it is unknown
+     */
     EthernetAddr arp(InetAddress inet);
+    /**
+     * Send an IPv4 packet to a neighbour. The packet is queued while the
+     * hardware address is resolved and dropped if it cannot be.
+     */
+    void send(int nextHop, Packet packet);
+    /**
+     * @return a number that changes when a resolved neighbour changes or
+     * expires, hardware addresses from arp() are good until it does
+     */
+    int getArpGeneration();
     EthernetAddr getEthernetAddress();
     void setEthernetAddress(EthernetAddr macAddress);
 }
@@ -0,0 +1,145 @@
+package org.jam.net;
+
+/**
+ * Path MTU cache (RFC 1191).
+ *
+ * Holds the MTU learned from ICMP fragmentation needed messages for each
+ * destination. Entries expire after TIMEOUT so a larger path MTU is found
+ * again when the route changes. The table is indexed by a hash of the
+ * destination and probes a few slots, when they are all taken the entry that
+ * expires first is replaced.
+ *
+ * Most destinations never have an entry, get() does not take the lock while
+ * the cache is empty.
+ */
+final class PathMtu
+{
+    /*
+     * Smallest MTU accepted from a message, smaller ones are raised to it
+     */
+    final static int MIN_MTU = 552;
+    final static long TIMEOUT = 10 * 60 * 1000;
+    private final static int PROBES = 4;
+
+    private final int mask;
+    private final int destinations[];
+    private final int mtus[];
+    private final long expires[];
+    private volatile int count;
+
+    /*
+     * Statistics
+     */
+    private int updates;
+    private int replaced;
+
+    /**
+     * @param size number of entries, a power of 2
+     */
+    PathMtu(int size)
+    {
+        mask = size - 1;
+        destinations = new int[size];
+        mtus = new int[size];
+        expires = new long[size];
+    }
+
+    private int hash(int destination)
+    {
+        return ((destination * 0x9E3779B9) >>> 16) & mask;
+    }
+
+    /*
+     * Slot of the destination or -1
+     */
+    private int find(int destination)
+    {
+        for(int probe = 0, slot = hash(destination); probe < PROBES; probe++, slot = (slot + 1) & mask)
+        {
+            if(mtus[slot] != 0 && destinations[slot] == destination)
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param mtu MTU of the interface
+     * @return the path MTU of the destination, at most mtu
+     */
+    int get(int destination, int mtu, long now)
+    {
+        if(count == 0)
+        {
+            return mtu;
+        }
+        synchronized (this)
+        {
+            int slot = find(destination);
+            if(slot >= 0 && expires[slot] > now && mtus[slot] < mtu)
+            {
+                return mtus[slot];
+            }
+        }
+        return mtu;
+    }
+
+    /**
+     * Record a smaller path MTU for a destination
+     *
+     * @return true when the path MTU of the destination went down
+     */
+    synchronized boolean update(int destination, int mtu, long now)
+    {
+        if(mtu < MIN_MTU)
+        {
+            mtu = MIN_MTU;
+        }
+        int slot = find(destination);
+        if(slot >= 0)
+        {
+            if(expires[slot] > now && mtus[slot] <= mtu)
+            {
+                return false;
+            }
+        }
+        else
+        {
+            /*
+             * Take a free slot or the one that expires first
+             */
+            slot = hash(destination);
+            for(int probe = 0, next = slot; probe < PROBES; probe++, next = (next + 1) & mask)
+            {
+                if(mtus[next] == 0)
+                {
+                    slot = next;
+                    break;
+                }
+                if(expires[next] < expires[slot])
+                {
+                    slot = next;
+                }
+            }
+            if(mtus[slot] != 0)
+            {
+                replaced++;
+            }
+            else
+            {
+                count++;
+            }
+        }
+        destinations[slot] = destination;
+        mtus[slot] = mtu;
+        expires[slot] = now + TIMEOUT;
+        updates++;
+        return true;
+    }
+
+    public String toString()
+    {
+        return "pmtu entries " + count + " updates " + updates + " replaced " + replaced;
+    }
+}
@@ -0,0 +1,22 @@
+package org.jam.net;
+
+/**
+ * Told by a socket that it may have become ready for some operations. It is
+ * called with the socket locked, often by the thread that processes received
+ * packets, so it must only record the event and return.
+ *
+ * The event bits have the values of the SelectionKey operations.
+ */
+public interface ReadyListener
+{
+    int READ    = 1 << 0;
+    int WRITE   = 1 << 2;
+    int CONNECT = 1 << 3;
+    int ACCEPT  = 1 << 4;
+    int ALL     = READ | WRITE | CONNECT | ACCEPT;
+
+    /**
+     * @param events operations whose readiness may have changed
+     */
+    void ready(int events);
+}
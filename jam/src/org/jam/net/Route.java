@@ -1,13 +1,12 @@
 package org.jam.net;
 
 import org.jam.net.inet4.InetAddress;
-import org.jikesrvm.VM;
-import org.jam.driver.net.I82559c;
-import org.jam.net.NetworkInterface;
-import java.net.NoRouteToHostException;
-import java.util.ArrayList;
-import java.util.ListIterator;
 
+/**
+ * An IPv4 route. The routes are kept in a longest prefix match trie, see Fib.
+ * Users that keep a route check getGeneration() to see if the table changed
+ * since the route was found.
+ */
 public class Route {
 	private static final boolean DEBUG = false;
     NetworkInterface networkIf;
@@ -17,7 +16,7 @@ public class Route {
 	int metric;
 	int prefix;
 	
-	private static ArrayList<Route> routeTable = new ArrayList<Route>();
+	private static final Fib routeTable = new Fib();
 	
 	public Route(NetworkInterface net)
 	{
@@ -48,7 +47,7 @@ public class Route {
 	{
 	}
 
-	final public void deleteAll()
+	final public static void deleteAll()
 	{
 	    routeTable.clear();
 	}
@@ -75,43 +74,8 @@ public class Route {
 	 */
     final private int toPrefix(int netmask)
     {
-        int prefix=0;
-        
-        if(netmask==0xFFFFFFFF) prefix=32;
-        else if(netmask==0) prefix=0;
-        else if(netmask==0xFFFFFF00) prefix=24;
-        else if(netmask==0xFFFF0000) prefix=16;
-        else if(netmask==0xFF000000) prefix=8;
-        else if(netmask==0xFFFFFFFE) prefix=31;
-        else if(netmask==0xFFFFFFFC) prefix=30;
-        else if(netmask==0xFFFFFFF8) prefix=29;
-        else if(netmask==0xFFFFFFF0) prefix=28;
-        else if(netmask==0xFFFFFFE0) prefix=27;
-        else if(netmask==0xFFFFFFC0) prefix=26;
-        else if(netmask==0xFFFFFF80) prefix=25;
-        else if(netmask==0xFFFFFE00) prefix=23;
-        else if(netmask==0xFFFFFC00) prefix=22;
-        else if(netmask==0xFFFFF800) prefix=21;
-        else if(netmask==0xFFFFF000) prefix=20;
-        else if(netmask==0xFFFFE000) prefix=19;
-        else if(netmask==0xFFFFC000) prefix=18;
-        else if(netmask==0xFFFF8000) prefix=17;
-        else if(netmask==0xFFFE0000) prefix=15;
-        else if(netmask==0xFFFC0000) prefix=14;
-        else if(netmask==0xFFF80000) prefix=13;
-        else if(netmask==0xFFF00000) prefix=12;
-        else if(netmask==0xFFE00000) prefix=11;
-        else if(netmask==0xFFC00000) prefix=10;
-        else if(netmask==0xFF800000) prefix=9;
-        else if(netmask==0xFE000000) prefix=7;
-        else if(netmask==0xFC000000) prefix=6;
-        else if(netmask==0xF8000000) prefix=5;
-        else if(netmask==0xF0000000) prefix=4;
-        else if(netmask==0xE0000000) prefix=3;
-        else if(netmask==0xC0000000) prefix=2;
-        else if(netmask==0x80000000) prefix=1;
-        else throw new RuntimeException("Invalid NETMASK! "+Integer.toHexString(netmask));
-        
+        int prefix = Integer.bitCount(netmask);
+        if(toNetmask(prefix) != netmask) throw new RuntimeException("Invalid NETMASK! "+Integer.toHexString(netmask));
         return prefix;
     }
 
@@ -130,6 +94,18 @@ public class Route {
         return gateway;
     }
 
+    /**
+     * @see #nextHop(InetAddress)
+     */
+    public int nextHop(int address)
+    {
+        if(gateway == null || gateway.inet4() == 0)
+        {
+            return address;
+        }
+        return gateway.inet4();
+    }
+
     public int getNetmask()
     {
         return netmask;
@@ -157,22 +133,17 @@ public class Route {
 	}
 
 	private static void addRoute(Route newRoute) {
-		if(routeTable.isEmpty()) routeTable.add(newRoute);
-        else
-        {
-            ListIterator<Route> routeIter = routeTable.listIterator();
-            while(routeIter.hasNext())
-            {
-                Route route = routeIter.next();
-                if(newRoute.prefix > route.prefix)
-                {
-                		routeIter.previous();
-                    routeIter.add(newRoute);
-                    return;
-                }
-            }
-            routeTable.add(newRoute);
-        }
+		int network = newRoute.destination == null ? 0 : newRoute.destination.inet4();
+		routeTable.add(network, newRoute.prefix, newRoute);
+	}
+
+	/**
+	 * Delete the route of a destination prefix
+	 * @return the route deleted or null
+	 */
+	final public static Route deleteRoute(InetAddress destination, int prefix)
+	{
+	    return routeTable.delete(destination.inet4(), prefix);
 	}
 	
     final public static void addRoute(InetAddress destination, InetAddress gateway, int netmask, int metric, NetworkInterface net)
@@ -182,24 +153,51 @@ public class Route {
 
     public static Route find(InetAddress address)
     {
-        if(DEBUG) System.out.println("routing " + address);
-        for(Route route: routeTable)
+        Route route = routeTable.lookup(address.inet4());
+        if(route == null)
         {
-            if(DEBUG) System.out.println("route "+route);
-            if(route.canRoute(address))
-            {
-                if(DEBUG) System.out.println("route found: "+route);
-                return route;
-            }
+            System.out.println("Cannot find a route");
+            throw new RuntimeException("No Route Found");
         }
-        System.out.println("Cannot find a route");
-        throw new RuntimeException("No Route Found");
+        if(DEBUG) System.out.println("route found: "+route);
+        return route;
     }
 
-    private boolean canRoute(InetAddress address)
+    /**
+     * Longest prefix match
+     * @return the route or null
+     */
+    public static Route lookup(int address)
     {
-        
-        return (address.inet4() & netmask) == destination.inet4();
+        return routeTable.lookup(address);
+    }
+
+    /**
+     * @return a number that changes whenever a route is added or deleted
+     */
+    public static int getGeneration()
+    {
+        return routeTable.getGeneration();
+    }
+
+    /**
+     * @return all routes, in no particular order
+     */
+    public static Route[] getRoutes()
+    {
+        return routeTable.routes();
+    }
+
+    /**
+     * @return the gateway, or the destination itself when it is on the link
+     */
+    public InetAddress nextHop(InetAddress address)
+    {
+        if(gateway == null || gateway.inet4() == 0)
+        {
+            return address;
+        }
+        return gateway;
     }
 
     public static void addRoute(InetAddress destination, InetAddress gateway, int netmask, NetworkInterface netIf)
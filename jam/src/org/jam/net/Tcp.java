@@ -0,0 +1,2254 @@
+package org.jam.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+
+import org.jam.board.pc.Platform;
+import org.jam.driver.net.Packet;
+import org.jam.net.inet4.InetAddress;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
+import org.jam.system.TimerEntry;
+import org.jikesrvm.runtime.Time;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * TCP engine (RFC 793) for one socket.
+ *
+ * Supports window scaling (RFC 7323), selective acknowledgments (RFC 2018),
+ * slow start, congestion avoidance, fast retransmit and NewReno fast
+ * recovery (RFC 5681, RFC 6582) and the retransmit timer from RFC 6298.
+ *
+ * Received segments come in on the protocol processor thread through receive(),
+ * the timers are run from the work queue and the socket calls come from the
+ * application. All of them synchronize on the Tcp object.
+ */
+public class Tcp
+{
+    private final static boolean DEBUG = false;
+
+    final static int HEADER_SIZE = 20;
+    final static int MAX_WINDOW_SHIFT = 14;
+    private final static int SYN_OPTIONS_SIZE = 12;
+    /*
+     * MSS assumed when the peer does not send the option (RFC 1122)
+     */
+    private final static int DEFAULT_MSS = 536;
+    private final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_BUFFER_SIZE = 1 << 20;
+    private final static int DUPACK_THRESHOLD = 3;
+    private final static int MAX_RETRIES = 12;
+    private final static int MAX_SYN_RETRIES = 6;
+    private final static int MSL = 30000;
+    private final static int DELAYED_ACK = 40;
+    private final static int KEEPALIVE_IDLE = 2 * 60 * 60 * 1000;
+    private final static int KEEPALIVE_INTERVAL = 75000;
+    private final static int KEEPALIVE_PROBES = 9;
+    private final static int MAX_SACK_REPORT = 3;
+    private final static int OPTION_NOPS = 0x01010101;
+
+    /*
+     * Protocol statistics, the connections count their own
+     */
+    static final StatsGroup stats = new StatsGroup("tcp");
+    private static final Counter received = stats.counter("received");
+    private static final Counter sent = stats.counter("sent");
+    private static final Counter checksumErrors = stats.counter("checksum errors");
+    private static final Counter resetsSent = stats.counter("resets sent");
+    /*
+     * Segments are received by the protocol processor and loopback threads
+     * at the same time, each parses into its own
+     */
+    private static final ThreadLocal<TcpSegment> rxSegment = new ThreadLocal<TcpSegment>()
+    {
+        protected TcpSegment initialValue()
+        {
+            return new TcpSegment();
+        }
+    };
+
+    private TcpState state = TcpState.CLOSED;
+    private InetAddress localAddress;
+    private int localPort;
+    private InetAddress remoteAddress;
+    private int remotePort;
+    private Connection connection;
+    private Ip ip;
+
+    /*
+     * Send sequence variables
+     */
+    private int iss;
+    private int sndUna;
+    private int sndNxt;
+    private int sndMax;
+    private int sndWnd;
+    private int sndWl1;
+    private int sndWl2;
+    private int sndShift;
+    private int mss = DEFAULT_MSS;
+    private TcpBuffer sendBuffer;
+    private boolean finQueued;
+    private boolean finSent;
+    private boolean finAcked;
+    private int finSequence;
+    private boolean outputShutdown;
+
+    /*
+     * Receive sequence variables
+     */
+    private int irs;
+    private int rcvNxt;
+    private int rcvShift;
+    private int rcvAdvertised;
+    private TcpBuffer receiveBuffer;
+    private TcpSack outOfOrder = new TcpSack();
+    private boolean finReceived;
+    private boolean remoteFinPending;
+    private int remoteFinSequence;
+    private boolean inputShutdown;
+    private boolean windowScaling;
+    private boolean sackEnabled;
+    private int ackPending;
+    private long delayedAckTimer;
+    private final int reportLeft[] = new int[MAX_SACK_REPORT];
+    private final int reportRight[] = new int[MAX_SACK_REPORT];
+
+    /*
+     * Congestion control
+     */
+    private int cwnd;
+    private int ssthresh;
+    private int bytesAcked;
+    private int dupAcks;
+    private boolean inRecovery;
+    private int recover;
+    private int highRetransmit;
+    private TcpSack scoreboard = new TcpSack();
+    private TcpRtt rtt = new TcpRtt();
+    private boolean rttTiming;
+    private int rttSequence;
+    private long rttStart;
+
+    /*
+     * Timers, absolute time in milliseconds, 0 when not running
+     */
+    private long retransmitTimer;
+    private long persistTimer;
+    /*
+     * Zero window probes back off on their own, they never time out the
+     * connection and must not inflate the retransmission timeout
+     */
+    private int persistBackoff;
+    private long timeWaitTimer;
+    private long lastReceive;
+    private int keepaliveProbes;
+    /*
+     * One timer entry for all of them, armed for the earliest. A timer that
+     * is stopped leaves the entry armed, it expires early, finds nothing to
+     * do and is armed again for the next one.
+     */
+    private final TimerEntry timerEntry = new TimerEntry()
+    {
+        public void expired()
+        {
+            TcpTable.expired(Tcp.this);
+        }
+    };
+    /*
+     * Time the entry is armed for, 0 when it is not
+     */
+    private long timerArmed;
+    /*
+     * Link of the TcpTable list of expired connections
+     */
+    Tcp nextExpired;
+    boolean timerExpired;
+
+    /*
+     * Listening sockets
+     */
+    private Tcp listener;
+    private LinkedList<Tcp> acceptQueue;
+    private int backlog;
+    /*
+     * Children still in SYN_RECEIVED, they count against the backlog so a
+     * SYN flood cannot fill the heap with connections
+     */
+    private int halfOpenCount;
+    private boolean halfOpen;
+
+    /*
+     * Non-blocking use
+     */
+    private ReadyListener readyListener;
+    private boolean connectPending;
+
+    /*
+     * Socket options
+     */
+    private int timeout;
+    private boolean noDelay;
+    private boolean keepAlive;
+    private boolean reuseAddress;
+    private boolean oobInline;
+    private int linger = -1;
+    private int tos;
+    private int receiveBufferSize = DEFAULT_BUFFER_SIZE;
+    private int sendBufferSize = DEFAULT_BUFFER_SIZE;
+    private IOException error;
+
+    /*
+     * Statistics
+     */
+    private long bytesSent;
+    private long bytesReceived;
+    private int segmentsSent;
+    private int segmentsReceived;
+    private int retransmits;
+    private int fastRetransmits;
+    private int timeouts;
+
+    public Tcp()
+    {
+        ip = new Ip();
+    }
+
+    /*
+     * Create a connection for a SYN received by a listener
+     */
+    private Tcp(Tcp listener, int localInet, int remoteInet, int remotePort)
+    {
+        this();
+        this.listener = listener;
+        localPort = listener.localPort;
+        localAddress = new InetAddress(localInet);
+        remoteAddress = new InetAddress(remoteInet);
+        this.remotePort = remotePort;
+        noDelay = listener.noDelay;
+        keepAlive = listener.keepAlive;
+        linger = listener.linger;
+        receiveBufferSize = listener.receiveBufferSize;
+        sendBufferSize = listener.sendBufferSize;
+    }
+
+    /*
+     * Sequence number comparisons modulo 2^32
+     */
+    static boolean seqLt(int a, int b)
+    {
+        return (a - b) < 0;
+    }
+
+    static boolean seqLeq(int a, int b)
+    {
+        return (a - b) <= 0;
+    }
+
+    static boolean seqGt(int a, int b)
+    {
+        return (a - b) > 0;
+    }
+
+    static boolean seqGeq(int a, int b)
+    {
+        return (a - b) >= 0;
+    }
+
+    /**
+     * Bind the socket to a local address and port. A port of 0 picks an
+     * ephemeral port.
+     */
+    public synchronized void bind(InetSocketAddress address) throws IOException
+    {
+        if(localPort != 0)
+        {
+            throw new BindException("Already bound");
+        }
+        int port = address.getPort();
+        if(port == 0)
+        {
+            port = TcpTable.ephemeralPort();
+            if(port == 0)
+            {
+                throw new BindException("No ephemeral ports available");
+            }
+        }
+        else if(!reuseAddress && TcpTable.inUse(port))
+        {
+            throw new BindException("Address already in use");
+        }
+        java.net.InetAddress inet = address.getAddress();
+        if(inet != null && !inet.isAnyLocalAddress())
+        {
+            localAddress = new InetAddress(inet);
+        }
+        localPort = port;
+    }
+
+    /**
+     * Actively open a connection.
+     *
+     * @param address remote address
+     * @param timeout milliseconds to wait for the connection, 0 waits forever
+     */
+    public synchronized void connect(InetSocketAddress address, int timeout) throws IOException
+    {
+        startConnect(address);
+        awaitConnect(timeout > 0 ? Time.currentTimeMillis() + timeout : 0, true);
+    }
+
+    /**
+     * Send the SYN without waiting for the connection, finishConnect()
+     * completes it
+     *
+     * @param address remote address
+     */
+    public synchronized void startConnect(InetSocketAddress address) throws IOException
+    {
+        if(state != TcpState.CLOSED)
+        {
+            throw new SocketException("Already connected");
+        }
+        if(localPort == 0)
+        {
+            bind(new InetSocketAddress(0));
+        }
+        remoteAddress = new InetAddress(address.getAddress());
+        remotePort = address.getPort();
+        Route route;
+        try
+        {
+            route = Route.find(remoteAddress);
+        }
+        catch (RuntimeException e)
+        {
+            throw new NoRouteToHostException(remoteAddress.toString());
+        }
+        if(localAddress == null)
+        {
+            localAddress = route.getNetworkIf().getInetAddress();
+        }
+        connection = new Connection(localAddress, remoteAddress, IpProto.TCP);
+        initialize();
+        mss = pathMss();
+        state = TcpState.SYN_SENT;
+        connectPending = true;
+        TcpTable.add(this);
+        sendSyn(TcpSegment.SYN);
+    }
+
+    /**
+     * Complete a connection started by startConnect()
+     *
+     * @param block wait for the handshake to finish
+     * @return true when connected, false while the handshake is in progress
+     */
+    public synchronized boolean finishConnect(boolean block) throws IOException
+    {
+        return awaitConnect(0, block);
+    }
+
+    private boolean awaitConnect(long deadline, boolean block) throws IOException
+    {
+        while(state == TcpState.SYN_SENT || state == TcpState.SYN_RECEIVED)
+        {
+            if(!block)
+            {
+                return false;
+            }
+            try
+            {
+                waitFor(deadline, "connect timed out");
+            }
+            catch (IOException e)
+            {
+                connectPending = false;
+                abort();
+                throw e;
+            }
+        }
+        connectPending = false;
+        if(error != null)
+        {
+            throw error;
+        }
+        if(state == TcpState.CLOSED)
+        {
+            throw new SocketException("Connection closed");
+        }
+        return true;
+    }
+
+    /**
+     * Put the socket in the listen state
+     *
+     * @param backlog maximum connections waiting for accept(), those still
+     *        in the handshake included
+     */
+    public synchronized void listen(int backlog) throws IOException
+    {
+        if(state == TcpState.LISTEN)
+        {
+            this.backlog = Math.max(backlog, 1);
+            return;
+        }
+        if(state != TcpState.CLOSED)
+        {
+            throw new SocketException("Socket is connected");
+        }
+        if(localPort == 0)
+        {
+            bind(new InetSocketAddress(0));
+        }
+        this.backlog = Math.max(backlog, 1);
+        acceptQueue = new LinkedList<Tcp>();
+        if(!TcpTable.listen(this))
+        {
+            throw new BindException("Address already in use");
+        }
+        state = TcpState.LISTEN;
+    }
+
+    /**
+     * Wait for an established connection
+     *
+     * @return the new connection
+     */
+    public synchronized Tcp accept() throws IOException
+    {
+        if(state != TcpState.LISTEN)
+        {
+            throw new SocketException("Socket is not listening");
+        }
+        long deadline = timeout > 0 ? Time.currentTimeMillis() + timeout : 0;
+        while(acceptQueue.isEmpty())
+        {
+            waitFor(deadline, "Accept timed out");
+            if(state != TcpState.LISTEN)
+            {
+                throw new SocketException("Socket is closed");
+            }
+        }
+        return acceptQueue.removeFirst();
+    }
+
+    /**
+     * @return an established connection or null when none is waiting
+     */
+    public synchronized Tcp acceptNow() throws IOException
+    {
+        if(state != TcpState.LISTEN)
+        {
+            throw new SocketException("Socket is not listening");
+        }
+        return acceptQueue.isEmpty() ? null : acceptQueue.removeFirst();
+    }
+
+    /**
+     * Read received data. Blocks until data is available, the remote side
+     * closes or SO_TIMEOUT expires.
+     *
+     * @return number of bytes read or -1 at end of stream
+     */
+    public synchronized int read(byte buffer[], int offset, int length) throws IOException
+    {
+        return read(buffer, offset, length, true);
+    }
+
+    /**
+     * @param block false returns 0 instead of waiting for data
+     * @return number of bytes read or -1 at end of stream
+     */
+    public synchronized int read(byte buffer[], int offset, int length, boolean block) throws IOException
+    {
+        if(length == 0)
+        {
+            return 0;
+        }
+        long deadline = timeout > 0 ? Time.currentTimeMillis() + timeout : 0;
+        while(receiveBuffer == null || receiveBuffer.available() == 0)
+        {
+            if(error != null)
+            {
+                throw error;
+            }
+            if(finReceived || inputShutdown || (state == TcpState.CLOSED && receiveBuffer != null))
+            {
+                return -1;
+            }
+            if(state == TcpState.CLOSED || state == TcpState.LISTEN)
+            {
+                throw new SocketException("Socket is not connected");
+            }
+            if(!block)
+            {
+                return 0;
+            }
+            waitFor(deadline, "Read timed out");
+        }
+        int count = receiveBuffer.read(buffer, offset, length);
+        /*
+         * Let the peer know if the window opened up by a useful amount
+         */
+        if(state.canReceive()
+           && receiveBuffer.space() - rcvAdvertised >= Math.min(receiveBuffer.size() >> 1, mss << 1))
+        {
+            sendAck();
+        }
+        return count;
+    }
+
+    /**
+     * @return a single byte or -1 at end of stream
+     */
+    public int read() throws IOException
+    {
+        byte data[] = new byte[1];
+        return read(data, 0, 1) == -1 ? -1 : data[0] & 0xFF;
+    }
+
+    /**
+     * Queue data for transmission. Blocks while the send buffer is full.
+     */
+    public synchronized void write(byte buffer[], int offset, int length) throws IOException
+    {
+        write(buffer, offset, length, true);
+    }
+
+    /**
+     * @param block false returns when the send buffer is full instead of
+     * waiting for space
+     * @return number of bytes queued
+     */
+    public synchronized int write(byte buffer[], int offset, int length, boolean block) throws IOException
+    {
+        int total = 0;
+        while(length > 0)
+        {
+            if(error != null)
+            {
+                throw error;
+            }
+            if(outputShutdown)
+            {
+                throw new SocketException("Socket output is shutdown");
+            }
+            if(!state.canSend())
+            {
+                if(state != TcpState.SYN_SENT && state != TcpState.SYN_RECEIVED)
+                {
+                    throw new SocketException("Socket is not connected");
+                }
+            }
+            else
+            {
+                int written = sendBuffer.write(buffer, offset, length);
+                offset += written;
+                length -= written;
+                total += written;
+                if(written > 0)
+                {
+                    output();
+                }
+            }
+            if(length > 0)
+            {
+                if(!block)
+                {
+                    break;
+                }
+                waitFor(0, null);
+            }
+        }
+        return total;
+    }
+
+    public void write(int data) throws IOException
+    {
+        byte buffer[] = new byte[1];
+        buffer[0] = (byte)data;
+        write(buffer, 0, 1);
+    }
+
+    /**
+     * @return bytes that can be read without blocking
+     */
+    public synchronized int available() throws IOException
+    {
+        if(receiveBuffer == null)
+        {
+            if(state == TcpState.CLOSED)
+            {
+                throw new SocketException("Socket is not connected");
+            }
+            return 0;
+        }
+        return receiveBuffer.available();
+    }
+
+    /**
+     * Close the socket. Queued data is sent followed by a FIN. Unread
+     * received data or SO_LINGER of 0 resets the connection.
+     */
+    public void close() throws IOException
+    {
+        Tcp pending[] = null;
+        synchronized (this)
+        {
+            switch (state)
+            {
+            case LISTEN:
+                TcpTable.unlisten(this);
+                state = TcpState.CLOSED;
+                pending = acceptQueue.toArray(new Tcp[acceptQueue.size()]);
+                acceptQueue.clear();
+                wakeup(ReadyListener.ACCEPT);
+                break;
+            case SYN_SENT:
+                closeConnection();
+                break;
+            case SYN_RECEIVED:
+                abort();
+                break;
+            case ESTABLISHED:
+            case CLOSE_WAIT:
+                if(linger == 0 || (receiveBuffer.available() > 0 && !inputShutdown))
+                {
+                    abort();
+                }
+                else
+                {
+                    inputShutdown = true;
+                    shutdownOutput();
+                    lingerWait();
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        /*
+         * Connections that were never accepted are reset outside of the listener lock
+         */
+        if(pending != null)
+        {
+            for(int index = 0; index < pending.length; index++)
+            {
+                pending[index].close();
+            }
+        }
+    }
+
+    private void lingerWait() throws IOException
+    {
+        if(linger <= 0)
+        {
+            return;
+        }
+        long deadline = Time.currentTimeMillis() + linger * 1000L;
+        try
+        {
+            while(!finAcked && state != TcpState.CLOSED)
+            {
+                waitFor(deadline, null);
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            // linger time expired, the connection keeps closing in the background
+        }
+    }
+
+    public synchronized void shutdownInput()
+    {
+        inputShutdown = true;
+        if(receiveBuffer != null)
+        {
+            receiveBuffer.skip(receiveBuffer.available());
+        }
+        wakeup(ReadyListener.READ);
+    }
+
+    public synchronized void shutdownOutput()
+    {
+        if(outputShutdown)
+        {
+            return;
+        }
+        outputShutdown = true;
+        if(state == TcpState.ESTABLISHED)
+        {
+            state = TcpState.FIN_WAIT_1;
+        }
+        else if(state == TcpState.CLOSE_WAIT)
+        {
+            state = TcpState.LAST_ACK;
+        }
+        else
+        {
+            return;
+        }
+        finQueued = true;
+        output();
+    }
+
+    /**
+     * Urgent data is not supported, the byte is sent inline
+     */
+    public void sendUrgentData(int data) throws IOException
+    {
+        write(data);
+    }
+
+    public synchronized void setOption(int optionId, Object value) throws SocketException
+    {
+        switch (optionId)
+        {
+        case SocketOptions.SO_TIMEOUT:
+            timeout = ((Integer)value).intValue();
+            break;
+        case SocketOptions.TCP_NODELAY:
+            noDelay = ((Boolean)value).booleanValue();
+            if(noDelay && state.canSend())
+            {
+                output();
+            }
+            break;
+        case SocketOptions.SO_KEEPALIVE:
+            keepAlive = ((Boolean)value).booleanValue();
+            if(keepAlive && state == TcpState.ESTABLISHED)
+            {
+                arm(keepaliveTimer());
+            }
+            break;
+        case SocketOptions.SO_REUSEADDR:
+            reuseAddress = ((Boolean)value).booleanValue();
+            break;
+        case SocketOptions.SO_OOBINLINE:
+            oobInline = ((Boolean)value).booleanValue();
+            break;
+        case SocketOptions.SO_LINGER:
+            if(value instanceof Integer)
+            {
+                linger = ((Integer)value).intValue();
+            }
+            else
+            {
+                linger = -1;
+            }
+            break;
+        case SocketOptions.SO_RCVBUF:
+            if(receiveBuffer == null)
+            {
+                receiveBufferSize = bufferSize(value);
+            }
+            break;
+        case SocketOptions.SO_SNDBUF:
+            if(sendBuffer == null)
+            {
+                sendBufferSize = bufferSize(value);
+            }
+            break;
+        case SocketOptions.IP_TOS:
+            tos = ((Integer)value).intValue();
+            break;
+        default:
+            throw new SocketException("Unrecognized TCP option: " + optionId);
+        }
+    }
+
+    private static int bufferSize(Object value) throws SocketException
+    {
+        int size = ((Integer)value).intValue();
+        if(size <= 0)
+        {
+            throw new SocketException("Invalid buffer size " + size);
+        }
+        return Math.min(size, MAX_BUFFER_SIZE);
+    }
+
+    public synchronized Object getOption(int optionId) throws SocketException
+    {
+        switch (optionId)
+        {
+        case SocketOptions.SO_TIMEOUT:
+            return Integer.valueOf(timeout);
+        case SocketOptions.TCP_NODELAY:
+            return Boolean.valueOf(noDelay);
+        case SocketOptions.SO_KEEPALIVE:
+            return Boolean.valueOf(keepAlive);
+        case SocketOptions.SO_REUSEADDR:
+            return Boolean.valueOf(reuseAddress);
+        case SocketOptions.SO_OOBINLINE:
+            return Boolean.valueOf(oobInline);
+        case SocketOptions.SO_LINGER:
+            return linger < 0 ? (Object)Boolean.FALSE : Integer.valueOf(linger);
+        case SocketOptions.SO_RCVBUF:
+            return Integer.valueOf(receiveBufferSize);
+        case SocketOptions.SO_SNDBUF:
+            return Integer.valueOf(sendBufferSize);
+        case SocketOptions.IP_TOS:
+            return Integer.valueOf(tos);
+        default:
+            throw new SocketException("Unrecognized TCP option: " + optionId);
+        }
+    }
+
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    public int getRemotePort()
+    {
+        return remotePort;
+    }
+
+    int getRemoteInet()
+    {
+        return remoteAddress == null ? 0 : remoteAddress.inet4();
+    }
+
+    public TcpState getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the local socket address, the wildcard address if not bound to one
+     */
+    public InetSocketAddress getLocalAddress()
+    {
+        if(localAddress == null)
+        {
+            return new InetSocketAddress(localPort);
+        }
+        return socketAddress(localAddress, localPort);
+    }
+
+    /**
+     * @return the remote socket address or null if not connected
+     */
+    public InetSocketAddress getRemoteAddress()
+    {
+        if(remoteAddress == null)
+        {
+            return null;
+        }
+        return socketAddress(remoteAddress, remotePort);
+    }
+
+    private static InetSocketAddress socketAddress(InetAddress address, int port)
+    {
+        try
+        {
+            return new InetSocketAddress(java.net.InetAddress.getByAddress(address.asArray()), port);
+        }
+        catch (UnknownHostException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Set the listener told about readiness changes, null removes it
+     */
+    public synchronized void setReadyListener(ReadyListener listener)
+    {
+        readyListener = listener;
+    }
+
+    public synchronized ReadyListener getReadyListener()
+    {
+        return readyListener;
+    }
+
+    /**
+     * @return the operations that would not block now as ReadyListener
+     * events. Errors and end of stream count as ready so the caller finds
+     * out about them.
+     */
+    public synchronized int readyOps()
+    {
+        if(state == TcpState.LISTEN)
+        {
+            return acceptQueue.isEmpty() ? 0 : ReadyListener.ACCEPT;
+        }
+        if(connectPending)
+        {
+            return state == TcpState.SYN_SENT || state == TcpState.SYN_RECEIVED ? 0 : ReadyListener.CONNECT;
+        }
+        if(error != null || state == TcpState.CLOSED)
+        {
+            return ReadyListener.ALL;
+        }
+        int ops = 0;
+        if((receiveBuffer != null && receiveBuffer.available() > 0) || finReceived || inputShutdown)
+        {
+            ops |= ReadyListener.READ;
+        }
+        if(outputShutdown || (state.canSend() && sendBuffer.space() > 0))
+        {
+            ops |= ReadyListener.WRITE;
+        }
+        return ops;
+    }
+
+    /*
+     * Wake up the threads waiting on the socket and tell the listener
+     */
+    private void wakeup(int events)
+    {
+        notifyAll();
+        if(readyListener != null)
+        {
+            readyListener.ready(events);
+        }
+    }
+
+    /**
+     * Wait to be notified of a state change
+     *
+     * @param deadline absolute time to give up or 0 to wait forever
+     * @param message timeout exception message
+     */
+    private void waitFor(long deadline, String message) throws IOException
+    {
+        try
+        {
+            if(deadline == 0)
+            {
+                wait();
+            }
+            else
+            {
+                long remaining = deadline - Time.currentTimeMillis();
+                if(remaining <= 0)
+                {
+                    throw new SocketTimeoutException(message);
+                }
+                wait(remaining);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+     * Setup the buffers and the initial send sequence
+     */
+    private void initialize()
+    {
+        sendBuffer = new TcpBuffer(sendBufferSize);
+        receiveBuffer = new TcpBuffer(receiveBufferSize);
+        /*
+         * Offer the smallest scale that lets the whole receive buffer be advertised
+         */
+        rcvShift = 0;
+        while(rcvShift < MAX_WINDOW_SHIFT && (receiveBuffer.size() >> rcvShift) > 0xFFFF)
+        {
+            rcvShift++;
+        }
+        /*
+         * Clock driven ISS (RFC 793) mixed with the connection ports and address
+         */
+        iss = (int)(Time.nanoTime() >> 12) + ((localPort << 16) ^ remotePort ^ getRemoteInet()) * 0x9E3779B9;
+        sndUna = iss;
+        sndNxt = iss;
+        sndMax = iss;
+        ssthresh = Integer.MAX_VALUE >> 1;
+        lastReceive = Time.currentTimeMillis();
+    }
+
+    /**
+     * @return the MSS of the outgoing interface, the one advertised
+     */
+    private int localMss()
+    {
+        return Ip.mtu(connection.getNetworkInterface()) - Ip.HEADER_SIZE - HEADER_SIZE;
+    }
+
+    /**
+     * @return the MSS the path to the remote end takes
+     */
+    private int pathMss()
+    {
+        return Ip.pathMtu(connection.getNetworkInterface(), getRemoteInet()) - Ip.HEADER_SIZE - HEADER_SIZE;
+    }
+
+    /*
+     * Apply the options from a received SYN
+     */
+    private void negotiate(TcpSegment segment)
+    {
+        mss = Math.min(pathMss(), segment.mss > 0 ? segment.mss : DEFAULT_MSS);
+        windowScaling = segment.windowScale >= 0;
+        if(windowScaling)
+        {
+            sndShift = segment.windowScale;
+        }
+        else
+        {
+            sndShift = 0;
+            rcvShift = 0;
+        }
+        sackEnabled = segment.sackPermitted;
+        /*
+         * Initial window from RFC 6928
+         */
+        cwnd = Math.min(10 * mss, Math.max(2 * mss, 14600));
+    }
+
+    /**
+     * Called by the IP layer for every TCP segment
+     *
+     * @param packet packet that starts at the TCP header
+     * @param source remote address
+     * @param destination local address
+     * @param length length of the TCP header and data
+     */
+    static void receive(Packet packet, int source, int destination, int length)
+    {
+        received.inc();
+        Address header = packet.getPacketAddress();
+        if(!packet.isChecksumValid() && checksum(header, length, source, destination) != 0)
+        {
+            checksumErrors.inc();
+            return;
+        }
+        TcpSegment segment = rxSegment.get();
+        if(!segment.parse(header, length))
+        {
+            return;
+        }
+        if(DEBUG) System.out.println("rx " + segment);
+        Tcp tcp = TcpTable.find(segment.destinationPort, source, segment.sourcePort);
+        if(tcp == null)
+        {
+            if(!segment.isSet(TcpSegment.RST))
+            {
+                reset(segment, source, destination);
+            }
+            return;
+        }
+        tcp.input(segment, source, destination);
+    }
+
+    /**
+     * Called for an ICMP fragmentation needed that quotes a segment of the
+     * connection. The MSS goes down to fit the new path MTU.
+     */
+    static void pathMtuChanged(int localPort, int remote, int remotePort, int mtu)
+    {
+        Tcp tcp = TcpTable.find(localPort, remote, remotePort);
+        if(tcp != null && tcp.getRemotePort() == remotePort && tcp.getRemoteInet() == remote)
+        {
+            tcp.pathMtuChanged(mtu);
+        }
+    }
+
+    /**
+     * Called for an ICMP port or protocol unreachable that quotes a segment
+     * of the connection
+     */
+    static void unreachable(int localPort, int remote, int remotePort)
+    {
+        Tcp tcp = TcpTable.find(localPort, remote, remotePort);
+        if(tcp != null && tcp.getRemotePort() == remotePort && tcp.getRemoteInet() == remote)
+        {
+            tcp.unreachable();
+        }
+    }
+
+    private synchronized void pathMtuChanged(int mtu)
+    {
+        int pathMss = mtu - Ip.HEADER_SIZE - HEADER_SIZE;
+        if(pathMss >= mss)
+        {
+            return;
+        }
+        mss = pathMss;
+        if(state == TcpState.SYN_SENT || state == TcpState.SYN_RECEIVED || sndNxt == sndUna
+           || (finSent && !finAcked && sndUna == finSequence))
+        {
+            return;
+        }
+        /*
+         * The router dropped the segments in flight, send them again in the
+         * new size. It is not a loss from congestion so the window stays.
+         */
+        scoreboard.clear();
+        sndNxt = sndUna;
+        highRetransmit = sndUna;
+        retransmits++;
+        output();
+    }
+
+    /*
+     * A hard error is only fatal while connecting (RFC 1122 4.2.3.9)
+     */
+    private synchronized void unreachable()
+    {
+        if(state == TcpState.SYN_SENT)
+        {
+            error = new ConnectException("Connection refused");
+            closeConnection();
+        }
+    }
+
+    /**
+     * Compute the TCP checksum including the pseudo header
+     *
+     * @return the checksum in host order, 0 when verifying a received segment that is correct
+     */
+    static int checksum(Address data, int length, int source, int destination)
+    {
+        return Checksum.checksum(data, length, source, destination, IpProto.TCP.protocol());
+    }
+
+    /*
+     * Send a reset in response to a segment that has no connection
+     */
+    private static void reset(TcpSegment segment, int source, int destination)
+    {
+        Connection connection;
+        try
+        {
+            connection = new Connection(new InetAddress(destination), new InetAddress(source), IpProto.TCP);
+        }
+        catch (RuntimeException e)
+        {
+            return;
+        }
+        if(segment.isSet(TcpSegment.ACK))
+        {
+            sendControl(connection, segment.destinationPort, segment.sourcePort, segment.acknowledge, 0,
+                        TcpSegment.RST);
+        }
+        else
+        {
+            sendControl(connection, segment.destinationPort, segment.sourcePort, 0,
+                        segment.sequence + segment.sequenceLength(), TcpSegment.RST | TcpSegment.ACK);
+        }
+    }
+
+    private static void sendControl(Connection connection, int sourcePort, int destinationPort, int sequence,
+                                    int acknowledge, int flags)
+    {
+        InetPacket packet = new InetPacket(HEADER_SIZE, connection);
+        Address header = packet.getPacketAddress();
+        writeHeader(header, sourcePort, destinationPort, sequence, acknowledge, HEADER_SIZE, flags, 0);
+        setChecksum(packet, HEADER_SIZE, connection);
+        new Ip().send(packet);
+        sent.inc();
+        resetsSent.inc();
+    }
+
+    /*
+     * Compute the checksum of a segment or leave it to the device
+     */
+    private static void setChecksum(InetPacket packet, int length, Connection connection)
+    {
+        Address header = packet.getPacketAddress();
+        if((connection.getNetworkInterface().getOffloads() & NetworkInterface.OFFLOAD_CSUM) != 0)
+        {
+            // the device sums the segment on top of the pseudo header sum
+            header.store((short)Checksum.pseudoHeader(connection.getLocalInet(), connection.getRemoteInet(),
+                                                      IpProto.TCP.protocol(), length),
+                         TcpSegment.CHECKSUM);
+            packet.setChecksumOffload(TcpSegment.CHECKSUM.toInt());
+            return;
+        }
+        header.store((short)0, TcpSegment.CHECKSUM);
+        header.store((short)checksum(header, length, connection.getLocalInet(), connection.getRemoteInet()),
+                     TcpSegment.CHECKSUM);
+    }
+
+    private static void writeHeader(Address header, int sourcePort, int destinationPort, int sequence,
+                                    int acknowledge, int headerLength, int flags, int window)
+    {
+        header.store(ByteOrder.hostToNetwork((short)sourcePort), TcpSegment.SOURCE_PORT);
+        header.store(ByteOrder.hostToNetwork((short)destinationPort), TcpSegment.DESTINATION_PORT);
+        header.store(ByteOrder.hostToNetwork(sequence), TcpSegment.SEQUENCE);
+        header.store(ByteOrder.hostToNetwork(acknowledge), TcpSegment.ACKNOWLEDGE);
+        header.store((byte)((headerLength >> 2) << 4), TcpSegment.DATA_OFFSET);
+        header.store((byte)flags, TcpSegment.FLAGS);
+        header.store(ByteOrder.hostToNetwork((short)window), TcpSegment.WINDOW);
+        header.store((short)0, TcpSegment.CHECKSUM);
+        header.store((short)0, TcpSegment.URGENT);
+    }
+
+    /*
+     * Process a received segment. RFC 793 section 3.9 "SEGMENT ARRIVES"
+     */
+    private synchronized void input(TcpSegment segment, int source, int destination)
+    {
+        segmentsReceived++;
+        lastReceive = Time.currentTimeMillis();
+        keepaliveProbes = 0;
+        switch (state)
+        {
+        case CLOSED:
+            return;
+        case LISTEN:
+            listenInput(segment, source, destination);
+            return;
+        case SYN_SENT:
+            synSentInput(segment);
+            return;
+        default:
+            break;
+        }
+        /*
+         * Check the segment is in the receive window
+         */
+        if(!acceptable(segment))
+        {
+            if(!segment.isSet(TcpSegment.RST))
+            {
+                sendAck();
+            }
+            return;
+        }
+        /*
+         * No room for the data, the ACK, window and RST of the segment are
+         * still processed (RFC 793) and a FIN sent with the data waits for
+         * it. The segment keeps its length so it is not taken for a
+         * duplicate ACK.
+         */
+        boolean dataDropped = segment.dataLength > 0 && receiveBuffer.space() == 0;
+        if(segment.isSet(TcpSegment.RST))
+        {
+            if(state == TcpState.SYN_RECEIVED && listener != null)
+            {
+                closeConnection();
+            }
+            else
+            {
+                error = new SocketException("Connection reset");
+                closeConnection();
+            }
+            return;
+        }
+        if(segment.isSet(TcpSegment.SYN))
+        {
+            sendControl(connection, localPort, remotePort, sndNxt, 0, TcpSegment.RST);
+            error = new SocketException("Connection reset");
+            closeConnection();
+            return;
+        }
+        if(dataDropped)
+        {
+            // tell the peer the window is still closed
+            sendAck();
+        }
+        if(!segment.isSet(TcpSegment.ACK))
+        {
+            return;
+        }
+        if(state == TcpState.SYN_RECEIVED)
+        {
+            if(seqLt(segment.acknowledge, sndUna + 1) || seqGt(segment.acknowledge, sndMax))
+            {
+                sendControl(connection, localPort, remotePort, segment.acknowledge, 0, TcpSegment.RST);
+                return;
+            }
+            established(segment);
+            leaveHalfOpen();
+            if(listener != null && !listener.queueAccept(this))
+            {
+                abort();
+                return;
+            }
+        }
+        if(!ackInput(segment))
+        {
+            return;
+        }
+        if(finSent && !finAcked && seqGt(sndUna, finSequence))
+        {
+            finAcked = true;
+            switch (state)
+            {
+            case FIN_WAIT_1:
+                state = TcpState.FIN_WAIT_2;
+                if(inputShutdown)
+                {
+                    // closed by the application, don't wait forever for the peer
+                    timeWaitTimer = arm(Time.currentTimeMillis() + 2 * MSL);
+                }
+                break;
+            case CLOSING:
+                timeWait();
+                break;
+            case LAST_ACK:
+                closeConnection();
+                return;
+            default:
+                break;
+            }
+            wakeup(ReadyListener.ALL);
+        }
+        if(state == TcpState.TIME_WAIT)
+        {
+            if(segment.isSet(TcpSegment.FIN))
+            {
+                sendAck();
+                timeWait();
+            }
+            return;
+        }
+        if(dataDropped)
+        {
+            output();
+            return;
+        }
+        if(segment.dataLength > 0 && state.canReceive())
+        {
+            dataInput(segment);
+        }
+        if(segment.isSet(TcpSegment.FIN))
+        {
+            remoteFinPending = true;
+            remoteFinSequence = segment.sequence + segment.dataLength;
+        }
+        if(remoteFinPending && !finReceived && rcvNxt == remoteFinSequence)
+        {
+            finInput();
+        }
+        if(ackPending > 0)
+        {
+            acknowledge(segment.isSet(TcpSegment.PSH | TcpSegment.FIN));
+        }
+        output();
+    }
+
+    /*
+     * RFC 793 acceptability test
+     */
+    private boolean acceptable(TcpSegment segment)
+    {
+        int window = receiveBuffer.space();
+        int length = segment.sequenceLength();
+        int sequence = segment.sequence;
+        if(length == 0)
+        {
+            if(window == 0)
+            {
+                return sequence == rcvNxt;
+            }
+            return seqLeq(rcvNxt, sequence) && seqLt(sequence, rcvNxt + window);
+        }
+        if(window == 0)
+        {
+            // acceptable for its control fields, the data is dropped
+            return sequence == rcvNxt;
+        }
+        return (seqLeq(rcvNxt, sequence) && seqLt(sequence, rcvNxt + window))
+               || (seqLt(rcvNxt, sequence + length) && seqLeq(sequence + length - 1, rcvNxt + window));
+    }
+
+    private void listenInput(TcpSegment segment, int source, int destination)
+    {
+        if(segment.isSet(TcpSegment.RST))
+        {
+            return;
+        }
+        if(segment.isSet(TcpSegment.ACK))
+        {
+            reset(segment, source, destination);
+            return;
+        }
+        if(!segment.isSet(TcpSegment.SYN) || acceptQueue.size() + halfOpenCount >= backlog)
+        {
+            return;
+        }
+        Tcp child = new Tcp(this, destination, source, segment.sourcePort);
+        try
+        {
+            child.connection = new Connection(child.localAddress, child.remoteAddress, IpProto.TCP);
+        }
+        catch (RuntimeException e)
+        {
+            return;
+        }
+        child.synReceived(segment);
+        child.halfOpen = true;
+        halfOpenCount++;
+        TcpTable.add(child);
+    }
+
+    /*
+     * A child leaves SYN_RECEIVED, established or closed
+     */
+    private void leaveHalfOpen()
+    {
+        if(halfOpen)
+        {
+            halfOpen = false;
+            listener.halfOpenDone();
+        }
+    }
+
+    private synchronized void halfOpenDone()
+    {
+        halfOpenCount--;
+    }
+
+    private void synReceived(TcpSegment segment)
+    {
+        initialize();
+        state = TcpState.SYN_RECEIVED;
+        irs = segment.sequence;
+        rcvNxt = irs + 1;
+        negotiate(segment);
+        sndWnd = segment.window;
+        sndWl1 = segment.sequence;
+        sndWl2 = sndUna;
+        sendSyn(TcpSegment.SYN | TcpSegment.ACK);
+    }
+
+    private void synSentInput(TcpSegment segment)
+    {
+        boolean ack = segment.isSet(TcpSegment.ACK);
+        if(ack && (seqLeq(segment.acknowledge, iss) || seqGt(segment.acknowledge, sndMax)))
+        {
+            if(!segment.isSet(TcpSegment.RST))
+            {
+                sendControl(connection, localPort, remotePort, segment.acknowledge, 0, TcpSegment.RST);
+            }
+            return;
+        }
+        if(segment.isSet(TcpSegment.RST))
+        {
+            if(ack)
+            {
+                error = new ConnectException("Connection refused");
+                closeConnection();
+            }
+            return;
+        }
+        if(!segment.isSet(TcpSegment.SYN))
+        {
+            return;
+        }
+        irs = segment.sequence;
+        rcvNxt = irs + 1;
+        negotiate(segment);
+        if(ack)
+        {
+            established(segment);
+            sendAck();
+            output();
+        }
+        else
+        {
+            // simultaneous open
+            state = TcpState.SYN_RECEIVED;
+            sendSyn(TcpSegment.SYN | TcpSegment.ACK);
+        }
+    }
+
+    /*
+     * Our SYN has been acknowledged
+     */
+    private void established(TcpSegment segment)
+    {
+        state = TcpState.ESTABLISHED;
+        sndUna = segment.acknowledge;
+        if(seqLt(sndNxt, sndUna))
+        {
+            sndNxt = sndUna;
+        }
+        // The window in a SYN segment is never scaled
+        sndWnd = segment.isSet(TcpSegment.SYN) ? segment.window : segment.window << sndShift;
+        sndWl1 = segment.sequence;
+        sndWl2 = segment.acknowledge;
+        if(rttTiming)
+        {
+            if(rtt.backoffCount() == 0)
+            {
+                rtt.sample((int)(Time.currentTimeMillis() - rttStart));
+            }
+            rttTiming = false;
+        }
+        if(rtt.backoffCount() > 0)
+        {
+            // SYN was lost, start with a single segment (RFC 5681)
+            cwnd = mss;
+        }
+        retransmitTimer = 0;
+        if(keepAlive)
+        {
+            arm(keepaliveTimer());
+        }
+        wakeup(ReadyListener.CONNECT | ReadyListener.WRITE);
+    }
+
+    private synchronized boolean queueAccept(Tcp child)
+    {
+        if(state != TcpState.LISTEN)
+        {
+            return false;
+        }
+        acceptQueue.add(child);
+        wakeup(ReadyListener.ACCEPT);
+        return true;
+    }
+
+    /*
+     * Process the acknowledgment field
+     *
+     * @return false if the segment should be dropped
+     */
+    private boolean ackInput(TcpSegment segment)
+    {
+        int ack = segment.acknowledge;
+        if(seqGt(ack, sndMax))
+        {
+            sendAck();
+            return false;
+        }
+        if(seqLt(ack, sndUna))
+        {
+            // old duplicate
+            return true;
+        }
+        int window = segment.window << sndShift;
+        boolean windowChanged = window != sndWnd;
+        if(seqLt(sndWl1, segment.sequence) || (sndWl1 == segment.sequence && seqLeq(sndWl2, ack)))
+        {
+            sndWnd = window;
+            sndWl1 = segment.sequence;
+            sndWl2 = ack;
+            if(sndWnd > 0)
+            {
+                persistTimer = 0;
+                persistBackoff = 0;
+            }
+        }
+        if(sackEnabled)
+        {
+            for(int block = 0; block < segment.sackBlocks; block++)
+            {
+                int left = segment.sackLeft[block];
+                int right = segment.sackRight[block];
+                if(seqLt(ack, left) && seqLeq(right, sndMax))
+                {
+                    scoreboard.add(left, right);
+                }
+            }
+        }
+        if(ack == sndUna)
+        {
+            if(segment.dataLength == 0 && !windowChanged && sndMax != sndUna
+               && !segment.isSet(TcpSegment.SYN | TcpSegment.FIN))
+            {
+                duplicateAck();
+            }
+            return true;
+        }
+        newAck(ack);
+        return true;
+    }
+
+    private void duplicateAck()
+    {
+        dupAcks++;
+        if(inRecovery)
+        {
+            /*
+             * Each duplicate ack means a segment left the network. Fill a SACK
+             * hole if there is one, otherwise inflate the window for new data.
+             */
+            if(!retransmitHole())
+            {
+                cwnd += mss;
+            }
+        }
+        else if(dupAcks == DUPACK_THRESHOLD)
+        {
+            fastRetransmits++;
+            ssthresh = Math.max((sndMax - sndUna) >> 1, mss << 1);
+            recover = sndMax;
+            inRecovery = true;
+            highRetransmit = sndUna;
+            rttTiming = false;
+            retransmit(sndUna);
+            cwnd = ssthresh + DUPACK_THRESHOLD * mss;
+        }
+    }
+
+    /*
+     * New data has been acknowledged
+     */
+    private void newAck(int ack)
+    {
+        int acked = ack - sndUna;
+        if(rttTiming && seqGt(ack, rttSequence))
+        {
+            rtt.sample((int)(Time.currentTimeMillis() - rttStart));
+            rttTiming = false;
+        }
+        int dataAcked = Math.min(acked, sendBuffer.available());
+        sendBuffer.skip(dataAcked);
+        bytesSent += dataAcked;
+        sndUna = ack;
+        if(seqLt(sndNxt, sndUna))
+        {
+            sndNxt = sndUna;
+        }
+        scoreboard.trimBelow(sndUna);
+        if(seqLt(highRetransmit, sndUna))
+        {
+            highRetransmit = sndUna;
+        }
+        if(inRecovery)
+        {
+            if(seqGeq(ack, recover))
+            {
+                // full acknowledgment, leave fast recovery
+                inRecovery = false;
+                cwnd = Math.min(ssthresh, (sndMax - sndUna) + mss);
+                dupAcks = 0;
+            }
+            else
+            {
+                // partial acknowledgment, retransmit the next hole (RFC 6582)
+                retransmit(sndUna);
+                cwnd -= acked;
+                if(acked >= mss)
+                {
+                    cwnd += mss;
+                }
+                if(cwnd < mss)
+                {
+                    cwnd = mss;
+                }
+            }
+        }
+        else
+        {
+            dupAcks = 0;
+            if(cwnd < ssthresh)
+            {
+                // slow start with appropriate byte counting (RFC 3465)
+                cwnd += Math.min(acked, mss << 1);
+            }
+            else
+            {
+                bytesAcked += acked;
+                if(bytesAcked >= cwnd)
+                {
+                    bytesAcked -= cwnd;
+                    cwnd += mss;
+                }
+            }
+            if(cwnd > MAX_BUFFER_SIZE << 1)
+            {
+                cwnd = MAX_BUFFER_SIZE << 1;
+            }
+        }
+        if(sndUna == sndMax)
+        {
+            retransmitTimer = 0;
+        }
+        else
+        {
+            retransmitTimer = arm(Time.currentTimeMillis() + rtt.rto());
+        }
+        wakeup(ReadyListener.WRITE);
+    }
+
+    /*
+     * Copy in received data, out of order segments are held until the hole is filled
+     */
+    private void dataInput(TcpSegment segment)
+    {
+        int sequence = segment.sequence;
+        Address data = segment.data;
+        int length = segment.dataLength;
+        if(segment.isSet(TcpSegment.SYN))
+        {
+            sequence++;
+        }
+        if(seqLt(sequence, rcvNxt))
+        {
+            int trim = rcvNxt - sequence;
+            data = data.plus(trim);
+            length -= trim;
+            sequence = rcvNxt;
+        }
+        int offset = sequence - rcvNxt;
+        int window = receiveBuffer.space();
+        if(offset + length > window)
+        {
+            length = window - offset;
+        }
+        ackPending++;
+        if(length <= 0)
+        {
+            return;
+        }
+        if(inputShutdown)
+        {
+            // data is discarded but still acknowledged
+            if(offset == 0)
+            {
+                rcvNxt += length;
+            }
+            return;
+        }
+        receiveBuffer.copyIn(offset, data, length);
+        outOfOrder.add(sequence, sequence + length);
+        if(outOfOrder.left(0) == rcvNxt)
+        {
+            int end = outOfOrder.right(0);
+            receiveBuffer.extend(end - rcvNxt);
+            bytesReceived += end - rcvNxt;
+            rcvNxt = end;
+            outOfOrder.trimBelow(rcvNxt);
+            wakeup(ReadyListener.READ);
+        }
+        else
+        {
+            // out of order, ack immediately so the sender sees the duplicate
+            ackPending = 2;
+        }
+    }
+
+    private void finInput()
+    {
+        finReceived = true;
+        rcvNxt++;
+        ackPending = 2;
+        switch (state)
+        {
+        case SYN_RECEIVED:
+        case ESTABLISHED:
+            state = TcpState.CLOSE_WAIT;
+            break;
+        case FIN_WAIT_1:
+            state = TcpState.CLOSING;
+            break;
+        case FIN_WAIT_2:
+            timeWait();
+            break;
+        default:
+            break;
+        }
+        wakeup(ReadyListener.READ);
+    }
+
+    /*
+     * Acknowledge received data. Every second segment is acked at once, otherwise
+     * the ack is delayed.
+     */
+    private void acknowledge(boolean now)
+    {
+        if(now || ackPending >= 2 || !outOfOrder.isEmpty())
+        {
+            sendAck();
+        }
+        else if(delayedAckTimer == 0)
+        {
+            delayedAckTimer = arm(Time.currentTimeMillis() + DELAYED_ACK);
+        }
+    }
+
+    private void timeWait()
+    {
+        state = TcpState.TIME_WAIT;
+        retransmitTimer = 0;
+        persistTimer = 0;
+        timeWaitTimer = arm(Time.currentTimeMillis() + 2 * MSL);
+        wakeup(ReadyListener.ALL);
+    }
+
+    /*
+     * Release the connection
+     */
+    private void closeConnection()
+    {
+        state = TcpState.CLOSED;
+        retransmitTimer = 0;
+        persistTimer = 0;
+        timeWaitTimer = 0;
+        delayedAckTimer = 0;
+        Platform.timer.cancelTimer(timerEntry);
+        timerArmed = 0;
+        leaveHalfOpen();
+        TcpTable.remove(this);
+        wakeup(ReadyListener.ALL);
+    }
+
+    /*
+     * Reset the connection
+     */
+    private void abort()
+    {
+        if(state != TcpState.CLOSED && state != TcpState.SYN_SENT && state != TcpState.TIME_WAIT)
+        {
+            sendControl(connection, localPort, remotePort, sndNxt, 0, TcpSegment.RST);
+        }
+        closeConnection();
+    }
+
+    /*
+     * Send as much queued data as the windows allow
+     */
+    private void output()
+    {
+        if(!state.isSynchronized() || finAcked)
+        {
+            return;
+        }
+        int dataEnd = sndUna + sendBuffer.available();
+        int segmentSize = mss - sackOptionSize();
+        int sendSize = segmentSize;
+        if((connection.getNetworkInterface().getOffloads() & NetworkInterface.OFFLOAD_TSO4) != 0)
+        {
+            // hand the device as many whole segments as fit in one IP packet
+            int maxData = Ip.MAX_PACKET - Ip.HEADER_SIZE - HEADER_SIZE - sackOptionSize();
+            sendSize = maxData - maxData % segmentSize;
+        }
+        while(true)
+        {
+            int inFlight = sndNxt - sndUna;
+            int usable = Math.min(sndWnd, cwnd) - inFlight;
+            int length = Math.min(dataEnd - sndNxt, sendSize);
+            if(length < 0)
+            {
+                // the FIN has been sent
+                return;
+            }
+            if(length == 0 && !(finQueued && sndNxt == dataEnd))
+            {
+                return;
+            }
+            if(length > usable && usable >= segmentSize)
+            {
+                // only a large send is cut down, send the whole segments that fit
+                length = usable - usable % segmentSize;
+            }
+            else if(length > usable)
+            {
+                if(sndWnd == 0 && inFlight == 0)
+                {
+                    if(persistTimer == 0)
+                    {
+                        persistTimer = arm(Time.currentTimeMillis() + rtt.rto());
+                    }
+                    return;
+                }
+                // sender silly window avoidance, only send less than the queued data if nothing is in flight
+                if(usable <= 0 || inFlight > 0)
+                {
+                    return;
+                }
+                length = usable;
+            }
+            boolean fin = finQueued && sndNxt + length == dataEnd;
+            // Nagle, hold back a small segment while data is unacknowledged
+            if(length < segmentSize && inFlight > 0 && !noDelay && !fin)
+            {
+                return;
+            }
+            int flags = TcpSegment.ACK;
+            if(fin)
+            {
+                flags |= TcpSegment.FIN;
+            }
+            else if(sndNxt + length == dataEnd)
+            {
+                flags |= TcpSegment.PSH;
+            }
+            if(!rttTiming && sndNxt == sndMax && length > 0)
+            {
+                rttTiming = true;
+                rttSequence = sndNxt;
+                rttStart = Time.currentTimeMillis();
+            }
+            sendSegment(sndNxt, length, flags);
+            sndNxt += length;
+            if(fin)
+            {
+                finSent = true;
+                finSequence = sndNxt;
+                sndNxt++;
+            }
+            if(seqGt(sndNxt, sndMax))
+            {
+                sndMax = sndNxt;
+            }
+            if(retransmitTimer == 0)
+            {
+                retransmitTimer = arm(Time.currentTimeMillis() + rtt.rto());
+            }
+            if(fin)
+            {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Resend one segment starting at sequence
+     */
+    private void retransmit(int sequence)
+    {
+        int dataEnd = sndUna + sendBuffer.available();
+        int length = Math.min(dataEnd - sequence, mss - sackOptionSize());
+        int flags = TcpSegment.ACK;
+        if(length <= 0)
+        {
+            if(!finSent || sequence != finSequence)
+            {
+                return;
+            }
+            length = 0;
+            flags |= TcpSegment.FIN;
+        }
+        else if(finSent && sequence + length == finSequence)
+        {
+            flags |= TcpSegment.FIN;
+        }
+        retransmits++;
+        sendSegment(sequence, length, flags);
+        retransmitTimer = arm(Time.currentTimeMillis() + rtt.rto());
+    }
+
+    /*
+     * Retransmit the next hole the peer reported in its SACK blocks
+     *
+     * @return false if there is no hole to fill
+     */
+    private boolean retransmitHole()
+    {
+        if(!sackEnabled || scoreboard.isEmpty())
+        {
+            return false;
+        }
+        int sequence = scoreboard.skipSacked(highRetransmit);
+        if(!seqLt(sequence, scoreboard.highest()))
+        {
+            return false;
+        }
+        int end = scoreboard.holeEnd(sequence, sequence + mss - sackOptionSize());
+        int length = end - sequence;
+        if(length <= 0)
+        {
+            return false;
+        }
+        retransmits++;
+        sendSegment(sequence, length, TcpSegment.ACK);
+        highRetransmit = end;
+        return true;
+    }
+
+    private void sendSyn(int flags)
+    {
+        rttTiming = true;
+        rttSequence = iss;
+        rttStart = Time.currentTimeMillis();
+        sendSegment(iss, 0, flags);
+        sndNxt = iss + 1;
+        sndMax = sndNxt;
+        retransmitTimer = arm(Time.currentTimeMillis() + rtt.rto());
+    }
+
+    private void sendAck()
+    {
+        if(connection != null)
+        {
+            sendSegment(sndNxt, 0, TcpSegment.ACK);
+        }
+    }
+
+    /**
+     * @return bytes of SACK option carried on segments
+     */
+    private int sackOptionSize()
+    {
+        if(!sackEnabled || outOfOrder.isEmpty())
+        {
+            return 0;
+        }
+        return 4 + (Math.min(outOfOrder.blocks(), MAX_SACK_REPORT) << 3);
+    }
+
+    /*
+     * Build and send a segment. Data comes from the send buffer.
+     */
+    private void sendSegment(int sequence, int length, int flags)
+    {
+        boolean syn = (flags & TcpSegment.SYN) != 0;
+        int optionSize = syn ? SYN_OPTIONS_SIZE : sackOptionSize();
+        int headerLength = HEADER_SIZE + optionSize;
+        InetPacket packet = new InetPacket(headerLength + length, connection);
+        Address header = packet.getPacketAddress();
+        if(length > 0)
+        {
+            sendBuffer.copyOut(sequence - sndUna, header.plus(headerLength), length);
+        }
+        /*
+         * The window in a SYN is never scaled
+         */
+        int space = receiveBuffer.space();
+        int window = syn ? Math.min(space, 0xFFFF) : Math.min(space >> rcvShift, 0xFFFF);
+        rcvAdvertised = syn ? window : window << rcvShift;
+        writeHeader(header, localPort, remotePort, sequence, (flags & TcpSegment.ACK) != 0 ? rcvNxt : 0,
+                    headerLength, flags, window);
+        Address option = header.plus(HEADER_SIZE);
+        if(syn)
+        {
+            option.store((byte)TcpSegment.OPTION_MSS);
+            option.store((byte)4, Offset.fromIntZeroExtend(1));
+            option.store(ByteOrder.hostToNetwork((short)localMss()), Offset.fromIntZeroExtend(2));
+            /*
+             * A SYN-ACK only carries the options the peer offered (RFC 7323, RFC 2018)
+             */
+            option.store(OPTION_NOPS, Offset.fromIntZeroExtend(4));
+            option.store(OPTION_NOPS, Offset.fromIntZeroExtend(8));
+            boolean active = (flags & TcpSegment.ACK) == 0;
+            if(active || windowScaling)
+            {
+                option.store((byte)TcpSegment.OPTION_WINDOW_SCALE, Offset.fromIntZeroExtend(5));
+                option.store((byte)3, Offset.fromIntZeroExtend(6));
+                option.store((byte)rcvShift, Offset.fromIntZeroExtend(7));
+            }
+            if(active || sackEnabled)
+            {
+                option.store((byte)TcpSegment.OPTION_SACK_PERMITTED, Offset.fromIntZeroExtend(10));
+                option.store((byte)2, Offset.fromIntZeroExtend(11));
+            }
+        }
+        else if(optionSize > 0)
+        {
+            int blocks = outOfOrder.report(reportLeft, reportRight, MAX_SACK_REPORT);
+            option.store((byte)TcpSegment.OPTION_NOP);
+            option.store((byte)TcpSegment.OPTION_NOP, Offset.fromIntZeroExtend(1));
+            option.store((byte)TcpSegment.OPTION_SACK, Offset.fromIntZeroExtend(2));
+            option.store((byte)(2 + (blocks << 3)), Offset.fromIntZeroExtend(3));
+            for(int block = 0; block < blocks; block++)
+            {
+                option.store(ByteOrder.hostToNetwork(reportLeft[block]), Offset.fromIntZeroExtend(4 + (block << 3)));
+                option.store(ByteOrder.hostToNetwork(reportRight[block]), Offset.fromIntZeroExtend(8 + (block << 3)));
+            }
+        }
+        int segmentSize = mss - optionSize;
+        if(length > segmentSize)
+        {
+            // the device cuts the data into segments
+            packet.setSegmentation(Packet.GSO_TCPV4, segmentSize, headerLength);
+        }
+        setChecksum(packet, headerLength + length, connection);
+        if((flags & TcpSegment.ACK) != 0)
+        {
+            ackPending = 0;
+            delayedAckTimer = 0;
+        }
+        segmentsSent++;
+        sent.inc();
+        if(DEBUG) System.out.println("tx seq " + (sequence & 0xFFFFFFFFL) + " len " + length + " flags " + flags);
+        ip.send(packet);
+    }
+
+    /*
+     * Arm the timer entry for a deadline unless it expires earlier already
+     *
+     * @return the deadline
+     */
+    private long arm(long deadline)
+    {
+        if(timerArmed == 0 || deadline < timerArmed)
+        {
+            timerArmed = deadline;
+            Platform.timer.addTimer(timerEntry, Time.nanoTime() + (deadline - Time.currentTimeMillis()) * 1000000L);
+        }
+        return deadline;
+    }
+
+    private long keepaliveTimer()
+    {
+        return lastReceive + KEEPALIVE_IDLE + keepaliveProbes * KEEPALIVE_INTERVAL;
+    }
+
+    /**
+     * Run the timers that are due and arm the entry for the ones still
+     * running. Called from the work queue after the entry expired.
+     */
+    synchronized void timer(long now)
+    {
+        timerArmed = 0;
+        if(state == TcpState.CLOSED)
+        {
+            return;
+        }
+        runTimers(now);
+        if(state == TcpState.CLOSED)
+        {
+            return;
+        }
+        if(delayedAckTimer != 0)
+        {
+            arm(delayedAckTimer);
+        }
+        if(retransmitTimer != 0)
+        {
+            arm(retransmitTimer);
+        }
+        if(persistTimer != 0)
+        {
+            arm(persistTimer);
+        }
+        if(timeWaitTimer != 0)
+        {
+            arm(timeWaitTimer);
+        }
+        if(keepAlive && state == TcpState.ESTABLISHED)
+        {
+            arm(keepaliveTimer());
+        }
+    }
+
+    private void runTimers(long now)
+    {
+        if(delayedAckTimer != 0 && now >= delayedAckTimer)
+        {
+            sendAck();
+        }
+        if(retransmitTimer != 0 && now >= retransmitTimer)
+        {
+            retransmitTimeout(now);
+        }
+        if(persistTimer != 0 && now >= persistTimer)
+        {
+            persist(now);
+        }
+        if(timeWaitTimer != 0 && now >= timeWaitTimer)
+        {
+            closeConnection();
+        }
+        if(keepAlive && state == TcpState.ESTABLISHED && now >= keepaliveTimer())
+        {
+            if(keepaliveProbes == KEEPALIVE_PROBES)
+            {
+                error = new SocketTimeoutException("Connection timed out");
+                abort();
+                return;
+            }
+            keepaliveProbes++;
+            sendSegment(sndUna - 1, 0, TcpSegment.ACK);
+        }
+    }
+
+    private void retransmitTimeout(long now)
+    {
+        timeouts++;
+        int retries = (state == TcpState.SYN_SENT || state == TcpState.SYN_RECEIVED) ? MAX_SYN_RETRIES : MAX_RETRIES;
+        if(rtt.backoffCount() >= retries)
+        {
+            error = new SocketTimeoutException("Connection timed out");
+            abort();
+            return;
+        }
+        rtt.backoff();
+        rttTiming = false;
+        if(state == TcpState.SYN_SENT)
+        {
+            retransmits++;
+            sendSegment(iss, 0, TcpSegment.SYN);
+        }
+        else if(state == TcpState.SYN_RECEIVED)
+        {
+            retransmits++;
+            sendSegment(iss, 0, TcpSegment.SYN | TcpSegment.ACK);
+        }
+        else
+        {
+            /*
+             * Go back N, the loss window is one segment (RFC 5681)
+             */
+            ssthresh = Math.max((sndMax - sndUna) >> 1, mss << 1);
+            cwnd = mss;
+            bytesAcked = 0;
+            inRecovery = false;
+            dupAcks = 0;
+            scoreboard.clear();
+            sndNxt = sndUna;
+            highRetransmit = sndUna;
+            if(finSent && !finAcked && sndUna == finSequence)
+            {
+                retransmit(sndUna);
+                sndNxt = sndMax;
+            }
+            else
+            {
+                retransmits++;
+                retransmitTimer = 0;
+                output();
+            }
+            if(sndNxt == sndUna)
+            {
+                // nothing could be sent, the persist timer takes over
+                retransmitTimer = 0;
+                return;
+            }
+        }
+        retransmitTimer = arm(now + rtt.rto());
+    }
+
+    /*
+     * Probe a zero window with one byte. The probe is not counted as in flight
+     * so a peer that keeps its window closed does not time out the connection.
+     */
+    private void persist(long now)
+    {
+        persistTimer = 0;
+        if(sndWnd != 0 || sndNxt != sndUna || sendBuffer.available() == 0)
+        {
+            return;
+        }
+        sendSegment(sndNxt, 1, TcpSegment.ACK);
+        if(seqGt(sndNxt + 1, sndMax))
+        {
+            sndMax = sndNxt + 1;
+        }
+        if(persistBackoff < 16)
+        {
+            persistBackoff++;
+        }
+        long timeout = (long)rtt.rto() << persistBackoff;
+        persistTimer = arm(now + Math.min(timeout, TcpRtt.MAX_RTO));
+    }
+
+    /**
+     * @return the connection counters
+     */
+    public synchronized String statistics()
+    {
+        return this + " sent " + bytesSent + " received " + bytesReceived + " segments " + segmentsSent + "/"
+               + segmentsReceived + " retransmits " + retransmits + " fast " + fastRetransmits + " timeouts "
+               + timeouts + " srtt " + rtt.srtt() + " rto " + rtt.rto() + " cwnd " + cwnd + " ssthresh " + ssthresh
+               + " mss " + mss + " wscale " + sndShift + "/" + rcvShift + " sack " + sackEnabled;
+    }
+
+    public String toString()
+    {
+        return "tcp " + localAddress + ":" + localPort + " " + remoteAddress + ":" + remotePort + " " + state;
+    }
+}
@@ -0,0 +1,144 @@
+package org.jam.net;
+
+import org.jikesrvm.classloader.RVMArray;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Circular byte buffer used for the TCP send and receive queues. The size is
+ * a power of two so positions wrap with a mask.
+ *
+ * The send side keeps unacknowledged data at the head, segments are copied out
+ * at an offset from the head and skip() drops data when it is acknowledged.
+ * The receive side copies segments in at an offset from the tail so out of
+ * order data can be stored before the hole is filled, extend() makes it readable.
+ */
+class TcpBuffer
+{
+    private final byte buffer[];
+    private final int mask;
+    private final Address bufferAddr;
+    private int head;
+    private int count;
+
+    TcpBuffer(int size)
+    {
+        int capacity = Integer.highestOneBit(size);
+        if(capacity < size)
+        {
+            capacity <<= 1;
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+        bufferAddr = Magic.objectAsAddress(buffer);
+    }
+
+    /**
+     * @return the buffer capacity
+     */
+    int size()
+    {
+        return buffer.length;
+    }
+
+    /**
+     * @return bytes queued in the buffer
+     */
+    int available()
+    {
+        return count;
+    }
+
+    /**
+     * @return free space in the buffer
+     */
+    int space()
+    {
+        return buffer.length - count;
+    }
+
+    /**
+     * Append data from an array.
+     *
+     * @return bytes written, limited by the free space
+     */
+    int write(byte src[], int offset, int length)
+    {
+        length = Math.min(length, space());
+        int tail = (head + count) & mask;
+        int first = Math.min(length, buffer.length - tail);
+        RVMArray.arraycopy(src, offset, buffer, tail, first);
+        if(first < length)
+        {
+            RVMArray.arraycopy(src, offset + first, buffer, 0, length - first);
+        }
+        count += length;
+        return length;
+    }
+
+    /**
+     * Remove data into an array.
+     *
+     * @return bytes read, limited by the data available
+     */
+    int read(byte dst[], int offset, int length)
+    {
+        length = Math.min(length, count);
+        int first = Math.min(length, buffer.length - head);
+        RVMArray.arraycopy(buffer, head, dst, offset, first);
+        if(first < length)
+        {
+            RVMArray.arraycopy(buffer, 0, dst, offset + first, length - first);
+        }
+        skip(length);
+        return length;
+    }
+
+    /**
+     * Drop data from the head of the buffer
+     */
+    void skip(int length)
+    {
+        length = Math.min(length, count);
+        head = (head + length) & mask;
+        count -= length;
+    }
+
+    /**
+     * Copy data starting offset bytes from the head into memory without removing it.
+     */
+    void copyOut(int offset, Address dst, int length)
+    {
+        int start = (head + offset) & mask;
+        int first = Math.min(length, buffer.length - start);
+        Memory.memcopy(dst, bufferAddr.plus(start), first);
+        if(first < length)
+        {
+            Memory.memcopy(dst.plus(first), bufferAddr, length - first);
+        }
+    }
+
+    /**
+     * Copy data from memory into the buffer offset bytes past the tail. The data
+     * does not become available until extend() covers it.
+     */
+    void copyIn(int offset, Address src, int length)
+    {
+        int start = (head + count + offset) & mask;
+        int first = Math.min(length, buffer.length - start);
+        Memory.memcopy(bufferAddr.plus(start), src, first);
+        if(first < length)
+        {
+            Memory.memcopy(bufferAddr, src.plus(first), length - first);
+        }
+    }
+
+    /**
+     * Make length bytes past the tail available
+     */
+    void extend(int length)
+    {
+        count += length;
+    }
+}
@@ -0,0 +1,89 @@
+package org.jam.net;
+
+/**
+ * Retransmission timer calculation from RFC 6298. Times are in milliseconds.
+ * Samples from retransmitted segments are never taken (Karn's algorithm), the
+ * caller only times segments that were sent once.
+ */
+class TcpRtt
+{
+    final static int INITIAL_RTO = 1000;
+    final static int MIN_RTO     = 200;
+    final static int MAX_RTO     = 60000;
+    /*
+     * Clock granularity
+     */
+    private final static int G = 10;
+
+    private int srtt;
+    private int rttvar;
+    private int rto = INITIAL_RTO;
+    private int backoff;
+
+    /**
+     * Add a round trip time measurement
+     */
+    void sample(int rtt)
+    {
+        if(rtt < 0)
+        {
+            return;
+        }
+        if(srtt == 0)
+        {
+            srtt = rtt == 0 ? 1 : rtt;
+            rttvar = rtt >> 1;
+        }
+        else
+        {
+            int delta = srtt - rtt;
+            if(delta < 0) delta = -delta;
+            // rttvar = 3/4 rttvar + 1/4 |srtt - rtt|
+            rttvar += (delta - rttvar) >> 2;
+            // srtt = 7/8 srtt + 1/8 rtt
+            srtt += (rtt - srtt) >> 3;
+        }
+        rto = srtt + Math.max(G, rttvar << 2);
+        if(rto < MIN_RTO) rto = MIN_RTO;
+        if(rto > MAX_RTO) rto = MAX_RTO;
+        backoff = 0;
+    }
+
+    /**
+     * Called when the retransmit timer expires. Doubles the timeout.
+     */
+    void backoff()
+    {
+        if(backoff < 16)
+        {
+            backoff++;
+        }
+    }
+
+    int backoffCount()
+    {
+        return backoff;
+    }
+
+    /**
+     * @return current retransmission timeout including backoff
+     */
+    int rto()
+    {
+        long timeout = (long)rto << backoff;
+        return timeout > MAX_RTO ? MAX_RTO : (int)timeout;
+    }
+
+    /**
+     * @return smoothed round trip time
+     */
+    int srtt()
+    {
+        return srtt;
+    }
+
+    int rttvar()
+    {
+        return rttvar;
+    }
+}
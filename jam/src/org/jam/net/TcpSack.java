@@ -0,0 +1,216 @@
+package org.jam.net;
+
+/**
+ * A small sorted set of sequence ranges. The receiver uses it to track out of
+ * order data and build the SACK option (RFC 2018), the sender uses it as the
+ * scoreboard of data the peer has selectively acknowledged.
+ */
+class TcpSack
+{
+    final static int MAX_BLOCKS = 8;
+
+    private final int left[] = new int[MAX_BLOCKS];
+    private final int right[] = new int[MAX_BLOCKS];
+    private int blocks;
+    /*
+     * Block touched by the last add(), it is reported first
+     */
+    private int recentLeft;
+
+    void clear()
+    {
+        blocks = 0;
+    }
+
+    boolean isEmpty()
+    {
+        return blocks == 0;
+    }
+
+    int blocks()
+    {
+        return blocks;
+    }
+
+    int left(int block)
+    {
+        return left[block];
+    }
+
+    int right(int block)
+    {
+        return right[block];
+    }
+
+    /**
+     * Add the range [start, end) merging it with any ranges it overlaps or touches.
+     * When the set is full the highest range is dropped.
+     */
+    void add(int start, int end)
+    {
+        if(!Tcp.seqLt(start, end))
+        {
+            return;
+        }
+        int index = 0;
+        while(index < blocks && Tcp.seqLt(right[index], start))
+        {
+            index++;
+        }
+        /*
+         * Merge every block that overlaps the new range
+         */
+        int last = index;
+        while(last < blocks && Tcp.seqLeq(left[last], end))
+        {
+            if(Tcp.seqLt(left[last], start)) start = left[last];
+            if(Tcp.seqGt(right[last], end)) end = right[last];
+            last++;
+        }
+        int removed = last - index;
+        if(removed == 0)
+        {
+            if(blocks == MAX_BLOCKS)
+            {
+                if(index == blocks)
+                {
+                    return;
+                }
+                blocks--;
+            }
+            System.arraycopy(left, index, left, index + 1, blocks - index);
+            System.arraycopy(right, index, right, index + 1, blocks - index);
+            blocks++;
+        }
+        else if(removed > 1)
+        {
+            System.arraycopy(left, last, left, index + 1, blocks - last);
+            System.arraycopy(right, last, right, index + 1, blocks - last);
+            blocks -= removed - 1;
+        }
+        left[index] = start;
+        right[index] = end;
+        recentLeft = start;
+    }
+
+    /**
+     * Forget everything below sequence
+     */
+    void trimBelow(int sequence)
+    {
+        int index = 0;
+        while(index < blocks && Tcp.seqLeq(right[index], sequence))
+        {
+            index++;
+        }
+        if(index > 0)
+        {
+            System.arraycopy(left, index, left, 0, blocks - index);
+            System.arraycopy(right, index, right, 0, blocks - index);
+            blocks -= index;
+        }
+        if(blocks > 0 && Tcp.seqLt(left[0], sequence))
+        {
+            left[0] = sequence;
+        }
+    }
+
+    /**
+     * @return the right edge of the highest range
+     */
+    int highest()
+    {
+        return right[blocks - 1];
+    }
+
+    /**
+     * @return true if sequence falls within one of the ranges
+     */
+    boolean contains(int sequence)
+    {
+        for(int index = 0; index < blocks; index++)
+        {
+            if(Tcp.seqLeq(left[index], sequence) && Tcp.seqLt(sequence, right[index]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the end of the hole that starts at sequence
+     *
+     * @return left edge of the next range above sequence, or limit
+     */
+    int holeEnd(int sequence, int limit)
+    {
+        for(int index = 0; index < blocks; index++)
+        {
+            if(Tcp.seqGt(left[index], sequence))
+            {
+                return Tcp.seqLt(left[index], limit) ? left[index] : limit;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Skip sequence past any range that covers it
+     */
+    int skipSacked(int sequence)
+    {
+        for(int index = 0; index < blocks; index++)
+        {
+            if(Tcp.seqLeq(left[index], sequence) && Tcp.seqLt(sequence, right[index]))
+            {
+                return right[index];
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * @return total bytes covered by the ranges
+     */
+    int covered()
+    {
+        int total = 0;
+        for(int index = 0; index < blocks; index++)
+        {
+            total += right[index] - left[index];
+        }
+        return total;
+    }
+
+    /**
+     * Fill the SACK blocks to report, the most recently changed range goes first
+     *
+     * @return number of blocks filled
+     */
+    int report(int reportLeft[], int reportRight[], int max)
+    {
+        int count = 0;
+        for(int index = 0; index < blocks; index++)
+        {
+            if(left[index] == recentLeft)
+            {
+                reportLeft[count] = left[index];
+                reportRight[count] = right[index];
+                count++;
+                break;
+            }
+        }
+        for(int index = blocks - 1; index >= 0 && count < max; index--)
+        {
+            if(count > 0 && left[index] == reportLeft[0])
+            {
+                continue;
+            }
+            reportLeft[count] = left[index];
+            reportRight[count] = right[index];
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,182 @@
+package org.jam.net;
+
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Parses a received TCP header in place. One instance is reused for
+ * every received segment so nothing is allocated on the receive path.
+ *
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * |          Source Port          |       Destination Port        |
+ * |                        Sequence Number                        |
+ * |                    Acknowledgment Number                      |
+ * |  Data |     |N|C|E|U|A|P|R|S|F|                               |
+ * | Offset|     |S|W|C|R|C|S|S|Y|I|            Window             |
+ * |           Checksum            |         Urgent Pointer        |
+ * |                    Options                    |    Padding    |
+ */
+class TcpSegment
+{
+    final static Offset SOURCE_PORT      = Offset.fromIntSignExtend(0);
+    final static Offset DESTINATION_PORT = Offset.fromIntSignExtend(2);
+    final static Offset SEQUENCE         = Offset.fromIntSignExtend(4);
+    final static Offset ACKNOWLEDGE      = Offset.fromIntSignExtend(8);
+    final static Offset DATA_OFFSET      = Offset.fromIntSignExtend(12);
+    final static Offset FLAGS            = Offset.fromIntSignExtend(13);
+    final static Offset WINDOW           = Offset.fromIntSignExtend(14);
+    final static Offset CHECKSUM         = Offset.fromIntSignExtend(16);
+    final static Offset URGENT           = Offset.fromIntSignExtend(18);
+
+    final static int FIN = 0x01;
+    final static int SYN = 0x02;
+    final static int RST = 0x04;
+    final static int PSH = 0x08;
+    final static int ACK = 0x10;
+    final static int URG = 0x20;
+
+    final static int OPTION_END            = 0;
+    final static int OPTION_NOP            = 1;
+    final static int OPTION_MSS            = 2;
+    final static int OPTION_WINDOW_SCALE   = 3;
+    final static int OPTION_SACK_PERMITTED = 4;
+    final static int OPTION_SACK           = 5;
+    final static int OPTION_TIMESTAMP      = 8;
+
+    final static int MAX_SACK_BLOCKS = 4;
+
+    int sourcePort;
+    int destinationPort;
+    int sequence;
+    int acknowledge;
+    int flags;
+    int window;
+    int headerLength;
+    int dataLength;
+    Address data;
+    /*
+     * Options, only valid after parse()
+     */
+    int mss;
+    int windowScale;
+    boolean sackPermitted;
+    int sackBlocks;
+    final int sackLeft[] = new int[MAX_SACK_BLOCKS];
+    final int sackRight[] = new int[MAX_SACK_BLOCKS];
+
+    /**
+     * Parse the TCP header
+     *
+     * @param header start of the TCP header
+     * @param length size of the TCP header and data
+     * @return false if the header is malformed
+     */
+    boolean parse(Address header, int length)
+    {
+        if(length < Tcp.HEADER_SIZE)
+        {
+            return false;
+        }
+        headerLength = ((header.loadByte(DATA_OFFSET) & 0xF0) >> 4) << 2;
+        if(headerLength < Tcp.HEADER_SIZE || headerLength > length)
+        {
+            return false;
+        }
+        sourcePort = ByteOrder.networkToHost(header.loadShort(SOURCE_PORT)) & 0xFFFF;
+        destinationPort = ByteOrder.networkToHost(header.loadShort(DESTINATION_PORT)) & 0xFFFF;
+        sequence = ByteOrder.networkToHost(header.loadInt(SEQUENCE));
+        acknowledge = ByteOrder.networkToHost(header.loadInt(ACKNOWLEDGE));
+        flags = header.loadByte(FLAGS) & 0x3F;
+        window = ByteOrder.networkToHost(header.loadShort(WINDOW)) & 0xFFFF;
+        dataLength = length - headerLength;
+        data = header.plus(headerLength);
+        parseOptions(header);
+        return true;
+    }
+
+    private void parseOptions(Address header)
+    {
+        mss = 0;
+        windowScale = -1;
+        sackPermitted = false;
+        sackBlocks = 0;
+        int index = Tcp.HEADER_SIZE;
+        while(index < headerLength)
+        {
+            int kind = header.loadByte(Offset.fromIntZeroExtend(index)) & 0xFF;
+            if(kind == OPTION_END)
+            {
+                break;
+            }
+            if(kind == OPTION_NOP)
+            {
+                index++;
+                continue;
+            }
+            if(index + 1 >= headerLength)
+            {
+                break;
+            }
+            int optionLength = header.loadByte(Offset.fromIntZeroExtend(index + 1)) & 0xFF;
+            if(optionLength < 2 || index + optionLength > headerLength)
+            {
+                break;
+            }
+            Address option = header.plus(index + 2);
+            switch(kind)
+            {
+            case OPTION_MSS:
+                if(optionLength == 4)
+                {
+                    mss = ByteOrder.networkToHost(option.loadShort()) & 0xFFFF;
+                }
+                break;
+            case OPTION_WINDOW_SCALE:
+                if(optionLength == 3)
+                {
+                    windowScale = Math.min(option.loadByte() & 0xFF, Tcp.MAX_WINDOW_SHIFT);
+                }
+                break;
+            case OPTION_SACK_PERMITTED:
+                sackPermitted = true;
+                break;
+            case OPTION_SACK:
+                for(int block = 0; block < (optionLength - 2) >> 3 && sackBlocks < MAX_SACK_BLOCKS; block++)
+                {
+                    sackLeft[sackBlocks] = ByteOrder.networkToHost(option.loadInt(Offset.fromIntZeroExtend(block << 3)));
+                    sackRight[sackBlocks] = ByteOrder.networkToHost(option.loadInt(Offset.fromIntZeroExtend((block << 3) + 4)));
+                    sackBlocks++;
+                }
+                break;
+            default:
+                // timestamps and unknown options are ignored
+                break;
+            }
+            index += optionLength;
+        }
+    }
+
+    boolean isSet(int flag)
+    {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * @return sequence space used by the segment, SYN and FIN count as one
+     */
+    int sequenceLength()
+    {
+        int length = dataLength;
+        if(isSet(SYN)) length++;
+        if(isSet(FIN)) length++;
+        return length;
+    }
+
+    public String toString()
+    {
+        return "tcp " + sourcePort + "->" + destinationPort + " seq " + (sequence & 0xFFFFFFFFL) + " ack "
+               + (acknowledge & 0xFFFFFFFFL) + " flags " + Integer.toHexString(flags) + " win " + window + " len "
+               + dataLength;
+    }
+}
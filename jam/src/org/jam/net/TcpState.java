@@ -0,0 +1,43 @@
+package org.jam.net;
+
+/**
+ * TCP connection states from RFC 793
+ */
+public enum TcpState
+{
+    CLOSED,
+    LISTEN,
+    SYN_SENT,
+    SYN_RECEIVED,
+    ESTABLISHED,
+    FIN_WAIT_1,
+    FIN_WAIT_2,
+    CLOSE_WAIT,
+    CLOSING,
+    LAST_ACK,
+    TIME_WAIT;
+
+    /**
+     * @return true if the connection has been synchronized and data can be received
+     */
+    public boolean isSynchronized()
+    {
+        return ordinal() >= ESTABLISHED.ordinal();
+    }
+
+    /**
+     * @return true if the local side can still send data
+     */
+    public boolean canSend()
+    {
+        return this == ESTABLISHED || this == CLOSE_WAIT;
+    }
+
+    /**
+     * @return true if the remote side can still send data
+     */
+    public boolean canReceive()
+    {
+        return this == ESTABLISHED || this == FIN_WAIT_1 || this == FIN_WAIT_2;
+    }
+}
@@ -0,0 +1,184 @@
+package org.jam.net;
+
+import java.util.HashMap;
+
+import org.jam.system.DeferredWork;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Time;
+
+/**
+ * Demultiplexes received segments to TCP connections and drives the TCP timers.
+ * Connections are looked up by local port, remote port and remote address.
+ * Segments that do not match a connection go to the listener on the local port.
+ *
+ * Each connection arms its own timer entry. When it expires the timer
+ * interrupt puts the connection on the expired list and schedules the timer
+ * work, which runs the timers of the connections on the list. Connections
+ * without a running timer cost nothing.
+ *
+ * Locking order is connection then table. The table never calls into a
+ * connection while holding its own lock.
+ */
+public class TcpTable
+{
+    private final static boolean DEBUG = false;
+    private final static int EPHEMERAL_FIRST = 49152;
+    private final static int EPHEMERAL_LAST  = 65535;
+
+    private static HashMap<Long, Tcp> connections = new HashMap<Long, Tcp>();
+    private static HashMap<Integer, Tcp> listeners = new HashMap<Integer, Tcp>();
+    private static int nextEphemeral = EPHEMERAL_FIRST;
+    /*
+     * Connections whose timer expired, only changed with interrupts disabled
+     */
+    private static Tcp expired;
+    private final static DeferredWork timerWork = new DeferredWork("tcp timers")
+    {
+        public void run()
+        {
+            runTimers();
+        }
+    };
+
+    private static long key(int localPort, int remotePort, int remoteAddress)
+    {
+        return ((long)localPort << 48) | ((long)remotePort << 32) | (remoteAddress & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Find the connection for a received segment
+     *
+     * @return the connection, the listener on the local port or null
+     */
+    static synchronized Tcp find(int localPort, int remoteAddress, int remotePort)
+    {
+        Tcp tcp = connections.get(key(localPort, remotePort, remoteAddress));
+        if(tcp == null)
+        {
+            tcp = listeners.get(localPort);
+        }
+        return tcp;
+    }
+
+    static synchronized void add(Tcp tcp)
+    {
+        if(DEBUG) System.out.println("tcp add " + tcp);
+        connections.put(key(tcp.getLocalPort(), tcp.getRemotePort(), tcp.getRemoteInet()), tcp);
+    }
+
+    static synchronized void remove(Tcp tcp)
+    {
+        if(DEBUG) System.out.println("tcp remove " + tcp);
+        Long connectionKey = key(tcp.getLocalPort(), tcp.getRemotePort(), tcp.getRemoteInet());
+        if(connections.get(connectionKey) == tcp)
+        {
+            connections.remove(connectionKey);
+        }
+    }
+
+    static synchronized boolean listen(Tcp tcp)
+    {
+        if(listeners.containsKey(tcp.getLocalPort()))
+        {
+            return false;
+        }
+        listeners.put(tcp.getLocalPort(), tcp);
+        return true;
+    }
+
+    static synchronized void unlisten(Tcp tcp)
+    {
+        if(listeners.get(tcp.getLocalPort()) == tcp)
+        {
+            listeners.remove(tcp.getLocalPort());
+        }
+    }
+
+    /**
+     * @return true if a listener or connection uses the local port
+     */
+    static synchronized boolean inUse(int port)
+    {
+        if(listeners.containsKey(port))
+        {
+            return true;
+        }
+        for(Tcp tcp : connections.values())
+        {
+            if(tcp.getLocalPort() == port)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return an unused port from the ephemeral range
+     */
+    static synchronized int ephemeralPort()
+    {
+        for(int tries = EPHEMERAL_LAST - EPHEMERAL_FIRST; tries >= 0; tries--)
+        {
+            int port = nextEphemeral++;
+            if(nextEphemeral > EPHEMERAL_LAST)
+            {
+                nextEphemeral = EPHEMERAL_FIRST;
+            }
+            if(!inUse(port))
+            {
+                return port;
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * The timer entry of a connection expired, called from the timer
+     * interrupt with interrupts disabled
+     */
+    static void expired(Tcp tcp)
+    {
+        if(!tcp.timerExpired)
+        {
+            tcp.timerExpired = true;
+            tcp.nextExpired = expired;
+            expired = tcp;
+        }
+        timerWork.schedule();
+    }
+
+    private static void runTimers()
+    {
+        Magic.disableInterrupts();
+        Tcp list = expired;
+        expired = null;
+        Magic.enableInterrupts();
+        while(list != null)
+        {
+            Tcp tcp = list;
+            list = tcp.nextExpired;
+            tcp.nextExpired = null;
+            tcp.timerExpired = false;
+            tcp.timer(Time.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Print the counters of every connection
+     */
+    public static void printStatistics()
+    {
+        Tcp list[];
+        synchronized (TcpTable.class)
+        {
+            list = connections.values().toArray(new Tcp[connections.size()]);
+        }
+        // statistics() takes the connection lock
+        for(int index = 0; index < list.length; index++)
+        {
+            System.out.println(list[index].statistics());
+        }
+        System.out.println(Tcp.stats);
+    }
+}
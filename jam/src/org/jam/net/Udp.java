@@ -13,11 +13,20 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
+import java.net.SocketOptions;
+import java.net.UnknownHostException;
+
 import org.jam.driver.net.Packet;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
+import org.jikesrvm.runtime.Time;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.Offset;
 
@@ -30,47 +39,114 @@ import org.vmmagic.unboxed.Offset;
  *
  */
 public class Udp {
+	private static final int HEADER_SIZE = 8;
 	private static final Offset DESTINATION_PORT = Offset.fromIntSignExtend(2);
 	private static final Offset LENGTH = Offset.fromIntSignExtend(4);
 	private static final Offset CHECKSUM = Offset.fromIntSignExtend(6);
+	/*
+	 * Receive queue size in datagrams, must be a power of 2
+	 */
+	private static final int QUEUE_SIZE = 64;
+	private static final int DEFAULT_RECEIVE_BUFFER = 64 * 1024;
+
+	/*
+	 * Protocol statistics, the drop counters are for datagrams that never
+	 * reach a socket
+	 */
+	static final StatsGroup stats = new StatsGroup("udp");
+	private static final Counter received = stats.counter("received");
+	private static final Counter sent = stats.counter("sent");
+	private static final Counter lengthErrors = stats.counter("length errors");
+	private static final Counter checksumErrors = stats.counter("checksum errors");
+	private static final Counter noPort = stats.counter("no port");
 
-	private static final boolean DEBUG_PSEUDOHEADER = true;
-	
 	InetSocketAddress localAddress;
 	InetSocketAddress remoteAddress;
 	int ttl;
 	private Connection connection;
-	private int pseudoHeaderSum;
-	private int offset;
-	private InetPacket packet;
+	/*
+	 * Destination the connection was made for, the connection caches the
+	 * route and next hop
+	 */
+	private InetAddress connectionDestination;
 	private Ip ip;
-	private short packetChecksum;
-	
+	private int timeout;
+	private int receiveBufferSize = DEFAULT_RECEIVE_BUFFER;
+	private boolean reuseAddress;
+	private boolean broadcast;
+	private boolean closed;
+	/*
+	 * Set by an ICMP port unreachable for the connected remote end, the
+	 * next receive() reports it
+	 */
+	private boolean unreachable;
+
+	/*
+	 * Receive queue. The queue holds a reference to each received packet
+	 * until receive() copies the payload into the caller's DatagramPacket.
+	 */
+	private final Packet rxPackets[] = new Packet[QUEUE_SIZE];
+	private final int rxSources[] = new int[QUEUE_SIZE];
+	private final int rxPorts[] = new int[QUEUE_SIZE];
+	private final int rxLengths[] = new int[QUEUE_SIZE];
+	private int rxHead;
+	private int rxCount;
+	private int rxBytes;
+	private int receivers;
+
+	/*
+	 * Statistics
+	 */
+	private int datagramsReceived;
+	private long bytesReceived;
+	private int queueDrops;
+	private int datagramsSent;
+
 	public Udp()
 	{
 		ip = new Ip();
 	}
   /**
+   * Bind the socket to a local port. A port of 0 picks an ephemeral port.
+   *
    * @param inetSocketAddress
    */
   public void bind(InetSocketAddress inetSocketAddress) throws SocketException, IOException
   {
-	  localAddress = inetSocketAddress;
+    int port = inetSocketAddress.getPort();
+    if(port == 0)
+    {
+      port = UdpTable.ephemeralPort();
+    }
+    UdpTable.bind(port, this);
+    localAddress = new InetSocketAddress(inetSocketAddress.getAddress(), port);
   }
 
   /**
    * @param inetSocketAddress
    * @param i
    */
-  public void connect(InetSocketAddress inetSocketAddress, int i)
+  public void connect(InetSocketAddress inetSocketAddress, int i) throws SocketException
   {
     remoteAddress = inetSocketAddress;
     if(localAddress == null)
     {
-        localAddress = new InetSocketAddress(10000);
+      try
+      {
+        bind(new InetSocketAddress(0));
+      }
+      catch (SocketException e)
+      {
+        throw e;
+      }
+      catch (IOException e)
+      {
+        SocketException se = new SocketException();
+        se.initCause(e);
+        throw se;
+      }
     }
-    // check if address is routable
-    // Create a new connection
+    connection = null;
   }
 
   /**
@@ -103,88 +179,283 @@ public class Udp {
    */
   public void send(DatagramPacket packet) throws IOException
   {
+	  if(localAddress == null)
+	  {
+		  bind(new InetSocketAddress(0));
+	  }
 	  /*
-	   * Get a new connection
+	   * Get a new connection when the destination changes
 	   */
-      System.out.println("udp send0");
-	  if(connection == null)
+	  InetAddress destination = packet.getAddress();
+	  if(connection == null || !destination.equals(connectionDestination))
 	  {
-	      System.out.println("udp send1");
-		  connection = new Connection(localAddress, remoteAddress, IpProto.UDP);
-		  computePseudoHeaderSum();
+		  connection = newConnection(destination);
+		  connectionDestination = destination;
 	  }
-	  System.out.println("udp length: "+packet.getLength());
-	  if(packet.getLength() > 0xFFFF)
+	  if(packet.getLength() > Ip.MAX_PACKET - Ip.HEADER_SIZE - HEADER_SIZE)
 	  {
 		  throw new IOException("Packet too big");
 	  }
-	  System.out.println("get new inet packet");
-	  this.packet = new InetPacket(packet, connection);
-	  System.out.println("New inet packet");
-	  computeChecksum();
-	  Address udpPacket = this.packet.getPacketAddress();
+	  InetPacket datagram = new InetPacket(packet, connection);
+	  datagram.setHeadroom(HEADER_SIZE);
+	  Address udpPacket = datagram.getPacketAddress();
 	  // Setup the udp packet header
 	  // source port
-	  udpPacket.store((short)localAddress.getPort());
+	  udpPacket.store(ByteOrder.hostToNetwork((short)localAddress.getPort()));
 	  // desination port
-	  udpPacket.store((short)remoteAddress.getPort(), DESTINATION_PORT);
+	  udpPacket.store(ByteOrder.hostToNetwork((short)packet.getPort()), DESTINATION_PORT);
 	  // packet length
-	  udpPacket.store((short)this.packet.getSize(), LENGTH);
-	  // packet checksum
-	  udpPacket.store(packetChecksum, CHECKSUM);
+	  udpPacket.store(ByteOrder.hostToNetwork((short)datagram.getSize()), LENGTH);
+	  org.jam.net.NetworkInterface netIf = connection.getNetworkInterface();
+	  int offloads = netIf.getOffloads();
+	  int mtu = Ip.pathMtu(netIf, connection.getRemoteInet());
+	  boolean ufo = (offloads & org.jam.net.NetworkInterface.OFFLOAD_UFO) != 0 && datagram.getSize() + Ip.HEADER_SIZE > mtu;
+	  // packet checksum, fragmented in software it has to be summed here
+	  if((offloads & org.jam.net.NetworkInterface.OFFLOAD_CSUM) != 0 && (ufo || datagram.getSize() + Ip.HEADER_SIZE <= mtu))
+	  {
+		  // the device sums the datagram on top of the pseudo header sum
+		  udpPacket.store((short)Checksum.pseudoHeader(connection.getLocalInet(), connection.getRemoteInet(),
+				  IpProto.UDP.protocol(), datagram.getSize()), CHECKSUM);
+		  datagram.setChecksumOffload(CHECKSUM.toInt());
+	  }
+	  else
+	  {
+		  udpPacket.store((short)0, CHECKSUM);
+		  int csum = checksum(udpPacket, datagram.getSize(), connection.getLocalInet(), connection.getRemoteInet());
+		  // a zero checksum means no checksum was computed
+		  if(csum == 0)
+		  {
+			  csum = 0xFFFF;
+		  }
+		  // the checksum is summed in host order so it is stored as is
+		  udpPacket.store((short)csum, CHECKSUM);
+	  }
+	  if(ufo)
+	  {
+		  // the device fragments it, fragment data must be a multiple of 8 bytes
+		  datagram.setSegmentation(Packet.GSO_UDP, (mtu - Ip.HEADER_SIZE) & ~7, HEADER_SIZE);
+	  }
+	  datagramsSent++;
+	  sent.inc();
 	  // send it on for IP processing
-	  ip.send(this.packet);
+	  ip.send(datagram);
+  }
+
+  /*
+   * Use the bound address as the source, or the address of the
+   * outgoing interface when bound to the wildcard address
+   */
+  private Connection newConnection(InetAddress destination) throws NoRouteToHostException
+  {
+    org.jam.net.inet4.InetAddress remote = new org.jam.net.inet4.InetAddress(destination);
+    Route route = Route.lookup(remote.inet4());
+    if(route == null)
+    {
+      throw new NoRouteToHostException(remote.toString());
+    }
+    org.jam.net.inet4.InetAddress local;
+    InetAddress bound = localAddress.getAddress();
+    if(bound == null || bound.isAnyLocalAddress())
+    {
+      local = route.getNetworkIf().getInetAddress();
+    }
+    else
+    {
+      local = new org.jam.net.inet4.InetAddress(bound);
+    }
+    return new Connection(local, remote, IpProto.UDP);
   }
 
   /**
-   * The is the 16 bit sum of the source, destination, and protocol
-   * values
+   * Compute the UDP checksum including the pseudo header
+   *
+   * @return the checksum in host order, 0 when verifying a received datagram that is correct
    */
-  private void computePseudoHeaderSum() {
-      if(DEBUG_PSEUDOHEADER) System.out.println("computePseudoHeaderSum");
-	  // Sum up the source IP address
-	  byte[] inetAddressBytes = localAddress.getAddress().getAddress();
-	  pseudoHeaderSum = (inetAddressBytes[0]<<8) + inetAddressBytes[1];
-	  pseudoHeaderSum += (inetAddressBytes[2]<<8) + inetAddressBytes[3];
-	  // Add in the destination IP address
-	  inetAddressBytes = remoteAddress.getAddress().getAddress();
-	  pseudoHeaderSum = (inetAddressBytes[0]<<8) + inetAddressBytes[1];
-	  pseudoHeaderSum += (inetAddressBytes[2]<<8) + inetAddressBytes[3];
-	  // Add in the protocol
-	  pseudoHeaderSum += IpProto.UDP.ordinal();
-	  // Add any carry overs
-	  int carryOver = (pseudoHeaderSum>>16) & 0xFFFF;
-	  pseudoHeaderSum += carryOver;
+  static int checksum(Address data, int length, int source, int destination)
+  {
+	  return Checksum.checksum(data, length, source, destination, IpProto.UDP.protocol());
   }
 
-  private void computeChecksum()
+  /**
+   * Called by the IP layer for every UDP datagram. The datagram is validated and
+   * queued on the socket bound to the destination port.
+   *
+   * @param packet packet that starts at the UDP header
+   * @param source remote address
+   * @param destination local address
+   * @param length length of the UDP header and data from the IP header
+   * @return false when no socket is bound to the destination port
+   */
+  static boolean receive(Packet packet, int source, int destination, int length)
   {
-	  int csum = 0;
-	  
-	  Address data = packet.getPacketAddress();
-	  for(int words=packet.getSize()>>1; words > 0; words--)
-	  {
-		  csum += (data.loadShort() & 0xFFFF);
-		  data = data.plus(2);
-	  }
-	  if((packet.getSize() & 0x1) != 0)
-	  {
-		  csum += (data.loadShort() & 0x00FF);
-	  }
-	  // Add pseudo header checksum
-	  csum += pseudoHeaderSum;
-	  // Add the carry overs
-	  csum = (csum>>16) + (csum & 0xFFFF);
-	  packetChecksum = (short) ~csum;
+    received.inc();
+    Address header = packet.getPacketAddress();
+    int udpLength = ByteOrder.networkToHost(header.loadShort(LENGTH)) & 0xFFFF;
+    if(udpLength < HEADER_SIZE || udpLength > length)
+    {
+      lengthErrors.inc();
+      return true;
+    }
+    if(!packet.isChecksumValid() && header.loadShort(CHECKSUM) != 0
+       && checksum(header, udpLength, source, destination) != 0)
+    {
+      checksumErrors.inc();
+      return true;
+    }
+    int destinationPort = ByteOrder.networkToHost(header.loadShort(DESTINATION_PORT)) & 0xFFFF;
+    Udp udp = UdpTable.find(destinationPort);
+    if(udp == null)
+    {
+      noPort.inc();
+      return false;
+    }
+    int sourcePort = ByteOrder.networkToHost(header.loadShort()) & 0xFFFF;
+    packet.pull(HEADER_SIZE);
+    udp.enqueue(packet, source, sourcePort, udpLength - HEADER_SIZE);
+    return true;
   }
+
   /**
+   * Called for an ICMP port unreachable that quotes a datagram sent from
+   * localPort. Only a connected socket hears about it (RFC 1122 4.1.3.3).
+   */
+  static void unreachable(int localPort, int remote, int remotePort)
+  {
+    Udp udp = UdpTable.find(localPort);
+    if(udp != null)
+    {
+      udp.portUnreachable(remote, remotePort);
+    }
+  }
+
+  private synchronized void portUnreachable(int remote, int remotePort)
+  {
+    if(remoteAddress == null || remoteAddress.getPort() != remotePort
+       || remote != new org.jam.net.inet4.InetAddress(remoteAddress.getAddress()).inet4())
+    {
+      return;
+    }
+    unreachable = true;
+    if(receivers > 0)
+    {
+      notifyAll();
+    }
+  }
+
+  /*
+   * Add a datagram to the receive queue. A receiver is only woken up
+   * if one is waiting.
+   */
+  private synchronized void enqueue(Packet packet, int source, int sourcePort, int length)
+  {
+    if(remoteAddress != null)
+    {
+      /*
+       * Connected sockets only take datagrams from the remote end
+       */
+      if(sourcePort != remoteAddress.getPort()
+         || source != new org.jam.net.inet4.InetAddress(remoteAddress.getAddress()).inet4())
+      {
+        return;
+      }
+    }
+    if(rxCount == QUEUE_SIZE || rxBytes + length > receiveBufferSize)
+    {
+      queueDrops++;
+      return;
+    }
+    int tail = (rxHead + rxCount) & (QUEUE_SIZE - 1);
+    rxPackets[tail] = packet.retain();
+    rxSources[tail] = source;
+    rxPorts[tail] = sourcePort;
+    rxLengths[tail] = length;
+    rxCount++;
+    rxBytes += length;
+    datagramsReceived++;
+    bytesReceived += length;
+    if(receivers > 0)
+    {
+      notify();
+    }
+  }
+
+  /**
+   * Wait for a datagram and copy it into the packet. Datagrams larger than the
+   * packet buffer are truncated.
+   *
    * @param packet
-   * @return
+   * @return the address the datagram came from
    */
-  public SocketAddress receive(DatagramPacket packet) throws SocketTimeoutException,InterruptedIOException
+  public SocketAddress receive(DatagramPacket packet) throws IOException
   {
-    // TODO Auto-generated method stub
-    return null;
+    Packet rxPacket;
+    int source, sourcePort, length;
+    synchronized (this)
+    {
+      long deadline = timeout > 0 ? Time.currentTimeMillis() + timeout : 0;
+      while(rxCount == 0)
+      {
+        if(closed)
+        {
+          throw new SocketException("Socket is closed");
+        }
+        if(unreachable)
+        {
+          unreachable = false;
+          throw new PortUnreachableException();
+        }
+        long remaining = 0;
+        if(deadline != 0)
+        {
+          remaining = deadline - Time.currentTimeMillis();
+          if(remaining <= 0)
+          {
+            throw new SocketTimeoutException("Receive timed out");
+          }
+        }
+        receivers++;
+        try
+        {
+          wait(remaining);
+        }
+        catch (InterruptedException e)
+        {
+          throw new InterruptedIOException();
+        }
+        finally
+        {
+          receivers--;
+        }
+      }
+      rxPacket = rxPackets[rxHead];
+      source = rxSources[rxHead];
+      sourcePort = rxPorts[rxHead];
+      length = rxLengths[rxHead];
+      rxPackets[rxHead] = null;
+      rxHead = (rxHead + 1) & (QUEUE_SIZE - 1);
+      rxCount--;
+      rxBytes -= length;
+    }
+    /*
+     * The one and only copy of the payload, cut to the length of the
+     * caller's buffer
+     */
+    byte data[] = packet.getData();
+    int size = Math.min(length, packet.getLength());
+    Memory.memcopy(Magic.objectAsAddress(data).plus(packet.getOffset()), rxPacket.getPacketAddress(), size);
+    rxPacket.free();
+    packet.setLength(size);
+    return socketAddress(source, sourcePort);
+  }
+
+  private static InetSocketAddress socketAddress(int inet, int port) throws UnknownHostException
+  {
+    byte address[] = new byte[4];
+    address[0] = (byte)(inet >> 24);
+    address[1] = (byte)(inet >> 16);
+    address[2] = (byte)(inet >> 8);
+    address[3] = (byte)inet;
+    return new InetSocketAddress(InetAddress.getByAddress(address), port);
   }
 
   /**
@@ -201,10 +472,26 @@ public class Udp {
    * @param optionId
    * @param value
    */
-  public void setOption(int optionId, Object value)
+  public void setOption(int optionId, Object value) throws SocketException
   {
-    // TODO Auto-generated method stub
-    
+    switch(optionId)
+    {
+    case SocketOptions.SO_TIMEOUT:
+      timeout = ((Integer)value).intValue();
+      break;
+    case SocketOptions.SO_RCVBUF:
+      receiveBufferSize = ((Integer)value).intValue();
+      break;
+    case SocketOptions.SO_REUSEADDR:
+      reuseAddress = ((Boolean)value).booleanValue();
+      break;
+    case SocketOptions.SO_BROADCAST:
+      broadcast = ((Boolean)value).booleanValue();
+      break;
+    default:
+      // not supported, ignored
+      break;
+    }
   }
 
   /**
@@ -221,10 +508,21 @@ public class Udp {
    * @param optionId
    * @return
    */
-  public Object getOption(int optionId)
+  public Object getOption(int optionId) throws SocketException
   {
-    // TODO Auto-generated method stub
-    return null;
+    switch(optionId)
+    {
+    case SocketOptions.SO_TIMEOUT:
+      return Integer.valueOf(timeout);
+    case SocketOptions.SO_RCVBUF:
+      return Integer.valueOf(receiveBufferSize);
+    case SocketOptions.SO_REUSEADDR:
+      return Boolean.valueOf(reuseAddress);
+    case SocketOptions.SO_BROADCAST:
+      return Boolean.valueOf(broadcast);
+    default:
+      throw new SocketException("Unrecognized UDP option: " + optionId);
+    }
   }
 
   /**
@@ -232,8 +530,33 @@ public class Udp {
    */
   public void close() throws IOException
   {
-    // TODO Auto-generated method stub
-    
+    UdpTable.unbind(this);
+    synchronized (this)
+    {
+      closed = true;
+      for(; rxCount > 0; rxCount--)
+      {
+        rxPackets[rxHead].free();
+        rxPackets[rxHead] = null;
+        rxHead = (rxHead + 1) & (QUEUE_SIZE - 1);
+      }
+      rxBytes = 0;
+      notifyAll();
+    }
+  }
+
+  int getLocalPort()
+  {
+    return localAddress == null ? 0 : localAddress.getPort();
+  }
+
+  /**
+   * @return the socket counters
+   */
+  public synchronized String statistics()
+  {
+    return "udp " + localAddress + " received " + datagramsReceived + " bytes " + bytesReceived + " queued "
+           + rxCount + " dropped " + queueDrops + " sent " + datagramsSent;
   }
 
   /**
@@ -0,0 +1,83 @@
+package org.jam.net;
+
+import java.net.BindException;
+import java.util.HashMap;
+
+/**
+ * Demultiplexes received datagrams to UDP sockets by destination port.
+ *
+ * A port belongs to one socket. SO_REUSEADDR does not share it, without
+ * multicast groups there is no rule for which of two sockets gets a
+ * datagram, and UDP leaves no closed socket behind to reuse the port of.
+ */
+public class UdpTable
+{
+    private final static int EPHEMERAL_FIRST = 49152;
+    private final static int EPHEMERAL_LAST  = 65535;
+
+    private static HashMap<Integer, Udp> sockets = new HashMap<Integer, Udp>();
+    private static int nextEphemeral = EPHEMERAL_FIRST;
+
+    /**
+     * @return the socket bound to port or null
+     */
+    static synchronized Udp find(int port)
+    {
+        return sockets.get(port);
+    }
+
+    static synchronized void bind(int port, Udp udp) throws BindException
+    {
+        if(port == 0)
+        {
+            throw new BindException("No ephemeral ports available");
+        }
+        Udp bound = sockets.get(port);
+        if(bound != null && bound != udp)
+        {
+            throw new BindException("Address already in use");
+        }
+        sockets.put(port, udp);
+    }
+
+    static synchronized void unbind(Udp udp)
+    {
+        int port = udp.getLocalPort();
+        if(sockets.get(port) == udp)
+        {
+            sockets.remove(port);
+        }
+    }
+
+    /**
+     * @return an unused port from the ephemeral range or 0
+     */
+    static synchronized int ephemeralPort()
+    {
+        for(int tries = EPHEMERAL_LAST - EPHEMERAL_FIRST; tries >= 0; tries--)
+        {
+            int port = nextEphemeral++;
+            if(nextEphemeral > EPHEMERAL_LAST)
+            {
+                nextEphemeral = EPHEMERAL_FIRST;
+            }
+            if(!sockets.containsKey(port))
+            {
+                return port;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Print the counters of every socket
+     */
+    public static synchronized void printStatistics()
+    {
+        for(Udp udp : sockets.values())
+        {
+            System.out.println(udp.statistics());
+        }
+        System.out.println(Udp.stats);
+    }
+}
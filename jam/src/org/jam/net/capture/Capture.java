@@ -0,0 +1,290 @@
+package org.jam.net.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.jam.driver.net.Packet;
+import org.jam.net.ByteOrder;
+import org.jam.net.IpProto;
+import org.jam.net.ethernet.Ethernet;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Time;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Packet capture at the network interface boundary.
+ *
+ * Drivers record every frame they hand to the stack or put on the wire,
+ * the loopback interface records what it queues. Call sites test enabled
+ * before calling in, so a stopped capture costs one load and a branch.
+ * Frames that pass the filter are copied, up to the snap length, into a
+ * preallocated lock free ring with their TSC time stamp. Nothing is
+ * allocated and no lock is taken on the packet path.
+ *
+ * The ring is exported as a pcap file to a stream, as hex lines for the
+ * serial console, or followed live over UDP by a CaptureStream.
+ * Transmitted frames are recorded before the device fills in offloaded
+ * checksums, so those show up as wrong in the capture.
+ */
+public final class Capture
+{
+    public final static int IN = 1;
+    public final static int OUT = 2;
+    public final static int DEFAULT_SLOTS = 1024;
+    public final static int DEFAULT_SNAP_LENGTH = 128;
+    private final static Offset ETHER_TYPE = Offset.fromIntZeroExtend(12);
+    private final static Offset IP_PROTOCOL = Offset.fromIntZeroExtend(9);
+    private final static int ETHERTYPE_IPV4 = 0x0800;
+    private final static int HEX_LINE = 32;
+    /*
+     * Zero addresses in front of loopback packets, as Linux does for lo
+     */
+    private final static byte LOOPBACK_HEADER[] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x08, 0 };
+
+    /**
+     * Tested by the call sites, frame() and loopback() are only called
+     * while this is set
+     */
+    public static volatile boolean enabled;
+
+    private static CaptureRing ring = new CaptureRing(DEFAULT_SLOTS, DEFAULT_SNAP_LENGTH);
+    private static volatile CaptureFilter filter;
+    /*
+     * UDP port of a CaptureStream, its datagrams are not captured
+     */
+    private static volatile int streamPort;
+    /*
+     * TSC and clock when the capture started, to convert time stamps
+     */
+    private static long startCycles;
+    private static long startNanos;
+
+    /*
+     * Statistics, not exact
+     */
+    private static long filtered;
+
+    private Capture()
+    {
+    }
+
+    /**
+     * Start capturing, records of an earlier capture are kept
+     */
+    public static synchronized void start()
+    {
+        if(enabled)
+        {
+            return;
+        }
+        startCycles = Magic.getTimeBase();
+        startNanos = Time.nanoTime();
+        enabled = true;
+    }
+
+    public static synchronized void start(CaptureFilter captureFilter)
+    {
+        filter = captureFilter;
+        start();
+    }
+
+    public static synchronized void stop()
+    {
+        enabled = false;
+    }
+
+    /**
+     * Replace the ring. The capture must be stopped.
+     *
+     * @param slots number of records, a power of 2
+     * @param snapLength bytes kept of every frame
+     */
+    public static synchronized void configure(int slots, int snapLength)
+    {
+        if(enabled)
+        {
+            throw new RuntimeException("Capture is running");
+        }
+        ring = new CaptureRing(slots, snapLength);
+    }
+
+    /**
+     * Forget the records. The capture must be stopped.
+     */
+    public static synchronized void clear()
+    {
+        if(enabled)
+        {
+            throw new RuntimeException("Capture is running");
+        }
+        ring.clear();
+        filtered = 0;
+    }
+
+    /**
+     * Change the filter, null captures everything. Takes effect while the
+     * capture is running.
+     */
+    public static void setFilter(CaptureFilter captureFilter)
+    {
+        filter = captureFilter;
+    }
+
+    public static CaptureFilter getFilter()
+    {
+        return filter;
+    }
+
+    static void setStreamPort(int port)
+    {
+        streamPort = port;
+    }
+
+    static CaptureRing ring()
+    {
+        return ring;
+    }
+
+    /**
+     * Record a frame that starts at its Ethernet header
+     */
+    public static void frame(Packet packet, int direction)
+    {
+        Address frame = packet.getPacketAddress();
+        int length = packet.getFragmentSize(0) - Ethernet.HEADER_SIZE;
+        if(length < 0)
+        {
+            return;
+        }
+        int etherType = ByteOrder.networkToHost(frame.loadShort(ETHER_TYPE)) & 0xFFFF;
+        if(accept(etherType, frame.plus(Ethernet.HEADER_SIZE), length, direction))
+        {
+            ring.record(packet, direction, null);
+        }
+    }
+
+    /**
+     * Record an IPv4 packet sent on the loopback interface
+     */
+    public static void loopback(Packet packet)
+    {
+        if(accept(ETHERTYPE_IPV4, packet.getPacketAddress(), packet.getFragmentSize(0), OUT))
+        {
+            ring.record(packet, OUT, LOOPBACK_HEADER);
+        }
+    }
+
+    private static boolean accept(int etherType, Address header, int length, int direction)
+    {
+        CaptureFilter captureFilter = filter;
+        if(captureFilter != null && !captureFilter.accept(etherType, header, length, direction))
+        {
+            filtered++;
+            return false;
+        }
+        int port = streamPort;
+        if(port != 0 && etherType == ETHERTYPE_IPV4 && length >= 24
+           && (header.loadByte(IP_PROTOCOL) & 0xFF) == IpProto.UDP.protocol())
+        {
+            int headerLength = (header.loadByte() & 0xF) << 2;
+            if(length >= headerLength + 4
+               && (ByteOrder.networkToHost(header.loadShort(Offset.fromIntZeroExtend(headerLength + 2))) & 0xFFFF) == port)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return nanoseconds per TSC cycle measured since the capture started
+     */
+    static double scale()
+    {
+        long cycles = Magic.getTimeBase() - startCycles;
+        long nanos = Time.nanoTime() - startNanos;
+        if(cycles <= 0 || nanos <= 0)
+        {
+            return 1.0;
+        }
+        return (double)nanos / cycles;
+    }
+
+    static long nanos(long cycles, double scale)
+    {
+        return startNanos + (long)((cycles - startCycles) * scale);
+    }
+
+    /**
+     * Write the records in the ring as a pcap file
+     *
+     * @return number of records written
+     */
+    public static int export(OutputStream out) throws IOException
+    {
+        CaptureRing current = ring;
+        CaptureRing.Record record = new CaptureRing.Record(current.snapLength);
+        byte buffer[] = new byte[Pcap.RECORD_HEADER_SIZE + current.snapLength];
+        out.write(buffer, 0, Pcap.header(buffer, 0, current.snapLength));
+        double scale = scale();
+        int count = 0;
+        long head = current.head();
+        for(long position = current.tail(); position < head; position++)
+        {
+            if(current.read(position, record))
+            {
+                out.write(buffer, 0, Pcap.record(buffer, 0, nanos(record.cycles, scale), record));
+                count++;
+            }
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Write the pcap file as lines of hex digits between markers, for a
+     * console such as the serial port. Cut out the lines and turn them back
+     * into the file with xxd -r -p.
+     *
+     * @return number of records written
+     */
+    public static int exportHex(final PrintStream out) throws IOException
+    {
+        out.println("-----BEGIN PCAP-----");
+        OutputStream hex = new OutputStream()
+        {
+            private final StringBuilder line = new StringBuilder(HEX_LINE * 2);
+
+            public void write(int b)
+            {
+                line.append(Character.forDigit((b >> 4) & 0xF, 16));
+                line.append(Character.forDigit(b & 0xF, 16));
+                if(line.length() == HEX_LINE * 2)
+                {
+                    flush();
+                }
+            }
+
+            public void flush()
+            {
+                if(line.length() > 0)
+                {
+                    out.println(line);
+                    line.setLength(0);
+                }
+            }
+        };
+        int count = export(hex);
+        out.println("-----END PCAP-----");
+        return count;
+    }
+
+    public static void printStatistics()
+    {
+        CaptureRing current = ring;
+        System.out.println("capture " + (enabled ? "on" : "off") + " records " + current.head() + " ring "
+                           + current.slots + "x" + current.snapLength + " filtered " + filtered);
+    }
+}
@@ -0,0 +1,20 @@
+package org.jam.net.capture;
+
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Decides which frames are captured. It is called on the receive and
+ * transmit paths, from the driver's interrupt or poll context, so it must
+ * not block or allocate.
+ */
+public interface CaptureFilter
+{
+    /**
+     * @param etherType EtherType of the frame
+     * @param header start of the network header
+     * @param length bytes that can be read at header
+     * @param direction Capture.IN or Capture.OUT
+     * @return true to capture the frame
+     */
+    boolean accept(int etherType, Address header, int length, int direction);
+}
@@ -0,0 +1,159 @@
+package org.jam.net.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jam.driver.net.Packet;
+import org.jam.driver.net.PacketPool;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Memory;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Preallocated ring of truncated frames.
+ *
+ * Writers reserve a position with one atomic increment and never wait for
+ * each other or for readers, the oldest record is overwritten when the ring
+ * is full. Every slot carries the stamp of the position written into it,
+ * position + 1, and 0 while a write is in progress. A reader copies a slot
+ * between two reads of its stamp and drops the copy when the stamp changed,
+ * so a record overwritten during the copy is lost, never torn.
+ */
+final class CaptureRing
+{
+    /**
+     * A record copied out of the ring
+     */
+    static final class Record
+    {
+        long cycles;
+        int length;
+        int captured;
+        int direction;
+        final byte data[];
+
+        Record(int snapLength)
+        {
+            data = new byte[snapLength];
+        }
+    }
+
+    final int slots;
+    final int snapLength;
+    private final int mask;
+    private final byte data[];
+    private final long cycles[];
+    private final int lengths[];
+    private final short captured[];
+    private final byte directions[];
+    private final long stamps[];
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param slots number of records, a power of 2
+     * @param snapLength bytes kept of every frame
+     */
+    CaptureRing(int slots, int snapLength)
+    {
+        if(slots <= 0 || (slots & (slots - 1)) != 0 || snapLength < 64 || snapLength > 0xFFFF)
+        {
+            throw new RuntimeException("Bad capture ring " + slots + "x" + snapLength);
+        }
+        this.slots = slots;
+        this.snapLength = snapLength;
+        mask = slots - 1;
+        // copied into by address, so it must not move
+        data = PacketPool.newBuffer(slots * snapLength);
+        cycles = new long[slots];
+        lengths = new int[slots];
+        captured = new short[slots];
+        directions = new byte[slots];
+        stamps = new long[slots];
+    }
+
+    /**
+     * Copy the start of a frame into the next slot
+     *
+     * @param pseudoHeader bytes put in front of the packet, may be null
+     */
+    void record(Packet packet, int direction, byte pseudoHeader[])
+    {
+        long time = Magic.getTimeBase();
+        long position = next.getAndIncrement();
+        int slot = (int)position & mask;
+        stamps[slot] = 0;
+        Magic.storeStoreBarrier();
+        int base = slot * snapLength;
+        int room = snapLength;
+        int length = packet.getSize();
+        if(pseudoHeader != null)
+        {
+            System.arraycopy(pseudoHeader, 0, data, base, pseudoHeader.length);
+            room -= pseudoHeader.length;
+            length += pseudoHeader.length;
+        }
+        Address destination = Magic.objectAsAddress(data).plus(base + snapLength - room);
+        for(int fragment = 0; fragment < packet.getFragmentCount() && room > 0; fragment++)
+        {
+            int size = Math.min(room, packet.getFragmentSize(fragment));
+            Memory.memcopy(destination, packet.getFragmentAddress(fragment), size);
+            destination = destination.plus(size);
+            room -= size;
+        }
+        cycles[slot] = time;
+        lengths[slot] = length;
+        captured[slot] = (short)(snapLength - room);
+        directions[slot] = (byte)direction;
+        Magic.storeStoreBarrier();
+        stamps[slot] = position + 1;
+    }
+
+    /**
+     * @return the position the next record is written to
+     */
+    long head()
+    {
+        return next.get();
+    }
+
+    /**
+     * @return position of the oldest record that may still be in the ring
+     */
+    long tail()
+    {
+        return Math.max(0, next.get() - slots);
+    }
+
+    /**
+     * Copy the record at a position
+     *
+     * @return false when it was overwritten or is still being written
+     */
+    boolean read(long position, Record record)
+    {
+        int slot = (int)position & mask;
+        if(stamps[slot] != position + 1)
+        {
+            return false;
+        }
+        Magic.combinedLoadBarrier();
+        record.cycles = cycles[slot];
+        record.length = lengths[slot];
+        record.captured = captured[slot] & 0xFFFF;
+        record.direction = directions[slot];
+        System.arraycopy(data, slot * snapLength, record.data, 0, record.captured);
+        Magic.combinedLoadBarrier();
+        return stamps[slot] == position + 1;
+    }
+
+    /**
+     * Forget all records. Only called while nothing is captured.
+     */
+    void clear()
+    {
+        for(int slot = 0; slot < slots; slot++)
+        {
+            stamps[slot] = 0;
+        }
+        next.set(0);
+    }
+}
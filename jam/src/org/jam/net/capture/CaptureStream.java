@@ -0,0 +1,142 @@
+package org.jam.net.capture;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+
+import org.jam.net.Udp;
+
+/**
+ * Follows the capture ring and sends it over UDP as a pcap stream. The
+ * first datagram is the file header, the others carry whole records, so
+ * the datagrams written one after the other form a pcap file:
+ *
+ *   nc -lu 9000 > joe.pcap   or   nc -lu 9000 | wireshark -k -i -
+ *
+ * Records the stream falls behind on are lost and counted. The stream's
+ * own datagrams are never captured.
+ */
+public class CaptureStream
+implements Runnable
+{
+    private final static int DATAGRAM_SIZE = 1400;
+    /*
+     * Milliseconds between looks at the ring when it is caught up
+     */
+    private final static int INTERVAL = 10;
+
+    private final InetSocketAddress destination;
+    private Udp socket;
+    private volatile boolean running;
+
+    /*
+     * Statistics
+     */
+    private long records;
+    private long datagrams;
+    private long lost;
+
+    public CaptureStream(java.net.InetAddress host, int port)
+    {
+        destination = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Open the socket and start the stream thread
+     */
+    public synchronized void start() throws IOException
+    {
+        if(running)
+        {
+            return;
+        }
+        Udp udp = new Udp();
+        udp.bind(new InetSocketAddress(0));
+        socket = udp;
+        Capture.setStreamPort(destination.getPort());
+        running = true;
+        Thread streamThread = new Thread(this);
+        streamThread.setName("Capture Stream");
+        streamThread.setDaemon(true);
+        streamThread.start();
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+    }
+
+    public void run()
+    {
+        CaptureRing ring = Capture.ring();
+        CaptureRing.Record record = new CaptureRing.Record(ring.snapLength);
+        byte buffer[] = new byte[Math.max(DATAGRAM_SIZE, Pcap.RECORD_HEADER_SIZE + ring.snapLength)];
+        try
+        {
+            send(buffer, Pcap.header(buffer, 0, ring.snapLength));
+            long position = ring.tail();
+            while(running)
+            {
+                double scale = Capture.scale();
+                int length = 0;
+                long head = ring.head();
+                if(head - position > ring.slots)
+                {
+                    lost += head - ring.slots - position;
+                    position = head - ring.slots;
+                }
+                for(; position < head; position++)
+                {
+                    if(!ring.read(position, record))
+                    {
+                        lost++;
+                        continue;
+                    }
+                    if(length + Pcap.RECORD_HEADER_SIZE + record.captured > buffer.length)
+                    {
+                        send(buffer, length);
+                        length = 0;
+                    }
+                    length = Pcap.record(buffer, length, Capture.nanos(record.cycles, scale), record);
+                    records++;
+                }
+                if(length > 0)
+                {
+                    send(buffer, length);
+                }
+                Thread.sleep(INTERVAL);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            Capture.setStreamPort(0);
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // nothing left to send
+            }
+        }
+    }
+
+    private void send(byte buffer[], int length) throws IOException
+    {
+        socket.send(new DatagramPacket(buffer, length, destination));
+        datagrams++;
+    }
+
+    public String toString()
+    {
+        return "capture stream " + destination + " records " + records + " datagrams " + datagrams + " lost " + lost;
+    }
+}
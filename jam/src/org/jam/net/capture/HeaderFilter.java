@@ -0,0 +1,110 @@
+package org.jam.net.capture;
+
+import org.jam.net.ByteOrder;
+import org.jam.net.IpProto;
+import org.jam.net.inet4.InetAddress;
+import org.vmmagic.unboxed.Address;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Matches frames on their headers. Every field that is set has to match,
+ * the address and port match either the source or the destination. Ports
+ * are only found in the first fragment of a TCP or UDP datagram.
+ */
+public class HeaderFilter
+implements CaptureFilter
+{
+    private final static int ETHERTYPE_IPV4 = 0x0800;
+    private final static Offset IP_FRAGMENT = Offset.fromIntZeroExtend(6);
+    private final static Offset IP_PROTOCOL = Offset.fromIntZeroExtend(9);
+    private final static Offset IP_SOURCE = Offset.fromIntZeroExtend(12);
+    private final static Offset IP_DESTINATION = Offset.fromIntZeroExtend(16);
+    private final static int IP_OFFSET_MASK = 0x1FFF;
+    private final static int ANY = -1;
+
+    private int direction;
+    private int etherType = ANY;
+    private int protocol = ANY;
+    private int host;
+    private boolean matchHost;
+    private int port = ANY;
+
+    /**
+     * @param direction Capture.IN or Capture.OUT, 0 for both
+     */
+    public void setDirection(int direction)
+    {
+        this.direction = direction;
+    }
+
+    public void setEtherType(int etherType)
+    {
+        this.etherType = etherType & 0xFFFF;
+    }
+
+    public void setProtocol(IpProto protocol)
+    {
+        this.protocol = protocol.protocol();
+    }
+
+    public void setHost(InetAddress host)
+    {
+        this.host = host.inet4();
+        matchHost = true;
+    }
+
+    public void setPort(int port)
+    {
+        this.port = port & 0xFFFF;
+    }
+
+    public boolean accept(int etherType, Address header, int length, int direction)
+    {
+        if(this.direction != 0 && this.direction != direction)
+        {
+            return false;
+        }
+        if(this.etherType != ANY && this.etherType != etherType)
+        {
+            return false;
+        }
+        if(protocol == ANY && !matchHost && port == ANY)
+        {
+            return true;
+        }
+        if(etherType != ETHERTYPE_IPV4 || length < 20)
+        {
+            return false;
+        }
+        int ipProtocol = header.loadByte(IP_PROTOCOL) & 0xFF;
+        if(protocol != ANY && protocol != ipProtocol)
+        {
+            return false;
+        }
+        if(matchHost)
+        {
+            int source = ByteOrder.networkToHost(header.loadInt(IP_SOURCE));
+            int destination = ByteOrder.networkToHost(header.loadInt(IP_DESTINATION));
+            if(source != host && destination != host)
+            {
+                return false;
+            }
+        }
+        if(port == ANY)
+        {
+            return true;
+        }
+        if(ipProtocol != IpProto.TCP.protocol() && ipProtocol != IpProto.UDP.protocol()
+           || (ByteOrder.networkToHost(header.loadShort(IP_FRAGMENT)) & IP_OFFSET_MASK) != 0)
+        {
+            return false;
+        }
+        int headerLength = (header.loadByte() & 0xF) << 2;
+        if(length < headerLength + 4)
+        {
+            return false;
+        }
+        int ports = ByteOrder.networkToHost(header.loadInt(Offset.fromIntZeroExtend(headerLength)));
+        return (ports >>> 16) == port || (ports & 0xFFFF) == port;
+    }
+}
@@ -0,0 +1,56 @@
+package org.jam.net.capture;
+
+/**
+ * libpcap file format with nanosecond timestamps, written big endian.
+ */
+final class Pcap
+{
+    final static int HEADER_SIZE = 24;
+    final static int RECORD_HEADER_SIZE = 16;
+    private final static int MAGIC_NANOSECONDS = 0xA1B23C4D;
+    private final static int VERSION = 0x00020004;
+    private final static int LINKTYPE_ETHERNET = 1;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private Pcap()
+    {
+    }
+
+    /**
+     * @return the offset after the file header
+     */
+    static int header(byte buffer[], int offset, int snapLength)
+    {
+        offset = putInt(buffer, offset, MAGIC_NANOSECONDS);
+        offset = putInt(buffer, offset, VERSION);
+        // time zone and accuracy
+        offset = putInt(buffer, offset, 0);
+        offset = putInt(buffer, offset, 0);
+        offset = putInt(buffer, offset, snapLength);
+        return putInt(buffer, offset, LINKTYPE_ETHERNET);
+    }
+
+    /**
+     * Write a record header followed by the captured bytes
+     *
+     * @return the offset after the record
+     */
+    static int record(byte buffer[], int offset, long nanos, CaptureRing.Record record)
+    {
+        offset = putInt(buffer, offset, (int)(nanos / NANOS_PER_SECOND));
+        offset = putInt(buffer, offset, (int)(nanos % NANOS_PER_SECOND));
+        offset = putInt(buffer, offset, record.captured);
+        offset = putInt(buffer, offset, record.length);
+        System.arraycopy(record.data, 0, buffer, offset, record.captured);
+        return offset + record.captured;
+    }
+
+    private static int putInt(byte buffer[], int offset, int value)
+    {
+        buffer[offset] = (byte)(value >> 24);
+        buffer[offset + 1] = (byte)(value >> 16);
+        buffer[offset + 2] = (byte)(value >> 8);
+        buffer[offset + 3] = (byte)value;
+        return offset + 4;
+    }
+}
@@ -11,7 +11,6 @@ import org.jam.driver.net.PacketBuffer;
 import org.jam.net.ByteOrder;
 import org.jam.net.InetPacket;
 import org.jam.net.inet4.Arp;
-import org.jikesrvm.VM;
 import org.jikesrvm.runtime.Magic;
 import org.vmmagic.unboxed.Address;
 import org.vmmagic.unboxed.ObjectReference;
@@ -61,7 +60,6 @@ public class Ethernet
     }
     // ARP type
     packetAddress.store(ByteOrder.hostToNetwork(ARP_PROTO), PROTO_OFFSET);
-    VM.sysWriteln("ethernet packetaddr ", packetAddress);
   }
   
   public Ethernet(EthernetAddr dst, PacketBuffer packet, short protocol)
@@ -73,15 +71,13 @@ public class Ethernet
       packetAddress = Magic.objectAsAddress(packetArray);
       byte[] ethAddress = dst.asArray();
       targetIndex = packet.getOffset();
-      VM.sysWriteln("Ethernet new: targetIndex: ", targetIndex);
       for(srcIndex=0; srcIndex < ethAddress.length; srcIndex++, targetIndex++)
       {
         packetArray[targetIndex] = ethAddress[srcIndex];
       }
       // ARP type
-      packetAddress.store(ByteOrder.hostToNetwork(protocol), PROTO_OFFSET);
+      packet.getPacketAddress().store(ByteOrder.hostToNetwork(protocol), PROTO_OFFSET);
       this.packet = packet;
-      VM.sysWriteln("ethernet packetaddr ", packetAddress);
   }
   public Ethernet(EthernetAddr dst, Packet packet, short protocol)
   {
@@ -92,15 +88,13 @@ public class Ethernet
       packetAddress = Magic.objectAsAddress(packetArray);
       byte[] ethAddress = dst.asArray();
       targetIndex = packet.getOffset();
-      VM.sysWriteln("Ethernet new: targetIndex: ", targetIndex);
       for(srcIndex=0; srcIndex < ethAddress.length; srcIndex++, targetIndex++)
       {
         packetArray[targetIndex] = ethAddress[srcIndex];
       }
       // ARP type
-      packetAddress.store(ByteOrder.hostToNetwork(protocol), PROTO_OFFSET);
+      packet.getPacketAddress().store(ByteOrder.hostToNetwork(protocol), PROTO_OFFSET);
       this.packet = packet;
-      VM.sysWriteln("ethernet packetaddr ", packetAddress);
   }
   public byte[] getFrame()
   {
@@ -120,7 +114,7 @@ public class Ethernet
       byte[] macArray = mac.asArray();
       for(int srcIndex=0; srcIndex<6; srcIndex++)
       {
-          packetArray[srcIndex+6] = macArray[srcIndex];
+          packetArray[packet.getOffset()+srcIndex+6] = macArray[srcIndex];
       }
   }
 
@@ -128,4 +122,17 @@ public class Ethernet
     {
         return packet.getPacketAddress().loadShort(PROTO_OFFSET) == ByteOrder.networkToHost(PROTO_ARP);
     }
+
+    /**
+     * @return the EtherType of the frame in host order
+     */
+    public static short type(Packet packet)
+    {
+        return ByteOrder.networkToHost(packet.getPacketAddress().loadShort(PROTO_OFFSET));
+    }
+
+    public static boolean isIp(Packet packet)
+    {
+        return packet.getPacketAddress().loadShort(PROTO_OFFSET) == ByteOrder.networkToHost(PROTO_IP);
+    }
 }
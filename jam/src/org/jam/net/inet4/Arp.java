@@ -7,6 +7,7 @@ package org.jam.net.inet4;
 
 import org.jam.driver.net.Packet;
 import org.jam.driver.net.PacketBuffer;
+import org.jam.driver.net.PacketPool;
 import org.jam.net.ByteOrder;
 import org.jam.net.EtherType;
 import org.jam.net.NetworkInterface;
@@ -66,14 +67,22 @@ implements SendPacket
     }
 
     /**
-     * Create an ARP reply
+     * Create an ARP reply to a request for one of our addresses
      * 
      * @param request
-     * @param senderHa
+     * @param senderHa our hardware address
      */
-    public Arp(Arp request, Ethernet senderHa)
+    Arp(Arp request, EthernetAddr senderHa)
     {
-
+        hwType = HT_ETHERNET;
+        protocolType = Ethernet.PROTO_IP;
+        opCode = OP_REPLY;
+        this.senderHa = senderHa.asArray();
+        senderPa = request.targetPa;
+        targetHa = request.senderHa;
+        targetPa = request.senderPa;
+        hwAddressLen = 6;
+        protoAddrLen = 4;
     }
 
     public Arp(short hwType, short protocolType)
@@ -120,7 +129,7 @@ implements SendPacket
     public PacketBuffer getPacket()
     {
         int packetIndex = 0;
-        ArpPacket packet = new ArpPacket();
+        PacketBuffer packet = PacketPool.allocate(SIZE, Ethernet.HEADER_SIZE);
         Address packetAddr = packet.getPacketAddress();
         packetAddr.store(ByteOrder.hostToNetwork(hwType));
         packetAddr.store(ByteOrder.hostToNetwork(protocolType), PROTO_OFFSET);
@@ -135,6 +144,13 @@ implements SendPacket
         {
             packetAddr.store(senderPa[packetIndex], SENDER_PROTO_OFFSET.plus(packetIndex));
         }
+        /*
+         * The target hardware address of a request is unknown, send zeros
+         */
+        for (packetIndex = 0; packetIndex < 6; packetIndex++)
+        {
+            packetAddr.store(targetHa == null ? (byte)0 : targetHa[packetIndex], TARGET_HW_OFFSET.plus(packetIndex));
+        }
         for (packetIndex = 0; packetIndex < targetPa.length; packetIndex++)
         {
             packetAddr.store(targetPa[packetIndex], TARGET_PROTO_OFFSET.plus(packetIndex));
@@ -158,6 +174,16 @@ implements SendPacket
         return (protocolType == EtherType.IPV4.type()) && (protoAddrLen==4);
     }
     
+    public boolean isRequest()
+    {
+        return opCode == OP_REQUEST;
+    }
+
+    public boolean isReply()
+    {
+        return opCode == OP_REPLY;
+    }
+
     /*
      * return sender's ipv4 address
      */
@@ -1,38 +1,432 @@
 package org.jam.net.inet4;
 
-import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
+import org.jam.driver.net.Packet;
 import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.Statistics;
+import org.jam.net.stats.StatsGroup;
 
+/**
+ * Neighbour table keyed by IPv4 address.
+ *
+ * The table is open addressed with linear probing over parallel arrays so a
+ * lookup does not box the address or allocate. An entry is INCOMPLETE while a
+ * request is outstanding and holds the packets waiting for the reply, REACHABLE
+ * once the hardware address is known and FAILED when the retries ran out so
+ * packets to a dead host are dropped without another round of requests. All
+ * entries have an expiry time, age() removes them when it passes.
+ *
+ * Times are passed in by the caller in milliseconds.
+ */
 public class ArpTable {
-    private HashMap<Integer, EthernetAddr> table;
-    
+    /*
+     * Entry states
+     */
+    public static final byte FREE       = 0;
+    public static final byte INCOMPLETE = 1;
+    public static final byte REACHABLE  = 2;
+    public static final byte FAILED     = 3;
+
+    /*
+     * enqueue() results
+     */
+    public static final int RESOLVED = 0;   // hardware address is known, send now
+    public static final int REQUEST  = 1;   // new entry, the caller sends the first request
+    public static final int QUEUED   = 2;   // a request is already outstanding
+    public static final int DROPPED  = 3;   // negative entry or table full, caller frees the packet
+
+    /*
+     * Enough for the fragments of a 64KB datagram
+     */
+    public static final int MAX_PENDING      = 48;
+    public static final int MAX_RETRIES      = 3;
+    public static final long RETRANSMIT_TIME = 1000;
+    public static final long REACHABLE_TIME  = 120000;
+    public static final long FAILED_TIME     = 20000;
+
+    private static final int DEFAULT_SIZE = 256;
+
+    private final int mask;
+    private final int shift;
+    private final int maxEntries;
+    private int entries;
+
+    private final int inets[];
+    private final byte states[];
+    private final byte retries[];
+    private final long expires[];
+    private final EthernetAddr macs[];
+    /*
+     * MAX_PENDING packets per entry, oldest first
+     */
+    private final Packet pending[];
+    private final byte pendingCount[];
+    /*
+     * Changes when a reachable neighbour changes or goes away
+     */
+    private volatile int generation;
+
+    /*
+     * Statistics, shared with the ArpThread of the interface
+     */
+    private final StatsGroup stats = new StatsGroup(Statistics.uniqueName("arp"));
+    private final Counter hits = stats.counter("hits");
+    private final Counter misses = stats.counter("misses");
+    private final Counter overflows = stats.counter("overflows");
+    private final Counter failures = stats.counter("failures");
+    private final Counter expired = stats.counter("expired");
+
     public ArpTable()
     {
-        table = new HashMap<Integer, EthernetAddr>();
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size number of slots, a power of 2
+     */
+    public ArpTable(int size)
+    {
+        if(size < 4 || (size & (size - 1)) != 0)
+        {
+            throw new RuntimeException("ARP table size must be a power of 2");
+        }
+        mask = size - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(size);
+        maxEntries = size - (size >> 2);
+        inets = new int[size];
+        states = new byte[size];
+        retries = new byte[size];
+        expires = new long[size];
+        macs = new EthernetAddr[size];
+        pending = new Packet[size * MAX_PENDING];
+        pendingCount = new byte[size];
+    }
+
+    private int hash(int inet)
+    {
+        return (inet * 0x9E3779B9) >>> shift;
     }
-    
-    public boolean hasDevice(int inet)
+
+    /*
+     * Slot of the address or -1
+     */
+    private int find(int inet)
     {
-        return hasInet(inet);
+        for(int slot = hash(inet); states[slot] != FREE; slot = (slot + 1) & mask)
+        {
+            if(inets[slot] == inet)
+            {
+                return slot;
+            }
+        }
+        return -1;
     }
-    
-    public EthernetAddr findDevice(int inet)
+
+    /*
+     * Add an entry for an address that is not in the table, -1 when full
+     */
+    private int insert(int inet, byte state, long expire)
     {
-        System.out.println("Finding arp dev "+Integer.toHexString(inet));
-        return table.get(inet);
+        if(entries == maxEntries)
+        {
+            return -1;
+        }
+        int slot = hash(inet);
+        while(states[slot] != FREE)
+        {
+            slot = (slot + 1) & mask;
+        }
+        inets[slot] = inet;
+        states[slot] = state;
+        retries[slot] = 0;
+        expires[slot] = expire;
+        entries++;
+        return slot;
     }
-    
-    public boolean hasInet(int inet)
+
+    /*
+     * Free a slot and shift later entries of the probe sequence back so
+     * lookups do not need tombstones
+     */
+    private void remove(int slot)
+    {
+        entries--;
+        int free = slot;
+        for(int next = (slot + 1) & mask; states[next] != FREE; next = (next + 1) & mask)
+        {
+            int home = hash(inets[next]);
+            /*
+             * The entry can move into the free slot if its home slot is not
+             * cyclically in (free, next]
+             */
+            if(((next - home) & mask) >= ((next - free) & mask))
+            {
+                move(next, free);
+                free = next;
+            }
+        }
+        states[free] = FREE;
+        macs[free] = null;
+        pendingCount[free] = 0;
+        for(int index = free * MAX_PENDING; index < (free + 1) * MAX_PENDING; index++)
+        {
+            pending[index] = null;
+        }
+    }
+
+    private void move(int from, int to)
+    {
+        inets[to] = inets[from];
+        states[to] = states[from];
+        retries[to] = retries[from];
+        expires[to] = expires[from];
+        macs[to] = macs[from];
+        pendingCount[to] = pendingCount[from];
+        System.arraycopy(pending, from * MAX_PENDING, pending, to * MAX_PENDING, MAX_PENDING);
+    }
+
+    private void dropPending(int slot)
+    {
+        int base = slot * MAX_PENDING;
+        for(int index = 0; index < pendingCount[slot]; index++)
+        {
+            pending[base + index].free();
+            pending[base + index] = null;
+        }
+        pendingCount[slot] = 0;
+    }
+
+    /**
+     * @return the hardware address of a reachable neighbour or null
+     */
+    public synchronized EthernetAddr findDevice(int inet)
+    {
+        int slot = find(inet);
+        if(slot >= 0 && states[slot] == REACHABLE)
+        {
+            hits.inc();
+            return macs[slot];
+        }
+        misses.inc();
+        return null;
+    }
+
+    public synchronized boolean hasDevice(int inet)
+    {
+        int slot = find(inet);
+        return slot >= 0 && states[slot] == REACHABLE;
+    }
+
+    public synchronized boolean hasInet(int inet)
+    {
+        return find(inet) >= 0;
+    }
+
+    /**
+     * @return the state of the entry, FREE when there is none
+     */
+    public synchronized byte getState(int inet)
+    {
+        int slot = find(inet);
+        return slot < 0 ? FREE : states[slot];
+    }
+
+    /**
+     * Queue a packet for an unresolved neighbour. When the queue is full the
+     * oldest packet is dropped. The table owns the packet unless RESOLVED or
+     * DROPPED is returned.
+     *
+     * @return RESOLVED, REQUEST, QUEUED or DROPPED
+     */
+    public synchronized int enqueue(int inet, Packet packet, long now)
+    {
+        int slot = find(inet);
+        if(slot < 0)
+        {
+            slot = insert(inet, INCOMPLETE, now + RETRANSMIT_TIME);
+            if(slot < 0)
+            {
+                overflows.inc();
+                return DROPPED;
+            }
+            pending[slot * MAX_PENDING] = packet;
+            pendingCount[slot] = 1;
+            return REQUEST;
+        }
+        if(states[slot] == REACHABLE)
+        {
+            return RESOLVED;
+        }
+        if(states[slot] == FAILED)
+        {
+            return DROPPED;
+        }
+        int base = slot * MAX_PENDING;
+        int count = pendingCount[slot];
+        if(count == MAX_PENDING)
+        {
+            overflows.inc();
+            pending[base].free();
+            System.arraycopy(pending, base + 1, pending, base, MAX_PENDING - 1);
+            count--;
+        }
+        pending[base + count] = packet;
+        pendingCount[slot] = (byte)(count + 1);
+        return QUEUED;
+    }
+
+    /**
+     * Record a hardware address learned from an ARP packet. Existing entries
+     * are always updated, a new entry is only made when create is set.
+     * Packets that were waiting for the address are moved to flush.
+     *
+     * @param flush at least MAX_PENDING long
+     * @return number of packets in flush
+     */
+    public synchronized int update(int inet, EthernetAddr mac, boolean create, long now, Packet flush[])
+    {
+        int slot = find(inet);
+        if(slot < 0)
+        {
+            if(!create)
+            {
+                return 0;
+            }
+            slot = insert(inet, INCOMPLETE, 0);
+            if(slot < 0)
+            {
+                overflows.inc();
+                return 0;
+            }
+        }
+        if(states[slot] == REACHABLE && !Arrays.equals(macs[slot].asArray(), mac.asArray()))
+        {
+            generation++;
+        }
+        states[slot] = REACHABLE;
+        macs[slot] = mac;
+        retries[slot] = 0;
+        expires[slot] = now + REACHABLE_TIME;
+        int count = pendingCount[slot];
+        int base = slot * MAX_PENDING;
+        for(int index = 0; index < count; index++)
+        {
+            flush[index] = pending[base + index];
+            pending[base + index] = null;
+        }
+        pendingCount[slot] = 0;
+        return count;
+    }
+
+    /**
+     * Add a reachable neighbour
+     */
+    public void addDevice(int inet, byte[] mac)
+    {
+        Packet flush[] = new Packet[MAX_PENDING];
+        int count = update(inet, new EthernetAddr(mac), true, 0, flush);
+        for(int index = 0; index < count; index++)
+        {
+            flush[index].free();
+        }
+    }
+
+    /**
+     * Expire entries and find the requests that need to be sent again.
+     * Incomplete entries that ran out of retries become negative entries and
+     * their packets are freed.
+     *
+     * @param retransmit addresses to send a request to
+     * @return number of addresses in retransmit
+     */
+    public synchronized int age(long now, int retransmit[])
+    {
+        int count = 0;
+        int slot = 0;
+        while(slot <= mask)
+        {
+            if(states[slot] == FREE || expires[slot] > now)
+            {
+                slot++;
+                continue;
+            }
+            if(states[slot] == INCOMPLETE)
+            {
+                if(retries[slot] < MAX_RETRIES && count < retransmit.length)
+                {
+                    retries[slot]++;
+                    expires[slot] = now + RETRANSMIT_TIME;
+                    retransmit[count++] = inets[slot];
+                }
+                else if(retries[slot] >= MAX_RETRIES)
+                {
+                    failures.inc();
+                    dropPending(slot);
+                    states[slot] = FAILED;
+                    expires[slot] = now + FAILED_TIME;
+                }
+                slot++;
+                continue;
+            }
+            /*
+             * remove() can shift a later entry into this slot so look at
+             * it again
+             */
+            expired.inc();
+            if(states[slot] == REACHABLE)
+            {
+                generation++;
+            }
+            remove(slot);
+        }
+        return count;
+    }
+
+    /**
+     * @return the earliest expiry time of an entry, Long.MAX_VALUE when the
+     * table is empty
+     */
+    public synchronized long nextExpiry()
+    {
+        long next = Long.MAX_VALUE;
+        for(int slot = 0; slot <= mask; slot++)
+        {
+            if(states[slot] != FREE && expires[slot] < next)
+            {
+                next = expires[slot];
+            }
+        }
+        return next;
+    }
+
+    /**
+     * A cached hardware address is still good while the generation has not
+     * changed
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
+    public synchronized int size()
+    {
+        return entries;
+    }
+
+    public StatsGroup getStatistics()
+    {
+        return stats;
+    }
+
+    public void printStats()
     {
-        return table.containsKey(inet);
+        System.out.println(toString());
     }
 
-    public void addDevice(int senderInet, byte[] senderMac)
+    public String toString()
     {
-        EthernetAddr mac = new EthernetAddr(senderMac);
-        table.put(senderInet, mac);
-        System.out.println("arptable added " + Integer.toHexString(senderInet));
+        return stats + " entries " + entries;
     }
 }
@@ -1,127 +1,238 @@
 package org.jam.net.inet4;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-
-import org.jam.driver.net.InetNetworkInterface;
+import org.jam.board.pc.Platform;
+import org.jam.driver.net.Packet;
+import org.jam.net.EtherType;
 import org.jam.net.NetworkInterface;
 import org.jam.net.ethernet.EthernetAddr;
+import org.jam.net.stats.Counter;
+import org.jam.net.stats.StatsGroup;
+import org.jam.system.DeferredWork;
+import org.jam.system.TimerEntry;
+import org.jikesrvm.runtime.Time;
 
 /**
- * 
+ *
  * @author Joe Kulig
  * created April 9, 2018
  * Copyright 2018, All Rights Reserved
  *
- * The class will run as a thread and handle ARP requests
+ * Handles the ARP requests and replies of an interface
+ *
+ * Resolution does not block the sender. A packet for an unresolved neighbour
+ * is queued in the ARP table and a request is sent, the packets are sent when
+ * the reply arrives. A timer armed for the earliest expiry in the table
+ * retransmits requests, turns neighbours that never answer into negative
+ * entries and ages the table. It runs from the work queue.
  */
-public class ArpThread 
-implements Runnable
+public class ArpThread
 {
     private ArpTable arpTable;
     private NetworkInterface netIf;
-    private HashMap<Integer, Arp> arpRequests;
-    
+    /*
+     * Addresses to request again, only used by the timer work
+     */
+    private final int retransmit[];
+    /*
+     * Packets flushed by a reply, only used by the receive thread
+     */
+    private final Packet flush[];
+
+    /*
+     * Statistics, kept with those of the table
+     */
+    private final Counter requestsSent;
+    private final Counter repliesSent;
+    private final Counter received;
+    private final Counter invalid;
+    private final Counter conflicts;
+    private final Counter dropped;
+
+    private final DeferredWork ageWork = new DeferredWork("arp")
+    {
+        public void run()
+        {
+            age();
+        }
+    };
+    private final TimerEntry ageTimer = new TimerEntry()
+    {
+        public void expired()
+        {
+            ageWork.schedule();
+        }
+    };
+    /*
+     * Time the timer is armed for, 0 when it is not
+     */
+    private long timerArmed;
+
     public ArpThread(NetworkInterface networkInterface)
+    {
+        this(networkInterface, new ArpTable());
+    }
+
+    public ArpThread(NetworkInterface networkInterface, ArpTable arpTable)
     {
         netIf = networkInterface;
-        arpTable = new ArpTable();
-        arpRequests = new HashMap<Integer, Arp>(); // make map sendingip, arprequest
+        this.arpTable = arpTable;
+        retransmit = new int[64];
+        flush = new Packet[ArpTable.MAX_PENDING];
+        StatsGroup stats = arpTable.getStatistics();
+        received = stats.counter("received");
+        invalid = stats.counter("invalid");
+        conflicts = stats.counter("conflicts");
+        requestsSent = stats.counter("requests sent");
+        repliesSent = stats.counter("replies sent");
+        dropped = stats.counter("dropped");
     }
 
-    public void run()
+    private void age()
     {
-        System.out.println("Arp Thread running!");
-        while(true)
+        synchronized (this)
         {
-            try
-            {
-                Thread.sleep(1000);
-            }
-            catch (InterruptedException e)
-            {
-                e.printStackTrace();
-            }
+            timerArmed = 0;
+        }
+        int count = arpTable.age(Time.currentTimeMillis(), retransmit);
+        for(int index = 0; index < count; index++)
+        {
+            request(retransmit[index]);
+        }
+        long next = arpTable.nextExpiry();
+        if(next != Long.MAX_VALUE)
+        {
+            arm(next);
         }
     }
 
-    public void reply(Arp arpPacket)
+    /*
+     * Arm the timer for an entry that expires at deadline unless it is
+     * armed for an earlier one
+     */
+    private synchronized void arm(long deadline)
     {
-        System.out.println("received reply packet");
-        /*
-         * Need to sync up on the original request packet. This will get
-         * the request() restarted.
-         */
-        Arp request = arpRequests.get(arpPacket.targetInet());
-        // Replace the request with the reply
-        arpRequests.put(arpPacket.targetInet(), arpPacket);
-        synchronized(request)
+        if(timerArmed == 0 || deadline < timerArmed)
         {
-            request.notify();
+            timerArmed = deadline;
+            Platform.timer.addTimer(ageTimer, Time.nanoTime() + (deadline - Time.currentTimeMillis()) * 1000000L);
         }
     }
-    
-    public void request(InetAddress senderIp, InetAddress targetIp)
+
+    /**
+     * Handle a received ARP packet. The sender is learned from requests,
+     * replies and gratuitous ARPs, requests for our address are answered.
+     */
+    public void receive(Arp arpPacket)
     {
-        Arp arpRequest = new Arp(netIf.getEthernetAddress(), senderIp, targetIp);
-        System.out.println("at: arp request");
-        netIf.send(arpRequest);
-        Arp arpReply = null;
-        try
+        received.inc();
+        if(!arpPacket.verifyEthernet() || !arpPacket.verifyIpv4())
         {
+            invalid.inc();
+            return;
+        }
+        int sender = arpPacket.senderInet();
+        int target = arpPacket.targetInet();
+        int local = netIf.getInetAddress().inet4();
+        if(sender == local)
+        {
+            conflicts.inc();
+            System.out.println("ARP address conflict with " + new EthernetAddr(arpPacket.senderMac()));
+            return;
+        }
+        EthernetAddr senderMac = null;
+        /*
+         * A probe has no sender address (RFC 5227) so there is nothing to learn
+         */
+        if(sender != 0)
+        {
+            senderMac = new EthernetAddr(arpPacket.senderMac());
             /*
-             * Wait for the reply from reply()
-             */
-            synchronized(arpRequest)
-            {
-                /*
-                 * the reply needs the request so it can send the notify
-                 */
-                arpRequests.put(senderIp.inet4(), arpRequest);
-                arpRequest.wait();
-            }
-            System.out.println("request -> Got ARP reply");
-            /*
-             * get the reply
-             */
-            arpReply = arpRequests.get(senderIp.inet4());
-            /*
-             * Verify the packet
+             * RFC 826, update the sender if it is in the table and add it if
+             * the packet is for us. Gratuitous ARPs announce the sender so
+             * they are learned as well.
              */
-            if(!arpReply.verifyEthernet() || !arpReply.verifyIpv4()) 
+            boolean create = target == local || sender == target;
+            long now = Time.currentTimeMillis();
+            int count = arpTable.update(sender, senderMac, create, now, flush);
+            if(arpTable.hasInet(sender))
             {
-                // ignore packet
-                System.out.println("ARP is not ethernet or inet");
-                return;
+                arm(now + ArpTable.REACHABLE_TIME);
             }
-            /*
-             * See if it is for me
-             */
-            if(arpReply.targetInet() != netIf.getInetAddress().inet4() || arpReply.senderInet() != targetIp.inet4())
+            for(int index = 0; index < count; index++)
             {
-                // ignore packet
-                System.out.println("ARP is not for me");
+                netIf.send(senderMac, flush[index], EtherType.IPV4.type());
+                flush[index] = null;
             }
-            /*
-             * Put it into the arp table
-             */
-            arpTable.addDevice(arpReply.senderInet(), arpReply.senderMac());
         }
-        catch (IllegalMonitorStateException e)
+        if(target == local && arpPacket.isRequest())
         {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+            Arp reply = new Arp(arpPacket, netIf.getEthernetAddress());
+            netIf.send(new EthernetAddr(arpPacket.senderMac()), reply.getPacket(), EtherType.ARP.type());
+            repliesSent.inc();
         }
-        catch (InterruptedException e)
+    }
+
+    /**
+     * Send an IPv4 packet to a neighbour. When the hardware address is not
+     * known the packet waits in the ARP table for the reply.
+     *
+     * @param inet next hop
+     * @param packet packet, owned by the interface from now on
+     */
+    public void send(int inet, Packet packet)
+    {
+        while(true)
         {
-            System.out.println(e.getMessage());
-            e.printStackTrace();
+            EthernetAddr mac = arpTable.findDevice(inet);
+            if(mac != null)
+            {
+                netIf.send(mac, packet, EtherType.IPV4.type());
+                return;
+            }
+            long now = Time.currentTimeMillis();
+            switch(arpTable.enqueue(inet, packet, now))
+            {
+            case ArpTable.REQUEST:
+                arm(now + ArpTable.RETRANSMIT_TIME);
+                request(inet);
+                return;
+            case ArpTable.QUEUED:
+                return;
+            case ArpTable.DROPPED:
+                dropped.inc();
+                packet.free();
+                return;
+            default:
+                /*
+                 * A reply arrived after the lookup
+                 */
+                break;
+            }
         }
-        
+    }
+
+    /**
+     * Send a request for the target
+     */
+    public void request(InetAddress senderIp, InetAddress targetIp)
+    {
+        Arp arpRequest = new Arp(netIf.getEthernetAddress(), senderIp, targetIp);
+        netIf.send(arpRequest);
+        requestsSent.inc();
+    }
+
+    private void request(int target)
+    {
+        request(netIf.getInetAddress(), new InetAddress(target));
     }
 
     public EthernetAddr findDevice(int inet)
     {
         return arpTable.findDevice(inet);
     }
+
+    public void printStats()
+    {
+        arpTable.printStats();
+    }
 }
@@ -1,6 +1,461 @@
 package org.jam.net.inet4;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOptions;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.jam.net.Udp;
+import org.jikesrvm.runtime.Time;
+
+/**
+ * Stub resolver for IPv4 addresses over the stack's own UDP.
+ *
+ * Answers are cached for their TTL, names that do not exist for the TTL of the
+ * SOA record (RFC 2308). Lookups of a name that is already being resolved
+ * wait for the same query instead of sending another one, and a cached name
+ * used near its expiry is fetched again in the background. lookup() never
+ * blocks, getByName() waits for the answer.
+ *
+ * One thread receives the responses and retransmits queries, trying each
+ * server in turn with the timeout doubling every round. When no server answers
+ * the name is cached as unknown for FAILURE_TTL.
+ *
+ * The servers are taken from the dns.server property, a comma separated list
+ * of addresses, and default to the QEMU user network resolver.
+ */
 public class Dns
+implements Runnable
 {
+    private final static int TICK = 250;
+    private final static long TIMEOUT = 1000;
+    /*
+     * Rounds over all servers
+     */
+    private final static int ROUNDS = 3;
+    /*
+     * Seconds a name is unknown when no server answered
+     */
+    private final static long FAILURE_TTL = 5;
+    private final static long EXPIRE_INTERVAL = 60000;
+    private final static String DEFAULT_SERVER = "10.0.2.3";
+    private final static byte LOCALHOST[][] = { { 127, 0, 0, 1 } };
+
+    private static final class Query
+    {
+        final String name;
+        final int id;
+        int attempts;
+        long retransmit;
+        final ArrayList<DnsListener> listeners = new ArrayList<DnsListener>();
+
+        Query(String name, int id)
+        {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /*
+     * Blocks a caller of getByName() until the answer arrives
+     */
+    private static final class Waiter
+    implements DnsListener
+    {
+        private boolean done;
+        private byte addresses[][];
+
+        public synchronized void resolved(String name, byte addresses[][])
+        {
+            this.addresses = addresses;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized byte[][] await() throws UnknownHostException
+        {
+            while(!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new UnknownHostException("interrupted");
+                }
+            }
+            return addresses;
+        }
+    }
+
+    private static final DnsCache cache = new DnsCache();
+    private static final HashMap<String, Query> queries = new HashMap<String, Query>();
+    private static final HashMap<Integer, Query> ids = new HashMap<Integer, Query>();
+    private static final Random random = new Random();
+    private static final byte txBuffer[] = new byte[DnsMessage.MAX_SIZE];
+    private static java.net.InetAddress servers[];
+    private static Udp socket;
+    private static long nextExpire;
+
+    /*
+     * Statistics
+     */
+    private static int queriesSent;
+    private static int retransmits;
+    private static int coalesced;
+    private static int failures;
+    private static int badResponses;
+
+    private Dns()
+    {
+    }
+
+    /**
+     * Look up the addresses of a name without blocking. A cached answer is
+     * passed to the listener before this returns, otherwise the listener is
+     * called from the resolver thread.
+     *
+     * @return true when the listener was called
+     */
+    public static boolean lookup(String name, DnsListener listener)
+    {
+        String key = key(name);
+        if(key.equals("localhost"))
+        {
+            listener.resolved(key, LOCALHOST);
+            return true;
+        }
+        long now = Time.currentTimeMillis();
+        DnsCache.Entry entry = cached(key, now);
+        if(entry != null)
+        {
+            listener.resolved(key, entry.addresses);
+            return true;
+        }
+        if(!query(key, listener, now))
+        {
+            listener.resolved(key, null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Look up the addresses of a name and wait for the answer
+     *
+     * @throws UnknownHostException when the name does not exist or the
+     * servers did not answer
+     */
+    public static byte[][] getByName(String name) throws UnknownHostException
+    {
+        String key = key(name);
+        if(key.equals("localhost"))
+        {
+            return LOCALHOST;
+        }
+        byte addresses[][];
+        DnsCache.Entry entry = cached(key, Time.currentTimeMillis());
+        if(entry != null)
+        {
+            addresses = entry.addresses;
+        }
+        else
+        {
+            Waiter waiter = new Waiter();
+            lookup(key, waiter);
+            addresses = waiter.await();
+        }
+        if(addresses == null)
+        {
+            throw new UnknownHostException(name);
+        }
+        return addresses;
+    }
+
+    /*
+     * Names are not case sensitive and the root label is implied
+     */
+    private static String key(String name)
+    {
+        int length = name.length();
+        if(length > 0 && name.charAt(length - 1) == '.')
+        {
+            name = name.substring(0, length - 1);
+        }
+        return name.toLowerCase();
+    }
+
+    /*
+     * Cache lookup that starts a refresh when the entry is about to expire
+     */
+    private static DnsCache.Entry cached(String key, long now)
+    {
+        DnsCache.Entry entry = cache.get(key, now);
+        if(entry != null && cache.needsPrefetch(entry, now))
+        {
+            query(key, null, now);
+        }
+        return entry;
+    }
+
+    /*
+     * Start a query or join the one in progress
+     *
+     * @return false when the name can not be queried
+     */
+    private static synchronized boolean query(String name, DnsListener listener, long now)
+    {
+        Query query = queries.get(name);
+        if(query == null)
+        {
+            start();
+            int id;
+            do
+            {
+                id = random.nextInt(0x10000);
+            } while(ids.containsKey(Integer.valueOf(id)));
+            query = new Query(name, id);
+            if(!send(query, now))
+            {
+                return false;
+            }
+            queries.put(name, query);
+            ids.put(Integer.valueOf(id), query);
+        }
+        else if(listener != null)
+        {
+            coalesced++;
+        }
+        if(listener != null)
+        {
+            query.listeners.add(listener);
+        }
+        return true;
+    }
+
+    /*
+     * Send the query to the next server
+     */
+    private static boolean send(Query query, long now)
+    {
+        int length = DnsMessage.query(txBuffer, query.id, query.name);
+        if(length < 0)
+        {
+            return false;
+        }
+        java.net.InetAddress server = servers[query.attempts % servers.length];
+        query.retransmit = now + (TIMEOUT << (query.attempts / servers.length));
+        query.attempts++;
+        queriesSent++;
+        try
+        {
+            socket.send(new DatagramPacket(txBuffer, length, server, DnsMessage.PORT));
+        }
+        catch (IOException e)
+        {
+            // lost like any other datagram, the retransmit takes care of it
+        }
+        return true;
+    }
+
+    /*
+     * Open the socket and start the resolver thread on the first query
+     */
+    private static void start()
+    {
+        if(socket != null)
+        {
+            return;
+        }
+        servers = servers();
+        try
+        {
+            Udp udp = new Udp();
+            udp.bind(new InetSocketAddress(0));
+            udp.setOption(SocketOptions.SO_TIMEOUT, Integer.valueOf(TICK));
+            socket = udp;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("DNS socket: " + e);
+        }
+        Thread resolverThread = new Thread(new Dns());
+        resolverThread.setName("DNS Resolver");
+        resolverThread.setDaemon(true);
+        resolverThread.start();
+    }
+
+    private static java.net.InetAddress[] servers()
+    {
+        String property = System.getProperty("dns.server", DEFAULT_SERVER);
+        String names[] = property.split(",");
+        java.net.InetAddress servers[] = new java.net.InetAddress[names.length];
+        for(int index = 0; index < names.length; index++)
+        {
+            try
+            {
+                servers[index] = java.net.InetAddress.getByAddress(new InetAddress(names[index].trim()).asArray());
+            }
+            catch (UnknownHostException e)
+            {
+                throw new RuntimeException("Bad DNS server address " + names[index]);
+            }
+        }
+        return servers;
+    }
+
+    private static boolean isServer(SocketAddress from)
+    {
+        if(!(from instanceof InetSocketAddress) || ((InetSocketAddress)from).getPort() != DnsMessage.PORT)
+        {
+            return false;
+        }
+        java.net.InetAddress address = ((InetSocketAddress)from).getAddress();
+        for(int index = 0; index < servers.length; index++)
+        {
+            if(servers[index].equals(address))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Match a response to its query and cache the answer
+     */
+    private static void response(DnsMessage message, SocketAddress from, byte data[], int length)
+    {
+        if(!message.parse(data, length))
+        {
+            badResponses++;
+            return;
+        }
+        Query query;
+        synchronized (Dns.class)
+        {
+            query = ids.get(Integer.valueOf(message.id));
+            if(query == null || !query.name.equals(message.question) || !isServer(from))
+            {
+                badResponses++;
+                return;
+            }
+            long now = Time.currentTimeMillis();
+            if(message.truncated || (message.rcode != DnsMessage.NOERROR && message.rcode != DnsMessage.NXDOMAIN))
+            {
+                // ask the next server now
+                query.retransmit = now;
+                return;
+            }
+            if(message.addresses != null)
+            {
+                cache.put(query.name, message.addresses, message.ttl, now);
+            }
+            else
+            {
+                cache.put(query.name, null, message.negativeTtl, now);
+            }
+            queries.remove(query.name);
+            ids.remove(Integer.valueOf(query.id));
+        }
+        for(int index = 0; index < query.listeners.size(); index++)
+        {
+            query.listeners.get(index).resolved(query.name, message.addresses);
+        }
+    }
+
+    /*
+     * Retransmit queries that timed out and give up on those that ran out of
+     * servers
+     */
+    private static void timer(long now)
+    {
+        ArrayList<Query> failed = null;
+        synchronized (Dns.class)
+        {
+            Iterator<Query> iterator = queries.values().iterator();
+            while(iterator.hasNext())
+            {
+                Query query = iterator.next();
+                if(query.retransmit > now)
+                {
+                    continue;
+                }
+                if(query.attempts < ROUNDS * servers.length)
+                {
+                    retransmits++;
+                    send(query, now);
+                    continue;
+                }
+                failures++;
+                iterator.remove();
+                ids.remove(Integer.valueOf(query.id));
+                /*
+                 * A failed refresh leaves the cached answer alone
+                 */
+                if(query.listeners.size() > 0)
+                {
+                    cache.put(query.name, null, FAILURE_TTL, now);
+                    if(failed == null)
+                    {
+                        failed = new ArrayList<Query>();
+                    }
+                    failed.add(query);
+                }
+            }
+            if(now >= nextExpire)
+            {
+                cache.expire(now);
+                nextExpire = now + EXPIRE_INTERVAL;
+            }
+        }
+        for(int index = 0; failed != null && index < failed.size(); index++)
+        {
+            Query query = failed.get(index);
+            for(int listener = 0; listener < query.listeners.size(); listener++)
+            {
+                query.listeners.get(listener).resolved(query.name, null);
+            }
+        }
+    }
+
+    public void run()
+    {
+        byte rxBuffer[] = new byte[DnsMessage.MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(rxBuffer, rxBuffer.length);
+        DnsMessage message = new DnsMessage();
+        while(true)
+        {
+            try
+            {
+                packet.setLength(rxBuffer.length);
+                SocketAddress from = socket.receive(packet);
+                response(message, from, rxBuffer, packet.getLength());
+            }
+            catch (SocketTimeoutException e)
+            {
+                // time to look at the retransmits
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            timer(Time.currentTimeMillis());
+        }
+    }
 
+    public static void printStatistics()
+    {
+        System.out.println("dns queries " + queriesSent + " retransmits " + retransmits + " coalesced " + coalesced
+                           + " failures " + failures + " bad responses " + badResponses);
+        System.out.println(cache);
+    }
 }
@@ -0,0 +1,168 @@
+package org.jam.net.inet4;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Positive and negative DNS answers kept for their TTL.
+ *
+ * Entries are kept in least recently used order and the oldest one goes when
+ * the cache is full. A negative entry has no addresses.
+ * An entry that is used in the last PREFETCH_PERCENT of its lifetime asks
+ * to be refreshed once, so names in constant use are fetched again before
+ * they expire and lookups never wait for them.
+ *
+ * Times are passed in by the caller in milliseconds.
+ */
+final class DnsCache
+{
+    final static int MAX_ENTRIES = 1024;
+    /*
+     * Longest time anything is cached, in seconds
+     */
+    final static long MAX_TTL = 24 * 60 * 60;
+    final static int PREFETCH_PERCENT = 10;
+
+    static final class Entry
+    {
+        final String key;
+        final byte addresses[][];
+        final long expires;
+        final long lifetime;
+        boolean prefetched;
+
+        Entry(String key, byte addresses[][], long expires, long lifetime)
+        {
+            this.key = key;
+            this.addresses = addresses;
+            this.expires = expires;
+            this.lifetime = lifetime;
+        }
+
+        boolean isNegative()
+        {
+            return addresses == null;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /*
+     * Statistics
+     */
+    private int hits;
+    private int negativeHits;
+    private int misses;
+    private int prefetches;
+    private int evictions;
+
+    DnsCache()
+    {
+        this(MAX_ENTRIES);
+    }
+
+    DnsCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true);
+    }
+
+    /**
+     * @return the entry or null when the key is not cached or expired
+     */
+    synchronized Entry get(String key, long now)
+    {
+        Entry entry = entries.get(key);
+        if(entry == null)
+        {
+            misses++;
+            return null;
+        }
+        if(entry.expires <= now)
+        {
+            entries.remove(key);
+            misses++;
+            return null;
+        }
+        if(entry.isNegative())
+        {
+            negativeHits++;
+        }
+        else
+        {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * @return true once for an entry near its expiry, the caller refreshes it
+     */
+    synchronized boolean needsPrefetch(Entry entry, long now)
+    {
+        if(entry.prefetched || entry.isNegative()
+           || (entry.expires - now) * 100 > entry.lifetime * PREFETCH_PERCENT)
+        {
+            return false;
+        }
+        entry.prefetched = true;
+        prefetches++;
+        return true;
+    }
+
+    /**
+     * Cache an answer. A TTL of 0 is not cached.
+     *
+     * @param ttl in seconds
+     */
+    synchronized void put(String key, byte addresses[][], long ttl, long now)
+    {
+        if(ttl <= 0)
+        {
+            entries.remove(key);
+            return;
+        }
+        long lifetime = Math.min(ttl, MAX_TTL) * 1000;
+        entries.put(key, new Entry(key, addresses, now + lifetime, lifetime));
+        if(entries.size() > maxEntries)
+        {
+            Iterator<Entry> iterator = entries.values().iterator();
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop the expired entries
+     */
+    synchronized void expire(long now)
+    {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext())
+        {
+            if(iterator.next().getValue().expires <= now)
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized String toString()
+    {
+        return "dns cache entries " + entries.size() + " hits " + hits + " negative hits " + negativeHits
+               + " misses " + misses + " prefetches " + prefetches + " evictions " + evictions;
+    }
+}
@@ -0,0 +1,16 @@
+package org.jam.net.inet4;
+
+/**
+ * Receives the result of a lookup started with Dns.lookup(). Results that
+ * are not cached are delivered on the resolver thread, a listener must not
+ * block.
+ */
+public interface DnsListener
+{
+    /**
+     * @param name the name that was looked up
+     * @param addresses the IPv4 addresses of the name, null when it does not
+     * exist or the servers did not answer
+     */
+    void resolved(String name, byte addresses[][]);
+}
@@ -0,0 +1,314 @@
+package org.jam.net.inet4;
+
+import java.util.ArrayList;
+
+/**
+ * Builds DNS queries and parses responses (RFC 1035).
+ *
+ * Only what a stub resolver needs is handled: a query has one question, a
+ * response is reduced to the A records of the answer section, the
+ * smallest TTL among the answer records and, for a negative answer, the TTL
+ * from the SOA record of the authority section (RFC 2308). A parse object is
+ * reused by the resolver thread for every response.
+ */
+final class DnsMessage
+{
+    final static int PORT = 53;
+    final static int HEADER_SIZE = 12;
+    /*
+     * Largest message over UDP without EDNS
+     */
+    final static int MAX_SIZE = 512;
+
+    final static int TYPE_A     = 1;
+    final static int TYPE_CNAME = 5;
+    final static int TYPE_SOA   = 6;
+    final static int CLASS_IN   = 1;
+
+    final static int NOERROR  = 0;
+    final static int SERVFAIL = 2;
+    final static int NXDOMAIN = 3;
+
+    private final static int FLAG_RESPONSE  = 0x8000;
+    private final static int FLAG_TRUNCATED = 0x0200;
+    private final static int FLAG_RECURSION = 0x0100;
+    private final static int RCODE_MASK     = 0x000F;
+    private final static int POINTER        = 0xC0;
+    private final static int MAX_LABEL      = 63;
+    private final static int MAX_NAME       = 255;
+
+    /*
+     * Parse results
+     */
+    int id;
+    int rcode;
+    boolean truncated;
+    String question;
+    int questionType;
+    /*
+     * Addresses of the A records or null
+     */
+    byte addresses[][];
+    /*
+     * Smallest TTL of the answers in seconds
+     */
+    long ttl;
+    /*
+     * TTL of a negative answer in seconds, -1 without an SOA record
+     */
+    long negativeTtl;
+
+    private byte data[];
+    private int length;
+    private int position;
+    private final StringBuilder nameBuilder = new StringBuilder();
+    private final ArrayList<byte[]> answers = new ArrayList<byte[]>();
+
+    /**
+     * Write a recursive query for one name
+     *
+     * @return length of the query, -1 when the name is not valid
+     */
+    static int query(byte buffer[], int id, String name)
+    {
+        buffer[0] = (byte)(id >> 8);
+        buffer[1] = (byte)id;
+        buffer[2] = (byte)(FLAG_RECURSION >> 8);
+        buffer[3] = 0;
+        // one question, no other records
+        buffer[4] = 0;
+        buffer[5] = 1;
+        for(int index = 6; index < HEADER_SIZE; index++)
+        {
+            buffer[index] = 0;
+        }
+        int position = HEADER_SIZE;
+        int start = 0;
+        int nameLength = name.length();
+        if(nameLength > 0 && name.charAt(nameLength - 1) == '.')
+        {
+            nameLength--;
+        }
+        if(nameLength == 0 || nameLength > MAX_NAME - 2)
+        {
+            return -1;
+        }
+        while(start < nameLength)
+        {
+            int end = name.indexOf('.', start);
+            if(end < 0 || end > nameLength)
+            {
+                end = nameLength;
+            }
+            int labelLength = end - start;
+            if(labelLength == 0 || labelLength > MAX_LABEL)
+            {
+                return -1;
+            }
+            buffer[position++] = (byte)labelLength;
+            for(int index = start; index < end; index++)
+            {
+                char c = name.charAt(index);
+                if(c > 0x7F)
+                {
+                    return -1;
+                }
+                buffer[position++] = (byte)c;
+            }
+            start = end + 1;
+        }
+        buffer[position++] = 0;
+        buffer[position++] = 0;
+        buffer[position++] = TYPE_A;
+        buffer[position++] = 0;
+        buffer[position++] = CLASS_IN;
+        return position;
+    }
+
+    /**
+     * Parse a response
+     *
+     * @return false when it is not a well formed response to one question
+     */
+    boolean parse(byte data[], int length)
+    {
+        this.data = data;
+        this.length = length;
+        addresses = null;
+        question = null;
+        ttl = Long.MAX_VALUE;
+        negativeTtl = -1;
+        answers.clear();
+        if(length < HEADER_SIZE)
+        {
+            return false;
+        }
+        id = readShort(0);
+        int flags = readShort(2);
+        int questions = readShort(4);
+        int answerCount = readShort(6);
+        int authorityCount = readShort(8);
+        if((flags & FLAG_RESPONSE) == 0 || questions != 1)
+        {
+            return false;
+        }
+        rcode = flags & RCODE_MASK;
+        truncated = (flags & FLAG_TRUNCATED) != 0;
+        position = HEADER_SIZE;
+        question = readName();
+        if(question == null || position + 4 > length)
+        {
+            return false;
+        }
+        questionType = readShort(position);
+        position += 4;
+        for(int index = 0; index < answerCount; index++)
+        {
+            if(!readRecord(true))
+            {
+                return false;
+            }
+        }
+        for(int index = 0; index < authorityCount && rcode != SERVFAIL; index++)
+        {
+            if(!readRecord(false))
+            {
+                // the answers are good without the authority section
+                break;
+            }
+        }
+        if(answers.size() > 0)
+        {
+            addresses = answers.toArray(new byte[answers.size()][]);
+        }
+        if(ttl == Long.MAX_VALUE)
+        {
+            ttl = 0;
+        }
+        return true;
+    }
+
+    /*
+     * Read one resource record
+     */
+    private boolean readRecord(boolean answer)
+    {
+        if(readName() == null || position + 10 > length)
+        {
+            return false;
+        }
+        int type = readShort(position);
+        int rclass = readShort(position + 2);
+        long recordTtl = readInt(position + 4) & 0x7FFFFFFFL;
+        int rdLength = readShort(position + 8);
+        position += 10;
+        int rdata = position;
+        if(rdata + rdLength > length)
+        {
+            return false;
+        }
+        if(rclass == CLASS_IN)
+        {
+            if(answer)
+            {
+                if(type == TYPE_A && rdLength == 4 && questionType == TYPE_A)
+                {
+                    byte address[] = new byte[4];
+                    System.arraycopy(data, rdata, address, 0, 4);
+                    answers.add(address);
+                    ttl = Math.min(ttl, recordTtl);
+                }
+                else if(type == TYPE_CNAME)
+                {
+                    // the alias expires with the chain
+                    ttl = Math.min(ttl, recordTtl);
+                }
+            }
+            else if(type == TYPE_SOA)
+            {
+                /*
+                 * MNAME and RNAME come before the 5 numbers, MINIMUM is the
+                 * last one
+                 */
+                position = rdata;
+                if(readName() == null || readName() == null || position + 20 > rdata + rdLength)
+                {
+                    return false;
+                }
+                long minimum = readInt(position + 16) & 0x7FFFFFFFL;
+                negativeTtl = Math.min(recordTtl, minimum);
+            }
+        }
+        position = rdata + rdLength;
+        return true;
+    }
+
+    /*
+     * Read a possibly compressed name at position and move past it
+     *
+     * @return the name in lower case without the trailing dot, null when it
+     * is malformed
+     */
+    private String readName()
+    {
+        nameBuilder.setLength(0);
+        int offset = position;
+        int end = -1;
+        int jumps = 0;
+        while(true)
+        {
+            if(offset >= length)
+            {
+                return null;
+            }
+            int labelLength = data[offset] & 0xFF;
+            if((labelLength & POINTER) == POINTER)
+            {
+                if(offset + 1 >= length || ++jumps > MAX_NAME / 2)
+                {
+                    return null;
+                }
+                if(end < 0)
+                {
+                    end = offset + 2;
+                }
+                offset = ((labelLength & ~POINTER) << 8) | (data[offset + 1] & 0xFF);
+                continue;
+            }
+            if(labelLength > MAX_LABEL)
+            {
+                return null;
+            }
+            offset++;
+            if(labelLength == 0)
+            {
+                break;
+            }
+            if(offset + labelLength > length || nameBuilder.length() + labelLength + 1 > MAX_NAME)
+            {
+                return null;
+            }
+            if(nameBuilder.length() > 0)
+            {
+                nameBuilder.append('.');
+            }
+            for(int index = 0; index < labelLength; index++)
+            {
+                nameBuilder.append(Character.toLowerCase((char)(data[offset + index] & 0xFF)));
+            }
+            offset += labelLength;
+        }
+        position = end < 0 ? offset : end;
+        return nameBuilder.toString();
+    }
+
+    private int readShort(int offset)
+    {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private int readInt(int offset)
+    {
+        return (readShort(offset) << 16) | readShort(offset + 2);
+    }
+}
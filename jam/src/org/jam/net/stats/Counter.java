@@ -0,0 +1,63 @@
+package org.jam.net.stats;
+
+/**
+ * A named event counter.
+ *
+ * Increments are a plain load and store, not a locked instruction, so they
+ * are cheap enough for every packet and safe in interrupt context. Counters
+ * are mostly changed by one writer, the device's interrupt or poll context
+ * or the thread holding the lock of what is counted. When two writers race
+ * an increment can be lost, which statistics can live with.
+ *
+ * Any thread may read a counter. A 64 bit count can be seen half written on a
+ * 32 bit CPU, get() reads until two reads agree.
+ */
+public final class Counter
+{
+    private final String name;
+    private long count;
+
+    Counter(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void inc()
+    {
+        count++;
+    }
+
+    public void add(long value)
+    {
+        count += value;
+    }
+
+    public long get()
+    {
+        long value = count;
+        long again;
+        while((again = count) != value)
+        {
+            value = again;
+        }
+        return value;
+    }
+
+    /**
+     * Only meaningful while nothing counts
+     */
+    public void reset()
+    {
+        count = 0;
+    }
+
+    public String toString()
+    {
+        return name + " " + get();
+    }
+}
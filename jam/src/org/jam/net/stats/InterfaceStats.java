@@ -0,0 +1,24 @@
+package org.jam.net.stats;
+
+/**
+ * Counters every network interface keeps. Received frames are counted when
+ * the driver hands them to the stack, ring full counts the frames dropped
+ * because the protocol thread fell behind. Drivers add their own counters
+ * to the group.
+ */
+public class InterfaceStats
+extends StatsGroup
+{
+    public final Counter rxPackets = counter("rx packets");
+    public final Counter rxBytes = counter("rx bytes");
+    public final Counter rxDropped = counter("rx dropped");
+    public final Counter ringFull = counter("ring full");
+    public final Counter txPackets = counter("tx packets");
+    public final Counter txBytes = counter("tx bytes");
+    public final Counter txDropped = counter("tx dropped");
+
+    public InterfaceStats(String name)
+    {
+        super(name);
+    }
+}
@@ -0,0 +1,101 @@
+package org.jam.net.stats;
+
+import java.io.PrintStream;
+
+/**
+ * Registry of the statistics groups. Groups are looked up by name, e.g.
+ * eth0, lo, ip, tcp, udp, icmp, arp0 or route. A monitoring thread takes
+ * snapshots and prints what changed between two of them.
+ *
+ * The registry is copied on every change, readers never lock.
+ */
+public final class Statistics
+{
+    private static volatile StatsGroup groups[] = new StatsGroup[0];
+
+    private Statistics()
+    {
+    }
+
+    static synchronized void register(StatsGroup group)
+    {
+        StatsGroup current[] = groups;
+        for(int index = 0; index < current.length; index++)
+        {
+            if(current[index].getName().equals(group.getName()))
+            {
+                throw new RuntimeException("Statistics " + group.getName() + " registered twice");
+            }
+        }
+        StatsGroup added[] = new StatsGroup[current.length + 1];
+        System.arraycopy(current, 0, added, 0, current.length);
+        added[current.length] = group;
+        groups = added;
+    }
+
+    public static synchronized void unregister(StatsGroup group)
+    {
+        StatsGroup current[] = groups;
+        for(int index = 0; index < current.length; index++)
+        {
+            if(current[index] == group)
+            {
+                StatsGroup removed[] = new StatsGroup[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, index);
+                System.arraycopy(current, index + 1, removed, index, current.length - index - 1);
+                groups = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the first of prefix0, prefix1 ... that is not registered
+     */
+    public static synchronized String uniqueName(String prefix)
+    {
+        for(int number = 0;; number++)
+        {
+            String name = prefix + number;
+            if(find(name) == null)
+            {
+                return name;
+            }
+        }
+    }
+
+    /**
+     * @return the group or null
+     */
+    public static StatsGroup find(String name)
+    {
+        StatsGroup current[] = groups;
+        for(int index = 0; index < current.length; index++)
+        {
+            if(current[index].getName().equals(name))
+            {
+                return current[index];
+            }
+        }
+        return null;
+    }
+
+    public static StatsGroup[] getGroups()
+    {
+        return groups;
+    }
+
+    public static StatsSnapshot snapshot()
+    {
+        return new StatsSnapshot(groups);
+    }
+
+    public static void print(PrintStream out)
+    {
+        StatsGroup current[] = groups;
+        for(int index = 0; index < current.length; index++)
+        {
+            out.println(current[index]);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.jam.net.stats;
+
+/**
+ * Counters of one interface or protocol, registered under a name. Counters
+ * can be added at any time, readers see the array that was current when
+ * they started.
+ */
+public class StatsGroup
+{
+    private final String name;
+    private volatile Counter counters[] = new Counter[0];
+
+    /**
+     * Create a group and register it
+     */
+    public StatsGroup(String name)
+    {
+        this.name = name;
+        Statistics.register(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Add a counter to the group
+     */
+    public synchronized Counter counter(String counterName)
+    {
+        Counter current[] = counters;
+        Counter added[] = new Counter[current.length + 1];
+        System.arraycopy(current, 0, added, 0, current.length);
+        Counter counter = new Counter(counterName);
+        added[current.length] = counter;
+        counters = added;
+        return counter;
+    }
+
+    public Counter[] getCounters()
+    {
+        return counters;
+    }
+
+    /**
+     * @return the counter or null
+     */
+    public Counter find(String counterName)
+    {
+        Counter current[] = counters;
+        for(int index = 0; index < current.length; index++)
+        {
+            if(current[index].getName().equals(counterName))
+            {
+                return current[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the values of the counters in getCounters() order
+     */
+    public long[] snapshot()
+    {
+        Counter current[] = counters;
+        long values[] = new long[current.length];
+        for(int index = 0; index < current.length; index++)
+        {
+            values[index] = current[index].get();
+        }
+        return values;
+    }
+
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder(name);
+        Counter current[] = counters;
+        for(int index = 0; index < current.length; index++)
+        {
+            text.append(' ').append(current[index]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,98 @@
+package org.jam.net.stats;
+
+import java.io.PrintStream;
+
+import org.jikesrvm.runtime.Time;
+
+/**
+ * The values of all counters at one time.
+ */
+public class StatsSnapshot
+{
+    private final long time;
+    private final StatsGroup groups[];
+    private final Counter counters[][];
+    private final long values[][];
+
+    StatsSnapshot(StatsGroup groups[])
+    {
+        time = Time.currentTimeMillis();
+        this.groups = groups;
+        counters = new Counter[groups.length][];
+        values = new long[groups.length][];
+        for(int index = 0; index < groups.length; index++)
+        {
+            counters[index] = groups[index].getCounters();
+            values[index] = new long[counters[index].length];
+            for(int counter = 0; counter < counters[index].length; counter++)
+            {
+                values[index][counter] = counters[index][counter].get();
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds when the snapshot was taken
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * @return the value of a counter, -1 when it was not registered
+     */
+    public long get(String groupName, String counterName)
+    {
+        for(int index = 0; index < groups.length; index++)
+        {
+            if(groups[index].getName().equals(groupName))
+            {
+                for(int counter = 0; counter < counters[index].length; counter++)
+                {
+                    if(counters[index][counter].getName().equals(counterName))
+                    {
+                        return values[index][counter];
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return how much a counter grew since an earlier snapshot
+     */
+    public long delta(StatsSnapshot earlier, String groupName, String counterName)
+    {
+        long before = earlier.get(groupName, counterName);
+        return get(groupName, counterName) - (before < 0 ? 0 : before);
+    }
+
+    /**
+     * Print the counters that changed since an earlier snapshot, one line
+     * per group
+     */
+    public void print(PrintStream out, StatsSnapshot earlier)
+    {
+        StringBuilder line = new StringBuilder();
+        for(int index = 0; index < groups.length; index++)
+        {
+            line.setLength(0);
+            for(int counter = 0; counter < counters[index].length; counter++)
+            {
+                Counter current = counters[index][counter];
+                long before = earlier.get(groups[index].getName(), current.getName());
+                long change = values[index][counter] - (before < 0 ? 0 : before);
+                if(change != 0)
+                {
+                    line.append(' ').append(current.getName()).append(' ').append(change);
+                }
+            }
+            if(line.length() > 0)
+            {
+                out.println(groups[index].getName() + line);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.jam.system;
+
+import org.jam.cpu.intel.Tsc;
+import org.jikesrvm.runtime.Magic;
+
+/**
+ * Work an interrupt handler hands off to a thread.
+ *
+ * The handler only acknowledges the device and calls schedule(), run() is
+ * called later from the work queue thread of the processor, where it may
+ * block, allocate and take locks. Like TimerEntry the item is its own queue
+ * node, so scheduling never allocates. Scheduling an item that has not run
+ * yet does nothing, the pending run covers it. The item is made pending
+ * again just before run() is called, so an interrupt during run() queues it
+ * once more.
+ *
+ * The time from schedule() to run() and the time run() takes are accounted
+ * per item.
+ */
+public abstract class DeferredWork
+{
+    private final String name;
+    /*
+     * Link of the pending list, owned by the work queue
+     */
+    DeferredWork next;
+    volatile boolean pending;
+    long scheduled;
+
+    /*
+     * Statistics in time stamp counter cycles
+     */
+    private long runs;
+    private long latency;
+    private long maxLatency;
+    private long runTime;
+    private long maxRunTime;
+
+    public DeferredWork(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Queue the item on the work queue of this processor. Called from an
+     * interrupt handler, a thread has to disable interrupts around it.
+     */
+    public final void schedule()
+    {
+        if(pending)
+        {
+            return;
+        }
+        pending = true;
+        scheduled = Magic.getTimeBase();
+        WorkQueue.schedule(this);
+    }
+
+    public final boolean isPending()
+    {
+        return pending;
+    }
+
+    public abstract void run();
+
+    /*
+     * Called by the work queue thread
+     */
+    final void execute()
+    {
+        long start = Magic.getTimeBase();
+        pending = false;
+        run();
+        long end = Magic.getTimeBase();
+        runs++;
+        latency += start - scheduled;
+        maxLatency = Math.max(maxLatency, start - scheduled);
+        runTime += end - start;
+        maxRunTime = Math.max(maxRunTime, end - start);
+    }
+
+    public final String getName()
+    {
+        return name;
+    }
+
+    public final long getRuns()
+    {
+        return runs;
+    }
+
+    /**
+     * @return average time from schedule() to run() in ns
+     */
+    public final long getAverageLatency()
+    {
+        return runs == 0 ? 0 : toNs(latency / runs);
+    }
+
+    public final long getMaxLatency()
+    {
+        return toNs(maxLatency);
+    }
+
+    /**
+     * @return average time run() takes in ns
+     */
+    public final long getAverageRunTime()
+    {
+        return runs == 0 ? 0 : toNs(runTime / runs);
+    }
+
+    public final long getMaxRunTime()
+    {
+        return toNs(maxRunTime);
+    }
+
+    private static long toNs(long cycles)
+    {
+        return cycles * 1000 / Tsc.cyclesPer1000Ns;
+    }
+
+    public String toString()
+    {
+        return name + " runs " + runs + " latency avg " + getAverageLatency() + "ns max " + getMaxLatency()
+               + "ns run avg " + getAverageRunTime() + "ns max " + getMaxRunTime() + "ns";
+    }
+}
@@ -0,0 +1,55 @@
+package org.jam.system;
+
+import org.jam.board.pc.Platform;
+import org.jikesrvm.scheduler.RVMThread;
+import org.jikesrvm.scheduler.ThreadQueue;
+
+/**
+ * The sleep timer every thread carries.
+ *
+ * A sleeping thread is kept on the sleepers queue so nothing else puts it on
+ * the run queue before its timer expires or is cancelled.
+ */
+public final class ThreadTimer
+extends TimerEntry
+{
+    private final static ThreadQueue sleepers = new ThreadQueue();
+
+    private final RVMThread thread;
+
+    public ThreadTimer(RVMThread thread)
+    {
+        this.thread = thread;
+    }
+
+    public RVMThread getThread()
+    {
+        return thread;
+    }
+
+    /**
+     * Take the thread off the run queue until wakeup(), called with
+     * interrupts disabled
+     */
+    void sleep()
+    {
+        sleepers.enqueue(thread);
+    }
+
+    /**
+     * Make the thread runnable if it is still asleep, called with interrupts
+     * disabled
+     */
+    void wakeup()
+    {
+        if(sleepers.remove(thread))
+        {
+            Platform.scheduler.addThread(thread);
+        }
+    }
+
+    public void expired()
+    {
+        wakeup();
+    }
+}
@@ -0,0 +1,45 @@
+package org.jam.system;
+
+/**
+ * A timer that lives inside the object it belongs to.
+ *
+ * The entry is its own list node in the timer wheel so arming and cancelling
+ * never allocate, an object that needs a timeout extends this class or keeps
+ * one as a field and arms it again and again. An entry is on at most one
+ * wheel at a time.
+ *
+ * expired() is called from the timer interrupt with interrupts disabled. It
+ * must not block, take locks or allocate, it normally just makes a thread
+ * runnable or sets a flag for one. It may arm the entry again.
+ */
+public abstract class TimerEntry
+{
+    /*
+     * Links of the wheel slot list, owned by the wheel
+     */
+    TimerEntry next;
+    TimerEntry prev;
+    /*
+     * Tick the timer expires on
+     */
+    long expires;
+    /*
+     * Index of the wheel slot or -1 when the timer is not armed
+     */
+    int slot = -1;
+
+    public final boolean isArmed()
+    {
+        return slot >= 0;
+    }
+
+    /**
+     * @return the tick the timer expires or expired on
+     */
+    public final long getExpires()
+    {
+        return expires;
+    }
+
+    public abstract void expired();
+}
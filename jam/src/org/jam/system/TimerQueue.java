@@ -0,0 +1,163 @@
+package org.jam.system;
+
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.runtime.Time;
+import org.jikesrvm.scheduler.RVMThread;
+
+/**
+ * Timers of a Timer implementation, kept on a TimerWheel with a tick of
+ * TICK_NS.
+ *
+ * Deadlines are absolute Time.nanoTime() values and are rounded up to the
+ * next tick, so a timer never expires early. The timer interrupt calls
+ * expire(), everything else may be called from threads or from the expired()
+ * method of a timer.
+ *
+ * A periodic timer interrupt finds new timers on its next tick. A one shot
+ * timer sets itself as the device and is told about every timer it may have
+ * to interrupt earlier for.
+ */
+public final class TimerQueue
+{
+    public final static long TICK_NS = 1000000;
+
+    public interface Device
+    {
+        /**
+         * A timer was armed, called with interrupts disabled
+         *
+         * @param timeNs when it expires, a multiple of TICK_NS
+         */
+        void armed(long timeNs);
+    }
+
+    private final TimerWheel wheel = new TimerWheel();
+    private Device device;
+    /*
+     * Set while timers expire, interrupts are already off then
+     */
+    private boolean expiring;
+
+    /**
+     * Expire the timers that are due, called from the timer interrupt
+     *
+     * @return number of timers expired
+     */
+    public int expire()
+    {
+        if(wheel.isEmpty())
+        {
+            return 0;
+        }
+        expiring = true;
+        int expired = wheel.advance(Time.nanoTime() / TICK_NS);
+        expiring = false;
+        return expired;
+    }
+
+    /**
+     * Arm a timer or move an armed one
+     *
+     * @param timeNs absolute expiry time in nanoseconds
+     */
+    public void add(TimerEntry entry, long timeNs)
+    {
+        boolean disabled = disable();
+        arm(entry, timeNs);
+        enable(disabled);
+    }
+
+    /**
+     * @return false when the timer was not armed
+     */
+    public boolean cancel(TimerEntry entry)
+    {
+        boolean disabled = disable();
+        boolean removed = wheel.remove(entry);
+        enable(disabled);
+        return removed;
+    }
+
+    /**
+     * Put the current thread to sleep until timeNs or until its timer is
+     * cancelled
+     */
+    public void sleep(long timeNs)
+    {
+        ThreadTimer timer = RVMThread.getCurrentThread().sleepTimer;
+        Magic.disableInterrupts();
+        arm(timer, timeNs);
+        timer.sleep();
+        Magic.enableInterrupts();
+        Magic.yield();
+    }
+
+    /**
+     * Cancel the sleep timer of a thread and make the thread runnable if it
+     * is asleep
+     *
+     * @return false when the timer was not armed
+     */
+    public boolean wakeup(RVMThread thread)
+    {
+        ThreadTimer timer = thread.sleepTimer;
+        boolean disabled = disable();
+        boolean removed = wheel.remove(timer);
+        timer.wakeup();
+        enable(disabled);
+        return removed;
+    }
+
+    /**
+     * @return the time in nanoseconds the timer interrupt is next needed,
+     * Long.MAX_VALUE when nothing is armed
+     */
+    public long nextExpiry()
+    {
+        long tick = wheel.nextExpiry();
+        return tick == Long.MAX_VALUE ? tick : tick * TICK_NS;
+    }
+
+    public void setDevice(Device device)
+    {
+        this.device = device;
+    }
+
+    public int size()
+    {
+        return wheel.size();
+    }
+
+    private void arm(TimerEntry entry, long timeNs)
+    {
+        if(wheel.isEmpty())
+        {
+            // the wheel stands still while nothing is armed
+            wheel.advance(Time.nanoTime() / TICK_NS);
+        }
+        long expires = (timeNs + TICK_NS - 1) / TICK_NS;
+        wheel.add(entry, expires);
+        if(device != null)
+        {
+            device.armed(expires * TICK_NS);
+        }
+    }
+
+    private boolean disable()
+    {
+        if(expiring)
+        {
+            return false;
+        }
+        Magic.disableInterrupts();
+        return true;
+    }
+
+    private void enable(boolean disabled)
+    {
+        if(disabled)
+        {
+            Magic.enableInterrupts();
+        }
+    }
+}
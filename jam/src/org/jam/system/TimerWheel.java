@@ -0,0 +1,269 @@
+package org.jam.system;
+
+/**
+ * Hierarchical timing wheel.
+ *
+ * Timers that expire within ROOT_SIZE ticks sit in the slot of their tick on
+ * the root wheel, later ones in one of the LEVELS outer wheels whose slots
+ * cover 64 times the span of the slots of the wheel below. Every time the
+ * root wheel turns over, the next slot of the first outer wheel is emptied
+ * and its timers are put back at their place further in, and so on outwards.
+ * Arming and cancelling are O(1), a timer is moved at most LEVELS times before
+ * it expires and all timers of a tick are expired together.
+ *
+ * Timers further away than MAX_TICKS wait in the outermost wheel and are
+ * placed again when their slot comes round.
+ *
+ * Ticks are whatever unit the owner advances the wheel in. The wheel does no
+ * locking, the owner makes sure it is used by one CPU with interrupts off.
+ */
+public final class TimerWheel
+{
+    private final static int ROOT_BITS = 8;
+    private final static int ROOT_SIZE = 1 << ROOT_BITS;
+    private final static int ROOT_MASK = ROOT_SIZE - 1;
+    private final static int LEVEL_BITS = 6;
+    private final static int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private final static int LEVEL_MASK = LEVEL_SIZE - 1;
+    private final static int LEVELS = 4;
+    /*
+     * Timers that are being expired are moved to this slot
+     */
+    private final static int EXPIRING = ROOT_SIZE + LEVELS * LEVEL_SIZE;
+    final static long MAX_TICKS = 1L << (ROOT_BITS + LEVELS * LEVEL_BITS);
+
+    private final TimerEntry slots[] = new TimerEntry[EXPIRING + 1];
+    /*
+     * The next tick to expire
+     */
+    private long next;
+    private int count;
+
+    /**
+     * Arm a timer, an armed timer is moved to the new tick
+     *
+     * @param expires tick to expire on, a tick that has passed expires on the
+     * next advance
+     */
+    public void add(TimerEntry entry, long expires)
+    {
+        if(entry.slot >= 0)
+        {
+            unlink(entry);
+            count--;
+        }
+        entry.expires = expires;
+        insert(entry);
+        count++;
+    }
+
+    /**
+     * Cancel a timer
+     *
+     * @return false when the timer was not armed
+     */
+    public boolean remove(TimerEntry entry)
+    {
+        if(entry.slot < 0)
+        {
+            return false;
+        }
+        unlink(entry);
+        count--;
+        return true;
+    }
+
+    /**
+     * Expire the timers up to and including a tick
+     *
+     * @return number of timers expired
+     */
+    public int advance(long now)
+    {
+        int expired = 0;
+        while(next <= now && count > 0)
+        {
+            expired += tick();
+        }
+        if(next <= now)
+        {
+            // nothing is armed, jump straight to now
+            next = now + 1;
+        }
+        return expired;
+    }
+
+    /**
+     * @return the next tick that will be expired
+     */
+    public long getNext()
+    {
+        return next;
+    }
+
+    /**
+     * The first tick the wheel has work on. That is the tick of the
+     * earliest timer on the root wheel, or the tick an outer slot is cascaded
+     * on when that is earlier, so a tickless owner may wake up once more than
+     * needed but never late.
+     *
+     * @return the tick or Long.MAX_VALUE when nothing is armed
+     */
+    public long nextExpiry()
+    {
+        if(count == 0)
+        {
+            return Long.MAX_VALUE;
+        }
+        long earliest = Long.MAX_VALUE;
+        for(int offset = 0; offset < ROOT_SIZE; offset++)
+        {
+            if(slots[(int)(next + offset) & ROOT_MASK] != null)
+            {
+                earliest = next + offset;
+                break;
+            }
+        }
+        int shift = ROOT_BITS;
+        for(int level = 0; level < LEVELS; level++, shift += LEVEL_BITS)
+        {
+            /*
+             * Slots are cascaded at multiples of their span, starting with
+             * the first one at or after next
+             */
+            long first = (next + (1L << shift) - 1) >>> shift;
+            for(int offset = 0; offset < LEVEL_SIZE && (first + offset) << shift < earliest; offset++)
+            {
+                if(slots[ROOT_SIZE + level * LEVEL_SIZE + ((int)(first + offset) & LEVEL_MASK)] != null)
+                {
+                    earliest = (first + offset) << shift;
+                    break;
+                }
+            }
+        }
+        return earliest;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    private int tick()
+    {
+        int index = (int)next & ROOT_MASK;
+        if(index == 0)
+        {
+            int shift = ROOT_BITS;
+            for(int level = 0; level < LEVELS; level++, shift += LEVEL_BITS)
+            {
+                int levelIndex = (int)(next >>> shift) & LEVEL_MASK;
+                cascade(ROOT_SIZE + level * LEVEL_SIZE + levelIndex);
+                if(levelIndex != 0)
+                {
+                    break;
+                }
+            }
+        }
+        /*
+         * Move the slot aside so the timers can be re-armed or cancelled by
+         * the ones expiring before them
+         */
+        TimerEntry entry = slots[index];
+        slots[index] = null;
+        slots[EXPIRING] = entry;
+        for(; entry != null; entry = entry.next)
+        {
+            entry.slot = EXPIRING;
+        }
+        next++;
+        int expired = 0;
+        while((entry = slots[EXPIRING]) != null)
+        {
+            unlink(entry);
+            count--;
+            expired++;
+            entry.expired();
+        }
+        return expired;
+    }
+
+    /*
+     * Put the timers of an outer slot back in at their place
+     */
+    private void cascade(int slot)
+    {
+        TimerEntry entry = slots[slot];
+        slots[slot] = null;
+        while(entry != null)
+        {
+            TimerEntry following = entry.next;
+            insert(entry);
+            entry = following;
+        }
+    }
+
+    private void insert(TimerEntry entry)
+    {
+        long expires = entry.expires;
+        long delta = expires - next;
+        int slot;
+        if(delta < 0)
+        {
+            slot = (int)next & ROOT_MASK;
+        }
+        else if(delta < ROOT_SIZE)
+        {
+            slot = (int)expires & ROOT_MASK;
+        }
+        else
+        {
+            if(delta >= MAX_TICKS)
+            {
+                delta = MAX_TICKS - 1;
+                expires = next + delta;
+            }
+            int level = 0;
+            int shift = ROOT_BITS;
+            while(delta >= 1L << (shift + LEVEL_BITS))
+            {
+                level++;
+                shift += LEVEL_BITS;
+            }
+            slot = ROOT_SIZE + level * LEVEL_SIZE + ((int)(expires >>> shift) & LEVEL_MASK);
+        }
+        TimerEntry head = slots[slot];
+        entry.prev = null;
+        entry.next = head;
+        if(head != null)
+        {
+            head.prev = entry;
+        }
+        slots[slot] = entry;
+        entry.slot = slot;
+    }
+
+    private void unlink(TimerEntry entry)
+    {
+        if(entry.prev != null)
+        {
+            entry.prev.next = entry.next;
+        }
+        else
+        {
+            slots[entry.slot] = entry.next;
+        }
+        if(entry.next != null)
+        {
+            entry.next.prev = entry.prev;
+        }
+        entry.next = null;
+        entry.prev = null;
+        entry.slot = -1;
+    }
+}
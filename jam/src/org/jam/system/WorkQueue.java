@@ -0,0 +1,212 @@
+package org.jam.system;
+
+import java.util.ArrayList;
+
+import org.jam.board.pc.Smp;
+import org.jikesrvm.SizeConstants;
+import org.jikesrvm.runtime.Magic;
+import org.jikesrvm.scheduler.RVMThread;
+import org.jikesrvm.scheduler.Synchronization;
+import org.vmmagic.unboxed.Offset;
+
+/**
+ * Per processor queue of deferred work and the thread that runs it.
+ *
+ * Interrupt handlers push items onto the pending list of their processor
+ * with a compare and swap, they never wait for the thread. The thread takes
+ * the whole list with another compare and swap and runs it in the order it
+ * was scheduled, then looks for more before it goes idle. It checks the list
+ * and goes on the wait queue with interrupts disabled, so a handler either
+ * sees it idle and waiting or leaves an item it will find. It runs at
+ * Thread.MAX_PRIORITY so deferred work is done before normal threads get
+ * the processor back.
+ *
+ * Java threads and interrupts run on the boot processor only, so there is
+ * one queue for now.
+ */
+public final class WorkQueue
+implements Runnable
+{
+    /*
+     * Pending lists in reverse order, indexed by processor
+     */
+    private final static DeferredWork pending[] = new DeferredWork[Smp.MAX_CPUS];
+    private final static WorkQueue queues[] = new WorkQueue[Smp.MAX_CPUS];
+
+    private final int cpu;
+    private volatile boolean idle;
+    /*
+     * Items seen, so statistics can list them
+     */
+    private final ArrayList<DeferredWork> items = new ArrayList<DeferredWork>();
+
+    /*
+     * Statistics
+     */
+    private long batches;
+    private long runs;
+    private long wakeups;
+    private int maxBatch;
+
+    private WorkQueue(int cpu)
+    {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Start the work queue thread of the boot processor
+     */
+    public static void boot()
+    {
+        int cpu = Smp.getBootProcessor().getIndex();
+        WorkQueue queue = new WorkQueue(cpu);
+        Thread workThread = new Thread(queue);
+        workThread.setName("Work Queue " + cpu);
+        workThread.setDaemon(true);
+        workThread.setPriority(Thread.MAX_PRIORITY);
+        queues[cpu] = queue;
+        workThread.start();
+    }
+
+    /*
+     * Push an item, called by DeferredWork.schedule()
+     */
+    static void schedule(DeferredWork work)
+    {
+        int cpu = currentCpu();
+        Offset offset = slot(cpu);
+        DeferredWork head;
+        do
+        {
+            head = pending[cpu];
+            work.next = head;
+        } while(!Synchronization.tryCompareAndSwap(pending, offset, head, work));
+        WorkQueue queue = queues[cpu];
+        if(queue != null && queue.idle)
+        {
+            RVMThread.nosyncNotify(queue);
+        }
+    }
+
+    private static int currentCpu()
+    {
+        return Smp.getBootProcessor().getIndex();
+    }
+
+    private static Offset slot(int cpu)
+    {
+        return Offset.fromIntZeroExtend(cpu << SizeConstants.LOG_BYTES_IN_ADDRESS);
+    }
+
+    /*
+     * Take the pending list and put it in the order it was scheduled
+     */
+    private DeferredWork takeAll()
+    {
+        Offset offset = slot(cpu);
+        DeferredWork head;
+        do
+        {
+            head = pending[cpu];
+        } while(head != null && !Synchronization.tryCompareAndSwap(pending, offset, head, null));
+        DeferredWork ordered = null;
+        while(head != null)
+        {
+            DeferredWork following = head.next;
+            head.next = ordered;
+            ordered = head;
+            head = following;
+        }
+        return ordered;
+    }
+
+    private int runBatch()
+    {
+        DeferredWork work = takeAll();
+        int batch = 0;
+        while(work != null)
+        {
+            DeferredWork following = work.next;
+            work.next = null;
+            if(work.getRuns() == 0)
+            {
+                items.add(work);
+            }
+            try
+            {
+                work.execute();
+            }
+            catch (Throwable e)
+            {
+                System.out.println("work queue: " + work.getName() + " " + e);
+            }
+            batch++;
+            work = following;
+        }
+        if(batch > 0)
+        {
+            batches++;
+            runs += batch;
+            maxBatch = Math.max(maxBatch, batch);
+        }
+        return batch;
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            try
+            {
+                if(runBatch() > 0)
+                {
+                    continue;
+                }
+                synchronized (this)
+                {
+                    /*
+                     * The thread resumes with interrupts still disabled, the
+                     * flags are part of its saved context
+                     */
+                    Magic.disableInterrupts();
+                    idle = true;
+                    try
+                    {
+                        if(pending[cpu] == null)
+                        {
+                            wait();
+                        }
+                    }
+                    finally
+                    {
+                        idle = false;
+                        Magic.enableInterrupts();
+                    }
+                }
+                wakeups++;
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void printStatistics()
+    {
+        for(int cpu = 0; cpu < queues.length; cpu++)
+        {
+            WorkQueue queue = queues[cpu];
+            if(queue == null)
+            {
+                continue;
+            }
+            System.out.println("work queue " + cpu + " batches " + queue.batches + " runs " + queue.runs
+                               + " wakeups " + queue.wakeups + " max batch " + queue.maxBatch);
+            for(int index = 0; index < queue.items.size(); index++)
+            {
+                System.out.println(queue.items.get(index));
+            }
+        }
+    }
+}
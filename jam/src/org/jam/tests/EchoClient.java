@@ -6,6 +6,7 @@ import java.net.DatagramSocket;
 
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 public final class EchoClient
@@ -13,6 +14,7 @@ implements Runnable
 {
     private DatagramSocket socket;
     final private int SIZE = 128;
+    final private int TIMEOUT = 5000;
     
     public EchoClient() throws SocketException, UnknownHostException
     {
@@ -31,6 +33,17 @@ implements Runnable
         try
         {
             socket.send(packet);
+            /*
+             * Wait for the echo
+             */
+            byte[] reply = new byte[SIZE];
+            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+            socket.setSoTimeout(TIMEOUT);
+            socket.receive(replyPacket);
+            System.out.println("Echo reply " + replyPacket.getLength() + " bytes from " + replyPacket.getSocketAddress());
+        } catch (SocketTimeoutException e)
+        {
+            System.out.println("Echo reply timed out");
         } catch (IOException e)
         {
             // TODO Auto-generated catch block
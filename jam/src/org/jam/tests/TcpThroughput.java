@@ -0,0 +1,94 @@
+package org.jam.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.jam.net.TcpTable;
+import org.jikesrvm.runtime.Time;
+
+/**
+ * Measures TCP throughput to a sink on the QEMU user-net host.
+ *
+ * On the host run a sink such as "nc -l 5001 > /dev/null". With QEMU user
+ * networking the guest reaches the host at 10.0.2.2.
+ */
+public final class TcpThroughput
+implements Runnable
+{
+    private final static int BLOCK_SIZE = 16 * 1024;
+    private final static int TOTAL_BYTES = 32 * 1024 * 1024;
+    private final static int ECHO_COUNT = 100;
+
+    private final String host;
+    private final int port;
+
+    public TcpThroughput(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void run()
+    {
+        System.out.println("TCP throughput test to " + host + ":" + port);
+        try
+        {
+            Socket socket = new Socket(InetAddress.getByName(host), port);
+            OutputStream out = socket.getOutputStream();
+            byte[] block = new byte[BLOCK_SIZE];
+            for(int i = 0; i < block.length; i++)
+            {
+                block[i] = (byte)i;
+            }
+            long start = Time.nanoTime();
+            for(int sent = 0; sent < TOTAL_BYTES; sent += BLOCK_SIZE)
+            {
+                out.write(block, 0, BLOCK_SIZE);
+            }
+            long elapsed = Time.nanoTime() - start;
+            long kbits = ((long)TOTAL_BYTES * 8 * 1000000) / (elapsed / 1000 + 1);
+            System.out.println("sent " + TOTAL_BYTES + " bytes in " + (elapsed / 1000000) + "ms "
+                               + (kbits / 1000) + " Mbit/s");
+            TcpTable.printStatistics();
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Measure the round trip time of single byte exchanges with an echo server
+     */
+    public static void echo(String host, int port)
+    {
+        try
+        {
+            Socket socket = new Socket(InetAddress.getByName(host), port);
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            long start = Time.nanoTime();
+            for(int i = 0; i < ECHO_COUNT; i++)
+            {
+                out.write(i);
+                if(in.read() != (i & 0xFF))
+                {
+                    System.out.println("echo mismatch");
+                    break;
+                }
+            }
+            long elapsed = Time.nanoTime() - start;
+            System.out.println("echo rtt " + (elapsed / ECHO_COUNT / 1000) + "us");
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
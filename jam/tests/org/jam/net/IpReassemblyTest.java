@@ -0,0 +1,179 @@
+package org.jam.net;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import org.jam.board.pc.Platform;
+import org.jam.driver.net.Packet;
+import org.jam.interfaces.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IpReassemblyTest {
+    private static final int SOURCE = 0x0A000202;
+    private static final int DESTINATION = 0x0A00020F;
+    private static final int UDP = 17;
+    private static final int BUFFER_SIZE = 1664;
+
+    private IpReassembly reassembly;
+
+    @Before
+    public void setUp()
+    {
+        Platform.timer = createNiceMock(Timer.class);
+        replay(Platform.timer);
+        reassembly = new IpReassembly();
+    }
+
+    /*
+     * A fragment that expects to be retained and freed once
+     */
+    private Packet fragment()
+    {
+        Packet packet = createMock(Packet.class);
+        expect(packet.retain()).andReturn(packet);
+        expect(packet.getBufferSize()).andStubReturn(BUFFER_SIZE);
+        expect(packet.getPacketAddress()).andStubReturn(null);
+        packet.free();
+        replay(packet);
+        return packet;
+    }
+
+    private Packet add(Packet packet, int id, int offset, int length, boolean more, long now)
+    {
+        return reassembly.add(packet, SOURCE, DESTINATION, UDP, id, offset, length, more, now);
+    }
+
+    /*
+     * Copying the completed datagram needs the VM, this checks the fragments
+     * are held until the gap is filled
+     */
+    @Test
+    public void testOutOfOrderFragmentsWait()
+    {
+        Packet first = fragment();
+        Packet last = fragment();
+        assertNull(add(last, 1, 2960, 100, false, 0));
+        assertNull(add(first, 1, 0, 1480, true, 0));
+        assertEquals(2 * BUFFER_SIZE, reassembly.getMemory());
+        // a middle fragment that overlaps the last one drops the datagram
+        Packet bad = createMock(Packet.class);
+        replay(bad);
+        assertNull(add(bad, 1, 1480, 1488, true, 0));
+        assertEquals(0, reassembly.getMemory());
+        verify(first, last, bad);
+    }
+
+    @Test
+    public void testFlowsAreSeparate()
+    {
+        Packet first = fragment();
+        Packet other = fragment();
+        assertNull(add(first, 1, 0, 1480, true, 0));
+        assertNull(add(other, 2, 1480, 8, false, 0));
+        assertEquals(2 * BUFFER_SIZE, reassembly.getMemory());
+    }
+
+    @Test
+    public void testDuplicateIgnored()
+    {
+        Packet first = fragment();
+        Packet duplicate = createMock(Packet.class);
+        replay(duplicate);
+        assertNull(add(first, 1, 0, 1480, true, 0));
+        assertNull(add(duplicate, 1, 0, 1480, true, 0));
+        assertEquals(BUFFER_SIZE, reassembly.getMemory());
+        verify(duplicate);
+    }
+
+    @Test
+    public void testOverlapDropsDatagram()
+    {
+        Packet first = fragment();
+        Packet overlap = createMock(Packet.class);
+        replay(overlap);
+        assertNull(add(first, 1, 0, 1480, true, 0));
+        assertNull(add(overlap, 1, 1472, 1480, true, 0));
+        assertEquals(0, reassembly.getMemory());
+        verify(first, overlap);
+    }
+
+    @Test
+    public void testInvalidFragments()
+    {
+        Packet packet = createMock(Packet.class);
+        replay(packet);
+        // not a multiple of 8 with more fragments
+        assertNull(add(packet, 1, 0, 1001, true, 0));
+        // past the largest datagram
+        assertNull(add(packet, 1, 65528, 100, false, 0));
+        assertEquals(0, reassembly.getMemory());
+        verify(packet);
+    }
+
+    @Test
+    public void testTimeout()
+    {
+        Packet first = fragment();
+        assertNull(add(first, 1, 0, 1480, true, 0));
+        reassembly.timer(IpReassembly.TIMEOUT - 1);
+        assertEquals(BUFFER_SIZE, reassembly.getMemory());
+        reassembly.timer(IpReassembly.TIMEOUT);
+        assertEquals(0, reassembly.getMemory());
+        verify(first);
+    }
+
+    /*
+     * A 60KB datagram on a path with the minimum MTU, one fragment missing
+     */
+    @Test
+    public void testSmallMtuFragmentsHeld()
+    {
+        int fragmentLength = 552;
+        int count = (60000 + fragmentLength - 1) / fragmentLength;
+        assertTrue(count <= IpReassembly.MAX_FRAGMENTS);
+        Packet packets[] = new Packet[count];
+        for(int index = 0; index < count; index++)
+        {
+            packets[index] = fragment();
+            if(index == 1)
+            {
+                continue;
+            }
+            int offset = index * fragmentLength;
+            boolean more = index < count - 1;
+            assertNull(add(packets[index], 1, offset, more ? fragmentLength : 60000 - offset, more, 0));
+        }
+        assertEquals((count - 1) * BUFFER_SIZE, reassembly.getMemory());
+        reassembly.timer(IpReassembly.TIMEOUT);
+        assertEquals(0, reassembly.getMemory());
+        for(int index = 0; index < count; index++)
+        {
+            if(index != 1)
+            {
+                verify(packets[index]);
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryLimitEvictsOldest()
+    {
+        boolean evicted = false;
+        for(int id = 0; id < 10; id++)
+        {
+            for(int index = 0; index < 40; index++)
+            {
+                int before = reassembly.getMemory();
+                add(fragment(), id, index * 1480, 1480, true, id);
+                if(before + BUFFER_SIZE > IpReassembly.HIGH_THRESHOLD)
+                {
+                    assertTrue(reassembly.getMemory() <= IpReassembly.LOW_THRESHOLD);
+                    evicted = true;
+                }
+                assertTrue(reassembly.getMemory() <= IpReassembly.HIGH_THRESHOLD);
+            }
+        }
+        assertTrue(evicted);
+    }
+}
@@ -0,0 +1,74 @@
+package org.jam.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathMtuTest {
+    private static final int DESTINATION = 0x0A000202;
+    private static final int OTHER = 0x0A000203;
+
+    private PathMtu pathMtu;
+
+    @Before
+    public void setUp()
+    {
+        pathMtu = new PathMtu(16);
+    }
+
+    @Test
+    public void testEmptyCacheUsesInterfaceMtu()
+    {
+        assertEquals(1500, pathMtu.get(DESTINATION, 1500, 0));
+    }
+
+    @Test
+    public void testUpdateLowersMtu()
+    {
+        assertTrue(pathMtu.update(DESTINATION, 1400, 0));
+        assertEquals(1400, pathMtu.get(DESTINATION, 1500, 0));
+        assertEquals(1500, pathMtu.get(OTHER, 1500, 0));
+        // never more than the interface
+        assertEquals(1280, pathMtu.get(DESTINATION, 1280, 0));
+    }
+
+    @Test
+    public void testOnlyLowerUpdatesCount()
+    {
+        assertTrue(pathMtu.update(DESTINATION, 1400, 0));
+        assertFalse(pathMtu.update(DESTINATION, 1450, 0));
+        assertFalse(pathMtu.update(DESTINATION, 1400, 0));
+        assertTrue(pathMtu.update(DESTINATION, 1300, 0));
+        assertEquals(1300, pathMtu.get(DESTINATION, 1500, 0));
+    }
+
+    @Test
+    public void testMinimumMtu()
+    {
+        assertTrue(pathMtu.update(DESTINATION, 68, 0));
+        assertEquals(PathMtu.MIN_MTU, pathMtu.get(DESTINATION, 1500, 0));
+    }
+
+    @Test
+    public void testEntryExpires()
+    {
+        pathMtu.update(DESTINATION, 1400, 0);
+        assertEquals(1400, pathMtu.get(DESTINATION, 1500, PathMtu.TIMEOUT - 1));
+        assertEquals(1500, pathMtu.get(DESTINATION, 1500, PathMtu.TIMEOUT));
+        // an expired entry takes a larger value again
+        assertTrue(pathMtu.update(DESTINATION, 1450, PathMtu.TIMEOUT));
+        assertEquals(1450, pathMtu.get(DESTINATION, 1500, PathMtu.TIMEOUT));
+    }
+
+    @Test
+    public void testFullTableReplacesOldest()
+    {
+        for(int index = 0; index < 64; index++)
+        {
+            pathMtu.update(index << 8, 1000, index);
+        }
+        // the latest entries are still there
+        assertEquals(1000, pathMtu.get(63 << 8, 1500, 64));
+    }
+}
@@ -3,11 +3,10 @@ package org.jam.net;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.util.Random;
 
 import org.jam.net.inet4.InetAddress;
 import org.junit.Before;
@@ -16,27 +15,13 @@ import org.junit.Test;
 public class RouteTest {
     Method toNetmaskMethod;
     Method toPrefixMethod;
-    Field routeTableField;
     
     @Before
     public void setUp() throws Exception
     {
     		makeToNetmaskMethodAccessible();
     		makeToPrefixMethodAccessible();
-    		makeRouteTablePublic();
-    		clearRouteTable();
-    }
-
-    @SuppressWarnings("unchecked")
-    private void clearRouteTable() throws IllegalAccessException
-    {
-        ((ArrayList<Route>)routeTableField.get(null)).clear();
-    }
-
-    private void makeRouteTablePublic() throws NoSuchFieldException
-    {
-        routeTableField = Route.class.getDeclaredField("routeTable");
-        routeTableField.setAccessible(true);
+    		Route.deleteAll();
     }
 
     private void makeToPrefixMethodAccessible() throws NoSuchMethodException
@@ -183,18 +168,18 @@ public class RouteTest {
     }
 
     @Test
-    public void testAddRouteWithPrefix() throws IllegalArgumentException, IllegalAccessException
+    public void testAddRouteWithPrefix()
     {
         Route.addRoute(30, null, null, null);
         Route.addRoute(32, null, null, null);
         Route.addRoute(31, null, null, null);
         Route.addRoute(20, null, null, null);
-        ArrayList<Route> routeTable = (ArrayList<Route>)routeTableField.get(null);
-        assertEquals(4, routeTable.size());
-        assertEquals(32, routeTable.get(0).getPrefix());
-        assertEquals(31, routeTable.get(1).getPrefix());
-        assertEquals(30, routeTable.get(2).getPrefix());
-        assertEquals(20, routeTable.get(3).getPrefix());
+        assertEquals(4, Route.getRoutes().length);
+        assertEquals(32, Route.lookup(0).getPrefix());
+        assertEquals(31, Route.lookup(1).getPrefix());
+        assertEquals(30, Route.lookup(3).getPrefix());
+        assertEquals(20, Route.lookup(0x800).getPrefix());
+        assertNull(Route.lookup(0x1000));
     }
 
     @Test
@@ -221,4 +206,140 @@ public class RouteTest {
         assertEquals(gw, route.getGateway());
     }
 
+    @Test
+    public void testLongestPrefixMatch() throws UnknownHostException
+    {
+        NetworkInterface netIf = mock(NetworkInterface.class);
+        InetAddress gw = new InetAddress("10.0.2.2");
+        Route.addRoute(0, InetAddress.DEFAULT, gw, netIf);
+        Route.addRoute(8, new InetAddress("10.0.0.0"), InetAddress.HOST, netIf);
+        Route.addRoute(12, new InetAddress("10.16.0.0"), gw, netIf);
+        Route.addRoute(27, new InetAddress("10.16.1.32"), gw, netIf);
+        assertEquals(0, Route.find(new InetAddress("192.168.1.1")).getPrefix());
+        assertEquals(8, Route.find(new InetAddress("10.0.2.15")).getPrefix());
+        assertEquals(12, Route.find(new InetAddress("10.31.1.1")).getPrefix());
+        assertEquals(8, Route.find(new InetAddress("10.32.1.1")).getPrefix());
+        assertEquals(27, Route.find(new InetAddress("10.16.1.63")).getPrefix());
+        assertEquals(12, Route.find(new InetAddress("10.16.1.64")).getPrefix());
+    }
+
+    @Test
+    public void testDeleteUncoversShorterPrefix() throws UnknownHostException
+    {
+        Route.addRoute(16, new InetAddress("172.16.0.0"), null, null);
+        Route.addRoute(20, new InetAddress("172.16.16.0"), null, null);
+        Route.addRoute(22, new InetAddress("172.16.16.0"), null, null);
+        InetAddress address = new InetAddress("172.16.17.1");
+        assertEquals(22, Route.find(address).getPrefix());
+        int generation = Route.getGeneration();
+        assertNotNull(Route.deleteRoute(new InetAddress("172.16.16.0"), 22));
+        assertTrue(generation != Route.getGeneration());
+        assertEquals(20, Route.find(address).getPrefix());
+        Route.deleteRoute(new InetAddress("172.16.16.0"), 20);
+        assertEquals(16, Route.find(address).getPrefix());
+        assertNull(Route.deleteRoute(new InetAddress("172.16.16.0"), 20));
+        Route.deleteRoute(new InetAddress("172.16.0.0"), 16);
+        assertNull(Route.lookup(address.inet4()));
+    }
+
+    @Test
+    public void testNextHop() throws UnknownHostException
+    {
+        InetAddress gw = new InetAddress("10.0.2.2");
+        InetAddress local = new InetAddress("10.0.2.15");
+        InetAddress remote = new InetAddress("8.8.8.8");
+        Route.addRoute(0, InetAddress.DEFAULT, gw, null);
+        Route.addRoute(new InetAddress("10.0.2.0"), InetAddress.HOST, 0xFFFFFF00, null);
+        assertSame(gw, Route.find(remote).nextHop(remote));
+        assertSame(local, Route.find(local).nextHop(local));
+    }
+
+    /*
+     * Longest prefix match by scanning every route
+     */
+    private static int linearLookup(int networks[], int prefixes[], boolean deleted[], int count, int address)
+    {
+        int best = -1;
+        for(int index = 0; index < count; index++)
+        {
+            int mask = prefixes[index] == 0 ? 0 : 0x80000000 >> (prefixes[index] - 1);
+            if(!deleted[index] && (address & mask) == networks[index]
+               && (best < 0 || prefixes[index] > prefixes[best]))
+            {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Thousands of random routes, some deleted, checked against a linear
+     * scan. RouteBenchmark times the same lookups.
+     */
+    @Test
+    public void testLargeTableMatchesLinearScan()
+    {
+        final int count = 5000;
+        Random random = new Random(12);
+        int networks[] = new int[count];
+        int prefixes[] = new int[count];
+        boolean deleted[] = new boolean[count];
+        Route routes[] = new Route[count];
+        for(int index = 0; index < count; index++)
+        {
+            /*
+             * Mostly /16 to /24 like a gateway table, some short and host routes
+             */
+            int prefix = index % 10 == 0 ? random.nextInt(33) : 16 + random.nextInt(9);
+            int mask = prefix == 0 ? 0 : 0x80000000 >> (prefix - 1);
+            int network = random.nextInt() & mask & 0x3FFFFFFF;
+            for(int other = 0; other < index; other++)
+            {
+                if(networks[other] == network && prefixes[other] == prefix)
+                {
+                    prefix = -1;
+                    break;
+                }
+            }
+            if(prefix < 0)
+            {
+                deleted[index] = true;
+                continue;
+            }
+            networks[index] = network;
+            prefixes[index] = prefix;
+            Route.addRoute(prefix, new InetAddress(network), null, null);
+        }
+        for(int index = 0; index < count; index += 7)
+        {
+            if(!deleted[index])
+            {
+                assertNotNull(Route.deleteRoute(new InetAddress(networks[index]), prefixes[index]));
+                deleted[index] = true;
+            }
+        }
+        int addresses[] = new int[20000];
+        for(int index = 0; index < addresses.length; index++)
+        {
+            /*
+             * Half of the addresses inside a route
+             */
+            int route = random.nextInt(count);
+            addresses[index] = index % 2 == 0 ? networks[route] | (random.nextInt() & 0xFF) : random.nextInt() & 0x3FFFFFFF;
+        }
+        for(int address : addresses)
+        {
+            int expected = linearLookup(networks, prefixes, deleted, count, address);
+            Route route = Route.lookup(address);
+            if(expected < 0)
+            {
+                assertNull(route);
+            }
+            else
+            {
+                assertEquals(prefixes[expected], route.getPrefix());
+                assertEquals(networks[expected], route.getDestination().inet4() & route.getNetmask());
+            }
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package org.jam.net.inet4;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import org.jam.driver.net.Packet;
+import org.jam.net.ethernet.EthernetAddr;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArpTableTest {
+    private static final int HOST = 0x0A00020F;
+    private static final EthernetAddr MAC = new EthernetAddr((byte)0x52, (byte)0x54, (byte)0, (byte)0x12, (byte)0x34, (byte)0x56);
+
+    private ArpTable table;
+    private Packet flush[];
+    private int retransmit[];
+
+    @Before
+    public void setUp()
+    {
+        table = new ArpTable(16);
+        flush = new Packet[ArpTable.MAX_PENDING];
+        retransmit = new int[16];
+    }
+
+    @Test
+    public void testQueueUntilResolved()
+    {
+        Packet first = createMock(Packet.class);
+        Packet second = createMock(Packet.class);
+        replay(first, second);
+        assertNull(table.findDevice(HOST));
+        assertEquals(ArpTable.REQUEST, table.enqueue(HOST, first, 0));
+        assertEquals(ArpTable.QUEUED, table.enqueue(HOST, second, 0));
+        assertEquals(ArpTable.INCOMPLETE, table.getState(HOST));
+        assertEquals(2, table.update(HOST, MAC, false, 10, flush));
+        assertSame(first, flush[0]);
+        assertSame(second, flush[1]);
+        assertSame(MAC, table.findDevice(HOST));
+        assertEquals(ArpTable.RESOLVED, table.enqueue(HOST, first, 10));
+        verify(first, second);
+    }
+
+    @Test
+    public void testQueueOverflowDropsOldest()
+    {
+        Packet oldest = createMock(Packet.class);
+        oldest.free();
+        replay(oldest);
+        table.enqueue(HOST, oldest, 0);
+        for(int count = 0; count < ArpTable.MAX_PENDING; count++)
+        {
+            Packet packet = createNiceMock(Packet.class);
+            replay(packet);
+            table.enqueue(HOST, packet, 0);
+        }
+        verify(oldest);
+        assertEquals(ArpTable.MAX_PENDING, table.update(HOST, MAC, false, 0, flush));
+    }
+
+    @Test
+    public void testRetriesThenNegativeEntry()
+    {
+        Packet packet = createMock(Packet.class);
+        packet.free();
+        replay(packet);
+        table.enqueue(HOST, packet, 0);
+        long now = 0;
+        for(int retry = 0; retry < ArpTable.MAX_RETRIES; retry++)
+        {
+            now += ArpTable.RETRANSMIT_TIME;
+            assertEquals(1, table.age(now, retransmit));
+            assertEquals(HOST, retransmit[0]);
+        }
+        now += ArpTable.RETRANSMIT_TIME;
+        assertEquals(0, table.age(now, retransmit));
+        verify(packet);
+        assertEquals(ArpTable.FAILED, table.getState(HOST));
+        assertEquals(ArpTable.DROPPED, table.enqueue(HOST, packet, now));
+        now += ArpTable.FAILED_TIME;
+        table.age(now, retransmit);
+        assertEquals(ArpTable.FREE, table.getState(HOST));
+    }
+
+    @Test
+    public void testNextExpiry()
+    {
+        Packet packet = createNiceMock(Packet.class);
+        replay(packet);
+        assertEquals(Long.MAX_VALUE, table.nextExpiry());
+        table.update(HOST, MAC, true, 0, flush);
+        assertEquals(ArpTable.REACHABLE_TIME, table.nextExpiry());
+        table.enqueue(HOST + 1, packet, 100);
+        assertEquals(100 + ArpTable.RETRANSMIT_TIME, table.nextExpiry());
+        table.age(100 + ArpTable.RETRANSMIT_TIME, retransmit);
+        assertEquals(100 + 2 * ArpTable.RETRANSMIT_TIME, table.nextExpiry());
+    }
+
+    @Test
+    public void testUpdateOnlyCreatesWhenAsked()
+    {
+        assertEquals(0, table.update(HOST, MAC, false, 0, flush));
+        assertFalse(table.hasInet(HOST));
+        table.update(HOST, MAC, true, 0, flush);
+        assertTrue(table.hasDevice(HOST));
+    }
+
+    @Test
+    public void testAgingKeepsCollidingEntriesReachable()
+    {
+        for(int host = 0; host < 12; host++)
+        {
+            table.update(HOST + (host << 24), MAC, true, host * 1000, flush);
+        }
+        assertEquals(12, table.size());
+        /*
+         * Expire the first half, the rest must still be found after the
+         * removals shift entries around
+         */
+        table.age(ArpTable.REACHABLE_TIME + 5500, retransmit);
+        assertEquals(6, table.size());
+        for(int host = 0; host < 12; host++)
+        {
+            assertEquals(host >= 6, table.hasDevice(HOST + (host << 24)));
+        }
+    }
+
+    @Test
+    public void testFull()
+    {
+        for(int host = 0; host < 12; host++)
+        {
+            table.update(HOST + host, MAC, true, 0, flush);
+        }
+        Packet packet = createMock(Packet.class);
+        replay(packet);
+        assertEquals(ArpTable.DROPPED, table.enqueue(HOST - 1, packet, 0));
+        verify(packet);
+    }
+}
@@ -0,0 +1,82 @@
+package org.jam.net.inet4;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DnsCacheTest {
+    private static final byte ADDRESSES[][] = { { 10, 0, 2, 2 } };
+
+    private DnsCache cache;
+
+    @Before
+    public void setUp()
+    {
+        cache = new DnsCache(4);
+    }
+
+    @Test
+    public void testTtl()
+    {
+        cache.put("example.com", ADDRESSES, 60, 0);
+        assertSame(ADDRESSES, cache.get("example.com", 59999).addresses);
+        assertNull(cache.get("example.com", 60000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNegativeEntry()
+    {
+        cache.put("missing.com", null, 30, 0);
+        DnsCache.Entry entry = cache.get("missing.com", 1000);
+        assertNotNull(entry);
+        assertTrue(entry.isNegative());
+        assertFalse(cache.needsPrefetch(entry, 29999));
+    }
+
+    @Test
+    public void testZeroTtlNotCached()
+    {
+        cache.put("example.com", ADDRESSES, 0, 0);
+        assertNull(cache.get("example.com", 0));
+        cache.put("missing.com", null, -1, 0);
+        assertNull(cache.get("missing.com", 0));
+    }
+
+    @Test
+    public void testPrefetchOnceNearExpiry()
+    {
+        cache.put("example.com", ADDRESSES, 100, 0);
+        DnsCache.Entry entry = cache.get("example.com", 0);
+        assertFalse(cache.needsPrefetch(entry, 89999));
+        assertTrue(cache.needsPrefetch(entry, 90000));
+        assertFalse(cache.needsPrefetch(entry, 95000));
+        // the refreshed answer starts over
+        cache.put("example.com", ADDRESSES, 100, 95000);
+        assertFalse(cache.needsPrefetch(cache.get("example.com", 95000), 100000));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted()
+    {
+        for(int index = 0; index < 4; index++)
+        {
+            cache.put("host" + index, ADDRESSES, 60, 0);
+        }
+        cache.get("host0", 0);
+        cache.put("host4", ADDRESSES, 60, 0);
+        assertEquals(4, cache.size());
+        assertNotNull(cache.get("host0", 0));
+        assertNull(cache.get("host1", 0));
+    }
+
+    @Test
+    public void testExpire()
+    {
+        cache.put("short", ADDRESSES, 10, 0);
+        cache.put("long", ADDRESSES, 100, 0);
+        cache.expire(10000);
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,153 @@
+package org.jam.net.inet4;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class DnsMessageTest {
+    private static final int ID = 0x1234;
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private void writeShort(int value)
+    {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private void writeInt(int value)
+    {
+        writeShort(value >>> 16);
+        writeShort(value);
+    }
+
+    private void writeName(String name)
+    {
+        for(String label : name.split("\\."))
+        {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+    }
+
+    private void header(int rcode, int answers, int authority)
+    {
+        writeShort(ID);
+        writeShort(0x8180 | rcode);
+        writeShort(1);
+        writeShort(answers);
+        writeShort(authority);
+        writeShort(0);
+        writeName("www.Example.com");
+        writeShort(DnsMessage.TYPE_A);
+        writeShort(DnsMessage.CLASS_IN);
+    }
+
+    /*
+     * Record owned by the question name, by pointer
+     */
+    private void record(int type, int ttl, byte rdata[])
+    {
+        writeShort(0xC000 | DnsMessage.HEADER_SIZE);
+        writeShort(type);
+        writeShort(DnsMessage.CLASS_IN);
+        writeInt(ttl);
+        writeShort(rdata.length);
+        out.write(rdata, 0, rdata.length);
+    }
+
+    private DnsMessage parse()
+    {
+        DnsMessage message = new DnsMessage();
+        byte data[] = out.toByteArray();
+        assertTrue(message.parse(data, data.length));
+        return message;
+    }
+
+    @Test
+    public void testQuery()
+    {
+        byte buffer[] = new byte[DnsMessage.MAX_SIZE];
+        int length = DnsMessage.query(buffer, ID, "www.example.com.");
+        assertEquals(DnsMessage.HEADER_SIZE + 17 + 4, length);
+        assertEquals(0x12, buffer[0]);
+        assertEquals(0x34, buffer[1]);
+        assertEquals(1, buffer[5]);
+        assertEquals(3, buffer[12]);
+        assertEquals('w', buffer[13]);
+        assertEquals(7, buffer[16]);
+        assertEquals(0, buffer[length - 5]);
+        assertEquals(DnsMessage.TYPE_A, buffer[length - 3]);
+    }
+
+    @Test
+    public void testInvalidNames()
+    {
+        byte buffer[] = new byte[DnsMessage.MAX_SIZE];
+        assertEquals(-1, DnsMessage.query(buffer, ID, ""));
+        assertEquals(-1, DnsMessage.query(buffer, ID, "a..b"));
+        assertEquals(-1, DnsMessage.query(buffer, ID, "0123456789012345678901234567890123456789012345678901234567890123.com"));
+    }
+
+    @Test
+    public void testAnswers()
+    {
+        header(DnsMessage.NOERROR, 3, 0);
+        byte alias[] = { 3, 'w', 'e', 'b', (byte)0xC0, 16 };
+        record(DnsMessage.TYPE_CNAME, 600, alias);
+        record(DnsMessage.TYPE_A, 300, new byte[] { 10, 0, 0, 1 });
+        record(DnsMessage.TYPE_A, 120, new byte[] { 10, 0, 0, 2 });
+        DnsMessage message = parse();
+        assertEquals(ID, message.id);
+        assertEquals("www.example.com", message.question);
+        assertEquals(2, message.addresses.length);
+        assertEquals(10, message.addresses[0][0]);
+        assertEquals(2, message.addresses[1][3]);
+        assertEquals(120, message.ttl);
+    }
+
+    @Test
+    public void testNegativeAnswer()
+    {
+        header(DnsMessage.NXDOMAIN, 0, 1);
+        ByteArrayOutputStream answer = out;
+        out = new ByteArrayOutputStream();
+        writeName("ns.example.com");
+        writeName("admin.example.com");
+        writeInt(1);
+        writeInt(7200);
+        writeInt(3600);
+        writeInt(86400);
+        writeInt(60);
+        byte soa[] = out.toByteArray();
+        out = answer;
+        record(DnsMessage.TYPE_SOA, 900, soa);
+        DnsMessage message = parse();
+        assertEquals(DnsMessage.NXDOMAIN, message.rcode);
+        assertNull(message.addresses);
+        assertEquals(60, message.negativeTtl);
+    }
+
+    @Test
+    public void testMalformed()
+    {
+        header(DnsMessage.NOERROR, 1, 0);
+        // record runs past the end
+        writeShort(0xC000 | DnsMessage.HEADER_SIZE);
+        writeShort(DnsMessage.TYPE_A);
+        writeShort(DnsMessage.CLASS_IN);
+        writeInt(60);
+        writeShort(4);
+        out.write(10);
+        DnsMessage message = new DnsMessage();
+        byte data[] = out.toByteArray();
+        assertFalse(message.parse(data, data.length));
+        // pointer loop
+        data[12] = (byte)0xC0;
+        data[13] = 12;
+        assertFalse(message.parse(data, data.length));
+    }
+}
@@ -0,0 +1,79 @@
+package org.jam.net.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public class StatisticsTest
+{
+    @Test
+    public void interfaceCounters()
+    {
+        InterfaceStats stats = new InterfaceStats(Statistics.uniqueName("test"));
+        stats.rxPackets.inc();
+        stats.rxBytes.add(1500);
+        stats.ringFull.inc();
+        assertSame(stats, Statistics.find(stats.getName()));
+        assertEquals(1, stats.find("rx packets").get());
+        assertEquals(1500, stats.find("rx bytes").get());
+        assertEquals(1, stats.find("ring full").get());
+        assertNull(stats.find("no such counter"));
+        Statistics.unregister(stats);
+        assertNull(Statistics.find(stats.getName()));
+    }
+
+    @Test
+    public void uniqueNames()
+    {
+        StatsGroup first = new StatsGroup(Statistics.uniqueName("unique"));
+        StatsGroup second = new StatsGroup(Statistics.uniqueName("unique"));
+        assertEquals("unique0", first.getName());
+        assertEquals("unique1", second.getName());
+        Statistics.unregister(first);
+        Statistics.unregister(second);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void duplicateName()
+    {
+        StatsGroup group = new StatsGroup("duplicate");
+        try
+        {
+            new StatsGroup("duplicate");
+        }
+        finally
+        {
+            Statistics.unregister(group);
+        }
+    }
+
+    @Test
+    public void snapshotDelta()
+    {
+        StatsGroup group = new StatsGroup(Statistics.uniqueName("delta"));
+        Counter sent = group.counter("sent");
+        Counter errors = group.counter("errors");
+        sent.add(10);
+        StatsSnapshot before = Statistics.snapshot();
+        sent.add(5);
+        Counter late = group.counter("late");
+        late.inc();
+        StatsSnapshot after = Statistics.snapshot();
+        assertEquals(15, after.get(group.getName(), "sent"));
+        assertEquals(5, after.delta(before, group.getName(), "sent"));
+        assertEquals(0, after.delta(before, group.getName(), "errors"));
+        assertEquals(1, after.delta(before, group.getName(), "late"));
+        assertEquals(-1, before.get(group.getName(), "late"));
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        after.print(new PrintStream(text), before);
+        assertTrue(text.toString().contains(group.getName() + " sent 5 late 1"));
+        errors.inc();
+        Statistics.unregister(group);
+    }
+}
@@ -0,0 +1,184 @@
+package org.jam.system;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+    private TimerWheel wheel;
+    private long now;
+
+    /*
+     * Records the tick it expired on
+     */
+    private class Probe
+    extends TimerEntry
+    {
+        long firedAt = -1;
+        int fired;
+
+        public void expired()
+        {
+            firedAt = now;
+            fired++;
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        wheel = new TimerWheel();
+        now = 0;
+    }
+
+    private int advanceTo(long tick)
+    {
+        int expired = 0;
+        while(now < tick)
+        {
+            now++;
+            expired += wheel.advance(now);
+        }
+        return expired;
+    }
+
+    @Test
+    public void testSameDeadline()
+    {
+        Probe first = new Probe();
+        Probe second = new Probe();
+        wheel.add(first, 10);
+        wheel.add(second, 10);
+        assertEquals(2, wheel.size());
+        assertEquals(0, advanceTo(9));
+        assertEquals(2, advanceTo(10));
+        assertEquals(10, first.firedAt);
+        assertEquals(10, second.firedAt);
+        assertTrue(wheel.isEmpty());
+        assertFalse(first.isArmed());
+    }
+
+    @Test
+    public void testCancel()
+    {
+        Probe probe = new Probe();
+        wheel.add(probe, 5);
+        assertTrue(probe.isArmed());
+        assertTrue(wheel.remove(probe));
+        assertFalse(wheel.remove(probe));
+        advanceTo(10);
+        assertEquals(0, probe.fired);
+    }
+
+    @Test
+    public void testRearmMoves()
+    {
+        Probe probe = new Probe();
+        wheel.add(probe, 5);
+        wheel.add(probe, 700);
+        assertEquals(1, wheel.size());
+        advanceTo(699);
+        assertEquals(0, probe.fired);
+        advanceTo(700);
+        assertEquals(700, probe.firedAt);
+    }
+
+    @Test
+    public void testPastDeadlineFiresNextTick()
+    {
+        advanceTo(100);
+        Probe probe = new Probe();
+        wheel.add(probe, 50);
+        advanceTo(101);
+        assertEquals(101, probe.firedAt);
+    }
+
+    @Test
+    public void testIdleWheelJumps()
+    {
+        wheel.advance(1000000);
+        now = 1000000;
+        Probe probe = new Probe();
+        wheel.add(probe, now + 3);
+        advanceTo(now + 3);
+        assertEquals(1000003, probe.firedAt);
+    }
+
+    @Test
+    public void testCascadedTimersExpireOnTime()
+    {
+        Random random = new Random(21);
+        Probe probes[] = new Probe[5000];
+        long deadlines[] = new long[probes.length];
+        for(int index = 0; index < probes.length; index++)
+        {
+            probes[index] = new Probe();
+            // spread over the root and the first three outer wheels
+            deadlines[index] = 1 + random.nextInt(1 << (index % 4 * 6 + 8));
+            wheel.add(probes[index], deadlines[index]);
+        }
+        assertEquals(probes.length, advanceTo(1 << 26));
+        for(int index = 0; index < probes.length; index++)
+        {
+            assertEquals(1, probes[index].fired);
+            assertEquals(deadlines[index], probes[index].firedAt);
+        }
+    }
+
+    @Test
+    public void testNextExpiryIsNeverLate()
+    {
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+        Random random = new Random(22);
+        Probe probes[] = new Probe[2000];
+        long deadlines[] = new long[probes.length];
+        for(int index = 0; index < probes.length; index++)
+        {
+            probes[index] = new Probe();
+            deadlines[index] = 1 + random.nextInt(1 << (index % 4 * 6 + 8));
+            wheel.add(probes[index], deadlines[index]);
+        }
+        int wakeups = 0;
+        while(!wheel.isEmpty())
+        {
+            // jump from one expiry to the next like a tickless timer
+            now = wheel.nextExpiry();
+            wheel.advance(now);
+            wakeups++;
+        }
+        for(int index = 0; index < probes.length; index++)
+        {
+            assertEquals(deadlines[index], probes[index].firedAt);
+        }
+        assertTrue(wakeups < 2 * probes.length);
+    }
+
+    @Test
+    public void testExpiryMayRearmAndCancel()
+    {
+        final Probe victim = new Probe();
+        Probe periodic = new Probe()
+        {
+            public void expired()
+            {
+                super.expired();
+                if(fired < 3)
+                {
+                    wheel.add(this, now + 10);
+                }
+                wheel.remove(victim);
+            }
+        };
+        wheel.add(periodic, 10);
+        wheel.add(victim, 10);
+        advanceTo(100);
+        assertEquals(3, periodic.fired);
+        assertEquals(30, periodic.firedAt);
+        // cancelled by the first expiry unless it went first
+        assertTrue(victim.fired <= 1);
+        assertTrue(wheel.isEmpty());
+    }
+}
@@ -12,16 +12,17 @@
  */
 package org.jikesrvm;
 
-import org.jam.driver.net.NapiManager;
 import org.jam.driver.serial.PcBootSerialPort;
 import org.jam.driver.serial.SerialPortBaudRate;
 import org.jam.net.ethernet.Ethernet;
 import org.jam.net.ethernet.EthernetAddr;
 import org.jam.net.inet4.Arp;
 import org.jam.net.inet4.InetAddress;
+import org.jam.system.WorkQueue;
 import org.jam.tests.EchoClient;
 import org.jam.tests.LdivTests;
 import org.jam.tests.Sleep;
+import org.jam.tests.TcpThroughput;
 
 import java.net.SocketException;
 import java.net.UnknownHostException;
@@ -456,9 +457,7 @@ public class VM extends Properties implements Constants, ExitStatus {
 //    Sleep sleep = new Sleep();
 //    new Thread(sleep).start();
     
-    Thread napiThread = new Thread(new NapiManager());
-    napiThread.setName("NAPI Manager");
-    napiThread.start();
+    WorkQueue.boot();
     Platform.net.inetBoot();
     System.out.println("DNS options");
     System.setProperty("dnsjava.options", "verbose,verbosemsg");
@@ -489,6 +488,10 @@ public class VM extends Properties implements Constants, ExitStatus {
     {
         e.printStackTrace();
     }
+    /*
+     * TCP throughput test, needs a sink on the host (nc -l 5001 > /dev/null)
+     */
+//    new Thread(new TcpThroughput("10.0.2.2", 5001)).start();
     /*
      * Exhaust class test
      */
@@ -2769,6 +2769,26 @@ final class BaselineMagic {
       MagicGenerator g = new DisableInterrupts();
       generators.put(getMethodReference(Magic.class, MagicNames.disableInterrupts, void.class), g);
   }
+
+  /**
+   * Enable interrupts and halt, the interrupt shadow of STI keeps
+   * interrupts off until HLT has started
+   */
+  private static final class EnableInterruptsAndHalt extends MagicGenerator
+  {
+      @Override
+      void generateMagic(Assembler asm, MethodReference m, RVMMethod cm, Offset sd)
+      {
+          asm.emitSTI();
+          asm.emitHLT();
+      }
+  }
+
+  static
+  {
+      MagicGenerator g = new EnableInterruptsAndHalt();
+      generators.put(getMethodReference(Magic.class, MagicNames.enableInterruptsAndHalt, void.class), g);
+  }
   
   /**
    * Generate a yield interrupt
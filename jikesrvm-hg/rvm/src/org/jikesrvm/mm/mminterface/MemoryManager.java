@@ -803,6 +803,36 @@ public final class MemoryManager implements HeapLayoutConstants, Constants {
 
   }
 
+  /**
+   * Allocate a non moving byte array
+   *
+   * @param size The size of the array
+   */
+  @NoInline
+  @Interruptible
+  public static byte[] newNonMovingByteArray(int size) {
+    if (!VM.runningVM) {
+      return new byte[size];
+    }
+
+    RVMArray arrayType = RVMArray.ByteArray;
+    int headerSize = ObjectModel.computeArrayHeaderSize(arrayType);
+    int align = ObjectModel.getAlignment(arrayType);
+    int offset = ObjectModel.getOffsetForAlignment(arrayType, false);
+    int width = arrayType.getLogElementSize();
+    TIB arrayTib = arrayType.getTypeInformationBlock();
+
+    return (byte[]) allocateArray(size,
+                                 width,
+                                 headerSize,
+                                 arrayTib,
+                                 Plan.ALLOC_NON_MOVING,
+                                 align,
+                                 offset,
+                                 Plan.DEFAULT_SITE);
+
+  }
+
   /**
    * Allocate a non moving int array
    *
@@ -1299,6 +1299,19 @@ public final class Magic {
         }
     }
 
+    /**
+     * emit STI followed by HLT. No interrupt is taken between the two, so
+     * a caller that checked for work with interrupts disabled cannot miss
+     * the interrupt that brings it.
+     */
+    public static void enableInterruptsAndHalt()
+    {
+        if (VM.runningVM && VM.VerifyAssertions)
+        {
+            VM._assert(VM.NOT_REACHED);  // call site should have been hijacked by magic in compiler
+        }
+    }
+
     public static void setCS(int segment)
     {
         if (VM.runningVM && VM.VerifyAssertions)
@@ -135,6 +135,7 @@ public class MagicNames {
   public static final Atom startThread = Atom.findOrCreateAsciiAtom("startThread");
   public static final Atom enableInterrupts = Atom.findOrCreateAsciiAtom("enableInterrupts");
   public static final Atom disableInterrupts = Atom.findOrCreateAsciiAtom("disableInterrupts");
+  public static final Atom enableInterruptsAndHalt = Atom.findOrCreateAsciiAtom("enableInterruptsAndHalt");
   
   public static final Atom objectAsAddress = Atom.findOrCreateAsciiAtom("objectAsAddress");
   public static final Atom addressAsObject = Atom.findOrCreateAsciiAtom("addressAsObject");
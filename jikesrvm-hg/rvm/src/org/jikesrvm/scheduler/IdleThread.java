@@ -6,6 +6,7 @@
  */
 package org.jikesrvm.scheduler;
 
+import org.jam.board.pc.Platform;
 import org.jikesrvm.VM;
 import org.jikesrvm.mm.mminterface.MemoryManager;
 import org.jikesrvm.runtime.Magic;
@@ -37,13 +38,24 @@ public class IdleThread extends SystemThread {
     {
         VM.sysWriteln("Starting the Idle Thread");
         /*
-         * For now just pause because we will be doing is spinning until a process
-         * becomes available. Later on may want to do some power saving stuff.
+         * Give the processor to a thread as soon as one is runnable, otherwise
+         * halt until the next interrupt. The run queue is checked with
+         * interrupts disabled and STI HLT are back to back, so an interrupt
+         * that makes a thread runnable after the check ends the halt.
          */
         while (true)
         {
             // rvmThread.checkBlock();
-            Magic.pause();
+            Magic.disableInterrupts();
+            if(Platform.scheduler.noRunnableThreads())
+            {
+                Magic.enableInterruptsAndHalt();
+            }
+            else
+            {
+                Magic.enableInterrupts();
+                Magic.yield();
+            }
         }
 
     }
@@ -431,7 +431,7 @@ public static boolean trace = false;
      * May have implications when sending a stop or an exception to the sleep thread
      */
     Platform.timer.startTimer(whenWakeupNanos);
-    Platform.timer.removeTimer(whenWakeupNanos);
+    Platform.timer.removeTimer(RVMThread.getCurrentThread());
     /*
      * Re-acquire the lock
      */
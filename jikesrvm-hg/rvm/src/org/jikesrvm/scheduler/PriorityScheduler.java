@@ -0,0 +1,141 @@
+package org.jikesrvm.scheduler;
+
+import org.jam.board.pc.Platform;
+import org.jikesrvm.mm.mminterface.MemoryManager;
+import org.jikesrvm.runtime.Magic;
+import org.vmmagic.unboxed.Address;
+
+/**
+ * Scheduler with a run queue for every Java priority.
+ *
+ * A bit for each priority tells which queues have threads, so the next thread
+ * comes from the queue of the highest set bit and threads of one priority
+ * take turns. The time slice grows with the priority.
+ *
+ * A thread that is woken up after it blocked is queued one priority above its
+ * own and keeps that until it is put back on the run queue while running, at
+ * the end of its slice or when it yields. Threads that mostly wait, like the
+ * network threads, get ahead of CPU bound threads of the same priority that
+ * way. A thread queued above the running one makes shouldPreempt() true and
+ * the timer switches to it right away.
+ */
+public class PriorityScheduler
+implements Scheduler
+{
+    private final static int STACK_SIZE = 256;
+    private final static long SLICE_NS_PER_PRIORITY = 2000000;
+
+    private int[] stack;
+    private Address stackTop;
+    /*
+     * Queue for each priority, index 0 is not used
+     */
+    private final ThreadQueue runQueues[] = new ThreadQueue[Thread.MAX_PRIORITY + 1];
+    /*
+     * Bit set for each queue that has threads
+     */
+    private int ready;
+
+    public PriorityScheduler()
+    {
+        stack = MemoryManager.newNonMovingIntArray(STACK_SIZE);
+        /*
+         * Put in the sentinel
+         */
+        stack[STACK_SIZE-1] = 0;    // IP = 0
+        stack[STACK_SIZE-2] = 0;    // FP = 0
+        stack[STACK_SIZE-3] = 0;    // cmid = 0
+
+        stackTop = Magic.objectAsAddress(stack).plus((STACK_SIZE-4)<<2);
+        for(int priority = Thread.MIN_PRIORITY; priority <= Thread.MAX_PRIORITY; priority++)
+        {
+            runQueues[priority] = new ThreadQueue();
+        }
+    }
+
+    /*
+     * Current thread must be scheduled before calling
+     */
+    @Override
+    public void nextThread()
+    {
+        RVMThread nextThread;
+
+        if(ready == 0)
+        {
+            nextThread = RVMThread.idleThread;
+        }
+        else
+        {
+            int priority = highest();
+            nextThread = runQueues[priority].dequeue();
+            if(runQueues[priority].isEmpty())
+            {
+                ready &= ~(1 << priority);
+            }
+        }
+        Magic.setThreadRegister(nextThread);
+    }
+
+    /**
+     * Puts thread onto the run queue of its priority
+     * @param thread the thread to put on the run queue
+     */
+    @Override
+    public void addThread(RVMThread thread)
+    {
+        /*
+         * See if thread is already queued somewhere else
+         * like a monitor. The idle thread runs when the queues are empty
+         * and is never queued.
+         */
+        if(thread.queuedOn != null || thread.isTerminated() || thread == RVMThread.idleThread)
+        {
+            return;
+        }
+        int priority = Math.max(Thread.MIN_PRIORITY, Math.min(thread.getPriority(), Thread.MAX_PRIORITY));
+        if(thread != Magic.getThreadRegister() && priority < Thread.MAX_PRIORITY)
+        {
+            // woken up, not put back while running
+            priority++;
+        }
+        thread.schedulingPriority = priority;
+        runQueues[priority].enqueue(thread);
+        ready |= 1 << priority;
+        Platform.timer.threadReady();
+    }
+
+    @Override
+    public boolean shouldPreempt()
+    {
+        if(ready == 0)
+        {
+            return false;
+        }
+        RVMThread current = Magic.getThreadRegister();
+        return current == RVMThread.idleThread || highest() > current.schedulingPriority;
+    }
+
+    @Override
+    public long timeSlice(RVMThread thread)
+    {
+        return SLICE_NS_PER_PRIORITY * thread.schedulingPriority;
+    }
+
+    @Override
+    public Address getHandlerStack()
+    {
+        return stackTop;
+    }
+
+    @Override
+    public boolean noRunnableThreads()
+    {
+        return ready == 0;
+    }
+
+    private int highest()
+    {
+        return 31 - Integer.numberOfLeadingZeros(ready);
+    }
+}
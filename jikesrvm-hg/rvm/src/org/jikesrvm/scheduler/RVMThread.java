@@ -16,6 +16,7 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 
 import org.jam.board.pc.Platform;
+import org.jam.system.ThreadTimer;
 import org.jikesrvm.ArchitectureSpecific.CodeArray;
 import org.jikesrvm.ArchitectureSpecific.Registers;
 //import org.jikesrvm.ArchitectureSpecificOpt.PostThreadSwitch;
@@ -367,6 +368,17 @@ public final class RVMThread extends ThreadContext implements Constants {
   @Untraced
   volatile ThreadQueue queuedOn;
 
+  /**
+   * Timer the thread sleeps on, armed by Platform.timer.startTimer()
+   */
+  public final ThreadTimer sleepTimer = new ThreadTimer(this);
+
+  /**
+   * Priority of the run queue the thread was last put on, which may be
+   * boosted above its own priority by the scheduler
+   */
+  int schedulingPriority = Thread.NORM_PRIORITY;
+
   /**
    * @return True if this thread is currently on a queue.
    */
@@ -3108,7 +3120,6 @@ public Address sentinelFp;
     RVMThread toAwaken = l.waiting.dequeue();
     l.mutex.unlock();
     if (toAwaken != null) {
-        VM.sysWriteln("nosync notify ", toAwaken.threadSlot);
         Platform.scheduler.addThread(toAwaken);
     }
   }
@@ -4291,10 +4302,6 @@ public Address sentinelFp;
    * @see java.lang.Thread#getPriority()
    */
   public int getPriority() {
-    if (isAlive()) {
-      // compute current priority
-      priority = 0; // sysCall.sysGetThreadPriority(pthread_id, priority_handle) + Thread.NORM_PRIORITY;
-    }
     if (tracePriority) {
       VM.sysWriteln("Thread #", getThreadSlot(), " get priority returning: ", priority);
     }
@@ -6,6 +6,7 @@
  */
 package org.jikesrvm.scheduler;
 
+import org.jam.board.pc.Platform;
 import org.jikesrvm.VM;
 import org.jikesrvm.mm.mminterface.MemoryManager;
 import org.jikesrvm.runtime.Magic;
@@ -20,6 +21,7 @@ implements Scheduler {
     private int[] stack;
     private Address stackTop;
     private final static int STACK_SIZE = 256;
+    private final static long SLICE_NS = 10000000;
     private ThreadQueue runQueue;
     
     public RoundRobin()
@@ -79,11 +81,13 @@ implements Scheduler {
     {
         /*
          * See if thread is already queued somewhere else
-         * like a monitor
+         * like a monitor. The idle thread runs when the queue is empty
+         * and is never queued.
          */
-        if(thread.queuedOn==null && !thread.isTerminated())
+        if(thread.queuedOn==null && !thread.isTerminated() && thread != RVMThread.idleThread)
         {
           runQueue.enqueue(thread);
+          Platform.timer.threadReady();
         }
     }
     
@@ -105,4 +109,19 @@ implements Scheduler {
         return runQueue.isEmpty();
     }
 
+    /**
+     * Threads only change at the end of a time slice
+     */
+    @Override
+    public boolean shouldPreempt()
+    {
+        return false;
+    }
+
+    @Override
+    public long timeSlice(RVMThread thread)
+    {
+        return SLICE_NS;
+    }
+
 }
@@ -20,4 +20,12 @@ public interface Scheduler {
      * @return
      */
     public boolean noRunnableThreads();
+    /**
+     * @return true when a queued thread should run instead of the current one
+     */
+    public boolean shouldPreempt();
+    /**
+     * @return nanoseconds the thread may run before others get a turn
+     */
+    public long timeSlice(RVMThread thread);
 }